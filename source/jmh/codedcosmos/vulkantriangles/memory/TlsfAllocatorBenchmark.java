@@ -0,0 +1,148 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.memory;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+// Allocate and free at a steady number of live ranges, TLSF against a first fit free list.
+// Before the pool every buffer had its own vkAllocateMemory, there was no offset allocator to compare with,
+// so the baseline is the sorted free list an offset allocator is usually written as first.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TlsfAllocatorBenchmark {
+	private static final long CAPACITY = 64L << 20;
+	private static final int OPERATIONS = 1 << 16;
+	
+	@Param({"256", "4096"})
+	public int live;
+	
+	// Pre-rolled so both allocators see the same sequence and the benchmark doesn't time Random
+	private long[] sizes;
+	private long[] alignments;
+	private int[] victims;
+	
+	private TlsfAllocator tlsf;
+	private int[] tlsfHandles;
+	
+	private FirstFitAllocator firstFit;
+	private long[] firstFitOffsets;
+	
+	@Setup(Level.Trial)
+	public void roll() {
+		Random random = new Random(1);
+		sizes = new long[OPERATIONS];
+		alignments = new long[OPERATIONS];
+		victims = new int[OPERATIONS];
+		for (int i = 0; i < OPERATIONS; i++) {
+			sizes[i] = 1 + random.nextInt(1 << 14);
+			alignments[i] = 1L << random.nextInt(9);
+			victims[i] = random.nextInt(live);
+		}
+	}
+	
+	// Both start from live ranges allocated in order, then replace one range per operation
+	@Setup(Level.Iteration)
+	public void fill() {
+		tlsf = new TlsfAllocator(CAPACITY);
+		tlsfHandles = new int[live];
+		firstFit = new FirstFitAllocator(CAPACITY);
+		firstFitOffsets = new long[live];
+		
+		for (int i = 0; i < live; i++) {
+			tlsfHandles[i] = tlsf.allocate(sizes[i], alignments[i]);
+			firstFitOffsets[i] = firstFit.allocate(sizes[i], alignments[i]);
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(OPERATIONS)
+	public void tlsf(Blackhole blackhole) {
+		for (int i = 0; i < OPERATIONS; i++) {
+			int victim = victims[i];
+			tlsf.free(tlsfHandles[victim]);
+			tlsfHandles[victim] = tlsf.allocate(sizes[i], alignments[i]);
+		}
+		blackhole.consume(tlsfHandles);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(OPERATIONS)
+	public void firstFit(Blackhole blackhole) {
+		for (int i = 0; i < OPERATIONS; i++) {
+			int victim = victims[i];
+			firstFit.free(firstFitOffsets[victim]);
+			firstFitOffsets[victim] = firstFit.allocate(sizes[i], alignments[i]);
+		}
+		blackhole.consume(firstFitOffsets);
+	}
+	
+	// Free ranges by offset, the first one with room wins, merged with its neighbours when freed
+	static class FirstFitAllocator {
+		private final TreeMap<Long, Long> free = new TreeMap<Long, Long>();
+		private final Map<Long, Long> used = new HashMap<Long, Long>();
+		
+		FirstFitAllocator(long capacity) {
+			free.put(0L, capacity);
+		}
+		
+		long allocate(long size, long alignment) {
+			for (Map.Entry<Long, Long> range : free.entrySet()) {
+				long offset = range.getKey();
+				long end = offset + range.getValue();
+				long aligned = (offset + alignment - 1) & -alignment;
+				if (aligned + size > end) continue;
+				
+				free.remove(offset);
+				if (aligned > offset) {
+					free.put(offset, aligned - offset);
+				}
+				if (aligned + size < end) {
+					free.put(aligned + size, end - aligned - size);
+				}
+				used.put(aligned, size);
+				return aligned;
+			}
+			return -1;
+		}
+		
+		void free(long offset) {
+			long size = used.remove(offset);
+			
+			Map.Entry<Long, Long> next = free.ceilingEntry(offset);
+			if (next != null && next.getKey() == offset + size) {
+				free.remove(next.getKey());
+				size += next.getValue();
+			}
+			
+			Map.Entry<Long, Long> prev = free.floorEntry(offset);
+			if (prev != null && prev.getKey() + prev.getValue() == offset) {
+				offset = prev.getKey();
+				size += prev.getValue();
+			}
+			free.put(offset, size);
+		}
+	}
+}
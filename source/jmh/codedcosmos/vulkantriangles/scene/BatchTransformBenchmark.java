@@ -0,0 +1,97 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package codedcosmos.vulkantriangles.scene;
+
+import codedcosmos.vulkantriangles.graphics.Renderer;
+import org.joml.Matrix4f;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Instance matrices for every object, one joml multiply per object the way drawRect builds its matrix,
+// against the batch kernels. The vector kernel needs -PvectorApi, without it that run fails and the rest go on.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BatchTransformBenchmark {
+	private static final int INSTANCES = 100_000;
+	
+	private ByteBuffer worlds;
+	private ByteBuffer dest;
+	private Matrix4f projection;
+	private float[] transform;
+	
+	private final Matrix4f world = new Matrix4f();
+	private final Matrix4f mvp = new Matrix4f();
+	
+	// Random world matrices, packed like the scene store's
+	@Setup(Level.Trial)
+	public void fill() {
+		Random random = new Random(1);
+		worlds = ByteBuffer.allocateDirect(INSTANCES * BatchTransform.MATRIX_SIZE).order(ByteOrder.nativeOrder());
+		dest = ByteBuffer.allocateDirect(INSTANCES * BatchTransform.MATRIX_SIZE).order(ByteOrder.nativeOrder());
+		for (int i = 0; i < INSTANCES; i++) {
+			world.translationRotateScale(random.nextFloat() * 100f, random.nextFloat() * 100f, -random.nextFloat() * 100f,
+					0f, (float) Math.sin(i), 0f, (float) Math.cos(i), 1f, 1f, 1f);
+			world.get(i * BatchTransform.MATRIX_SIZE, worlds);
+		}
+		
+		projection = Renderer.getProjection(16f / 9f, new Matrix4f());
+		transform = projection.get(new float[16]);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(INSTANCES)
+	public void jomlPerObject(Blackhole blackhole) {
+		for (int i = 0; i < INSTANCES; i++) {
+			world.set(worlds.position(i * BatchTransform.MATRIX_SIZE));
+			projection.mul(world, mvp).get(i * BatchTransform.MATRIX_SIZE, dest);
+		}
+		worlds.position(0);
+		blackhole.consume(dest);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(INSTANCES)
+	public void batch(Kernel kernel, Blackhole blackhole) {
+		kernel.batch.multiply(transform, worlds, dest, INSTANCES);
+		blackhole.consume(dest);
+	}
+	
+	// Only the batch runs are per kernel
+	@State(Scope.Thread)
+	public static class Kernel {
+		@Param({"scalar", "vector"})
+		public String name;
+		
+		private BatchTransform batch;
+		
+		@Setup(Level.Trial)
+		public void create() {
+			batch = name.equals("vector") ? BatchTransforms.createVector() : new ScalarBatchTransform();
+			if (batch == null) {
+				throw new IllegalStateException("Vector kernel unavailable, build with -PvectorApi on JDK 17");
+			}
+		}
+	}
+}
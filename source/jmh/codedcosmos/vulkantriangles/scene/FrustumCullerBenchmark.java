@@ -0,0 +1,73 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package codedcosmos.vulkantriangles.scene;
+
+import codedcosmos.vulkantriangles.graphics.Renderer;
+import org.joml.Matrix4f;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Culls a million volumes against the renderer's frustum, on the calling thread and over the ForkJoin pool.
+// Returning the visible count keeps the results live, the culler also writes every object's visibility.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FrustumCullerBenchmark {
+	@Param({"1000000"})
+	public int objects;
+	
+	@Param({"false", "true"})
+	public boolean boxes;
+	
+	private SceneBounds bounds;
+	private Frustum frustum;
+	private FrustumCuller culler;
+	
+	// Random volumes in a box in front of the camera, about half of them inside the frustum
+	@Setup(Level.Trial)
+	public void fill() {
+		Random random = new Random(1);
+		bounds = new SceneBounds(objects);
+		for (int i = 0; i < objects; i++) {
+			float x = random.nextFloat() * 2000f - 1000f;
+			float y = random.nextFloat() * 1200f - 600f;
+			float z = -random.nextFloat() * 1100f;
+			if (i % 2 == 0) {
+				bounds.addSphere(x, y, z, 0.5f + random.nextFloat() * 2f);
+			} else {
+				bounds.addBox(x, y, z, 0.5f + random.nextFloat(), 0.5f + random.nextFloat(), 0.5f + random.nextFloat());
+			}
+		}
+		
+		frustum = new Frustum().set(Renderer.getProjection(16f / 9f, new Matrix4f()));
+		culler = new FrustumCuller();
+	}
+	
+	@Benchmark
+	public int serial() {
+		return culler.cullSerial(bounds, frustum, boxes);
+	}
+	
+	@Benchmark
+	public int parallel() {
+		return culler.cull(bounds, frustum, boxes);
+	}
+}
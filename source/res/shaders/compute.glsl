@@ -1,13 +1,18 @@
 #version 440
 
-layout(set = 0, binding = 0) readonly buffer InBuffer
+// VertexFormat id, 0 float, 1 snorm16, 2 half
+layout(constant_id = 0) const uint FORMAT = 0;
+
+// Tightly packed xyz, read as floats so there is no vec3 padding
+layout(std430, set = 0, binding = 0) readonly buffer InBuffer
 {
-    vec3 positions[];
+    float positions[];
 } inVars;
 
+// Three floats per vertex, or four 16 bit values packed in two words
 layout(std430, set = 0, binding = 1) buffer VertexBuffer
 {
-    float vertices[];
+    uint words[];
 } vertex;
 
 layout(std430, set = 0, binding = 2) buffer IndexBuffer
@@ -15,26 +20,42 @@ layout(std430, set = 0, binding = 2) buffer IndexBuffer
     uint indices[];
 } index;
 
-void main() {
-    vec3 point = inVars.positions[gl_GlobalInvocationID.x];
-
-    // Vertex 1
-    vertex.vertices[gl_GlobalInvocationID.x*3*3 + 0*3 + 0] = point.x-0.5;
-    vertex.vertices[gl_GlobalInvocationID.x*3*3 + 0*3 + 1] = point.y+0.0;
-    vertex.vertices[gl_GlobalInvocationID.x*3*3 + 0*3 + 2] = point.z+0.0;
+// First point of this dispatch, so work can be split into independent jobs,
+// and the bounds 16 bit positions are stored relative to
+layout(push_constant) uniform PushConstants {
+    uint offset;
+    vec4 encodeScale;
+    vec4 encodeOffset;
+} pushConstants;
+
+void writeVertex(uint vertexId, vec3 position) {
+    if (FORMAT == 0) {
+        vertex.words[vertexId*3 + 0] = floatBitsToUint(position.x);
+        vertex.words[vertexId*3 + 1] = floatBitsToUint(position.y);
+        vertex.words[vertexId*3 + 2] = floatBitsToUint(position.z);
+        return;
+    }
+
+    vec3 encoded = (position - pushConstants.encodeOffset.xyz) * pushConstants.encodeScale.xyz;
+    if (FORMAT == 1) {
+        vertex.words[vertexId*2 + 0] = packSnorm2x16(encoded.xy);
+        vertex.words[vertexId*2 + 1] = packSnorm2x16(vec2(encoded.z, 0.0));
+    } else {
+        vertex.words[vertexId*2 + 0] = packHalf2x16(encoded.xy);
+        vertex.words[vertexId*2 + 1] = packHalf2x16(vec2(encoded.z, 0.0));
+    }
+}
 
-    // Vertex 2
-    vertex.vertices[gl_GlobalInvocationID.x*3*3 + 1*3 + 0] = point.x+0.0;
-    vertex.vertices[gl_GlobalInvocationID.x*3*3 + 1*3 + 1] = point.y+1.0;
-    vertex.vertices[gl_GlobalInvocationID.x*3*3 + 1*3 + 2] = point.z+0.0;
+void main() {
+    uint id = gl_GlobalInvocationID.x + pushConstants.offset;
+    vec3 point = vec3(inVars.positions[id*3 + 0], inVars.positions[id*3 + 1], inVars.positions[id*3 + 2]);
 
-    // Vertex 3
-    vertex.vertices[gl_GlobalInvocationID.x*3*3 + 2*3 + 0] = point.x+0.5;
-    vertex.vertices[gl_GlobalInvocationID.x*3*3 + 2*3 + 1] = point.y+0.0;
-    vertex.vertices[gl_GlobalInvocationID.x*3*3 + 2*3 + 2] = point.z+0.0;
+    writeVertex(id*3 + 0, point + vec3(-0.5, 0.0, 0.0));
+    writeVertex(id*3 + 1, point + vec3(0.0, 1.0, 0.0));
+    writeVertex(id*3 + 2, point + vec3(0.5, 0.0, 0.0));
 
     // Indices
-    index.indices[gl_GlobalInvocationID.x*3 + 0] = gl_GlobalInvocationID.x*3 + 0;
-    index.indices[gl_GlobalInvocationID.x*3 + 1] = gl_GlobalInvocationID.x*3 + 1;
-    index.indices[gl_GlobalInvocationID.x*3 + 2] = gl_GlobalInvocationID.x*3 + 2;
-}
\ No newline at end of file
+    index.indices[id*3 + 0] = id*3 + 0;
+    index.indices[id*3 + 1] = id*3 + 1;
+    index.indices[id*3 + 2] = id*3 + 2;
+}
@@ -0,0 +1,156 @@
+#version 450
+
+layout(local_size_x = 64) in;
+
+// VertexFormat id of the vertices, 0 float, 1 snorm16, 2 half
+layout(constant_id = 0) const uint FORMAT = 0;
+
+// Triangles written by compute.glsl, three vertices each
+layout(std430, set = 0, binding = 0) readonly buffer VertexBuffer
+{
+    uint words[];
+} vertex;
+
+// Indices of the triangles that survive, packed from the start
+layout(std430, set = 0, binding = 1) writeonly buffer IndexBuffer
+{
+    uint indices[];
+} index;
+
+// A single VkDrawIndexedIndirectCommand, indexCount is the atomic counter, followed by counts of what was culled
+layout(std430, set = 0, binding = 2) buffer DrawBuffer
+{
+    uint indexCount;
+    uint instanceCount;
+    uint firstIndex;
+    int vertexOffset;
+    uint firstInstance;
+    uint frustumCulled;
+    uint occlusionCulled;
+} draw;
+
+// Last frame's depth pyramid, farthest depth per texel
+layout(set = 0, binding = 3) uniform sampler2D pyramid;
+
+// The transform the triangles are drawn with, including decoding 16 bit positions
+layout(push_constant) uniform PushConstants {
+    mat4 final;
+    uint triangleCount;
+    uint occlusion;
+    ivec2 pyramidSize;
+    int pyramidLevels;
+} pushConstants;
+
+// Counts of this workgroup, so there is one global atomic per counter per workgroup
+shared uint localCount;
+shared uint localBase;
+shared uint localFrustumCulled;
+shared uint localOcclusionCulled;
+
+vec3 readPosition(uint vertexId) {
+    if (FORMAT == 0) {
+        return uintBitsToFloat(uvec3(vertex.words[vertexId*3 + 0], vertex.words[vertexId*3 + 1], vertex.words[vertexId*3 + 2]));
+    }
+
+    // Copied out first, a readonly buffer member can't be passed to the unpack functions
+    uint xy = vertex.words[vertexId*2 + 0];
+    uint zw = vertex.words[vertexId*2 + 1];
+    if (FORMAT == 1) {
+        return vec3(unpackSnorm2x16(xy), unpackSnorm2x16(zw).x);
+    } else {
+        return vec3(unpackHalf2x16(xy), unpackHalf2x16(zw).x);
+    }
+}
+
+vec4 clipPosition(uint vertexId) {
+    return pushConstants.final * vec4(readPosition(vertexId), 1.0);
+}
+
+// Outside when every vertex is past the same clip plane
+bool isInFrustum(vec4 a, vec4 b, vec4 c) {
+    if (a.x < -a.w && b.x < -b.w && c.x < -c.w) return false;
+    if (a.x >  a.w && b.x >  b.w && c.x >  c.w) return false;
+    if (a.y < -a.w && b.y < -b.w && c.y < -c.w) return false;
+    if (a.y >  a.w && b.y >  b.w && c.y >  c.w) return false;
+    if (a.z <  0.0 && b.z <  0.0 && c.z <  0.0) return false;
+    if (a.z >  a.w && b.z >  b.w && c.z >  c.w) return false;
+    return true;
+}
+
+// Hidden when the nearest point of the screen bounds is behind the farthest depth drawn there last frame
+bool isOccluded(vec4 a, vec4 b, vec4 c) {
+    // Crossing the near plane, the bounds can't be projected
+    if (a.w <= 0.0 || b.w <= 0.0 || c.w <= 0.0) return false;
+
+    vec3 na = a.xyz / a.w;
+    vec3 nb = b.xyz / b.w;
+    vec3 nc = c.xyz / c.w;
+
+    vec2 boundsMin = min(na.xy, min(nb.xy, nc.xy)) * 0.5 + 0.5;
+    vec2 boundsMax = max(na.xy, max(nb.xy, nc.xy)) * 0.5 + 0.5;
+    float nearest = min(na.z, min(nb.z, nc.z));
+
+    ivec2 sizeMax = pushConstants.pyramidSize - 1;
+    ivec2 pixelMin = clamp(ivec2(boundsMin * vec2(pushConstants.pyramidSize)), ivec2(0), sizeMax);
+    ivec2 pixelMax = clamp(ivec2(boundsMax * vec2(pushConstants.pyramidSize)), ivec2(0), sizeMax);
+
+    // The first level where the bounds span at most two texels each way
+    int level = 0;
+    while (level < pushConstants.pyramidLevels - 1 && any(greaterThan((pixelMax >> level) - (pixelMin >> level), ivec2(1)))) {
+        level++;
+    }
+
+    ivec2 texelMin = pixelMin >> level;
+    ivec2 texelMax = pixelMax >> level;
+    float farthest = max(
+        max(texelFetch(pyramid, texelMin, level).r, texelFetch(pyramid, ivec2(texelMax.x, texelMin.y), level).r),
+        max(texelFetch(pyramid, ivec2(texelMin.x, texelMax.y), level).r, texelFetch(pyramid, texelMax, level).r));
+
+    return nearest > farthest;
+}
+
+void main() {
+    uint id = gl_GlobalInvocationID.x;
+
+    if (gl_LocalInvocationIndex == 0) {
+        localCount = 0;
+        localFrustumCulled = 0;
+        localOcclusionCulled = 0;
+    }
+    barrier();
+
+    bool visible = false;
+    if (id < pushConstants.triangleCount) {
+        vec4 a = clipPosition(id*3 + 0);
+        vec4 b = clipPosition(id*3 + 1);
+        vec4 c = clipPosition(id*3 + 2);
+
+        if (!isInFrustum(a, b, c)) {
+            atomicAdd(localFrustumCulled, 1);
+        } else if (pushConstants.occlusion != 0 && isOccluded(a, b, c)) {
+            atomicAdd(localOcclusionCulled, 1);
+        } else {
+            visible = true;
+        }
+    }
+
+    uint localSlot = 0;
+    if (visible) {
+        localSlot = atomicAdd(localCount, 1);
+    }
+    barrier();
+
+    if (gl_LocalInvocationIndex == 0) {
+        localBase = atomicAdd(draw.indexCount, localCount * 3) / 3;
+        atomicAdd(draw.frustumCulled, localFrustumCulled);
+        atomicAdd(draw.occlusionCulled, localOcclusionCulled);
+    }
+    barrier();
+
+    if (visible) {
+        uint slot = (localBase + localSlot) * 3;
+        index.indices[slot + 0] = id*3 + 0;
+        index.indices[slot + 1] = id*3 + 1;
+        index.indices[slot + 2] = id*3 + 2;
+    }
+}
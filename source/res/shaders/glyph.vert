@@ -0,0 +1,26 @@
+#version 450 core
+
+// The template's vertex, and per instance its point and style
+layout(location=0) in vec3 position;
+layout(location=1) in vec3 point;
+layout(location=2) in vec4 style;
+
+layout(location=0) out vec3 vertexColor;
+
+layout(set=0, binding=0) uniform Frame {
+    mat4 projection;
+    mat4 view;
+} frame;
+
+// The template's bounds decode its positions
+layout(set=0, binding=1) uniform Draw {
+    mat4 model;
+    vec4 decodeScale;
+    vec4 decodeOffset;
+} draw;
+
+void main() {
+    vec3 local = position * draw.decodeScale.xyz + draw.decodeOffset.xyz;
+    vertexColor = style.rgb;
+    gl_Position = frame.projection * frame.view * draw.model * vec4(local * style.w + point, 1.0);
+}
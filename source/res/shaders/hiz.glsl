@@ -0,0 +1,36 @@
+#version 450
+
+layout(local_size_x = 8, local_size_y = 8) in;
+
+// Last frame's depth, only read for the first level
+layout(set = 0, binding = 0) uniform sampler2D depth;
+
+// The level above, and the level being written
+layout(r32f, set = 0, binding = 1) uniform readonly image2D source;
+layout(r32f, set = 0, binding = 2) uniform writeonly image2D destination;
+
+layout(push_constant) uniform PushConstants {
+    uint level;
+    ivec2 size;
+} pushConstants;
+
+// Every texel holds the farthest depth below it, levels round up so odd edges are never dropped
+void main() {
+    ivec2 texel = ivec2(gl_GlobalInvocationID.xy);
+    if (texel.x >= pushConstants.size.x || texel.y >= pushConstants.size.y) return;
+
+    if (pushConstants.level == 0) {
+        imageStore(destination, texel, vec4(texelFetch(depth, texel, 0).r));
+        return;
+    }
+
+    ivec2 sourceMax = imageSize(source) - 1;
+    ivec2 a = texel * 2;
+    ivec2 b = min(a + 1, sourceMax);
+
+    float farthest = max(
+        max(imageLoad(source, a).r, imageLoad(source, ivec2(b.x, a.y)).r),
+        max(imageLoad(source, ivec2(a.x, b.y)).r, imageLoad(source, b).r));
+
+    imageStore(destination, texel, vec4(farthest));
+}
@@ -1,11 +1,22 @@
 #version 450 core
 
 layout(location=0) in vec3 position;
+layout(location=1) in mat4 instance;
 
-layout(push_constant) uniform PushConstants {
-    mat4 final;
-} pushConstants;
+// Written just before submit, after the draws were recorded
+layout(set=0, binding=0) uniform Frame {
+    mat4 projection;
+    mat4 view;
+} frame;
+
+// Quantised positions are decoded with the mesh's bounds, float ones have a scale of one
+layout(set=0, binding=1) uniform Draw {
+    mat4 model;
+    vec4 decodeScale;
+    vec4 decodeOffset;
+} draw;
 
 void main() {
-    gl_Position = pushConstants.final * vec4(position, 1.0);
-}
\ No newline at end of file
+    vec3 local = position * draw.decodeScale.xyz + draw.decodeOffset.xyz;
+    gl_Position = frame.projection * frame.view * draw.model * instance * vec4(local, 1.0);
+}
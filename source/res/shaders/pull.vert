@@ -0,0 +1,31 @@
+#version 450 core
+
+// Tightly packed xyz, read as floats so there is no vec3 padding
+layout(std430, set=1, binding=0) readonly buffer Points {
+    float points[];
+};
+
+layout(set=0, binding=0) uniform Frame {
+    mat4 projection;
+    mat4 view;
+} frame;
+
+// Points are always float, the decode is unused
+layout(set=0, binding=1) uniform Draw {
+    mat4 model;
+    vec4 decodeScale;
+    vec4 decodeOffset;
+} draw;
+
+// The same triangle compute.glsl expands each point into
+const vec3 corners[3] = vec3[](
+    vec3(-0.5, 0.0, 0.0),
+    vec3(0.0, 1.0, 0.0),
+    vec3(0.5, 0.0, 0.0)
+);
+
+void main() {
+    uint point = gl_VertexIndex / 3;
+    vec3 position = vec3(points[point*3 + 0], points[point*3 + 1], points[point*3 + 2]) + corners[gl_VertexIndex % 3];
+    gl_Position = frame.projection * frame.view * draw.model * vec4(position, 1.0);
+}
@@ -0,0 +1,100 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.scene;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Vector api kernel, only built with -PvectorApi and loaded by BatchTransforms when jdk.incubator.vector is present.
+// A vector holds one or more whole columns of a source matrix. Each transform column is repeated across
+// the lanes, and each source element is spread over its column's lanes with an in register shuffle,
+// so a result is a load, four shuffles and four fused multiply adds per vector.
+public class VectorBatchTransform implements BatchTransform {
+	private static final VectorSpecies<Float> SPECIES = species();
+	private static final int LANES = SPECIES.length();
+	private static final ByteOrder ORDER = ByteOrder.nativeOrder();
+	
+	// Lane i takes element k of the column it sits in
+	private static final VectorShuffle<Float>[] SPREAD = spread();
+	
+	// The widest species up to a whole matrix, at least a column, -Dvulkantriangles.vector.bits caps it
+	private static VectorSpecies<Float> species() {
+		int bits = Math.min(FloatVector.SPECIES_PREFERRED.vectorBitSize(), Integer.getInteger("vulkantriangles.vector.bits", 512));
+		if (bits >= 512) {
+			return FloatVector.SPECIES_512;
+		}
+		return bits >= 256 ? FloatVector.SPECIES_256 : FloatVector.SPECIES_128;
+	}
+	
+	private static VectorShuffle<Float>[] spread() {
+		// Generic arrays can't be created directly
+		@SuppressWarnings("unchecked")
+		VectorShuffle<Float>[] shuffles = (VectorShuffle<Float>[]) new VectorShuffle<?>[4];
+		for (int k = 0; k < 4; k++) {
+			int element = k;
+			shuffles[k] = VectorShuffle.fromOp(SPECIES, lane -> lane / 4 * 4 + element);
+		}
+		return shuffles;
+	}
+	
+	@Override
+	public void multiply(float[] transform, ByteBuffer source, ByteBuffer dest, int count) {
+		FloatVector[] columns = repeatColumns(transform);
+		for (int i = 0; i < count; i++) {
+			multiplyAt(columns, source, dest, i * MATRIX_SIZE);
+		}
+	}
+	
+	@Override
+	public void multiply(float[] transform, ByteBuffer source, ByteBuffer dest, int[] indices, int count) {
+		FloatVector[] columns = repeatColumns(transform);
+		for (int i = 0; i < count; i++) {
+			multiplyAt(columns, source, dest, indices[i] * MATRIX_SIZE);
+		}
+	}
+	
+	// Transform column k in every group of four lanes
+	private static FloatVector[] repeatColumns(float[] transform) {
+		FloatVector[] columns = new FloatVector[4];
+		float[] lanes = new float[LANES];
+		for (int k = 0; k < 4; k++) {
+			for (int lane = 0; lane < LANES; lane++) {
+				lanes[lane] = transform[k * 4 + lane % 4];
+			}
+			columns[k] = FloatVector.fromArray(SPECIES, lanes, 0);
+		}
+		return columns;
+	}
+	
+	private static void multiplyAt(FloatVector[] columns, ByteBuffer source, ByteBuffer dest, int offset) {
+		for (int at = offset; at < offset + MATRIX_SIZE; at += LANES * 4) {
+			FloatVector matrix = FloatVector.fromByteBuffer(SPECIES, source, at, ORDER);
+			FloatVector result = columns[0].mul(matrix.rearrange(SPREAD[0]));
+			result = columns[1].fma(matrix.rearrange(SPREAD[1]), result);
+			result = columns[2].fma(matrix.rearrange(SPREAD[2]), result);
+			result = columns[3].fma(matrix.rearrange(SPREAD[3]), result);
+			result.intoByteBuffer(dest, at, ORDER);
+		}
+	}
+	
+	@Override
+	public String getName() {
+		return "vector " + SPECIES.vectorBitSize() + " bit";
+	}
+}
@@ -14,32 +14,185 @@
 
 package codedcosmos.vulkantriangles;
 
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
+// Callers only store their arguments in a preallocated ring, a background thread formats and writes them.
+// When the ring is full the line is dropped and counted instead of blocking the caller.
 public class Log {
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR
+	}
+	
+	// Configurable
+	public static final int CAPACITY = 4096;
+	private static final Level MIN_LEVEL = parseLevel(System.getProperty("vulkantriangles.log.level", "INFO"));
+	
+	// Ring
+	private static final int MASK = CAPACITY - 1;
+	private static final AtomicLong claimed = new AtomicLong();
+	private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+	private static final Level[] levels = new Level[CAPACITY];
+	private static final Object[][] lines = new Object[CAPACITY][];
+	private static volatile long drained;
+	
+	// Counters
+	private static final AtomicLong[] written = new AtomicLong[Level.values().length];
+	private static final AtomicLong[] dropped = new AtomicLong[Level.values().length];
+	
+	private static final Thread writer;
+	
+	static {
+		for (int i = 0; i < CAPACITY; i++) {
+			published.set(i, -1);
+		}
+		for (int i = 0; i < written.length; i++) {
+			written[i] = new AtomicLong();
+			dropped[i] = new AtomicLong();
+		}
+		
+		writer = new Thread(Log::drain, "log writer");
+		writer.setDaemon(true);
+		writer.start();
+		
+		// Anything still queued is written before the jvm exits
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::shutdown, "log flush"));
+	}
+	
 	// Print
 	public static void print(Object... line) {
-		String completedLine = getFormatted(line);
-		
-		System.out.println(completedLine);
+		log(Level.INFO, line);
 	}
 	
 	public static void printErr(Object... line) {
-		String completedLine = getFormatted(line);
+		log(Level.ERROR, line);
+	}
+	
+	public static void debug(Object... line) {
+		log(Level.DEBUG, line);
+	}
+	
+	public static void warn(Object... line) {
+		log(Level.WARN, line);
+	}
+	
+	// The supplier is only called on the writer thread, and never when the level is disabled
+	public static void debug(Supplier<String> line) {
+		log(Level.DEBUG, line);
+	}
+	
+	public static boolean isEnabled(Level level) {
+		return level.compareTo(MIN_LEVEL) >= 0;
+	}
+	
+	// Arguments are formatted later, so they shouldn't be mutated after the call
+	public static void log(Level level, Object... line) {
+		if (!isEnabled(level)) return;
+		
+		long claim;
+		do {
+			claim = claimed.get();
+			if (claim - drained >= CAPACITY) {
+				dropped[level.ordinal()].incrementAndGet();
+				return;
+			}
+		} while (!claimed.compareAndSet(claim, claim + 1));
+		
+		// Publishing the claim makes the slot visible to the writer thread
+		int i = (int) (claim & MASK);
+		levels[i] = level;
+		lines[i] = line;
+		published.set(i, claim);
 		
-		System.err.println(completedLine);
+		LockSupport.unpark(writer);
+	}
+	
+	// A bad level must not fail class initialisation, every class that logs would go down with it
+	private static Level parseLevel(String name) {
+		try {
+			return Level.valueOf(name.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.err.println("Unknown log level '" + name + "', expected one of " + Arrays.toString(Level.values()) + ", using INFO");
+			return Level.INFO;
+		}
+	}
+	
+	private static void drain() {
+		while (true) {
+			if (!writeQueued()) {
+				LockSupport.parkNanos(1_000_000);
+			}
+		}
+	}
+	
+	// Single consumer, returns false when nothing was queued
+	private static synchronized boolean writeQueued() {
+		boolean any = false;
+		
+		long next = drained;
+		int i = (int) (next & MASK);
+		while (published.get(i) == next) {
+			Level level = levels[i];
+			Object[] line = lines[i];
+			lines[i] = null;
+			
+			PrintStream stream = level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+			stream.println(getFormatted(line));
+			written[level.ordinal()].incrementAndGet();
+			
+			drained = ++next;
+			i = (int) (next & MASK);
+			any = true;
+		}
+		
+		return any;
+	}
+	
+	// Writes everything queued so far on the calling thread
+	public static void flush() {
+		writeQueued();
+		System.out.flush();
+		System.err.flush();
+	}
+	
+	private static void shutdown() {
+		flush();
+		
+		for (Level level : Level.values()) {
+			if (getDropped(level) > 0) {
+				System.err.println("Log dropped " + getDropped(level) + " " + level + " lines because the ring was full");
+			}
+		}
+	}
+	
+	// Counters
+	public static long getWritten(Level level) {
+		return written[level.ordinal()].get();
+	}
+	
+	public static long getDropped(Level level) {
+		return dropped[level.ordinal()].get();
+	}
+	
+	public static long getQueued() {
+		return claimed.get() - drained;
 	}
 	
 	// Format
 	public static String getFormatted(Object... line) {
-		String text = "";
+		StringBuilder text = new StringBuilder();
 		
 		for (Object t : line) {
-			text += getFormatted(t) + " ";
+			text.append(getFormatted(t)).append(' ');
 		}
 		
-		return text;
+		return text.toString();
 	}
 	
 	public static String getFormatted(Object object) {
@@ -50,8 +203,10 @@ public class Log {
 			return sw.toString();
 		}
 		
-		//
+		if (object instanceof Supplier) {
+			return String.valueOf(((Supplier<?>) object).get());
+		}
 		
-		return object.toString();
+		return String.valueOf(object);
 	}
 }
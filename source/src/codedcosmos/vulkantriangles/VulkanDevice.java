@@ -15,16 +15,25 @@
 package codedcosmos.vulkantriangles;
 
 import codedcosmos.vulkantriangles.graphics.GameWindow;
+import codedcosmos.vulkantriangles.memory.DriverAllocationCallbacks;
+import codedcosmos.vulkantriangles.memory.MemoryTracker;
+import codedcosmos.vulkantriangles.memory.VulkanMemory;
+import codedcosmos.vulkantriangles.memory.VulkanMemoryPolicy;
+import codedcosmos.vulkantriangles.memory.VulkanMemoryPool;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.*;
 
-import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
+import static org.lwjgl.vulkan.EXTCalibratedTimestamps.VK_EXT_CALIBRATED_TIMESTAMPS_EXTENSION_NAME;
+import static org.lwjgl.vulkan.EXTMemoryBudget.VK_EXT_MEMORY_BUDGET_EXTENSION_NAME;
 import static org.lwjgl.vulkan.KHRDedicatedAllocation.VK_KHR_DEDICATED_ALLOCATION_EXTENSION_NAME;
 import static org.lwjgl.vulkan.KHRGetMemoryRequirements2.VK_KHR_GET_MEMORY_REQUIREMENTS_2_EXTENSION_NAME;
-import static org.lwjgl.vulkan.KHRSurface.vkGetPhysicalDeviceSurfaceSupportKHR;
 import static org.lwjgl.vulkan.KHRSwapchain.VK_KHR_SWAPCHAIN_EXTENSION_NAME;
 import static org.lwjgl.vulkan.VK10.*;
 
@@ -32,266 +41,262 @@ public class VulkanDevice {
 	
 	// Device
 	private VkDevice device;
+	private VulkanDeviceCandidate candidate;
 	
 	// Queues
 	private VkQueue graphicsQueue;
 	private VkQueue computeQueue;
+	private VkQueue[] computeQueues;
+	private VkQueue transferQueue;
 	private int graphicsQueueFamily;
 	private int computeQueueFamily;
+	private int transferQueueFamily;
+	private boolean dedicatedTransfer;
 	
-	private boolean queuesAreSplit;
+	// Submits to a queue must be externally synchronized, one lock per distinct queue
+	private Map<VkQueue, Object> queueLocks;
+	
+	// Optional features
+	private boolean pipelineStatistics;
+	private boolean calibratedTimestamps;
+	private boolean memoryBudget;
+	
+	// Headless devices have no surface, and only have a graphics queue when rendering offscreen
+	private boolean headless;
+	private boolean hasGraphics;
 	
 	// Memory
 	private VkPhysicalDeviceProperties properties;
 	private VkPhysicalDeviceMemoryProperties memoryProperties;
+	private VulkanMemoryPolicy memoryPolicy;
+	private VulkanMemoryPool memoryPool;
+	
+	public VulkanDevice(VulkanInstance vulkanInstance) throws VulkanException {
+		this(vulkanInstance, null, false);
+	}
+	
+	public VulkanDevice(VulkanInstance vulkanInstance, boolean offscreenGraphics) throws VulkanException {
+		this(vulkanInstance, null, offscreenGraphics);
+	}
 	
 	public VulkanDevice(VulkanInstance vulkanInstance, GameWindow window) throws VulkanException {
+		this(vulkanInstance, window, true);
+	}
+	
+	private VulkanDevice(VulkanInstance vulkanInstance, GameWindow window, boolean graphics) throws VulkanException {
 		int ret;
 		
+		// Without a window there is no surface to present to
+		headless = window == null;
+		hasGraphics = graphics;
+		
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			//----------------------------
 			// Extract
-			VkInstance instance = vulkanInstance.get();
-			long surface = window.getSurface();
+			long surface = headless ? VK_NULL_HANDLE : window.getSurface();
 			
 			//----------------------------
-			// Parse Physical Vulkan Devices
-			
-			// Obtain number of avaliable devices
-			IntBuffer pPhysicalDeviceCount = stack.mallocInt(1);
-			
-			ret = vkEnumeratePhysicalDevices(instance, pPhysicalDeviceCount, null);
-			VkUtils.check(ret, "Failed to obtain number of physical devices");
+			// Pick Physical Device
+			VulkanDeviceSelector selector = new VulkanDeviceSelector(vulkanInstance, surface, graphics);
+			candidate = selector.getPicked();
 			
-			int physicalDeviceCount = pPhysicalDeviceCount.get(0);
-			if (physicalDeviceCount == 0) {
-				throw new VulkanException("No vulkan devices avaliable");
-			}
+			VkPhysicalDevice validPhysicalDevice = candidate.getPhysicalDevice();
+			graphicsQueueFamily = hasGraphics ? candidate.getGraphicsQueueFamily() : -1;
+			computeQueueFamily = candidate.getComputeQueueFamily();
 			
-			// Create list of devices
-			PointerBuffer pPhysicalDevices = stack.mallocPointer(physicalDeviceCount);
-			ret = vkEnumeratePhysicalDevices(instance, pPhysicalDeviceCount, pPhysicalDevices);
-			VkUtils.check(ret, "Failed to get physical devices");
+			// --------------------------------------
+			// Create Queues
 			
-			VkPhysicalDevice[] parsedDevices = new VkPhysicalDevice[physicalDeviceCount];
-			for (int i = 0; i < physicalDeviceCount; i++) {
-				VkPhysicalDevice device = new VkPhysicalDevice(pPhysicalDevices.get(i), instance);
-				parsedDevices[i] = device;
+			// Every queue in the compute family is created, so independent compute work can run concurrently
+			int computeQueueCount = candidate.getComputeQueueCount();
+			FloatBuffer pComputePriorities = stack.mallocFloat(computeQueueCount);
+			for (int i = 0; i < computeQueueCount; i++) {
+				pComputePriorities.put(i, 1.0f);
 			}
 			
-			Log.print("Found " + parsedDevices.length + " vulkan device" + (parsedDevices.length == 1 ? "":"s"));
-			
-			//----------------------------
-			// Pick Physical Device
+			// A transfer only family gets its own queue for uploads
+			transferQueueFamily = candidate.getTransferQueueFamily();
+			boolean separateGraphics = hasGraphics && graphicsQueueFamily != computeQueueFamily;
+			boolean separateTransfer = transferQueueFamily != -1;
 			
-			VkPhysicalDevice validPhysicalDevice = null;
-			graphicsQueueFamily = -1;
-			computeQueueFamily = -1;
-			
-			// Iterate over all devices and find the first valid one
-			for (int i = 0; i <= parsedDevices.length; i++) {
-				if (i == parsedDevices.length) {
-					throw new VulkanException("Could not find valid physical device");
-				}
-				
-				// Get device
-				VkPhysicalDevice physicalDevice = parsedDevices[i];
-				
-				// Verify extensions
-				IntBuffer pPropertyCount = stack.mallocInt(1);
-				ret = vkEnumerateDeviceExtensionProperties(physicalDevice, (ByteBuffer)null, pPropertyCount, null);
-				VkUtils.check(ret, "Failed to enumerate device extensions count");
-				
-				VkExtensionProperties.Buffer pProperties = VkExtensionProperties.mallocStack(pPropertyCount.get(0), stack);
-				ret = vkEnumerateDeviceExtensionProperties(physicalDevice, (ByteBuffer)null, pPropertyCount, pProperties);
-				VkUtils.check(ret, "Failed to enumerate device extensions");
-				
-				if (!pProperties.stream().anyMatch(p -> p.extensionNameString().equals(VK_KHR_SWAPCHAIN_EXTENSION_NAME))) {
-					throw new VulkanException("Missing required extension " + VK_KHR_SWAPCHAIN_EXTENSION_NAME);
-				}
-				if (!pProperties.stream().anyMatch(p -> p.extensionNameString().equals(VK_KHR_GET_MEMORY_REQUIREMENTS_2_EXTENSION_NAME))) {
-					throw new VulkanException("Missing required extension " + VK_KHR_GET_MEMORY_REQUIREMENTS_2_EXTENSION_NAME);
-				}
-				
-				// Optimal queue family
-				boolean optimalComputeFamily = false;
-				
-				// List queue families
-				IntBuffer pQueueFamilyPropertyCount = stack.mallocInt(1);
-				vkGetPhysicalDeviceQueueFamilyProperties(physicalDevice, pQueueFamilyPropertyCount, null);
-				
-				int queueFamilyPropertyCount = pQueueFamilyPropertyCount.get(0);
-				if (queueFamilyPropertyCount == 0) {
-					// No queue family properties
-					throw new VulkanException("No queue family properties");
-				}
-				
-				VkQueueFamilyProperties.Buffer familyProperties = VkQueueFamilyProperties.callocStack(queueFamilyPropertyCount, stack);
-				vkGetPhysicalDeviceQueueFamilyProperties(physicalDevice, pQueueFamilyPropertyCount, familyProperties);
-				int queueFamilyIndex = 0;
-				
-				// Iterate over
-				for (VkQueueFamilyProperties queueFamilyProperties : familyProperties) {
-					IntBuffer pSupported = stack.mallocInt(1);
-					if (queueFamilyProperties.queueCount() < 1) {
-						continue;
-					}
-					
-					// Check for presentation support
-					vkGetPhysicalDeviceSurfaceSupportKHR(physicalDevice, queueFamilyIndex, surface, pSupported);
-					boolean supportsPresentation = (pSupported.get(0) != 0);
-					
-					// Check for graphics support
-					boolean supportsGraphics = (queueFamilyProperties.queueFlags() & VK_QUEUE_GRAPHICS_BIT) != 0;
-					
-					// Check for compute support
-					boolean supportsCompute = (queueFamilyProperties.queueFlags() & VK_QUEUE_COMPUTE_BIT) != 0;
-					
-					// Set queue families
-					if (graphicsQueueFamily == -1) {
-						if (supportsPresentation && supportsGraphics) {
-							graphicsQueueFamily = queueFamilyIndex;
-						}
-					}
-					
-					if (!optimalComputeFamily) {
-						// See if queueFamily supports compute at all
-						if (supportsCompute) {
-							if (!supportsGraphics && !supportsPresentation) {
-								computeQueueFamily = queueFamilyIndex;
-								optimalComputeFamily = true;
-							} else {
-								computeQueueFamily = queueFamilyIndex;
-							}
-						}
-					}
-					
-					// Increment
-					queueFamilyIndex++;
-				}
-				
-				// Skip device if there are queue families are invalid
-				if (computeQueueFamily == -1 || graphicsQueueFamily == -1) {
-					Log.printErr("Could not find queue families for device " + i);
-					continue;
-				}
-				
-				// Device is valid
-				validPhysicalDevice = physicalDevice;
-				break;
-			}
+			VkDeviceQueueCreateInfo.Buffer pQueueCreateInfos = VkDeviceQueueCreateInfo.callocStack(1 + (separateGraphics ? 1 : 0) + (separateTransfer ? 1 : 0), stack);
+			int queueCreateInfoIndex = 0;
 			
-			Log.print("Picked vulkan device");
+			// Compute family, which also has graphics' queue when they are the same family
+			pQueueCreateInfos.get(queueCreateInfoIndex++)
+					.sType(VK_STRUCTURE_TYPE_DEVICE_QUEUE_CREATE_INFO)
+					.queueFamilyIndex(computeQueueFamily)
+					.pQueuePriorities(pComputePriorities);
 			
-			// --------------------------------------
-			// Create Queues
-			VkDeviceQueueCreateInfo.Buffer pQueueCreateInfos;
-			if (graphicsQueueFamily == computeQueueFamily) {
-				// If they are the same, create a single queue
-				pQueueCreateInfos = VkDeviceQueueCreateInfo.callocStack(1, stack)
-						.sType(VK_STRUCTURE_TYPE_DEVICE_QUEUE_CREATE_INFO)
-						.queueFamilyIndex(graphicsQueueFamily)
-						.pQueuePriorities(stack.floats(1.0f));
-			} else {
-				// If they are different, create two queues
-				pQueueCreateInfos = VkDeviceQueueCreateInfo.callocStack(2, stack);
-				pQueueCreateInfos.get(0)
+			if (separateGraphics) {
+				pQueueCreateInfos.get(queueCreateInfoIndex++)
 						.sType(VK_STRUCTURE_TYPE_DEVICE_QUEUE_CREATE_INFO)
 						.queueFamilyIndex(graphicsQueueFamily)
 						.pQueuePriorities(stack.floats(0.9f));
-				pQueueCreateInfos.get(1)
+			}
+			
+			if (separateTransfer) {
+				pQueueCreateInfos.get(queueCreateInfoIndex++)
 						.sType(VK_STRUCTURE_TYPE_DEVICE_QUEUE_CREATE_INFO)
-						.queueFamilyIndex(computeQueueFamily)
-						.pQueuePriorities(stack.floats(1.0f));
+						.queueFamilyIndex(transferQueueFamily)
+						.pQueuePriorities(stack.floats(0.5f));
 			}
 			
 			// --------------------------------------
 			// Enable extensions
 			
-			// Get properties
-			IntBuffer pPropertyCount = stack.mallocInt(1);
-			ret = vkEnumerateDeviceExtensionProperties(validPhysicalDevice, (ByteBuffer)null, pPropertyCount, null);
-			VkUtils.check(ret, "Failed to enumerate device extensions count");
-			
-			VkExtensionProperties.Buffer pProperties = VkExtensionProperties.mallocStack(pPropertyCount.get(0), stack);
-			ret = vkEnumerateDeviceExtensionProperties(validPhysicalDevice, (ByteBuffer)null, pPropertyCount, pProperties);
-			VkUtils.check(ret, "Failed to enumerate device extensions");
-			
 			// Add extensions
-			PointerBuffer extensions = stack.mallocPointer(2 + 1);
-			extensions.put(stack.UTF8(VK_KHR_SWAPCHAIN_EXTENSION_NAME))
-					.put(stack.UTF8(VK_KHR_GET_MEMORY_REQUIREMENTS_2_EXTENSION_NAME));
+			PointerBuffer extensions = stack.mallocPointer(2 + 3);
+			if (!headless) {
+				extensions.put(stack.UTF8(VK_KHR_SWAPCHAIN_EXTENSION_NAME));
+			}
+			extensions.put(stack.UTF8(VK_KHR_GET_MEMORY_REQUIREMENTS_2_EXTENSION_NAME));
 			
-			if (pProperties.stream().anyMatch(p -> p.extensionNameString().equals(VK_KHR_DEDICATED_ALLOCATION_EXTENSION_NAME))) {
+			if (candidate.supportsExtension(VK_KHR_DEDICATED_ALLOCATION_EXTENSION_NAME)) {
 				extensions.put(stack.UTF8(VK_KHR_DEDICATED_ALLOCATION_EXTENSION_NAME));
 			}
 			
+			// Lets gpu timestamps be lined up with the host clock
+			calibratedTimestamps = candidate.supportsExtension(VK_EXT_CALIBRATED_TIMESTAMPS_EXTENSION_NAME);
+			if (calibratedTimestamps) {
+				extensions.put(stack.UTF8(VK_EXT_CALIBRATED_TIMESTAMPS_EXTENSION_NAME));
+			}
+			
+			// Reports how much of each heap the driver will give us before paging
+			memoryBudget = candidate.supportsExtension(VK_EXT_MEMORY_BUDGET_EXTENSION_NAME);
+			if (memoryBudget) {
+				extensions.put(stack.UTF8(VK_EXT_MEMORY_BUDGET_EXTENSION_NAME));
+			}
+			
 			PointerBuffer ppEnabledLayerNames = null;
 			if (VulkanTriangles.USE_DEBUG) {
 				ppEnabledLayerNames = stack.pointers(stack.UTF8(vulkanInstance.getDebugExtension()));
 			}
 			
+			// --------------------------------------
+			// Enable features
+			VkPhysicalDeviceFeatures supportedFeatures = VkPhysicalDeviceFeatures.callocStack(stack);
+			vkGetPhysicalDeviceFeatures(validPhysicalDevice, supportedFeatures);
+			pipelineStatistics = supportedFeatures.pipelineStatisticsQuery();
+			
+			VkPhysicalDeviceFeatures enabledFeatures = VkPhysicalDeviceFeatures.callocStack(stack)
+					.pipelineStatisticsQuery(pipelineStatistics);
+			
 			// --------------------------------------
 			// Create Device
 			VkDeviceCreateInfo pCreateInfo = VkDeviceCreateInfo.callocStack(stack)
 					.sType(VK_STRUCTURE_TYPE_DEVICE_CREATE_INFO)
 					.pQueueCreateInfos(pQueueCreateInfos)
+					.pEnabledFeatures(enabledFeatures)
 					.ppEnabledExtensionNames(extensions.flip())
 					.ppEnabledLayerNames(ppEnabledLayerNames);
 			
 			PointerBuffer pDevice = stack.mallocPointer(1);
-			ret = vkCreateDevice(validPhysicalDevice, pCreateInfo, null, pDevice);
+			ret = vkCreateDevice(validPhysicalDevice, pCreateInfo, DriverAllocationCallbacks.get(), pDevice);
 			VkUtils.check(ret, "Failed to create vulkan logical device");
 			
 			device = new VkDevice(pDevice.get(0), validPhysicalDevice, pCreateInfo);
 			
 			// --------------------------------------
 			// Create queues
-			if (graphicsQueueFamily == computeQueueFamily) {
-				// Create queue
-				PointerBuffer pQueue = stack.mallocPointer(1);
+			PointerBuffer pQueue = stack.mallocPointer(1);
+			VkQueue[] familyQueues = new VkQueue[computeQueueCount];
+			for (int i = 0; i < computeQueueCount; i++) {
+				vkGetDeviceQueue(device, computeQueueFamily, i, pQueue);
+				familyQueues[i] = new VkQueue(pQueue.get(0), device);
+			}
+			
+			if (!hasGraphics) {
+				// All compute queues
+				graphicsQueue = null;
+				
+				// Uploads get the last queue to themselves when there is a spare one, otherwise they share with dispatches
+				if (!separateTransfer && computeQueueCount > 1) {
+					computeQueues = Arrays.copyOfRange(familyQueues, 0, computeQueueCount - 1);
+					transferQueue = familyQueues[computeQueueCount - 1];
+				} else {
+					computeQueues = familyQueues;
+				}
+				Log.print("Created " + computeQueueCount + " compute only queue" + (computeQueueCount == 1 ? "" : "s"));
+			} else if (graphicsQueueFamily == computeQueueFamily) {
+				// Graphics uses the first queue, compute gets the rest unless there is only one
+				graphicsQueue = familyQueues[0];
+				
+				if (computeQueueCount > 1) {
+					computeQueues = Arrays.copyOfRange(familyQueues, 1, computeQueueCount);
+					Log.print("Created a graphics queue and " + computeQueues.length + " compute queues in the same family");
+				} else {
+					computeQueues = familyQueues;
+					Log.print("Created a suboptimal single queue");
+				}
+			} else {
+				// Graphics queue and all compute queues
 				vkGetDeviceQueue(device, graphicsQueueFamily, 0, pQueue);
 				graphicsQueue = new VkQueue(pQueue.get(0), device);
-				computeQueue = graphicsQueue;
-				
-				queuesAreSplit = false;
-				Log.print("Created a suboptimal single queue");
+				computeQueues = familyQueues;
+				Log.print("Created the optimal separated graphics and " + computeQueueCount + " compute queues");
+			}
+			computeQueue = computeQueues[0];
+			
+			if (separateTransfer) {
+				vkGetDeviceQueue(device, transferQueueFamily, 0, pQueue);
+				transferQueue = new VkQueue(pQueue.get(0), device);
+				Log.print("Created a dedicated transfer queue");
+			} else if (hasGraphics) {
+				// Without dma engines, copies go on the graphics queue which is submitted from the same thread
+				transferQueueFamily = graphicsQueueFamily;
+				transferQueue = graphicsQueue;
 			} else {
-				// Create queues
-				PointerBuffer pGraphicsQueue = stack.mallocPointer(1);
-				vkGetDeviceQueue(device, graphicsQueueFamily, 0, pGraphicsQueue);
-				graphicsQueue = new VkQueue(pGraphicsQueue.get(0), device);
-				
-				PointerBuffer pComputeQueue = stack.mallocPointer(1);
-				vkGetDeviceQueue(device, computeQueueFamily, 0, pComputeQueue);
-				computeQueue = new VkQueue(pComputeQueue.get(0), device);
-				
-				queuesAreSplit = true;
-				Log.print("Created the optimal separated graphics and compute queues");
+				transferQueueFamily = computeQueueFamily;
+				if (transferQueue == null) {
+					transferQueue = computeQueue;
+				}
 			}
+			dedicatedTransfer = separateTransfer;
+			
+			// Shared queues are the same VkQueue instance, so they share a lock
+			queueLocks = new IdentityHashMap<VkQueue, Object>();
+			for (VkQueue queue : familyQueues) {
+				queueLocks.put(queue, new Object());
+			}
+			if (graphicsQueue != null) {
+				queueLocks.putIfAbsent(graphicsQueue, new Object());
+			}
+			queueLocks.putIfAbsent(transferQueue, new Object());
 			
 			// --------------------------------------
 			// Set memory properties and limits
-			memoryProperties = VkPhysicalDeviceMemoryProperties.calloc();
+			memoryProperties = MemoryTracker.track("device", VkPhysicalDeviceMemoryProperties.calloc());
 			vkGetPhysicalDeviceMemoryProperties(validPhysicalDevice, memoryProperties);
+			VulkanMemory.setMemoryProperties(memoryProperties);
 			
-			properties = VkPhysicalDeviceProperties.calloc();
+			properties = MemoryTracker.track("device", VkPhysicalDeviceProperties.calloc());
 			vkGetPhysicalDeviceProperties(validPhysicalDevice, properties);
+			
+			memoryPolicy = new VulkanMemoryPolicy(memoryProperties, properties.limits().nonCoherentAtomSize());
+			memoryPool = new VulkanMemoryPool(device, memoryPolicy);
 		}
 	}
 	
-	public boolean getMemoryType(int typeBits, int properties, IntBuffer typeIndex) {
-		int bits = typeBits;
-		for (int i = 0; i < 32; i++) {
-			if ((bits & 1) == 1) {
-				if ((memoryProperties.memoryTypes(i).propertyFlags() & properties) == properties) {
-					typeIndex.put(0, i);
-					return true;
-				}
-			}
-			bits >>= 1;
+	public VulkanMemoryPolicy getMemoryPolicy() {
+		return memoryPolicy;
+	}
+	
+	public VulkanMemoryPool getMemoryPool() {
+		return memoryPool;
+	}
+	
+	// Zero when the queue family can't write timestamps
+	public int getTimestampValidBits(int queueFamily) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			IntBuffer pQueueFamilyCount = stack.mallocInt(1);
+			vkGetPhysicalDeviceQueueFamilyProperties(device.getPhysicalDevice(), pQueueFamilyCount, null);
+			
+			VkQueueFamilyProperties.Buffer queueFamilies = VkQueueFamilyProperties.mallocStack(pQueueFamilyCount.get(0), stack);
+			vkGetPhysicalDeviceQueueFamilyProperties(device.getPhysicalDevice(), pQueueFamilyCount, queueFamilies);
+			
+			return queueFamilies.get(queueFamily).timestampValidBits();
 		}
-		return false;
 	}
 	
 	public void waitIdle() {
@@ -302,6 +307,30 @@ public class VulkanDevice {
 		return device;
 	}
 	
+	public VkPhysicalDeviceProperties getProperties() {
+		return properties;
+	}
+	
+	public boolean supportsPipelineStatistics() {
+		return pipelineStatistics;
+	}
+	
+	public boolean supportsCalibratedTimestamps() {
+		return calibratedTimestamps;
+	}
+	
+	public boolean supportsMemoryBudget() {
+		return memoryBudget;
+	}
+	
+	public VkPhysicalDeviceMemoryProperties getMemoryProperties() {
+		return memoryProperties;
+	}
+	
+	public VulkanDeviceCandidate getCandidate() {
+		return candidate;
+	}
+	
 	public int getGraphicsQueueFamily() {
 		return graphicsQueueFamily;
 	}
@@ -310,6 +339,18 @@ public class VulkanDevice {
 		return computeQueueFamily;
 	}
 	
+	public int getTransferQueueFamily() {
+		return transferQueueFamily;
+	}
+	
+	public boolean hasDedicatedTransfer() {
+		return dedicatedTransfer;
+	}
+	
+	public VkQueue getTransferQueue() {
+		return transferQueue;
+	}
+	
 	public VkQueue getGraphicsQueue() {
 		return graphicsQueue;
 	}
@@ -318,10 +359,30 @@ public class VulkanDevice {
 		return computeQueue;
 	}
 	
+	// Hold while submitting to a queue that another thread may also submit to
+	public Object getQueueLock(VkQueue queue) {
+		return queueLocks.get(queue);
+	}
+	
+	// Never contains the graphics queue unless the compute family only has one queue shared with graphics
+	public VkQueue[] getComputeQueues() {
+		return computeQueues;
+	}
+	
+	public boolean isHeadless() {
+		return headless;
+	}
+	
+	public boolean hasGraphics() {
+		return hasGraphics;
+	}
+	
 	public void free() {
-		memoryProperties.free();
-		properties.free();
+		memoryPool.free();
+		
+		MemoryTracker.free("device", memoryProperties);
+		MemoryTracker.free("device", properties);
 		
-		vkDestroyDevice(device, null);
+		vkDestroyDevice(device, DriverAllocationCallbacks.get());
 	}
 }
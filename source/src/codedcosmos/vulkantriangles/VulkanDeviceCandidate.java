@@ -0,0 +1,271 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.lwjgl.vulkan.KHRExternalMemoryCapabilities.VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_ID_PROPERTIES_KHR;
+import static org.lwjgl.vulkan.KHRGetMemoryRequirements2.VK_KHR_GET_MEMORY_REQUIREMENTS_2_EXTENSION_NAME;
+import static org.lwjgl.vulkan.KHRGetPhysicalDeviceProperties2.VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_PROPERTIES_2_KHR;
+import static org.lwjgl.vulkan.KHRGetPhysicalDeviceProperties2.vkGetPhysicalDeviceProperties2KHR;
+import static org.lwjgl.vulkan.KHRSurface.vkGetPhysicalDeviceSurfaceSupportKHR;
+import static org.lwjgl.vulkan.KHRSwapchain.VK_KHR_SWAPCHAIN_EXTENSION_NAME;
+import static org.lwjgl.vulkan.VK10.*;
+
+public class VulkanDeviceCandidate {
+	
+	// Device
+	private VkPhysicalDevice physicalDevice;
+	private String name;
+	private String uuid;
+	private int type;
+	private int vendorID;
+	
+	// Extensions
+	private Set<String> extensions;
+	
+	// Queues
+	private int graphicsQueueFamily = -1;
+	private int computeQueueFamily = -1;
+	private int computeQueueCount;
+	private boolean dedicatedCompute;
+	private int transferQueueFamily = -1;
+	
+	// Memory and limits
+	private long deviceLocalBytes;
+	private int maxComputeWorkGroupInvocations;
+	private int maxComputeSharedMemorySize;
+	
+	// Selection
+	private String unsuitableReason;
+	private long score;
+	
+	public VulkanDeviceCandidate(VulkanInstance instance, VkPhysicalDevice physicalDevice, long surface, boolean graphics) throws VulkanException {
+		this.physicalDevice = physicalDevice;
+		boolean headless = surface == VK_NULL_HANDLE;
+		
+		int ret;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			// --------------------------------------
+			// Properties and limits
+			VkPhysicalDeviceProperties properties = VkPhysicalDeviceProperties.callocStack(stack);
+			vkGetPhysicalDeviceProperties(physicalDevice, properties);
+			
+			name = properties.deviceNameString();
+			type = properties.deviceType();
+			vendorID = properties.vendorID();
+			maxComputeWorkGroupInvocations = properties.limits().maxComputeWorkGroupInvocations();
+			maxComputeSharedMemorySize = properties.limits().maxComputeSharedMemorySize();
+			
+			// Uuid, falling back to vendor and device ids when it can't be queried
+			uuid = String.format("%04x:%04x", properties.vendorID(), properties.deviceID());
+			if (instance.hasDeviceIDProperties()) {
+				VkPhysicalDeviceIDPropertiesKHR idProperties = VkPhysicalDeviceIDPropertiesKHR.callocStack(stack)
+						.sType(VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_ID_PROPERTIES_KHR);
+				VkPhysicalDeviceProperties2KHR properties2 = VkPhysicalDeviceProperties2KHR.callocStack(stack)
+						.sType(VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_PROPERTIES_2_KHR)
+						.pNext(idProperties.address());
+				vkGetPhysicalDeviceProperties2KHR(physicalDevice, properties2);
+				
+				uuid = formatUUID(idProperties.deviceUUID());
+			}
+			
+			// --------------------------------------
+			// Device local memory
+			VkPhysicalDeviceMemoryProperties memoryProperties = VkPhysicalDeviceMemoryProperties.callocStack(stack);
+			vkGetPhysicalDeviceMemoryProperties(physicalDevice, memoryProperties);
+			
+			for (int i = 0; i < memoryProperties.memoryHeapCount(); i++) {
+				VkMemoryHeap heap = memoryProperties.memoryHeaps(i);
+				if ((heap.flags() & VK_MEMORY_HEAP_DEVICE_LOCAL_BIT) != 0) {
+					deviceLocalBytes += heap.size();
+				}
+			}
+			
+			// --------------------------------------
+			// Extensions
+			IntBuffer pPropertyCount = stack.mallocInt(1);
+			ret = vkEnumerateDeviceExtensionProperties(physicalDevice, (ByteBuffer)null, pPropertyCount, null);
+			VkUtils.check(ret, "Failed to enumerate device extensions count");
+			
+			VkExtensionProperties.Buffer pProperties = VkExtensionProperties.mallocStack(pPropertyCount.get(0), stack);
+			ret = vkEnumerateDeviceExtensionProperties(physicalDevice, (ByteBuffer)null, pPropertyCount, pProperties);
+			VkUtils.check(ret, "Failed to enumerate device extensions");
+			
+			extensions = pProperties.stream()
+					.map(VkExtensionProperties::extensionNameString)
+					.collect(Collectors.toSet());
+			
+			if (!headless && !extensions.contains(VK_KHR_SWAPCHAIN_EXTENSION_NAME)) {
+				unsuitableReason = "Missing required extension " + VK_KHR_SWAPCHAIN_EXTENSION_NAME;
+				return;
+			}
+			if (!extensions.contains(VK_KHR_GET_MEMORY_REQUIREMENTS_2_EXTENSION_NAME)) {
+				unsuitableReason = "Missing required extension " + VK_KHR_GET_MEMORY_REQUIREMENTS_2_EXTENSION_NAME;
+				return;
+			}
+			
+			// --------------------------------------
+			// Queue families
+			IntBuffer pQueueFamilyPropertyCount = stack.mallocInt(1);
+			vkGetPhysicalDeviceQueueFamilyProperties(physicalDevice, pQueueFamilyPropertyCount, null);
+			
+			int queueFamilyPropertyCount = pQueueFamilyPropertyCount.get(0);
+			if (queueFamilyPropertyCount == 0) {
+				unsuitableReason = "No queue family properties";
+				return;
+			}
+			
+			VkQueueFamilyProperties.Buffer familyProperties = VkQueueFamilyProperties.callocStack(queueFamilyPropertyCount, stack);
+			vkGetPhysicalDeviceQueueFamilyProperties(physicalDevice, pQueueFamilyPropertyCount, familyProperties);
+			
+			IntBuffer pSupported = stack.mallocInt(1);
+			for (int queueFamilyIndex = 0; queueFamilyIndex < queueFamilyPropertyCount; queueFamilyIndex++) {
+				VkQueueFamilyProperties queueFamilyProperties = familyProperties.get(queueFamilyIndex);
+				if (queueFamilyProperties.queueCount() < 1) {
+					continue;
+				}
+				
+				// Check for presentation support
+				boolean supportsPresentation = false;
+				if (!headless) {
+					vkGetPhysicalDeviceSurfaceSupportKHR(physicalDevice, queueFamilyIndex, surface, pSupported);
+					supportsPresentation = (pSupported.get(0) != 0);
+				}
+				
+				// Check for graphics, compute and transfer support
+				boolean supportsGraphics = (queueFamilyProperties.queueFlags() & VK_QUEUE_GRAPHICS_BIT) != 0;
+				boolean supportsCompute = (queueFamilyProperties.queueFlags() & VK_QUEUE_COMPUTE_BIT) != 0;
+				boolean supportsTransfer = (queueFamilyProperties.queueFlags() & VK_QUEUE_TRANSFER_BIT) != 0;
+				
+				// Set queue families
+				if (graphics && graphicsQueueFamily == -1) {
+					if ((supportsPresentation || headless) && supportsGraphics) {
+						graphicsQueueFamily = queueFamilyIndex;
+					}
+				}
+				
+				// Prefer a compute family that does nothing else
+				if (supportsCompute && !dedicatedCompute) {
+					computeQueueFamily = queueFamilyIndex;
+					computeQueueCount = queueFamilyProperties.queueCount();
+					dedicatedCompute = !supportsGraphics && !supportsPresentation;
+				}
+				
+				// A transfer only family is backed by the dma engines
+				if (supportsTransfer && !supportsGraphics && !supportsCompute && transferQueueFamily == -1) {
+					transferQueueFamily = queueFamilyIndex;
+				}
+			}
+			
+			if (computeQueueFamily == -1) {
+				unsuitableReason = "No compute queue family";
+			} else if (graphics && graphicsQueueFamily == -1) {
+				unsuitableReason = headless ? "No graphics queue family" : "No graphics queue family that can present";
+			}
+		}
+	}
+	
+	private static String formatUUID(ByteBuffer bytes) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < VK_UUID_SIZE; i++) {
+			if (i == 4 || i == 6 || i == 8 || i == 10) {
+				builder.append('-');
+			}
+			builder.append(String.format("%02x", bytes.get(i) & 0xFF));
+		}
+		return builder.toString();
+	}
+	
+	public boolean isSuitable() {
+		return unsuitableReason == null;
+	}
+	
+	public String getUnsuitableReason() {
+		return unsuitableReason;
+	}
+	
+	public boolean supportsExtension(String extension) {
+		return extensions != null && extensions.contains(extension);
+	}
+	
+	public void setScore(long score) {
+		this.score = score;
+	}
+	
+	public long getScore() {
+		return score;
+	}
+	
+	public VkPhysicalDevice getPhysicalDevice() {
+		return physicalDevice;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public String getUUID() {
+		return uuid;
+	}
+	
+	public int getType() {
+		return type;
+	}
+	
+	public int getVendorID() {
+		return vendorID;
+	}
+	
+	public int getGraphicsQueueFamily() {
+		return graphicsQueueFamily;
+	}
+	
+	public int getComputeQueueFamily() {
+		return computeQueueFamily;
+	}
+	
+	public int getComputeQueueCount() {
+		return computeQueueCount;
+	}
+	
+	public boolean hasDedicatedCompute() {
+		return dedicatedCompute;
+	}
+	
+	// -1 when the device has no transfer only family
+	public int getTransferQueueFamily() {
+		return transferQueueFamily;
+	}
+	
+	public long getDeviceLocalBytes() {
+		return deviceLocalBytes;
+	}
+	
+	public int getMaxComputeWorkGroupInvocations() {
+		return maxComputeWorkGroupInvocations;
+	}
+	
+	public int getMaxComputeSharedMemorySize() {
+		return maxComputeSharedMemorySize;
+	}
+}
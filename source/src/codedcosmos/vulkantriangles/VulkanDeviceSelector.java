@@ -0,0 +1,184 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkInstance;
+import org.lwjgl.vulkan.VkPhysicalDevice;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+public class VulkanDeviceSelector {
+	// Set to a device name or uuid to override the scored pick
+	public static final String OVERRIDE_PROPERTY = "vulkantriangles.device";
+	
+	// Candidates, suitable ones ranked from best to worst
+	private List<VulkanDeviceCandidate> ranked;
+	private List<VulkanDeviceCandidate> unsuitable;
+	
+	private VulkanDeviceCandidate picked;
+	
+	public VulkanDeviceSelector(VulkanInstance vulkanInstance, long surface, boolean graphics) throws VulkanException {
+		int ret;
+		
+		ranked = new ArrayList<VulkanDeviceCandidate>();
+		unsuitable = new ArrayList<VulkanDeviceCandidate>();
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			VkInstance instance = vulkanInstance.get();
+			
+			// --------------------------------------
+			// Enumerate physical devices
+			IntBuffer pPhysicalDeviceCount = stack.mallocInt(1);
+			ret = vkEnumeratePhysicalDevices(instance, pPhysicalDeviceCount, null);
+			VkUtils.check(ret, "Failed to obtain number of physical devices");
+			
+			int physicalDeviceCount = pPhysicalDeviceCount.get(0);
+			if (physicalDeviceCount == 0) {
+				throw new VulkanException("No vulkan devices avaliable");
+			}
+			
+			PointerBuffer pPhysicalDevices = stack.mallocPointer(physicalDeviceCount);
+			ret = vkEnumeratePhysicalDevices(instance, pPhysicalDeviceCount, pPhysicalDevices);
+			VkUtils.check(ret, "Failed to get physical devices");
+			
+			Log.print("Found " + physicalDeviceCount + " vulkan device" + (physicalDeviceCount == 1 ? "":"s"));
+			
+			// --------------------------------------
+			// Evaluate and score each device, skipping unsuitable ones
+			for (int i = 0; i < physicalDeviceCount; i++) {
+				VkPhysicalDevice physicalDevice = new VkPhysicalDevice(pPhysicalDevices.get(i), instance);
+				VulkanDeviceCandidate candidate = new VulkanDeviceCandidate(vulkanInstance, physicalDevice, surface, graphics);
+				
+				if (candidate.isSuitable()) {
+					candidate.setScore(score(candidate));
+					ranked.add(candidate);
+				} else {
+					unsuitable.add(candidate);
+				}
+			}
+		}
+		
+		// Device type dominates, so a hybrid laptop prefers its discrete gpu whatever an integrated one reports as device local
+		ranked.sort(Comparator.comparingInt((VulkanDeviceCandidate candidate) -> getTypeTier(candidate.getType()))
+				.thenComparingLong(VulkanDeviceCandidate::getScore).reversed());
+		
+		// --------------------------------------
+		// Log ranking
+		for (int i = 0; i < ranked.size(); i++) {
+			VulkanDeviceCandidate candidate = ranked.get(i);
+			Log.print("  [" + i + "] " + describe(candidate) + " score " + candidate.getScore());
+		}
+		for (VulkanDeviceCandidate candidate : unsuitable) {
+			Log.print("  [-] " + candidate.getName() + " (" + candidate.getUUID() + ") skipped: " + candidate.getUnsuitableReason());
+		}
+		
+		if (ranked.isEmpty()) {
+			throw new VulkanException("Could not find valid physical device");
+		}
+		
+		// --------------------------------------
+		// Pick, preferring the override if one matches
+		picked = ranked.get(0);
+		
+		String override = System.getProperty(OVERRIDE_PROPERTY);
+		if (override != null && !override.isEmpty()) {
+			VulkanDeviceCandidate match = findOverride(override);
+			if (match != null) {
+				picked = match;
+				Log.print("Device override '" + override + "' matched " + match.getName());
+			} else {
+				Log.printErr("Device override '" + override + "' did not match any suitable device, using best scored device");
+			}
+		}
+		
+		Log.print("Picked vulkan device " + picked.getName() + " (" + picked.getUUID() + ")");
+	}
+	
+	// Higher tiers always rank first, the score only orders devices of the same tier
+	public static int getTypeTier(int type) {
+		switch (type) {
+			case VK_PHYSICAL_DEVICE_TYPE_DISCRETE_GPU: return 4;
+			case VK_PHYSICAL_DEVICE_TYPE_INTEGRATED_GPU: return 3;
+			case VK_PHYSICAL_DEVICE_TYPE_VIRTUAL_GPU: return 2;
+			case VK_PHYSICAL_DEVICE_TYPE_CPU: return 0;
+			default: return 1;
+		}
+	}
+	
+	public static long score(VulkanDeviceCandidate candidate) {
+		long score = 0;
+		
+		// 100 per GiB of device local memory
+		score += candidate.getDeviceLocalBytes() * 100 / (1024L * 1024L * 1024L);
+		
+		// Compute queues and limits
+		score += candidate.getComputeQueueCount() * 10L;
+		if (candidate.hasDedicatedCompute()) {
+			score += 200;
+		}
+		score += candidate.getMaxComputeWorkGroupInvocations() / 64;
+		score += candidate.getMaxComputeSharedMemorySize() / 1024;
+		
+		return score;
+	}
+	
+	private VulkanDeviceCandidate findOverride(String override) {
+		// A whole uuid first, then part of a name, both ignoring case
+		for (VulkanDeviceCandidate candidate : ranked) {
+			if (candidate.getUUID().equalsIgnoreCase(override)) {
+				return candidate;
+			}
+		}
+		for (VulkanDeviceCandidate candidate : ranked) {
+			if (candidate.getName().toLowerCase().contains(override.toLowerCase())) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+	
+	private static String describe(VulkanDeviceCandidate candidate) {
+		return candidate.getName() + " (" + candidate.getUUID() + ", " + formatType(candidate.getType()) + ", "
+				+ VkUtils.getVendorByID(candidate.getVendorID()) + ", "
+				+ (candidate.getDeviceLocalBytes() / (1024 * 1024)) + " MiB device local, "
+				+ candidate.getComputeQueueCount() + (candidate.hasDedicatedCompute() ? " dedicated" : "") + " compute queues"
+				+ (candidate.getTransferQueueFamily() != -1 ? ", dedicated transfer" : "") + ")";
+	}
+	
+	public static String formatType(int type) {
+		switch (type) {
+			case VK_PHYSICAL_DEVICE_TYPE_DISCRETE_GPU: return "discrete";
+			case VK_PHYSICAL_DEVICE_TYPE_INTEGRATED_GPU: return "integrated";
+			case VK_PHYSICAL_DEVICE_TYPE_VIRTUAL_GPU: return "virtual";
+			case VK_PHYSICAL_DEVICE_TYPE_CPU: return "cpu";
+			default: return "other";
+		}
+	}
+	
+	public VulkanDeviceCandidate getPicked() {
+		return picked;
+	}
+	
+	public List<VulkanDeviceCandidate> getRanked() {
+		return ranked;
+	}
+}
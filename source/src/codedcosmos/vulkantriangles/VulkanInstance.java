@@ -14,6 +14,7 @@
 
 package codedcosmos.vulkantriangles;
 
+import codedcosmos.vulkantriangles.memory.DriverAllocationCallbacks;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.glfw.GLFWVulkan;
 import org.lwjgl.system.MemoryStack;
@@ -27,6 +28,7 @@ import java.util.Set;
 import java.util.stream.Collectors;
 
 import static org.lwjgl.vulkan.EXTDebugReport.*;
+import static org.lwjgl.vulkan.KHRExternalMemoryCapabilities.VK_KHR_EXTERNAL_MEMORY_CAPABILITIES_EXTENSION_NAME;
 import static org.lwjgl.vulkan.KHRGetPhysicalDeviceProperties2.VK_KHR_GET_PHYSICAL_DEVICE_PROPERTIES_2_EXTENSION_NAME;
 import static org.lwjgl.vulkan.VK10.*;
 import static org.lwjgl.vulkan.VK10.vkCreateInstance;
@@ -41,7 +43,19 @@ public class VulkanInstance {
 	
 	private String debugExtension;
 	
+	// Headless instances have no surface extensions
+	private boolean headless;
+	
+	// Whether device uuids can be queried
+	private boolean deviceIDProperties;
+	
 	public VulkanInstance() throws VulkanException {
+		this(false);
+	}
+	
+	public VulkanInstance(boolean headless) throws VulkanException {
+		this.headless = headless;
+		
 		int ret;
 		
 		try (MemoryStack stack = MemoryStack.stackPush()) {
@@ -57,12 +71,25 @@ public class VulkanInstance {
 					.engineVersion(VK_MAKE_VERSION(1, 0, 0))
 					.apiVersion(VK_API_VERSION_1_0);
 			
-			// Get required extensions
-			PointerBuffer pGlfwRequiredExtensions = GLFWVulkan.glfwGetRequiredInstanceExtensions();
+			// Get required extensions, a headless instance does not need glfw's surface extensions
+			PointerBuffer pGlfwRequiredExtensions = headless ? stack.mallocPointer(0) : GLFWVulkan.glfwGetRequiredInstanceExtensions();
 			
 			ArrayList<ByteBuffer> extensionsToEnable = new ArrayList<ByteBuffer>();
 			extensionsToEnable.add(stack.UTF8(VK_KHR_GET_PHYSICAL_DEVICE_PROPERTIES_2_EXTENSION_NAME));
 			
+			// Get supported instance extensions
+			IntBuffer extensionCount = stack.ints(0);
+			vkEnumerateInstanceExtensionProperties((ByteBuffer)null, extensionCount, null);
+			
+			VkExtensionProperties.Buffer availableExtensions = VkExtensionProperties.mallocStack(extensionCount.get(0), stack);
+			vkEnumerateInstanceExtensionProperties((ByteBuffer)null, extensionCount, availableExtensions);
+			
+			// Device uuids are used to pick a device, they need external memory capabilities on vulkan 1.0
+			deviceIDProperties = availableExtensions.stream().anyMatch(p -> p.extensionNameString().equals(VK_KHR_EXTERNAL_MEMORY_CAPABILITIES_EXTENSION_NAME));
+			if (deviceIDProperties) {
+				extensionsToEnable.add(stack.UTF8(VK_KHR_EXTERNAL_MEMORY_CAPABILITIES_EXTENSION_NAME));
+			}
+			
 			// Optionally add debug extensions
 			if (VulkanTriangles.USE_DEBUG) {
 				extensionsToEnable.add(stack.UTF8(VK_EXT_DEBUG_REPORT_EXTENSION_NAME));
@@ -119,10 +146,10 @@ public class VulkanInstance {
 			
 			// Create Instance
 			PointerBuffer pInstance = stack.mallocPointer(1);
-			ret = vkCreateInstance(pCreateInfo, null, pInstance);
+			ret = vkCreateInstance(pCreateInfo, DriverAllocationCallbacks.get(), pInstance);
 			VkUtils.check(ret, "Failed to create Vulkan Instance");
 			instance = new VkInstance(pInstance.get(0), pCreateInfo);
-			Log.print("Successfully created vulkan instance");
+			Log.print(headless ? "Successfully created headless vulkan instance" : "Successfully created vulkan instance");
 			
 			//----------------------------
 			// Instance Debug
@@ -132,18 +159,18 @@ public class VulkanInstance {
 				debugCallback = new VkDebugReportCallbackEXT() {
 					public int invoke(int flags, int objectType, long object, long location, int messageCode, long pLayerPrefix,
 									  long pMessage, long pUserData) {
-						String type = "";
-						if ((flags & VK_DEBUG_REPORT_WARNING_BIT_EXT) != 0) {
-							type += "WARN  ";
+						Log.Level level = Log.Level.DEBUG;
+						if ((flags & (VK_DEBUG_REPORT_WARNING_BIT_EXT | VK_DEBUG_REPORT_PERFORMANCE_WARNING_BIT_EXT)) != 0) {
+							level = Log.Level.WARN;
 						}
 						if ((flags & VK_DEBUG_REPORT_ERROR_BIT_EXT) != 0) {
-							type += "ERROR ";
-						}
-						if ((flags & VK_DEBUG_REPORT_DEBUG_BIT_EXT) != 0) {
-							type += "DEBUG ";
+							level = Log.Level.ERROR;
 						}
 						
-						Log.printErr("VULKAN", type, VkDebugReportCallbackEXT.getString(pMessage));
+						// Skip copying the message when it wouldn't be written, the pointer is only valid during the callback
+						if (Log.isEnabled(level)) {
+							Log.log(level, "VULKAN", level, VkDebugReportCallbackEXT.getString(pMessage));
+						}
 						return 0;
 					}
 				};
@@ -154,7 +181,7 @@ public class VulkanInstance {
 				
 				// Create Debug Report Callback
 				LongBuffer pCallback = stack.mallocLong(1);
-				int logging_bits = VK_DEBUG_REPORT_ERROR_BIT_EXT;
+				int logging_bits = VK_DEBUG_REPORT_ERROR_BIT_EXT | VK_DEBUG_REPORT_WARNING_BIT_EXT | VK_DEBUG_REPORT_PERFORMANCE_WARNING_BIT_EXT;
 				
 				ret = vkCreateDebugReportCallbackEXT(instance, debugReportCallback
 						.pfnCallback(debugCallback)
@@ -175,12 +202,20 @@ public class VulkanInstance {
 		return debugExtension;
 	}
 	
+	public boolean isHeadless() {
+		return headless;
+	}
+	
+	public boolean hasDeviceIDProperties() {
+		return deviceIDProperties;
+	}
+	
 	public void free() {
 		if (VulkanTriangles.USE_DEBUG) {
 			Log.print("Freeing debug instance resources");
 			vkDestroyDebugReportCallbackEXT(instance, debugID, null);
 			debugCallback.free();
 		}
-		vkDestroyInstance(instance, null);
+		vkDestroyInstance(instance, DriverAllocationCallbacks.get());
 	}
 }
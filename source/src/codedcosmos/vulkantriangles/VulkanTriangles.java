@@ -15,20 +15,45 @@
 package codedcosmos.vulkantriangles;
 
 import codedcosmos.vulkantriangles.compute.VulkanComputeBuffer;
+import codedcosmos.vulkantriangles.compute.VulkanComputeCuller;
 import codedcosmos.vulkantriangles.compute.VulkanComputeDescriptorSet;
+import codedcosmos.vulkantriangles.compute.VulkanComputeDispatchPool;
 import codedcosmos.vulkantriangles.compute.VulkanComputePipeline;
 import codedcosmos.vulkantriangles.compute.VulkanComputeSync;
+import codedcosmos.vulkantriangles.compute.VulkanPointBuffer;
 import codedcosmos.vulkantriangles.graphics.*;
+import codedcosmos.vulkantriangles.memory.DriverAllocationCallbacks;
+import codedcosmos.vulkantriangles.memory.MemoryTracker;
+import codedcosmos.vulkantriangles.memory.VulkanDefragmenter;
+import codedcosmos.vulkantriangles.memory.VulkanMemoryBudget;
+import codedcosmos.vulkantriangles.memory.VulkanResidencyManager;
+import codedcosmos.vulkantriangles.memory.VulkanUploadLane;
+import codedcosmos.vulkantriangles.mesh.MeshImporter;
+import codedcosmos.vulkantriangles.profiling.TraceRecorder;
+import codedcosmos.vulkantriangles.profiling.VulkanClockCalibration;
+import codedcosmos.vulkantriangles.profiling.VulkanGpuProfiler;
+import codedcosmos.vulkantriangles.scene.Frustum;
+import codedcosmos.vulkantriangles.scene.FrustumCuller;
+import codedcosmos.vulkantriangles.scene.SceneStore;
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.glfw.GLFW;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.*;
 
+import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.io.IOException;
 import java.nio.LongBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import static org.lwjgl.system.MemoryUtil.memAddress;
 import static org.lwjgl.system.MemoryUtil.memCopy;
@@ -37,6 +62,11 @@ import static org.lwjgl.vulkan.VK10.*;
 public class VulkanTriangles {
 	// Configurable
 	public static final boolean USE_DEBUG = true;
+	private static final int SCENE_ROOTS = 16;
+	private static final int SCENE_CHILDREN = 4;
+	
+	// Workgroups per dispatch every device supports
+	private static final int MAX_DISPATCH = 65535;
 	
 	// State
 	private static boolean RUNNING = false;
@@ -48,6 +78,32 @@ public class VulkanTriangles {
 	public static void main(String[] args) throws VulkanException {
 		RUNNING = true;
 		
+		// Native allocations go through jemalloc when it's available, before anything allocates
+		MemoryTracker.useJemalloc();
+		
+		// Headless only runs compute, so it needs neither glfw nor a surface
+		if (Arrays.asList(args).contains("--headless")) {
+			runHeadless();
+			return;
+		}
+		
+		// Offscreen renders without presenting, to measure render throughput
+		if (Arrays.asList(args).contains("--offscreen")) {
+			runOffscreen(1920, 1080, 3, 1000);
+			return;
+		}
+		
+		// Import and optimise a mesh on its own, logging the vertex cache miss ratios
+		int meshReport = Arrays.asList(args).indexOf("--mesh-report");
+		if (meshReport >= 0) {
+			if (meshReport + 1 >= args.length) {
+				Log.printErr("--mesh-report needs the path of a mesh");
+				return;
+			}
+			MeshImporter.loadOptimised(args[meshReport + 1]);
+			return;
+		}
+		
 		// Init glfw
 		if (!GLFW.glfwInit()) {
 			Log.printErr("GLFW Failed to initalise GLFW");
@@ -63,54 +119,27 @@ public class VulkanTriangles {
 		// Vulkan
 		VulkanDevice vulkanDevice = new VulkanDevice(instance, window);
 		
+		// Timeline of cpu and gpu spans, dumped with F12
+		TraceRecorder trace = new TraceRecorder(1 << 16);
+		
 		// Vulkan Compute
 		int size = 500;
 		int scale = 50;
-		float[] points = new float[3*size];
-		Random random = new Random();
-		for (int i = 0; i < points.length; i++) {
-			points[i] = random.nextInt(scale*2)-scale;
-		}
+		float[] points = createPoints(size, scale);
 		VulkanComputeBuffer computeBuffer = new VulkanComputeBuffer(vulkanDevice, points);
 		
-		VulkanComputePipeline computePipeline = new VulkanComputePipeline(vulkanDevice.get());
+		VulkanComputePipeline computePipeline = new VulkanComputePipeline(vulkanDevice.get(), computeBuffer.getVertexFormat());
 		VulkanReusableCommandBuffer computeCommandBuffer = new VulkanReusableCommandBuffer(vulkanDevice.get(), vulkanDevice.getComputeQueueFamily(), 1);
 		VulkanComputeDescriptorSet descriptorSet = new VulkanComputeDescriptorSet(vulkanDevice.get(), computePipeline.getDescriptorSetLayout(), computeBuffer);
 		VulkanComputeSync computeSync = new VulkanComputeSync(vulkanDevice.get());
+		VulkanGpuProfiler computeProfiler = new VulkanGpuProfiler(vulkanDevice, vulkanDevice.getComputeQueueFamily(), 1, true);
+		computeProfiler.setTrace(trace, new VulkanClockCalibration(vulkanDevice, vulkanDevice.getComputeQueueFamily(), vulkanDevice.getComputeQueue()), "gpu compute queue");
 		
 		
 		// Run compute
-		try (MemoryStack stack = MemoryStack.stackPush()) {
-			vulkanDevice.waitIdle();
-			
-			// Record
-			computeCommandBuffer.begin(0);
-			
-			vkCmdBindPipeline(computeCommandBuffer.get(0), VK_PIPELINE_BIND_POINT_COMPUTE, computePipeline.get());
-			
-			LongBuffer descriptorSets = stack.mallocLong(1).put(0, descriptorSet.getDescriptorSet());
-			vkCmdBindDescriptorSets(computeCommandBuffer.get(0), VK_PIPELINE_BIND_POINT_COMPUTE, computePipeline.getLayout(), 0, descriptorSets, null);
-			
-			vkCmdDispatch(computeCommandBuffer.get(0), size, 1, 1);
-			
-			computeCommandBuffer.end(0);
-			
-			// Submit
-			PointerBuffer pCommandbuffer = stack.mallocPointer(1);
-			pCommandbuffer.put(0, computeCommandBuffer.get(0));
-			
-			VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack)
-					.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
-					.pCommandBuffers(pCommandbuffer);
-			
-			int ret = vkQueueSubmit(vulkanDevice.getComputeQueue(), submitInfo, computeSync.get());
-			VkUtils.check(ret, "Failed to submit compute command");
-			
-			// Wait
-			computeSync.waitForFence(vulkanDevice.get());
-		}
+		runCompute(vulkanDevice, computePipeline, computeCommandBuffer, computeBuffer, descriptorSet, computeSync, computeProfiler, size);
 		
-		VulkanComputeModel computeModel = new VulkanComputeModel(size*3, computeBuffer.getVertexBuffer(), computeBuffer.getIndexBuffer());
+		VulkanComputeModel computeModel = new VulkanComputeModel(size*3, computeBuffer);
 		
 		// Vulkan Graphics
 		VulkanRenderPass renderPass = new VulkanRenderPass(vulkanDevice.get(), window.getSurface());
@@ -118,18 +147,85 @@ public class VulkanTriangles {
 		VulkanReusableCommandBuffer graphicsCommandBuffer = new VulkanReusableCommandBuffer(vulkanDevice.get(), vulkanDevice.getGraphicsQueueFamily(), swapchain.getImageCount());
 		VulkanFrameDirector frameDirector = new VulkanFrameDirector(vulkanDevice.get(), swapchain.getImageCount());
 		
-		Renderer renderer = new Renderer(vulkanDevice, renderPass.get());
+		VulkanUploadLane uploadLane = new VulkanUploadLane(vulkanDevice);
+		Renderer renderer = new Renderer(vulkanDevice, renderPass.get(), swapchain.getImageCount(), uploadLane);
+		VulkanGpuProfiler gpuProfiler = new VulkanGpuProfiler(vulkanDevice, vulkanDevice.getGraphicsQueueFamily(), swapchain.getImageCount(), true);
+		
+		// Cold models and compute buffers give up their device memory under pressure
+		VulkanResidencyManager residency = new VulkanResidencyManager(vulkanDevice, new VulkanMemoryBudget(vulkanDevice), uploadLane, swapchain.getImageCount());
+		residency.register(renderer.getCubeModel());
+		residency.register(computeBuffer);
+		
+		// Sparse pool blocks are emptied a few megabytes per frame
+		VulkanDefragmenter defragmenter = new VulkanDefragmenter(vulkanDevice, swapchain.getImageCount());
+		
+		// Off screen compute triangles are culled on the gpu and drawn indirectly, -Dvulkantriangles.cull=false draws them all
+		// Hidden ones are culled against a depth pyramid of the last frame, -Dvulkantriangles.hiz=false skips that
+		VulkanComputeCuller culler = null;
+		VulkanDepthPyramid depthPyramid = null;
+		if (Boolean.parseBoolean(System.getProperty("vulkantriangles.cull", "true"))) {
+			depthPyramid = new VulkanDepthPyramid(vulkanDevice, swapchain, renderPass.getDepthFormat());
+			culler = new VulkanComputeCuller(vulkanDevice, computeBuffer, size, swapchain.getImageCount(), depthPyramid);
+		}
+		gpuProfiler.setTrace(trace, new VulkanClockCalibration(vulkanDevice, vulkanDevice.getGraphicsQueueFamily(), vulkanDevice.getGraphicsQueue()), "gpu graphics queue");
+		
+		// Cubes orbiting cubes, only the spinning subtrees are recomputed and copied each frame
+		// Instances hold the scene's transform times world matrices, the camera isn't in them so moving it changes none
+		Matrix4f sceneTransform = new Matrix4f().translation(0f, 0f, -30f);
+		float[] sceneTransformf = sceneTransform.get(new float[16]);
+		SceneStore scene = new SceneStore(SCENE_ROOTS * (1 + SCENE_CHILDREN));
+		int[] sceneRoots = createScene(scene);
+		VulkanInstanceBuffer sceneInstances = new VulkanInstanceBuffer(vulkanDevice, scene.getCapacity(), swapchain.getImageCount());
+		FrustumCuller sceneCuller = new FrustumCuller();
+		Frustum frustum = new Frustum();
+		int[] visible = new int[scene.getCapacity()];
+		long sceneStartTime = System.nanoTime();
+		
+		// The camera looks toward the cursor, read again after acquire and written just before submit.
+		// Only the cursor is read, events are pumped by the main loop. Culling, cpu and gpu, is recorded with
+		// the view from the previous latch, so it lags the drawn camera by one latch.
+		Matrix4f view = new Matrix4f();
+		Matrix4f computeModelTransform = new Matrix4f().translation(0f, 0f, -50f);
+		VulkanSwapchain.Latch latchCamera = () -> {
+			long latchStart = System.nanoTime();
+			renderer.setView(updateCamera(window, swapchain, view));
+			renderer.latchCamera();
+			trace.cpuSpan("latch camera", latchStart);
+		};
 		
 		// Show window
 		window.showWindow();
 		
 		// Rendering variables
 		int idx = 0;
+		boolean traceKeyHeld = false;
+		long lastSnapshot = System.nanoTime();
 		
 		while (RUNNING) {
+			trace.nextFrame();
+			
 			// GLFW events
+			long pollStart = System.nanoTime();
 			GLFW.glfwPollEvents();
 			if (window.shouldWindowClose()) RUNNING = false;
+			trace.cpuSpan("poll events", pollStart);
+			
+			// Dump the last frames as a chrome trace
+			boolean traceKey = GLFW.glfwGetKey(window.get(), GLFW.GLFW_KEY_F12) == GLFW.GLFW_PRESS;
+			if (traceKey && !traceKeyHeld) {
+				try {
+					trace.dump(Paths.get("trace-" + System.currentTimeMillis() + ".json"), 120);
+				} catch (IOException e) {
+					Log.printErr("Failed to write trace", e);
+				}
+			}
+			traceKeyHeld = traceKey;
+			
+			// Periodic native memory snapshot, only built when debug logging is on
+			if (System.nanoTime() - lastSnapshot > 10_000_000_000L) {
+				Log.debug(MemoryTracker::snapshot);
+				lastSnapshot = System.nanoTime();
+			}
 			
 			window.updateSize();
 			
@@ -144,38 +240,100 @@ public class VulkanTriangles {
 				vulkanDevice.waitIdle();
 				swapchain.recreateSwapchain(vulkanDevice, renderPass, window);
 				
+				// The pyramid follows the depth image
+				if (depthPyramid != null) {
+					depthPyramid.free();
+					depthPyramid = new VulkanDepthPyramid(vulkanDevice, swapchain, renderPass.getDepthFormat());
+					culler.setDepthPyramid(depthPyramid);
+				}
+				
 				// Reset
 				idx = 0;
 			}
 			
 			// Wait for fences
+			long waitStart = System.nanoTime();
 			frameDirector.waitForLastRender(vulkanDevice.get(), idx);
+			trace.cpuSpan("fence wait", waitStart);
+			
+			// Culling uses the camera as it is now, drawing uses it as it is at submit
+			renderer.setView(updateCamera(window, swapchain, view));
+			
+			// Move the scene, then write what changed into this slot's instances and cull it
+			long sceneStart = System.nanoTime();
+			animateScene(scene, sceneRoots, (System.nanoTime() - sceneStartTime) / 1_000_000_000f);
+			scene.update();
+			sceneInstances.write(idx, scene, sceneTransformf);
+			renderer.updateFrustum(swapchain, sceneTransform, frustum);
+			sceneCuller.cull(scene.getBounds(), frustum, true);
+			int visibleCount = scene.getBounds().getVisible(visible);
+			trace.cpuSpan("scene update", sceneStart);
 			
 			// Record
+			long recordStart = System.nanoTime();
 			graphicsCommandBuffer.reset(idx);
 			graphicsCommandBuffer.begin(idx);
 			
-			// Bind
-			renderer.bind(graphicsCommandBuffer.get(idx), renderer.getCubeModel(), swapchain, renderPass.get(), swapchain.getFramebuffer(idx));
+			// Profile this slot, collecting the results from when it was last used
+			gpuProfiler.beginFrame(graphicsCommandBuffer.get(idx), idx);
+			
+			// Take ownership of finished uploads before the render pass
+			uploadLane.recordAcquires(graphicsCommandBuffer.get(idx), vulkanDevice.getGraphicsQueueFamily());
+			
+			// Cull compute triangles, unless they are coming back from an eviction
+			boolean drawCompute = residency.use(computeBuffer) && computeBuffer.isReady();
+			float[] computeTransform = renderer.getTransform(swapchain, 0f, 0f, -50f);
+			if (drawCompute && culler != null) {
+				int pyramidScope = gpuProfiler.begin(graphicsCommandBuffer.get(idx), "depth pyramid", false);
+				depthPyramid.record(graphicsCommandBuffer.get(idx));
+				gpuProfiler.end(graphicsCommandBuffer.get(idx), pyramidScope);
+				
+				int cullScope = gpuProfiler.begin(graphicsCommandBuffer.get(idx), "cull compute", false);
+				culler.record(graphicsCommandBuffer.get(idx), idx, computeTransform);
+				gpuProfiler.end(graphicsCommandBuffer.get(idx), cullScope);
+			}
 			
-			// Draw cubes
-			renderer.bindModel(graphicsCommandBuffer.get(idx), renderer.getCubeModel());
+			// Bind
+			int renderPassScope = gpuProfiler.begin(graphicsCommandBuffer.get(idx), "render pass", false);
+			renderer.bind(graphicsCommandBuffer.get(idx), renderer.getCubeModel(), swapchain, renderPass.get(), swapchain.getFramebuffer(idx), idx);
 			
-			//renderer.drawRect(graphicsCommandBuffer.get(idx), renderer.getCubeModel(), swapchain, 0f, 0f, -5f);
-			//renderer.drawRect(graphicsCommandBuffer.get(idx), renderer.getCubeModel(), swapchain, 0f, 5f, -10f);
-			//renderer.drawRect(graphicsCommandBuffer.get(idx), renderer.getCubeModel(), swapchain, 0f, -5f, -10f);
+			// Draw cubes, once they have streamed in
+			if (residency.use(renderer.getCubeModel()) && renderer.getCubeModel().isReady()) {
+				int cubeScope = gpuProfiler.begin(graphicsCommandBuffer.get(idx), "draw cubes", true);
+				renderer.drawScene(graphicsCommandBuffer.get(idx), renderer.getCubeModel(), sceneInstances, idx, visible, visibleCount);
+				
+				//renderer.drawRect(graphicsCommandBuffer.get(idx), renderer.getCubeModel(), 0f, 0f, -5f);
+				//renderer.drawRect(graphicsCommandBuffer.get(idx), renderer.getCubeModel(), 0f, 5f, -10f);
+				//renderer.drawRect(graphicsCommandBuffer.get(idx), renderer.getCubeModel(), 0f, -5f, -10f);
+				gpuProfiler.end(graphicsCommandBuffer.get(idx), cubeScope);
+			}
 			
 			// Draw compute model
-			renderer.bindModel(graphicsCommandBuffer.get(idx), computeModel);
-			renderer.drawRect(graphicsCommandBuffer.get(idx), computeModel, swapchain, 0f, 0f, -50f);
+			if (drawCompute) {
+				int computeModelScope = gpuProfiler.begin(graphicsCommandBuffer.get(idx), "draw compute", true);
+				if (culler != null) {
+					renderer.drawCulled(graphicsCommandBuffer.get(idx), computeModel, culler, computeModelTransform);
+				} else {
+					renderer.bindModel(graphicsCommandBuffer.get(idx), computeModel);
+					renderer.drawRect(graphicsCommandBuffer.get(idx), computeModel, 0f, 0f, -50f);
+				}
+				gpuProfiler.end(graphicsCommandBuffer.get(idx), computeModelScope);
+			}
 			
 			// End
 			vkCmdEndRenderPass(graphicsCommandBuffer.get(idx));
+			gpuProfiler.end(graphicsCommandBuffer.get(idx), renderPassScope);
 			
 			graphicsCommandBuffer.end(idx);
+			trace.cpuSpan("record", recordStart);
 			
 			// Perform render
-			swapchain.submitAndPresent(vulkanDevice.get(), vulkanDevice.getGraphicsQueue(), frameDirector.getRenderFence(idx), frameDirector.getImageAcquireSemaphore(idx), frameDirector.getRenderCompleteSemaphores(idx), graphicsCommandBuffer.get(idx));
+			long submitStart = System.nanoTime();
+			swapchain.submitAndPresent(vulkanDevice.get(), vulkanDevice.getGraphicsQueue(), frameDirector.getRenderFence(idx), frameDirector.getImageAcquireSemaphore(idx), frameDirector.getRenderCompleteSemaphores(idx), graphicsCommandBuffer.get(idx), latchCamera);
+			trace.cpuSpan("submit and present", submitStart);
+			
+			residency.endFrame();
+			defragmenter.update();
 			
 			// Increment IDX
 			idx = (idx + 1) % swapchain.getImageCount();
@@ -185,8 +343,26 @@ public class VulkanTriangles {
 		// Free
 		vulkanDevice.waitIdle();
 		
+		computeProfiler.logReport("Compute");
+		gpuProfiler.logReport("Render");
+		Log.print(MemoryTracker.snapshot());
+		vulkanDevice.getMemoryPool().logReport();
+		renderer.getGeometryArena().logReport();
+		if (culler != null) {
+			culler.logReport(gpuProfiler);
+		}
+		Log.debug(() -> "Defragmenter moved " + defragmenter.getMoveCount() + " buffers, " + defragmenter.getMovedBytes() + " bytes");
+		
+		// Finish any moves before the buffers being moved are destroyed
+		defragmenter.free();
+		
 		Log.print("Freeing Vulkan compute");
+		if (culler != null) {
+			culler.free(vulkanDevice.get());
+			depthPyramid.free();
+		}
 		computeModel.free();
+		computeProfiler.free();
 		computeSync.free(vulkanDevice.get());
 		computeBuffer.free(vulkanDevice.get());
 		computePipeline.free(vulkanDevice.get());
@@ -194,7 +370,12 @@ public class VulkanTriangles {
 		descriptorSet.free(vulkanDevice.get());
 		
 		Log.print("Freeing Renderer");
+		sceneInstances.free(vulkanDevice.get());
+		scene.free();
 		renderer.free(vulkanDevice.get());
+		gpuProfiler.free();
+		residency.free();
+		uploadLane.free();
 		
 		Log.print("Freeing Frame Director");
 		frameDirector.free(vulkanDevice.get());
@@ -218,6 +399,343 @@ public class VulkanTriangles {
 		Log.print("Freeing Instance");
 		instance.free();
 		
+		MemoryTracker.reportLeaks();
+		DriverAllocationCallbacks.free();
+		
+		Log.print("Exiting");
+	}
+	
+	private static void runHeadless() throws VulkanException {
+		// Vulkan Instance and Device without a window
+		VulkanInstance instance = new VulkanInstance(true);
+		VulkanDevice vulkanDevice = new VulkanDevice(instance);
+		
+		// Vulkan Compute
+		int size = 500;
+		int scale = 50;
+		float[] points = createPoints(size, scale);
+		VulkanComputeBuffer computeBuffer = new VulkanComputeBuffer(vulkanDevice, points);
+		
+		VulkanComputePipeline computePipeline = new VulkanComputePipeline(vulkanDevice.get(), computeBuffer.getVertexFormat());
+		VulkanComputeDescriptorSet descriptorSet = new VulkanComputeDescriptorSet(vulkanDevice.get(), computePipeline.getDescriptorSetLayout(), computeBuffer);
+		VulkanComputeDispatchPool dispatchPool = new VulkanComputeDispatchPool(vulkanDevice);
+		
+		// Run compute as independent jobs spread over every compute queue
+		int jobs = dispatchPool.getQueueCount() * 4;
+		int jobSize = (size + jobs - 1) / jobs;
+		
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (int offset = 0; offset < size; offset += jobSize) {
+			int jobOffset = offset;
+			int jobCount = Math.min(jobSize, size - offset);
+			
+			futures.add(dispatchPool.submit(commandBuffer -> {
+				try (MemoryStack stack = MemoryStack.stackPush()) {
+					vkCmdBindPipeline(commandBuffer, VK_PIPELINE_BIND_POINT_COMPUTE, computePipeline.get());
+					vkCmdBindDescriptorSets(commandBuffer, VK_PIPELINE_BIND_POINT_COMPUTE, computePipeline.getLayout(), 0, stack.longs(descriptorSet.getDescriptorSet()), null);
+					computeBuffer.pushConstants(commandBuffer, computePipeline.getLayout(), jobOffset);
+					vkCmdDispatch(commandBuffer, jobCount, 1, 1);
+				}
+			}));
+		}
+		
+		try {
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new VulkanException("Headless compute failed: " + e.getMessage());
+		}
+		Log.print("Headless compute generated " + size + " triangles in " + futures.size() + " jobs");
+		
+		// Free
+		vulkanDevice.waitIdle();
+		
+		Log.print("Freeing Vulkan compute");
+		dispatchPool.free();
+		computeBuffer.free(vulkanDevice.get());
+		computePipeline.free(vulkanDevice.get());
+		descriptorSet.free(vulkanDevice.get());
+		
+		Log.print("Freeing Device");
+		vulkanDevice.free();
+		
+		Log.print("Freeing Instance");
+		instance.free();
+		
+		MemoryTracker.reportLeaks();
+		DriverAllocationCallbacks.free();
+		
+		Log.print("Exiting");
+	}
+	
+	private static void runOffscreen(int width, int height, int imageCount, int frames) throws VulkanException {
+		// Vulkan Instance and Device without a window, but with a graphics queue
+		VulkanInstance instance = new VulkanInstance(true);
+		VulkanDevice vulkanDevice = new VulkanDevice(instance, true);
+		
+		// Points, expanded into triangles by compute, pulled straight into the vertex shader or drawn as cube glyphs
+		int size = Integer.getInteger("vulkantriangles.points", 500);
+		int scale = 50;
+		String mode = System.getProperty("vulkantriangles.compute.mode", "expand");
+		boolean pull = mode.equals("pull");
+		boolean glyph = mode.equals("glyph");
+		float[] points = createPoints(size, scale);
+		
+		// Vulkan Graphics
+		VulkanRenderPass renderPass = new VulkanRenderPass(vulkanDevice.get(), VK_FORMAT_R8G8B8A8_UNORM);
+		
+		// Vulkan Compute, only when expanding
+		VulkanComputeBuffer computeBuffer = null;
+		VulkanComputePipeline computePipeline = null;
+		VulkanReusableCommandBuffer computeCommandBuffer = null;
+		VulkanComputeDescriptorSet descriptorSet = null;
+		VulkanComputeSync computeSync = null;
+		VulkanGpuProfiler computeProfiler = null;
+		VulkanComputeModel computeModel = null;
+		
+		VulkanPointBuffer pointBuffer = null;
+		VulkanPointPuller puller = null;
+		VulkanPointGlyphs glyphs = null;
+		long pointBytes;
+		
+		if (pull) {
+			pointBuffer = new VulkanPointBuffer(vulkanDevice, points);
+			puller = new VulkanPointPuller(vulkanDevice.get(), renderPass.get(), pointBuffer);
+			pointBytes = pointBuffer.getSize();
+		} else if (glyph) {
+			// The template is the renderer's cube, drawn from the buffers it already has
+			pointBuffer = new VulkanPointBuffer(vulkanDevice, points, createStyles(size));
+			pointBytes = pointBuffer.getStyleOffset() + pointBuffer.getStyleSize();
+		} else {
+			computeBuffer = new VulkanComputeBuffer(vulkanDevice, points);
+			
+			computePipeline = new VulkanComputePipeline(vulkanDevice.get(), computeBuffer.getVertexFormat());
+			computeCommandBuffer = new VulkanReusableCommandBuffer(vulkanDevice.get(), vulkanDevice.getComputeQueueFamily(), 1);
+			descriptorSet = new VulkanComputeDescriptorSet(vulkanDevice.get(), computePipeline.getDescriptorSetLayout(), computeBuffer);
+			computeSync = new VulkanComputeSync(vulkanDevice.get());
+			computeProfiler = new VulkanGpuProfiler(vulkanDevice, vulkanDevice.getComputeQueueFamily(), 1, true);
+			
+			runCompute(vulkanDevice, computePipeline, computeCommandBuffer, computeBuffer, descriptorSet, computeSync, computeProfiler, size);
+			
+			computeModel = new VulkanComputeModel(size*3, computeBuffer);
+			pointBytes = computeBuffer.getInputBufferRange() + computeBuffer.getVertexBufferRange() + computeBuffer.getIndexBufferRange();
+		}
+		
+		VulkanOffscreenTarget target = new VulkanOffscreenTarget(vulkanDevice, renderPass, width, height, imageCount);
+		VulkanReusableCommandBuffer graphicsCommandBuffer = new VulkanReusableCommandBuffer(vulkanDevice.get(), vulkanDevice.getGraphicsQueueFamily(), imageCount);
+		VulkanFrameDirector frameDirector = new VulkanFrameDirector(vulkanDevice.get(), imageCount);
+		
+		Renderer renderer = new Renderer(vulkanDevice, renderPass.get(), imageCount);
+		if (glyph) {
+			glyphs = new VulkanPointGlyphs(vulkanDevice.get(), renderPass.get(), renderer.getCubeModel(), pointBuffer);
+		}
+		VulkanGpuProfiler gpuProfiler = new VulkanGpuProfiler(vulkanDevice, vulkanDevice.getGraphicsQueueFamily(), imageCount, true);
+		
+		// Render
+		long readbackBytes = 0;
+		long start = System.nanoTime();
+		
+		for (int frame = 0; frame < frames; frame++) {
+			int idx = frame % imageCount;
+			
+			// Wait for fences, after which the readback of the last frame in this slot is complete
+			frameDirector.waitForLastRender(vulkanDevice.get(), idx);
+			if (frame >= imageCount) {
+				readbackBytes += target.getReadback(idx).remaining();
+			}
+			
+			// Record
+			graphicsCommandBuffer.reset(idx);
+			graphicsCommandBuffer.begin(idx);
+			gpuProfiler.beginFrame(graphicsCommandBuffer.get(idx), idx);
+			
+			int renderPassScope = gpuProfiler.begin(graphicsCommandBuffer.get(idx), "render pass", false);
+			renderer.bind(graphicsCommandBuffer.get(idx), computeModel, target, renderPass.get(), target.getFramebuffer(idx), idx);
+			
+			int computeModelScope = gpuProfiler.begin(graphicsCommandBuffer.get(idx), "draw " + mode, true);
+			if (pull) {
+				renderer.drawPulled(graphicsCommandBuffer.get(idx), puller, 0f, 0f, -50f);
+			} else if (glyph) {
+				renderer.drawGlyphs(graphicsCommandBuffer.get(idx), glyphs, 0f, 0f, -50f);
+			} else {
+				renderer.bindModel(graphicsCommandBuffer.get(idx), computeModel);
+				renderer.drawRect(graphicsCommandBuffer.get(idx), computeModel, 0f, 0f, -50f);
+			}
+			gpuProfiler.end(graphicsCommandBuffer.get(idx), computeModelScope);
+			
+			vkCmdEndRenderPass(graphicsCommandBuffer.get(idx));
+			gpuProfiler.end(graphicsCommandBuffer.get(idx), renderPassScope);
+			
+			int readbackScope = gpuProfiler.begin(graphicsCommandBuffer.get(idx), "readback", false);
+			target.recordReadback(graphicsCommandBuffer.get(idx), idx);
+			gpuProfiler.end(graphicsCommandBuffer.get(idx), readbackScope);
+			
+			graphicsCommandBuffer.end(idx);
+			
+			// Submit
+			renderer.latchCamera();
+			target.submit(vulkanDevice.getGraphicsQueue(), frameDirector.getRenderFence(idx), graphicsCommandBuffer.get(idx));
+		}
+		
+		vulkanDevice.waitIdle();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		Log.print("Rendered " + frames + " offscreen frames at " + width + "x" + height + " in " + String.format("%.3f", seconds) + "s (" + String.format("%.1f", frames / seconds) + " fps)");
+		Log.print("Read back " + (readbackBytes / (1024 * 1024)) + " MiB of finished frames");
+		Log.print("Drew " + size + " points in " + mode + " mode from " + String.format("%.2f", pointBytes / (1024.0 * 1024.0)) + " MiB of point geometry");
+		
+		// Collect the frames still in flight at the end
+		for (int i = 0; i < imageCount; i++) {
+			gpuProfiler.collect(i);
+		}
+		if (computeProfiler != null) {
+			computeProfiler.logReport("Compute");
+		}
+		gpuProfiler.logReport("Offscreen");
+		Log.print(MemoryTracker.snapshot());
+		vulkanDevice.getMemoryPool().logReport();
+		
+		// Free
+		if (pull || glyph) {
+			Log.print("Freeing " + mode + " points");
+			if (puller != null) {
+				puller.free(vulkanDevice.get());
+			}
+			if (glyphs != null) {
+				glyphs.free(vulkanDevice.get());
+			}
+			pointBuffer.free(vulkanDevice.get());
+		} else {
+			Log.print("Freeing Vulkan compute");
+			computeModel.free();
+			computeProfiler.free();
+			computeSync.free(vulkanDevice.get());
+			computeBuffer.free(vulkanDevice.get());
+			computePipeline.free(vulkanDevice.get());
+			computeCommandBuffer.free(vulkanDevice.get());
+			descriptorSet.free(vulkanDevice.get());
+		}
+		
+		Log.print("Freeing Renderer");
+		renderer.free(vulkanDevice.get());
+		gpuProfiler.free();
+		frameDirector.free(vulkanDevice.get());
+		graphicsCommandBuffer.free(vulkanDevice.get());
+		
+		Log.print("Freeing Offscreen Target");
+		target.free(vulkanDevice.get());
+		renderPass.free(vulkanDevice.get());
+		
+		Log.print("Freeing Device");
+		vulkanDevice.free();
+		
+		Log.print("Freeing Instance");
+		instance.free();
+		
+		MemoryTracker.reportLeaks();
+		DriverAllocationCallbacks.free();
+		
 		Log.print("Exiting");
 	}
+	
+	// Roots in a ring, each with children orbiting it
+	private static int[] createScene(SceneStore scene) {
+		int[] roots = new int[SCENE_ROOTS];
+		for (int i = 0; i < SCENE_ROOTS; i++) {
+			float angle = (float) (Math.PI * 2 * i / SCENE_ROOTS);
+			roots[i] = scene.add(SceneStore.NONE, 1f, 1f, 1f);
+			scene.setPosition(roots[i], (float) Math.cos(angle) * 14f, (float) Math.sin(angle) * 8f, 0f);
+			
+			for (int j = 0; j < SCENE_CHILDREN; j++) {
+				float childAngle = (float) (Math.PI * 2 * j / SCENE_CHILDREN);
+				int child = scene.add(roots[i], 1f, 1f, 1f);
+				scene.setPosition(child, (float) Math.cos(childAngle) * 3f, 0f, (float) Math.sin(childAngle) * 3f);
+				scene.setScale(child, 0.4f, 0.4f, 0.4f);
+			}
+		}
+		return roots;
+	}
+	
+	// Every other root spins, so only half the scene changes each frame
+	private static void animateScene(SceneStore scene, int[] roots, float seconds) {
+		Quaternionf rotation = new Quaternionf();
+		for (int i = 0; i < roots.length; i += 2) {
+			rotation.rotationY(seconds * (1f + i * 0.1f));
+			scene.setRotation(roots[i], rotation.x, rotation.y, rotation.z, rotation.w);
+		}
+	}
+	
+	// Turns a little toward the cursor, from the centre of the target
+	private static Matrix4f updateCamera(GameWindow window, VulkanRenderTarget target, Matrix4f view) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			DoubleBuffer cursorX = stack.mallocDouble(1);
+			DoubleBuffer cursorY = stack.mallocDouble(1);
+			GLFW.glfwGetCursorPos(window.get(), cursorX, cursorY);
+			
+			float yaw = (float) (cursorX.get(0) / target.getWidth() - 0.5) * 0.5f;
+			float pitch = (float) (cursorY.get(0) / target.getHeight() - 0.5) * 0.3f;
+			return view.rotationX(pitch).rotateY(yaw);
+		}
+	}
+	
+	private static float[] createPoints(int size, int scale) {
+		float[] points = new float[3*size];
+		Random random = new Random();
+		for (int i = 0; i < points.length; i++) {
+			points[i] = random.nextInt(scale*2)-scale;
+		}
+		return points;
+	}
+	
+	// A random colour and a scale between a quarter and a half of the template per point
+	private static float[] createStyles(int size) {
+		float[] styles = new float[4*size];
+		Random random = new Random();
+		for (int i = 0; i < size; i++) {
+			styles[i*4 + 0] = random.nextFloat();
+			styles[i*4 + 1] = random.nextFloat();
+			styles[i*4 + 2] = random.nextFloat();
+			styles[i*4 + 3] = 0.25f + random.nextFloat() * 0.25f;
+		}
+		return styles;
+	}
+	
+	private static void runCompute(VulkanDevice vulkanDevice, VulkanComputePipeline computePipeline, VulkanReusableCommandBuffer computeCommandBuffer,
+								   VulkanComputeBuffer computeBuffer, VulkanComputeDescriptorSet descriptorSet, VulkanComputeSync computeSync, VulkanGpuProfiler profiler, int size) throws VulkanException {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			vulkanDevice.waitIdle();
+			
+			// Record
+			computeCommandBuffer.begin(0);
+			profiler.beginFrame(computeCommandBuffer.get(0), 0);
+			int computeScope = profiler.begin(computeCommandBuffer.get(0), "compute", true);
+			
+			vkCmdBindPipeline(computeCommandBuffer.get(0), VK_PIPELINE_BIND_POINT_COMPUTE, computePipeline.get());
+			
+			LongBuffer descriptorSets = stack.mallocLong(1).put(0, descriptorSet.getDescriptorSet());
+			vkCmdBindDescriptorSets(computeCommandBuffer.get(0), VK_PIPELINE_BIND_POINT_COMPUTE, computePipeline.getLayout(), 0, descriptorSets, null);
+			
+			// One point per workgroup, split where the group count would pass the guaranteed limit
+			for (int offset = 0; offset < size; offset += MAX_DISPATCH) {
+				computeBuffer.pushConstants(computeCommandBuffer.get(0), computePipeline.getLayout(), offset);
+				vkCmdDispatch(computeCommandBuffer.get(0), Math.min(MAX_DISPATCH, size - offset), 1, 1);
+			}
+			
+			profiler.end(computeCommandBuffer.get(0), computeScope);
+			computeCommandBuffer.end(0);
+			
+			// Submit
+			PointerBuffer pCommandbuffer = stack.mallocPointer(1);
+			pCommandbuffer.put(0, computeCommandBuffer.get(0));
+			
+			VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+					.pCommandBuffers(pCommandbuffer);
+			
+			int ret = vkQueueSubmit(vulkanDevice.getComputeQueue(), submitInfo, computeSync.get());
+			VkUtils.check(ret, "Failed to submit compute command");
+			
+			// Wait
+			computeSync.waitForFence(vulkanDevice.get());
+			profiler.collect(0);
+		}
+	}
 }
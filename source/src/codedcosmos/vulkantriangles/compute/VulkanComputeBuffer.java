@@ -14,27 +14,37 @@
 
 package codedcosmos.vulkantriangles.compute;
 
-import codedcosmos.vulkantriangles.VkUtils;
 import codedcosmos.vulkantriangles.VulkanDevice;
 import codedcosmos.vulkantriangles.VulkanException;
-import org.lwjgl.PointerBuffer;
+import codedcosmos.vulkantriangles.graphics.VertexBounds;
+import codedcosmos.vulkantriangles.graphics.VertexFormat;
+import codedcosmos.vulkantriangles.memory.MemoryTracker;
+import codedcosmos.vulkantriangles.memory.MemoryUsage;
+import codedcosmos.vulkantriangles.memory.VulkanMemoryPool;
+import codedcosmos.vulkantriangles.memory.VulkanPooledBuffer;
+import codedcosmos.vulkantriangles.memory.VulkanResidencyManager;
+import codedcosmos.vulkantriangles.memory.VulkanResident;
+import codedcosmos.vulkantriangles.memory.VulkanUploadLane;
 import org.lwjgl.system.MemoryStack;
-import org.lwjgl.system.MemoryUtil;
-import org.lwjgl.vulkan.VkBufferCreateInfo;
+import org.lwjgl.vulkan.VkCommandBuffer;
 import org.lwjgl.vulkan.VkDevice;
-import org.lwjgl.vulkan.VkMemoryAllocateInfo;
-import org.lwjgl.vulkan.VkMemoryRequirements;
 
 import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
-import static org.lwjgl.system.MemoryUtil.memAddress;
-import static org.lwjgl.system.MemoryUtil.memCopy;
 import static org.lwjgl.vulkan.VK10.*;
 
-public class VulkanComputeBuffer {
+public class VulkanComputeBuffer implements VulkanResident, VulkanPooledBuffer.Owner {
+	// The first point, padded, then the scale and offset that encode 16 bit positions
+	public static final int PUSH_CONSTANT_SIZE = 3 * 4 * 4;
+	
+	// The triangle compute.glsl places at each point
+	public static final float[] TRIANGLE_CORNERS = {
+			-0.5f, 0f, 0f,
+			 0f,   1f, 0f,
+			 0.5f, 0f, 0f,
+	};
 	
 	// Size
 	private int size;
@@ -42,197 +52,189 @@ public class VulkanComputeBuffer {
 	private int indexSizeBytes;
 	
 	// Input
-	private long inputBuffer;
-	private long inputMemory;
+	private VulkanPointBuffer input;
+	
+	// Output format, 16 bit positions are relative to the bounds of every triangle
+	private VertexFormat format;
+	private VertexBounds bounds;
+	
+	// Output, handles change when the defragmenter moves them
+	private VulkanPooledBuffer vertexBuffer;
+	private VulkanPooledBuffer indexBuffer;
+	private VulkanMemoryPool memoryPool;
 	
-	// Output
-	private long vertexBuffer;
-	private long vertexMemory;
+	// Told when the outputs move, descriptor sets rewrite themselves
+	private List<Runnable> moveListeners = new ArrayList<Runnable>();
 	
-	private long indexBuffer;
-	private long indexMemory;
+	// Residency, outputs are read back into host memory while evicted and uploaded again on restore
+	private boolean resident;
+	private VulkanUploadLane.Upload vertexUpload;
+	private VulkanUploadLane.Upload indexUpload;
+	private ByteBuffer vertexHostCopy;
+	private ByteBuffer indexHostCopy;
 	
 	public VulkanComputeBuffer(VulkanDevice device, float[] points) throws VulkanException {
-		int ret;
+		this(device, points, VertexFormat.DEFAULT);
+	}
+	
+	public VulkanComputeBuffer(VulkanDevice device, float[] points, VertexFormat format) throws VulkanException {
+		input = new VulkanPointBuffer(device, points);
+		this.size = input.getPointCount();
+		this.format = format;
+		bounds = format.isQuantised() ? VertexBounds.of(points, TRIANGLE_CORNERS) : VertexBounds.IDENTITY;
+		
+		// ------------------
+		// Output buffers, a triangle of three vertices and three indices per point
+		vertexSizeBytes = size*3*format.getStride();
+		indexSizeBytes = size*3*4;
+		createOutputBuffers(device);
+		resident = true;
+	}
+	
+	// Device local and pooled, the pool adds transfer usage so the residency manager and defragmenter can copy them
+	private void createOutputBuffers(VulkanDevice device) throws VulkanException {
+		memoryPool = device.getMemoryPool();
 		
+		vertexBuffer = memoryPool.createBuffer(vertexSizeBytes, VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_VERTEX_BUFFER_BIT, MemoryUsage.GPU_ONLY, this);
+		indexBuffer = memoryPool.createBuffer(indexSizeBytes, VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_INDEX_BUFFER_BIT, MemoryUsage.GPU_ONLY, this);
+	}
+	
+	public VertexFormat getVertexFormat() {
+		return format;
+	}
+	
+	public VertexBounds getBounds() {
+		return bounds;
+	}
+	
+	// For compute.glsl, starting at the point offset
+	public void pushConstants(VkCommandBuffer commandBuffer, long pipelineLayout, int offset) {
 		try (MemoryStack stack = MemoryStack.stackPush()) {
-			this.size = points.length;
-			
-			// ------------------
-			// Input Buffer
-			
-			ByteBuffer dataBuffer = stack.malloc(points.length * 4);
-			FloatBuffer floatBuffer = dataBuffer.asFloatBuffer();
-			
-			// Put data into buffer
-			for (int i = 0; i < points.length; i++) {
-				floatBuffer.put(points[i]);
-			}
-			
-			// Allocate Buffer
-			VkMemoryRequirements inputMemoryRequirements = VkMemoryRequirements.callocStack(stack);
-			
-			VkBufferCreateInfo inputBufferCreateInfo = VkBufferCreateInfo.callocStack(stack)
-					.sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
-					.size(dataBuffer.remaining())
-					.usage(VK_BUFFER_USAGE_STORAGE_BUFFER_BIT)
-					.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
-			
-			LongBuffer pInputBuffer = stack.mallocLong(1);
-			ret = vkCreateBuffer(device.get(), inputBufferCreateInfo, null, pInputBuffer);
-			VkUtils.check(ret, "Failed to create buffer for compute");
-			inputBuffer = pInputBuffer.get(0);
-			
-			// Get memory requirements
-			vkGetBufferMemoryRequirements(device.get(), inputBuffer, inputMemoryRequirements);
-			IntBuffer inputMemoryTypeIndex = stack.mallocInt(1);
-			device.getMemoryType(inputMemoryRequirements.memoryTypeBits(), VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT, inputMemoryTypeIndex);
-			
-			VkMemoryAllocateInfo inputMemoryAllocateInfo = VkMemoryAllocateInfo.callocStack(stack)
-					.sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
-					.allocationSize(inputMemoryRequirements.size())
-					.memoryTypeIndex(inputMemoryTypeIndex.get(0));
-			
-			// Memory
-			LongBuffer pInputMemory = stack.mallocLong(1);
-			ret = vkAllocateMemory(device.get(), inputMemoryAllocateInfo, null, pInputMemory);
-			VkUtils.check(ret, "Failed to allocate memory for compute");
-			inputMemory = pInputMemory.get(0);
-			
-			// Map
-			PointerBuffer pInputData = stack.mallocPointer(1);
-			ret = vkMapMemory(device.get(), inputMemory, 0, dataBuffer.remaining(), 0, pInputData);
-			VkUtils.check(ret, "Failed to map memory for compute");
-			long data = pInputData.get(0);
-			
-			// Copy
-			memCopy(memAddress(dataBuffer), data, dataBuffer.remaining());
-			vkUnmapMemory(device.get(), inputMemory);
-			
-			// Bind
-			ret = vkBindBufferMemory(device.get(), inputBuffer, inputMemory, 0);
-			VkUtils.check(ret, "Failed to bind compute input memory");
-			
-			// ------------------
-			// Output Vertex buffer
-			
-			vertexSizeBytes = size*3*3*4;
-			
-			// Allocate Buffer
-			VkMemoryRequirements vertexMemoryRequirements = VkMemoryRequirements.callocStack(stack);
-			
-			VkBufferCreateInfo vertexBufferCreateInfo = VkBufferCreateInfo.callocStack(stack)
-					.sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
-					.size(vertexSizeBytes)
-					.usage(VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_VERTEX_BUFFER_BIT)
-					.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
-			
-			LongBuffer pVertexBuffer = stack.mallocLong(1);
-			ret = vkCreateBuffer(device.get(), vertexBufferCreateInfo, null, pVertexBuffer);
-			VkUtils.check(ret, "Failed to create vertex buffer for compute");
-			vertexBuffer = pVertexBuffer.get(0);
-			
-			// Get memory requirements
-			vkGetBufferMemoryRequirements(device.get(), vertexBuffer, vertexMemoryRequirements);
-			IntBuffer vertexMemoryTypeIndex = stack.mallocInt(1);
-			device.getMemoryType(vertexMemoryRequirements.memoryTypeBits(), VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, vertexMemoryTypeIndex);
-			
-			VkMemoryAllocateInfo memoryAllocateInfo = VkMemoryAllocateInfo.callocStack(stack)
-					.sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
-					.allocationSize(vertexMemoryRequirements.size())
-					.memoryTypeIndex(vertexMemoryTypeIndex.get(0));
-			
-			// Memory
-			LongBuffer pVertexMemory = stack.mallocLong(1);
-			ret = vkAllocateMemory(device.get(), memoryAllocateInfo, null, pVertexMemory);
-			VkUtils.check(ret, "Failed to allocate vertex memory for compute");
-			vertexMemory = pVertexMemory.get(0);
-			
-			// Bind
-			ret = vkBindBufferMemory(device.get(), vertexBuffer, vertexMemory, 0);
-			VkUtils.check(ret, "Failed to bind compute vertex memory");
-			
-			// ------------------
-			// Output Index buffer
-			
-			indexSizeBytes = size*3*4;
-			
-			// Allocate Buffer
-			VkMemoryRequirements indexMemoryRequirements = VkMemoryRequirements.callocStack(stack);
-			
-			VkBufferCreateInfo indexBufferCreateInfo = VkBufferCreateInfo.callocStack(stack)
-					.sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
-					.size(indexSizeBytes)
-					.usage(VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_INDEX_BUFFER_BIT)
-					.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
-			
-			LongBuffer pIndexBuffer = stack.mallocLong(1);
-			ret = vkCreateBuffer(device.get(), indexBufferCreateInfo, null, pIndexBuffer);
-			VkUtils.check(ret, "Failed to create index buffer for compute");
-			indexBuffer = pIndexBuffer.get(0);
-			
-			// Get memory requirements
-			vkGetBufferMemoryRequirements(device.get(), indexBuffer, indexMemoryRequirements);
-			IntBuffer indexMemoryTypeIndex = stack.mallocInt(1);
-			device.getMemoryType(indexMemoryRequirements.memoryTypeBits(), VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, indexMemoryTypeIndex);
-			
-			VkMemoryAllocateInfo indexMemoryAllocateInfo = VkMemoryAllocateInfo.callocStack(stack)
-					.sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
-					.allocationSize(indexMemoryRequirements.size())
-					.memoryTypeIndex(indexMemoryTypeIndex.get(0));
-			
-			// Memory
-			LongBuffer pIndexMemory = stack.mallocLong(1);
-			ret = vkAllocateMemory(device.get(), indexMemoryAllocateInfo, null, pIndexMemory);
-			VkUtils.check(ret, "Failed to allocate index memory for compute");
-			indexMemory = pIndexMemory.get(0);
-			
-			// Bind
-			ret = vkBindBufferMemory(device.get(), indexBuffer, indexMemory, 0);
-			VkUtils.check(ret, "Failed to bind compute index memory");
+			ByteBuffer pushConstants = stack.calloc(PUSH_CONSTANT_SIZE);
+			pushConstants
+					.putInt(0, offset)
+					.putFloat(4 * 4, 1f / bounds.getExtentX())
+					.putFloat(4 * 4 + 4, 1f / bounds.getExtentY())
+					.putFloat(4 * 4 + 8, 1f / bounds.getExtentZ())
+					.putFloat(8 * 4, bounds.getCenterX())
+					.putFloat(8 * 4 + 4, bounds.getCenterY())
+					.putFloat(8 * 4 + 8, bounds.getCenterZ());
+			vkCmdPushConstants(commandBuffer, pipelineLayout, VK_SHADER_STAGE_COMPUTE_BIT, 0, pushConstants);
 		}
 	}
 	
 	public long getInputBuffer() {
-		return inputBuffer;
+		return input.getBuffer();
+	}
+	
+	public VulkanPointBuffer getPoints() {
+		return input;
 	}
 	
 	public long getInputBufferRange() {
-		return size*4;
+		return input.getSize();
 	}
 	
 	public long getVertexBuffer() {
-		return vertexBuffer;
+		return vertexBuffer.getBuffer();
 	}
 	
 	public long getVertexBufferRange() {
 		return vertexSizeBytes;
 	}
 	
-	public long getVertexMemory() {
-		return vertexMemory;
-	}
-	
 	public long getIndexBuffer() {
-		return indexBuffer;
+		return indexBuffer.getBuffer();
 	}
 	
 	public long getIndexBufferRange() {
 		return indexSizeBytes;
 	}
 	
-	public long getIndexMemory() {
-		return indexMemory;
+	// Restored outputs can only be drawn once both uploads are acquired
+	public boolean isReady() {
+		return resident && (vertexUpload == null || vertexUpload.isAcquired()) && (indexUpload == null || indexUpload.isAcquired());
 	}
 	
-	public void free(VkDevice device) {
-		vkDestroyBuffer(device, inputBuffer, null);
-		vkFreeMemory(device, inputMemory, null);
+	@Override
+	public String getResidentName() {
+		return "compute buffer of " + size + " points";
+	}
+	
+	@Override
+	public long getResidentBytes() {
+		return vertexSizeBytes + indexSizeBytes;
+	}
+	
+	@Override
+	public boolean isResident() {
+		return resident;
+	}
+	
+	@Override
+	public boolean canEvict() {
+		return isReady() && !vertexBuffer.isMoving() && !indexBuffer.isMoving();
+	}
+	
+	@Override
+	public boolean canMove() {
+		return isReady();
+	}
+	
+	@Override
+	public void moved(VulkanPooledBuffer buffer) {
+		for (Runnable listener : moveListeners) {
+			listener.run();
+		}
+	}
+	
+	public void addMoveListener(Runnable listener) {
+		moveListeners.add(listener);
+	}
+	
+	@Override
+	public void evict(VulkanResidencyManager manager) throws VulkanException {
+		vertexHostCopy = MemoryTracker.memAlloc("compute evicted", vertexSizeBytes);
+		manager.readback(vertexBuffer.getBuffer(), vertexSizeBytes, vertexHostCopy);
 		
-		vkDestroyBuffer(device, vertexBuffer, null);
-		vkFreeMemory(device, vertexMemory, null);
+		indexHostCopy = MemoryTracker.memAlloc("compute evicted", indexSizeBytes);
+		manager.readback(indexBuffer.getBuffer(), indexSizeBytes, indexHostCopy);
 		
-		vkDestroyBuffer(device, indexBuffer, null);
-		vkFreeMemory(device, indexMemory, null);
+		freeOutputBuffers(manager.getVulkanDevice().get());
+		resident = false;
+	}
+	
+	// Descriptor sets pointing at the old outputs need writing again before the compute pipeline runs on this buffer
+	@Override
+	public void restore(VulkanResidencyManager manager) throws VulkanException {
+		createOutputBuffers(manager.getVulkanDevice());
+		
+		VulkanUploadLane uploadLane = manager.getUploadLane();
+		vertexUpload = uploadLane.upload(vertexHostCopy, vertexBuffer.getBuffer(), 0, manager.getQueueFamily(), VK_ACCESS_VERTEX_ATTRIBUTE_READ_BIT, VK_PIPELINE_STAGE_VERTEX_INPUT_BIT);
+		indexUpload = uploadLane.upload(indexHostCopy, indexBuffer.getBuffer(), 0, manager.getQueueFamily(), VK_ACCESS_INDEX_READ_BIT, VK_PIPELINE_STAGE_VERTEX_INPUT_BIT);
+		
+		// Staging holds the data now
+		MemoryTracker.memFree("compute evicted", vertexHostCopy);
+		MemoryTracker.memFree("compute evicted", indexHostCopy);
+		vertexHostCopy = null;
+		indexHostCopy = null;
+		
+		resident = true;
+	}
+	
+	private void freeOutputBuffers(VkDevice device) {
+		memoryPool.destroyBuffer(vertexBuffer);
+		memoryPool.destroyBuffer(indexBuffer);
+	}
+	
+	public void free(VkDevice device) {
+		input.free(device);
+		
+		if (resident) {
+			freeOutputBuffers(device);
+		} else {
+			MemoryTracker.memFree("compute evicted", vertexHostCopy);
+			MemoryTracker.memFree("compute evicted", indexHostCopy);
+		}
 	}
 }
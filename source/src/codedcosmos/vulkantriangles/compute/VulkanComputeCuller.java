@@ -0,0 +1,340 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.compute;
+
+import codedcosmos.vulkantriangles.Log;
+import codedcosmos.vulkantriangles.VkUtils;
+import codedcosmos.vulkantriangles.VulkanDevice;
+import codedcosmos.vulkantriangles.VulkanException;
+import codedcosmos.vulkantriangles.graphics.VulkanDepthPyramid;
+import codedcosmos.vulkantriangles.memory.MemoryUsage;
+import codedcosmos.vulkantriangles.memory.VulkanMapping;
+import codedcosmos.vulkantriangles.memory.VulkanMemory;
+import codedcosmos.vulkantriangles.memory.VulkanMemoryPool;
+import codedcosmos.vulkantriangles.memory.VulkanPooledBuffer;
+import codedcosmos.vulkantriangles.profiling.GpuPassStats;
+import codedcosmos.vulkantriangles.profiling.VulkanGpuProfiler;
+import org.joml.Matrix4f;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+// Culls the compute triangles against the frustum, and last frame's depth pyramid, on the gpu every frame before the render pass.
+// Survivors are packed into an index buffer and counted into one VkDrawIndexedIndirectCommand,
+// so drawing is a single vkCmdDrawIndexedIndirect however many triangles there are.
+public class VulkanComputeCuller implements VulkanPooledBuffer.Owner {
+	public static final int DRAW_COMMAND_SIZE = 5 * 4;
+	
+	// The command, then frustum and occlusion culled counts, padded
+	private static final int DRAW_BUFFER_SIZE = 8 * 4;
+	private static final int PUSH_CONSTANT_SIZE = 16 * 4 + 5 * 4;
+	private static final int LOCAL_SIZE = 64;
+	private static final int BINDINGS = 4;
+	
+	private VulkanComputeBuffer source;
+	private int triangleCount;
+	
+	private VulkanComputePipeline pipeline;
+	private VulkanMemoryPool memoryPool;
+	private VulkanDepthPyramid depthPyramid;
+	
+	// Outputs, rewritten every frame so moving them needs nothing but new descriptors
+	private VulkanPooledBuffer indexBuffer;
+	private VulkanPooledBuffer drawBuffer;
+	
+	// One set per frame in flight, rewritten when a buffer handle changes once that frame's fence has signalled
+	private long descriptorPool;
+	private long[] descriptorSets;
+	private long[] writtenHandles;
+	
+	// Each frame's counts are copied out and read once its fence has signalled
+	private long statsBuffer;
+	private long statsMemory;
+	private VulkanMapping statsMapping;
+	private boolean[] statsPending;
+	
+	// Stats
+	private long frames;
+	private long testedTriangles;
+	private long frustumCulled;
+	private long occlusionCulled;
+	
+	public VulkanComputeCuller(VulkanDevice device, VulkanComputeBuffer source, int triangleCount, int framesInFlight, VulkanDepthPyramid depthPyramid) throws VulkanException {
+		this.source = source;
+		this.triangleCount = triangleCount;
+		this.depthPyramid = depthPyramid;
+		
+		pipeline = new VulkanComputePipeline(device.get(), "shaders/cull.glsl", new int[] {VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER}, PUSH_CONSTANT_SIZE, new int[] {source.getVertexFormat().getId()});
+		
+		memoryPool = device.getMemoryPool();
+		indexBuffer = memoryPool.createBuffer(triangleCount * 3 * 4L, VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_INDEX_BUFFER_BIT, MemoryUsage.GPU_ONLY, this);
+		drawBuffer = memoryPool.createBuffer(DRAW_BUFFER_SIZE, VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT, MemoryUsage.GPU_ONLY, this);
+		
+		int ret;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			// ------------------
+			// Stats readback, one slice per frame in flight
+			VkBufferCreateInfo bufferCreateInfo = VkBufferCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
+					.size(DRAW_BUFFER_SIZE * framesInFlight)
+					.usage(VK_BUFFER_USAGE_TRANSFER_DST_BIT)
+					.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+			
+			LongBuffer pHandle = stack.mallocLong(1);
+			ret = vkCreateBuffer(device.get(), bufferCreateInfo, null, pHandle);
+			VkUtils.check(ret, "Failed to create cull stats buffer");
+			statsBuffer = pHandle.get(0);
+			
+			VkMemoryRequirements memoryRequirements = VkMemoryRequirements.callocStack(stack);
+			vkGetBufferMemoryRequirements(device.get(), statsBuffer, memoryRequirements);
+			
+			int memoryType = device.getMemoryPolicy().allocate(device.get(), memoryRequirements, MemoryUsage.READBACK, pHandle, "cull stats");
+			statsMemory = pHandle.get(0);
+			
+			ret = vkBindBufferMemory(device.get(), statsBuffer, statsMemory, 0);
+			VkUtils.check(ret, "Failed to bind cull stats memory");
+			
+			statsMapping = device.getMemoryPolicy().map(device.get(), statsMemory, memoryType, memoryRequirements.size());
+			statsPending = new boolean[framesInFlight];
+			
+			// ------------------
+			// Descriptor sets
+			VkDescriptorPoolSize.Buffer typeCounts = VkDescriptorPoolSize.callocStack(2, stack);
+			typeCounts.get(0)
+					.type(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+					.descriptorCount(3 * framesInFlight);
+			typeCounts.get(1)
+					.type(VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER)
+					.descriptorCount(framesInFlight);
+			
+			VkDescriptorPoolCreateInfo descriptorPoolInfo = VkDescriptorPoolCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_POOL_CREATE_INFO)
+					.pPoolSizes(typeCounts)
+					.maxSets(framesInFlight);
+			
+			LongBuffer pDescriptorPool = stack.mallocLong(1);
+			ret = vkCreateDescriptorPool(device.get(), descriptorPoolInfo, null, pDescriptorPool);
+			VkUtils.check(ret, "Failed to create cull descriptor pool");
+			descriptorPool = pDescriptorPool.get(0);
+			
+			LongBuffer pSetLayouts = stack.mallocLong(framesInFlight);
+			for (int i = 0; i < framesInFlight; i++) {
+				pSetLayouts.put(i, pipeline.getDescriptorSetLayout());
+			}
+			
+			VkDescriptorSetAllocateInfo allocateInfo = VkDescriptorSetAllocateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_ALLOCATE_INFO)
+					.descriptorPool(descriptorPool)
+					.pSetLayouts(pSetLayouts);
+			
+			LongBuffer pDescriptorSets = stack.mallocLong(framesInFlight);
+			ret = vkAllocateDescriptorSets(device.get(), allocateInfo, pDescriptorSets);
+			VkUtils.check(ret, "Failed to allocate cull descriptor sets");
+			
+			descriptorSets = new long[framesInFlight];
+			pDescriptorSets.get(descriptorSets);
+		}
+		
+		writtenHandles = new long[framesInFlight * BINDINGS];
+		
+		Log.print("Created gpu culling for " + triangleCount + " triangles");
+	}
+	
+	// Records the cull for frame idx, call outside the render pass once the frame's last use has finished
+	// and after the depth pyramid has recorded its build
+	public void record(VkCommandBuffer commandBuffer, int idx, float[] transform) throws VulkanException {
+		long descriptorSet = descriptorSets[idx];
+		updateDescriptorSet(commandBuffer.getDevice(), idx);
+		readStats(idx);
+		
+		boolean occlusion = depthPyramid.isBuilt();
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			// The last frame's draw has to be done reading before the counter is reset
+			VkMemoryBarrier.Buffer barrier = VkMemoryBarrier.callocStack(1, stack)
+					.sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER)
+					.srcAccessMask(0)
+					.dstAccessMask(0);
+			vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_DRAW_INDIRECT_BIT | VK_PIPELINE_STAGE_VERTEX_INPUT_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT | VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, 0, barrier, null, null);
+			
+			// No triangles, one instance, nothing culled
+			vkCmdUpdateBuffer(commandBuffer, drawBuffer.getBuffer(), 0, new int[] {0, 1, 0, 0, 0, 0, 0, 0});
+			
+			barrier
+					.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+					.dstAccessMask(VK_ACCESS_SHADER_READ_BIT | VK_ACCESS_SHADER_WRITE_BIT);
+			vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, 0, barrier, null, null);
+			
+			// Cull
+			vkCmdBindPipeline(commandBuffer, VK_PIPELINE_BIND_POINT_COMPUTE, pipeline.get());
+			vkCmdBindDescriptorSets(commandBuffer, VK_PIPELINE_BIND_POINT_COMPUTE, pipeline.getLayout(), 0, stack.longs(descriptorSet), null);
+			
+			// Decoding the source's positions goes in the transform
+			ByteBuffer pushConstants = stack.malloc(PUSH_CONSTANT_SIZE);
+			Matrix4f decode = source.getBounds().getDecode(new Matrix4f());
+			new Matrix4f().set(transform).mul(decode).get(pushConstants);
+			pushConstants
+					.putInt(16 * 4, triangleCount)
+					.putInt(16 * 4 + 4, occlusion ? 1 : 0)
+					.putInt(16 * 4 + 8, depthPyramid.getWidth())
+					.putInt(16 * 4 + 12, depthPyramid.getHeight())
+					.putInt(16 * 4 + 16, depthPyramid.getLevels());
+			vkCmdPushConstants(commandBuffer, pipeline.getLayout(), VK_SHADER_STAGE_COMPUTE_BIT, 0, pushConstants);
+			
+			vkCmdDispatch(commandBuffer, (triangleCount + LOCAL_SIZE - 1) / LOCAL_SIZE, 1, 1);
+			
+			// The draw reads the command and the packed indices, the stats are copied out
+			barrier
+					.srcAccessMask(VK_ACCESS_SHADER_WRITE_BIT)
+					.dstAccessMask(VK_ACCESS_INDIRECT_COMMAND_READ_BIT | VK_ACCESS_INDEX_READ_BIT | VK_ACCESS_TRANSFER_READ_BIT);
+			vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_PIPELINE_STAGE_DRAW_INDIRECT_BIT | VK_PIPELINE_STAGE_VERTEX_INPUT_BIT | VK_PIPELINE_STAGE_TRANSFER_BIT, 0, barrier, null, null);
+			
+			VkBufferCopy.Buffer region = VkBufferCopy.callocStack(1, stack)
+					.srcOffset(0)
+					.dstOffset(idx * DRAW_BUFFER_SIZE)
+					.size(DRAW_BUFFER_SIZE);
+			vkCmdCopyBuffer(commandBuffer, drawBuffer.getBuffer(), statsBuffer, region);
+			
+			barrier
+					.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+					.dstAccessMask(VK_ACCESS_HOST_READ_BIT);
+			vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_HOST_BIT, 0, barrier, null, null);
+		}
+		
+		statsPending[idx] = true;
+	}
+	
+	// The frame that last used this slot has finished
+	private void readStats(int idx) throws VulkanException {
+		if (!statsPending[idx]) return;
+		statsPending[idx] = false;
+		
+		statsMapping.invalidate(idx * DRAW_BUFFER_SIZE, DRAW_BUFFER_SIZE);
+		ByteBuffer stats = statsMapping.getBuffer(idx * DRAW_BUFFER_SIZE, DRAW_BUFFER_SIZE);
+		
+		frames++;
+		testedTriangles += triangleCount;
+		frustumCulled += stats.getInt(5 * 4);
+		occlusionCulled += stats.getInt(6 * 4);
+	}
+	
+	// Eviction, restores and the defragmenter all change handles, the frame's set catches up here
+	private void updateDescriptorSet(VkDevice device, int idx) {
+		long vertexHandle = source.getVertexBuffer();
+		long indexHandle = indexBuffer.getBuffer();
+		long drawHandle = drawBuffer.getBuffer();
+		long pyramidHandle = depthPyramid.getView();
+		
+		int base = idx * BINDINGS;
+		if (writtenHandles[base] == vertexHandle && writtenHandles[base + 1] == indexHandle && writtenHandles[base + 2] == drawHandle && writtenHandles[base + 3] == pyramidHandle) return;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			VkDescriptorBufferInfo.Buffer bufferInfos = VkDescriptorBufferInfo.callocStack(3, stack);
+			bufferInfos.get(0).buffer(vertexHandle).offset(0L).range(source.getVertexBufferRange());
+			bufferInfos.get(1).buffer(indexHandle).offset(0L).range(indexBuffer.getSize());
+			bufferInfos.get(2).buffer(drawHandle).offset(0L).range(DRAW_BUFFER_SIZE);
+			
+			VkDescriptorImageInfo.Buffer imageInfo = VkDescriptorImageInfo.callocStack(1, stack)
+					.sampler(depthPyramid.getSampler())
+					.imageView(pyramidHandle)
+					.imageLayout(VK_IMAGE_LAYOUT_GENERAL);
+			
+			VkWriteDescriptorSet.Buffer writes = VkWriteDescriptorSet.callocStack(BINDINGS, stack);
+			for (int i = 0; i < BINDINGS; i++) {
+				writes.get(i)
+						.sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
+						.dstSet(descriptorSets[idx])
+						.dstBinding(i)
+						.descriptorCount(1);
+				
+				if (i < 3) {
+					writes.get(i)
+							.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+							.pBufferInfo(VkDescriptorBufferInfo.create(bufferInfos.address(i), 1));
+				} else {
+					writes.get(i)
+							.descriptorType(VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER)
+							.pImageInfo(imageInfo);
+				}
+			}
+			
+			vkUpdateDescriptorSets(device, writes, null);
+		}
+		
+		writtenHandles[base] = vertexHandle;
+		writtenHandles[base + 1] = indexHandle;
+		writtenHandles[base + 2] = drawHandle;
+		writtenHandles[base + 3] = pyramidHandle;
+	}
+	
+	// A new pyramid after the swapchain is resized, each frame's set picks it up when next recorded
+	public void setDepthPyramid(VulkanDepthPyramid depthPyramid) {
+		this.depthPyramid = depthPyramid;
+	}
+	
+	public long getIndexBuffer() {
+		return indexBuffer.getBuffer();
+	}
+	
+	public long getDrawBuffer() {
+		return drawBuffer.getBuffer();
+	}
+	
+	public int getTriangleCount() {
+		return triangleCount;
+	}
+	
+	// Culled ratios, and an estimate of the draw time saved by occlusion from the profiler's timings
+	// The estimate assumes draw time scales with triangles drawn, compare against -Dvulkantriangles.hiz=false to measure it
+	public void logReport(VulkanGpuProfiler profiler) {
+		if (frames == 0) return;
+		
+		long drawn = testedTriangles - frustumCulled - occlusionCulled;
+		Log.print(String.format("Culling over %d frames: %.1f%% frustum culled, %.1f%% occlusion culled, %.1f%% drawn", frames,
+				100.0 * frustumCulled / testedTriangles, 100.0 * occlusionCulled / testedTriangles, 100.0 * drawn / testedTriangles));
+		
+		GpuPassStats draw = profiler.getPass("draw compute");
+		GpuPassStats build = profiler.getPass("depth pyramid");
+		if (draw == null || build == null || drawn == 0) return;
+		
+		double saved = draw.getP50() * occlusionCulled / drawn;
+		Log.print(String.format("Occlusion culling: estimated %.3fms draw time saved per frame, pyramid build p50 %.3fms", saved, build.getP50()));
+	}
+	
+	@Override
+	public boolean canMove() {
+		return true;
+	}
+	
+	@Override
+	public void moved(VulkanPooledBuffer buffer) {
+	}
+	
+	public void free(VkDevice device) {
+		statsMapping.unmap();
+		vkDestroyBuffer(device, statsBuffer, null);
+		VulkanMemory.free(device, statsMemory);
+		
+		vkDestroyDescriptorPool(device, descriptorPool, null);
+		memoryPool.destroyBuffer(indexBuffer);
+		memoryPool.destroyBuffer(drawBuffer);
+		pipeline.free(device);
+	}
+}
@@ -55,7 +55,7 @@ public class VulkanComputeDescriptorSet {
 			
 			LongBuffer pDescriptorSetLayout = stack.mallocLong(1).put(0, descriptorSetLayout);
 			
-			VkDescriptorSetAllocateInfo allocateInfo = VkDescriptorSetAllocateInfo.calloc()
+			VkDescriptorSetAllocateInfo allocateInfo = VkDescriptorSetAllocateInfo.callocStack(stack)
 					.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_ALLOCATE_INFO)
 					.descriptorPool(descriptorPool)
 					.pSetLayouts(pDescriptorSetLayout);
@@ -64,17 +64,23 @@ public class VulkanComputeDescriptorSet {
 			ret = vkAllocateDescriptorSets(device, allocateInfo, pDescriptorSet);
 			VkUtils.check(ret, "Failed to allocate descriptor set");
 			descriptorSet = pDescriptorSet.get(0);
-			
-			// ------------------
-			// Write Descriptor Sets
-			
+		}
+		
+		// Write now, and again whenever the defragmenter moves the buffer's outputs
+		// Only safe while no pending command buffer uses the set, compute only runs it at startup
+		write(device, buffer);
+		buffer.addMoveListener(() -> write(device, buffer));
+	}
+	
+	public void write(VkDevice device, VulkanComputeBuffer buffer) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
 			// Binding 0 Input
-			VkDescriptorBufferInfo.Buffer inputDescriptor = VkDescriptorBufferInfo.calloc(1)
+			VkDescriptorBufferInfo.Buffer inputDescriptor = VkDescriptorBufferInfo.callocStack(1, stack)
 					.buffer(buffer.getInputBuffer())
 					.range(buffer.getInputBufferRange())
 					.offset(0L);
 			
-			VkWriteDescriptorSet.Buffer inputWriteDescriptorSet = VkWriteDescriptorSet.calloc(1)
+			VkWriteDescriptorSet.Buffer inputWriteDescriptorSet = VkWriteDescriptorSet.callocStack(1, stack)
 					.sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
 					.dstSet(descriptorSet)
 					.descriptorCount(1)
@@ -85,12 +91,12 @@ public class VulkanComputeDescriptorSet {
 			vkUpdateDescriptorSets(device, inputWriteDescriptorSet, null);
 			
 			// Binding 1 Output vertices
-			VkDescriptorBufferInfo.Buffer vertexDescriptor = VkDescriptorBufferInfo.calloc(1)
+			VkDescriptorBufferInfo.Buffer vertexDescriptor = VkDescriptorBufferInfo.callocStack(1, stack)
 					.buffer(buffer.getVertexBuffer())
 					.range(buffer.getVertexBufferRange())
 					.offset(0L);
 			
-			VkWriteDescriptorSet.Buffer vertexWriteDescriptorSet = VkWriteDescriptorSet.calloc(1)
+			VkWriteDescriptorSet.Buffer vertexWriteDescriptorSet = VkWriteDescriptorSet.callocStack(1, stack)
 					.sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
 					.dstSet(descriptorSet)
 					.descriptorCount(1)
@@ -101,12 +107,12 @@ public class VulkanComputeDescriptorSet {
 			vkUpdateDescriptorSets(device, vertexWriteDescriptorSet, null);
 			
 			// Binding 2 Output indices
-			VkDescriptorBufferInfo.Buffer indexDescriptor = VkDescriptorBufferInfo.calloc(1)
+			VkDescriptorBufferInfo.Buffer indexDescriptor = VkDescriptorBufferInfo.callocStack(1, stack)
 					.buffer(buffer.getIndexBuffer())
 					.range(buffer.getIndexBufferRange())
 					.offset(0L);
 			
-			VkWriteDescriptorSet.Buffer indexWriteDescriptorSet = VkWriteDescriptorSet.calloc(1)
+			VkWriteDescriptorSet.Buffer indexWriteDescriptorSet = VkWriteDescriptorSet.callocStack(1, stack)
 					.sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
 					.dstSet(descriptorSet)
 					.descriptorCount(1)
@@ -0,0 +1,218 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.compute;
+
+import codedcosmos.vulkantriangles.Log;
+import codedcosmos.vulkantriangles.VkUtils;
+import codedcosmos.vulkantriangles.VulkanDevice;
+import codedcosmos.vulkantriangles.VulkanException;
+import codedcosmos.vulkantriangles.graphics.VulkanReusableCommandBuffer;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkQueue;
+import org.lwjgl.vulkan.VkSubmitInfo;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+public class VulkanComputeDispatchPool {
+	
+	private VkDevice device;
+	
+	// One worker per compute queue, each owning its queue, command pool and fence
+	private Worker[] workers;
+	
+	// Jobs waiting in any deque, workers sleep on this
+	private Semaphore pending;
+	private AtomicInteger nextWorker;
+	
+	private volatile boolean running;
+	
+	public VulkanComputeDispatchPool(VulkanDevice vulkanDevice) throws VulkanException {
+		this.device = vulkanDevice.get();
+		
+		VkQueue[] queues = vulkanDevice.getComputeQueues();
+		
+		pending = new Semaphore(0);
+		nextWorker = new AtomicInteger(0);
+		running = true;
+		
+		workers = new Worker[queues.length];
+		for (int i = 0; i < queues.length; i++) {
+			workers[i] = new Worker(i, queues[i], vulkanDevice);
+		}
+		for (Worker worker : workers) {
+			worker.thread.start();
+		}
+		
+		Log.print("Created compute dispatch pool over " + queues.length + " queue" + (queues.length == 1 ? "" : "s"));
+	}
+	
+	public CompletableFuture<Void> submit(VulkanComputeJob job) {
+		Task task = new Task(job);
+		
+		// Spread jobs round robin, idle workers steal the rest
+		int idx = Math.floorMod(nextWorker.getAndIncrement(), workers.length);
+		workers[idx].deque.addFirst(task);
+		pending.release();
+		
+		return task.future;
+	}
+	
+	private Task take(int owner) {
+		// Own jobs are taken newest first, stolen jobs oldest first
+		Task task = workers[owner].deque.pollFirst();
+		if (task != null) {
+			return task;
+		}
+		
+		for (int i = 1; i < workers.length; i++) {
+			Worker victim = workers[(owner + i) % workers.length];
+			task = victim.deque.pollLast();
+			if (task != null) {
+				workers[owner].steals++;
+				return task;
+			}
+		}
+		return null;
+	}
+	
+	public int getQueueCount() {
+		return workers.length;
+	}
+	
+	public void free() {
+		running = false;
+		
+		// Wake every worker so it can see the pool stopping
+		pending.release(workers.length);
+		for (Worker worker : workers) {
+			try {
+				worker.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		for (Worker worker : workers) {
+			Log.print("Compute queue " + worker.idx + " ran " + worker.executed + " jobs, " + worker.steals + " stolen");
+			worker.commandBuffer.free(device);
+			worker.sync.free(device);
+		}
+	}
+	
+	private static class Task {
+		private VulkanComputeJob job;
+		private CompletableFuture<Void> future;
+		
+		private Task(VulkanComputeJob job) {
+			this.job = job;
+			this.future = new CompletableFuture<Void>();
+		}
+	}
+	
+	private class Worker implements Runnable {
+		private int idx;
+		private VkQueue queue;
+		
+		// Shared with the upload lane and clock calibration when they use this queue
+		private Object queueLock;
+		
+		private ConcurrentLinkedDeque<Task> deque;
+		private Thread thread;
+		
+		// Per queue command pool, so recording never needs to be synchronised
+		private VulkanReusableCommandBuffer commandBuffer;
+		private VulkanComputeSync sync;
+		
+		// Stats, only written by the worker
+		private volatile long executed;
+		private volatile long steals;
+		
+		private Worker(int idx, VkQueue queue, VulkanDevice vulkanDevice) throws VulkanException {
+			this.idx = idx;
+			this.queue = queue;
+			this.queueLock = vulkanDevice.getQueueLock(queue);
+			
+			deque = new ConcurrentLinkedDeque<Task>();
+			commandBuffer = new VulkanReusableCommandBuffer(vulkanDevice.get(), vulkanDevice.getComputeQueueFamily(), 1);
+			sync = new VulkanComputeSync(vulkanDevice.get());
+			
+			thread = new Thread(this, "Compute Queue " + idx);
+			thread.setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					pending.acquire();
+				} catch (InterruptedException e) {
+					return;
+				}
+				
+				if (!running) {
+					return;
+				}
+				
+				// A permit means a job is queued somewhere, but another worker may be mid steal
+				Task task = take(idx);
+				while (task == null) {
+					Thread.onSpinWait();
+					task = take(idx);
+				}
+				
+				try {
+					execute(task.job);
+					executed++;
+					task.future.complete(null);
+				} catch (VulkanException | RuntimeException e) {
+					task.future.completeExceptionally(e);
+				}
+			}
+		}
+		
+		private void execute(VulkanComputeJob job) throws VulkanException {
+			try (MemoryStack stack = MemoryStack.stackPush()) {
+				// Record
+				commandBuffer.reset(0);
+				commandBuffer.begin(0);
+				job.record(commandBuffer.get(0));
+				commandBuffer.end(0);
+				
+				// Submit
+				PointerBuffer pCommandbuffer = stack.pointers(commandBuffer.get(0));
+				
+				VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack)
+						.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+						.pCommandBuffers(pCommandbuffer);
+				
+				int ret;
+				synchronized (queueLock) {
+					ret = vkQueueSubmit(queue, submitInfo, sync.get());
+				}
+				VkUtils.check(ret, "Failed to submit compute job on queue " + idx);
+				
+				// Wait
+				sync.waitForFence(device);
+			}
+		}
+	}
+}
@@ -0,0 +1,23 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.compute;
+
+import codedcosmos.vulkantriangles.VulkanException;
+import org.lwjgl.vulkan.VkCommandBuffer;
+
+public interface VulkanComputeJob {
+	// Records the job between begin and end of a command buffer owned by one queue
+	public void record(VkCommandBuffer commandBuffer) throws VulkanException;
+}
@@ -17,11 +17,15 @@ package codedcosmos.vulkantriangles.compute;
 import codedcosmos.vulkantriangles.Log;
 import codedcosmos.vulkantriangles.VkUtils;
 import codedcosmos.vulkantriangles.VulkanException;
+import codedcosmos.vulkantriangles.graphics.VertexFormat;
 import codedcosmos.vulkantriangles.graphics.VulkanShader;
+import codedcosmos.vulkantriangles.profiling.PipelineCreateEvent;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.*;
 
+import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
+import java.util.Arrays;
 
 import static org.lwjgl.vulkan.VK10.*;
 
@@ -33,12 +37,28 @@ public class VulkanComputePipeline {
 	
 	private VulkanShader computeShader;
 	
-	public VulkanComputePipeline(VkDevice device) throws VulkanException {
+	// Triangles from points, written in the output format
+	public VulkanComputePipeline(VkDevice device, VertexFormat outputFormat) throws VulkanException {
+		this(device, "shaders/compute.glsl", storageBufferTypes(3), VulkanComputeBuffer.PUSH_CONSTANT_SIZE, new int[] {outputFormat.getId()});
+	}
+	
+	// Bindings are storage buffers numbered from zero, push constants are all given to the compute stage
+	public VulkanComputePipeline(VkDevice device, String shader, int storageBuffers, int pushConstantSize) throws VulkanException {
+		this(device, shader, storageBufferTypes(storageBuffers), pushConstantSize);
+	}
+	
+	// One descriptor type per binding, numbered from zero
+	public VulkanComputePipeline(VkDevice device, String shader, int[] descriptorTypes, int pushConstantSize) throws VulkanException {
+		this(device, shader, descriptorTypes, pushConstantSize, new int[0]);
+	}
+	
+	// constants are 32 bit specialization constants, constant_id numbered from zero
+	public VulkanComputePipeline(VkDevice device, String shader, int[] descriptorTypes, int pushConstantSize, int[] constants) throws VulkanException {
 		int ret;
 		
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			// Shaders
-			computeShader = new VulkanShader("shaders/compute.glsl", device, VK_SHADER_STAGE_COMPUTE_BIT);
+			computeShader = new VulkanShader(shader, device, VK_SHADER_STAGE_COMPUTE_BIT);
 			
 			VkPipelineShaderStageCreateInfo shaderStage = VkPipelineShaderStageCreateInfo.callocStack(stack)
 					.sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO)
@@ -47,26 +67,35 @@ public class VulkanComputePipeline {
 					.module(computeShader.getShaderModule())
 					.pName(stack.UTF8Safe("main"));
 			
-			// Layout
-			VkDescriptorSetLayoutBinding.Buffer layoutBindings = VkDescriptorSetLayoutBinding.callocStack(3, stack);
-			
-			layoutBindings.get(0)
-					.binding(0)
-					.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
-					.descriptorCount(1)
-					.stageFlags(VK_SHADER_STAGE_COMPUTE_BIT);
+			// Specialization
+			if (constants.length > 0) {
+				VkSpecializationMapEntry.Buffer mapEntries = VkSpecializationMapEntry.callocStack(constants.length, stack);
+				for (int i = 0; i < constants.length; i++) {
+					mapEntries.get(i)
+							.constantID(i)
+							.offset(i * 4)
+							.size(4);
+				}
+				
+				ByteBuffer data = stack.malloc(constants.length * 4);
+				data.asIntBuffer().put(constants);
+				
+				VkSpecializationInfo specializationInfo = VkSpecializationInfo.callocStack(stack)
+						.pMapEntries(mapEntries)
+						.pData(data);
+				shaderStage.pSpecializationInfo(specializationInfo);
+			}
 			
-			layoutBindings.get(1)
-					.binding(1)
-					.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
-					.descriptorCount(1)
-					.stageFlags(VK_SHADER_STAGE_COMPUTE_BIT);
+			// Layout
+			VkDescriptorSetLayoutBinding.Buffer layoutBindings = VkDescriptorSetLayoutBinding.callocStack(descriptorTypes.length, stack);
 			
-			layoutBindings.get(2)
-					.binding(2)
-					.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
-					.descriptorCount(1)
-					.stageFlags(VK_SHADER_STAGE_COMPUTE_BIT);
+			for (int i = 0; i < descriptorTypes.length; i++) {
+				layoutBindings.get(i)
+						.binding(i)
+						.descriptorType(descriptorTypes[i])
+						.descriptorCount(1)
+						.stageFlags(VK_SHADER_STAGE_COMPUTE_BIT);
+			}
 			
 			VkDescriptorSetLayoutCreateInfo descriptorLayout = VkDescriptorSetLayoutCreateInfo.callocStack(stack)
 					.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_LAYOUT_CREATE_INFO)
@@ -77,9 +106,16 @@ public class VulkanComputePipeline {
 			VkUtils.check(ret, "Failed to create descriptor set layout for compute pipeline");
 			descriptorSetLayout = pDescriptorSetLayout.get(0);
 			
+			// Push constants, the first point of the dispatch for compute.glsl
+			VkPushConstantRange.Buffer pushConstantRanges = VkPushConstantRange.callocStack(1, stack)
+					.stageFlags(VK_SHADER_STAGE_COMPUTE_BIT)
+					.offset(0)
+					.size(pushConstantSize);
+			
 			VkPipelineLayoutCreateInfo pipelineLayoutCreateInfo = VkPipelineLayoutCreateInfo.callocStack(stack)
 					.sType(VK_STRUCTURE_TYPE_PIPELINE_LAYOUT_CREATE_INFO)
-					.pSetLayouts(pDescriptorSetLayout);
+					.pSetLayouts(pDescriptorSetLayout)
+					.pPushConstantRanges(pushConstantRanges);
 			
 			LongBuffer pPipelineLayout = stack.mallocLong(1);
 			ret = vkCreatePipelineLayout(device, pipelineLayoutCreateInfo, null, pPipelineLayout);
@@ -95,14 +131,27 @@ public class VulkanComputePipeline {
 			
 			// Create compute pipeline
 			LongBuffer pPipeline = stack.mallocLong(1);
+			PipelineCreateEvent event = new PipelineCreateEvent();
+			event.begin();
 			ret = vkCreateComputePipelines(device, VK_NULL_HANDLE, pipelineCreateInfo, null, pPipeline);
+			if (event.shouldCommit()) {
+				event.kind = "compute";
+				event.result = VkUtils.formatRet(ret);
+				event.commit();
+			}
 			VkUtils.check(ret, "Failed to create vulkan compute mesh pipeline");
 			pipeline = pPipeline.get(0);
 			
-			Log.print("Created vulkan compute pipeline");
+			Log.print("Created vulkan compute pipeline for " + shader);
 		}
 	}
 	
+	private static int[] storageBufferTypes(int count) {
+		int[] types = new int[count];
+		Arrays.fill(types, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER);
+		return types;
+	}
+	
 	public long get() {
 		return pipeline;
 	}
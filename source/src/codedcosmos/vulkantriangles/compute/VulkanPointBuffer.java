@@ -0,0 +1,141 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.compute;
+
+import codedcosmos.vulkantriangles.VkUtils;
+import codedcosmos.vulkantriangles.VulkanDevice;
+import codedcosmos.vulkantriangles.VulkanException;
+import codedcosmos.vulkantriangles.memory.MemoryTracker;
+import codedcosmos.vulkantriangles.memory.MemoryUsage;
+import codedcosmos.vulkantriangles.memory.VulkanMapping;
+import codedcosmos.vulkantriangles.memory.VulkanMemory;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkBufferCreateInfo;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkMemoryRequirements;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+import static org.lwjgl.system.MemoryUtil.memAddress;
+import static org.lwjgl.system.MemoryUtil.memCopy;
+import static org.lwjgl.vulkan.VK10.*;
+
+// Tightly packed xyz points in host visible memory, read by compute, pulled by vertex shaders or bound per instance.
+// Styles follow the points, an rgb colour and a scale per point, or one style shared by all of them
+public class VulkanPointBuffer {
+	public static final int POINT_SIZE = 3 * 4;
+	public static final int STYLE_SIZE = 4 * 4;
+	
+	private static final float[] DEFAULT_STYLE = {1f, 1f, 1f, 1f};
+	
+	private int pointCount;
+	private boolean styled;
+	private long styleOffset;
+	private long styleSize;
+	
+	private long buffer;
+	private long memory;
+	
+	public VulkanPointBuffer(VulkanDevice device, float[] points) throws VulkanException {
+		this(device, points, null);
+	}
+	
+	// styles holds r, g, b and scale per point, or is null for white points at their template's size
+	public VulkanPointBuffer(VulkanDevice device, float[] points, float[] styles) throws VulkanException {
+		int ret;
+		pointCount = points.length / 3;
+		styled = styles != null;
+		if (styled && styles.length != pointCount * 4) {
+			throw new VulkanException("Expected 4 style floats per point, got " + styles.length + " for " + pointCount + " points");
+		}
+		if (!styled) {
+			styles = DEFAULT_STYLE;
+		}
+		
+		// Styles start aligned to their size, after the points
+		styleOffset = (getSize() + STYLE_SIZE - 1) / STYLE_SIZE * STYLE_SIZE;
+		styleSize = styles.length * 4L;
+		
+		// Staged on the heap, millions of points don't fit the stack
+		ByteBuffer data = MemoryTracker.memAlloc("points", (int) (styleOffset + styleSize));
+		data.asFloatBuffer().put(points);
+		data.position((int) styleOffset);
+		data.asFloatBuffer().put(styles);
+		data.position(0);
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			VkBufferCreateInfo bufferCreateInfo = VkBufferCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
+					.size(data.remaining())
+					.usage(VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_VERTEX_BUFFER_BIT)
+					.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+			
+			LongBuffer pBuffer = stack.mallocLong(1);
+			ret = vkCreateBuffer(device.get(), bufferCreateInfo, null, pBuffer);
+			VkUtils.check(ret, "Failed to create point buffer");
+			buffer = pBuffer.get(0);
+			
+			VkMemoryRequirements memoryRequirements = VkMemoryRequirements.callocStack(stack);
+			vkGetBufferMemoryRequirements(device.get(), buffer, memoryRequirements);
+			
+			// Read by shaders straight from host visible memory
+			LongBuffer pMemory = stack.mallocLong(1);
+			int memoryType = device.getMemoryPolicy().allocate(device.get(), memoryRequirements, MemoryUsage.DYNAMIC, pMemory, "points");
+			memory = pMemory.get(0);
+			
+			// Map and copy
+			VulkanMapping mapping = device.getMemoryPolicy().map(device.get(), memory, memoryType, memoryRequirements.size());
+			memCopy(memAddress(data), mapping.getAddress(), data.remaining());
+			mapping.flush(0, data.remaining());
+			mapping.unmap();
+			
+			ret = vkBindBufferMemory(device.get(), buffer, memory, 0);
+			VkUtils.check(ret, "Failed to bind point memory");
+		} finally {
+			MemoryTracker.memFree("points", data);
+		}
+	}
+	
+	public long getBuffer() {
+		return buffer;
+	}
+	
+	public int getPointCount() {
+		return pointCount;
+	}
+	
+	// Bytes of points, the styles come after
+	public long getSize() {
+		return (long) pointCount * POINT_SIZE;
+	}
+	
+	public boolean isStyled() {
+		return styled;
+	}
+	
+	public long getStyleOffset() {
+		return styleOffset;
+	}
+	
+	public long getStyleSize() {
+		return styleSize;
+	}
+	
+	public void free(VkDevice device) {
+		vkDestroyBuffer(device, buffer, null);
+		VulkanMemory.free(device, memory);
+	}
+}
@@ -15,6 +15,7 @@
 package codedcosmos.vulkantriangles.graphics;
 
 import codedcosmos.vulkantriangles.*;
+import codedcosmos.vulkantriangles.memory.MemoryTracker;
 import org.lwjgl.glfw.GLFW;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
@@ -75,8 +76,8 @@ public class GameWindow {
 		}
 		
 		// Allocate buffers
-		widthBuffer = MemoryUtil.memAllocInt(1);
-		heightBuffer = MemoryUtil.memAllocInt(1);
+		widthBuffer = MemoryTracker.memAllocInt("window", 1);
+		heightBuffer = MemoryTracker.memAllocInt("window", 1);
 		
 		// Complete
 		Log.print("Created Game Window");
@@ -108,8 +109,8 @@ public class GameWindow {
 	
 	// Free
 	public void free(VkInstance instance) {
-		MemoryUtil.memFree(widthBuffer);
-		MemoryUtil.memFree(heightBuffer);
+		MemoryTracker.memFree("window", widthBuffer);
+		MemoryTracker.memFree("window", heightBuffer);
 		
 		vkDestroySurfaceKHR(instance, surface, null);
 		GLFW.glfwDestroyWindow(window);
@@ -0,0 +1,48 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.graphics;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+// 16 bit indices whenever every vertex fits, halving index memory and fetch for most meshes
+public final class IndexFormat {
+	public static final int MAX_SHORT_VERTICES = 65535;
+	
+	private IndexFormat() {
+	}
+	
+	public static int getIndexType(int vertexCount) {
+		return vertexCount <= MAX_SHORT_VERTICES ? VK_INDEX_TYPE_UINT16 : VK_INDEX_TYPE_UINT32;
+	}
+	
+	public static int getIndexSize(int indexType) {
+		return indexType == VK_INDEX_TYPE_UINT16 ? 2 : 4;
+	}
+	
+	// Writes indices at dest's position
+	public static void encode(int[] indices, int indexType, ByteBuffer dest) {
+		if (indexType == VK_INDEX_TYPE_UINT16) {
+			for (int index : indices) {
+				dest.putShort((short) index);
+			}
+		} else {
+			for (int index : indices) {
+				dest.putInt(index);
+			}
+		}
+	}
+}
@@ -17,12 +17,31 @@ package codedcosmos.vulkantriangles.graphics;
 import codedcosmos.vulkantriangles.ResourceUtils;
 import codedcosmos.vulkantriangles.VulkanDevice;
 import codedcosmos.vulkantriangles.VulkanException;
+import codedcosmos.vulkantriangles.compute.VulkanComputeCuller;
+import codedcosmos.vulkantriangles.compute.VulkanPointBuffer;
+import codedcosmos.vulkantriangles.memory.MemoryTracker;
+import codedcosmos.vulkantriangles.memory.VulkanUploadLane;
+import codedcosmos.vulkantriangles.mesh.MeshData;
+import codedcosmos.vulkantriangles.mesh.MeshImporter;
+import codedcosmos.vulkantriangles.scene.Frustum;
 import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.*;
 
+import java.util.EnumMap;
+
 import static org.lwjgl.vulkan.VK10.*;
 
 public class Renderer {
+	// Uniform blocks, the frame's camera and each draw's model matrix with the scale and offset decoding its positions
+	public static final int FRAME_BLOCK_SIZE = 2 * 4*4*4;
+	public static final int DRAW_BLOCK_SIZE = 4*4*4 + 2 * 4*4;
+	
+	// Bytes of uniform blocks per frame in flight
+	public static final int UNIFORM_RING_SIZE = Integer.getInteger("vulkantriangles.uniform.ring", 64 * 1024);
+	
+	private static final Matrix4fc IDENTITY = new Matrix4f();
 	
 	private VkRenderPassBeginInfo renderPassBeginInfo;
 	
@@ -30,12 +49,38 @@ public class Renderer {
 	private VkViewport.Buffer viewport;
 	private VkRect2D.Buffer scissor;
 	
-	private VulkanMeshPipeline meshPipeline;
+	// A mesh pipeline per vertex format
+	private EnumMap<VertexFormat, VulkanMeshPipeline> meshPipelines = new EnumMap<VertexFormat, VulkanMeshPipeline>(VertexFormat.class);
+	private VulkanMeshPipeline boundPipeline;
 	private VulkanSimpleModel model;
 	
-	public Renderer(VulkanDevice device, long renderPass) throws VulkanException {
+	// Shared by streamed models, null when models are host visible
+	private VulkanGeometryArena geometryArena;
+	
+	// Buffers bound since bind, models in the arena share them and skip rebinding
+	private long boundVertexBuffer;
+	private long boundIndexBuffer;
+	private int boundIndexType;
+	
+	// Draws outside the scene are placed by their draw block, with one identity instance
+	private VulkanInstanceBuffer identityInstances;
+	private VulkanInstanceBuffer boundInstances;
+	private long boundInstanceOffset;
+	
+	// Per frame uniform blocks, the camera's block is found at bind and written by latchCamera
+	private VulkanUniformRing uniformRing;
+	private int frameBlock;
+	private VulkanRenderTarget frameTarget;
+	private Matrix4f view = new Matrix4f();
+	private Matrix4f projection = new Matrix4f();
+	
+	public Renderer(VulkanDevice device, long renderPass, int framesInFlight) throws VulkanException {
+		this(device, renderPass, framesInFlight, null);
+	}
+	
+	public Renderer(VulkanDevice device, long renderPass, int framesInFlight, VulkanUploadLane uploadLane) throws VulkanException {
 		// Clear Values
-		clearValues = VkClearValue.calloc(2);
+		clearValues = MemoryTracker.track("renderer", VkClearValue.calloc(2));
 		clearValues.get(0).color()
 				.float32(0, 0f)
 				.float32(1, 0.23f)
@@ -48,84 +93,275 @@ public class Renderer {
 				.stencil(0);
 		
 		// Render Pass info
-		renderPassBeginInfo = VkRenderPassBeginInfo.calloc()
+		renderPassBeginInfo = MemoryTracker.track("renderer", VkRenderPassBeginInfo.calloc())
 				.sType(VK_STRUCTURE_TYPE_RENDER_PASS_BEGIN_INFO);
 		
 		// Viewport
-		viewport = VkViewport.calloc(1)
+		viewport = MemoryTracker.track("renderer", VkViewport.calloc(1))
 				.minDepth(0f)
 				.maxDepth(1f);
 		
 		// Scissor
-		scissor = VkRect2D.calloc(1);
+		scissor = MemoryTracker.track("renderer", VkRect2D.calloc(1));
 		
-		// Vulkan
-		meshPipeline = new VulkanMeshPipeline(device.get(), renderPass);
-		model = new VulkanSimpleModel(device, ResourceUtils.getCubeVertices(), ResourceUtils.getCubeIndices());
+		// Vulkan, every pipeline's set 0 is defined the same so the ring's set suits them all
+		for (VertexFormat format : VertexFormat.values()) {
+			meshPipelines.put(format, new VulkanMeshPipeline(device.get(), renderPass, format));
+		}
+		identityInstances = new VulkanInstanceBuffer(device, 1, 1);
+		identityInstances.set(0, IDENTITY);
+		uniformRing = new VulkanUniformRing(device, getMeshPipeline(VertexFormat.DEFAULT).getDescriptorSetLayout(), new int[] {FRAME_BLOCK_SIZE, DRAW_BLOCK_SIZE}, UNIFORM_RING_SIZE, framesInFlight);
+		MeshData mesh = getTemplateMesh();
+		if (uploadLane != null) {
+			geometryArena = new VulkanGeometryArena(device);
+			model = new VulkanSimpleModel(geometryArena, uploadLane, device.getGraphicsQueueFamily(), mesh.getPositions(), mesh.getIndices());
+		} else {
+			model = new VulkanSimpleModel(device, mesh.getPositions(), mesh.getIndices());
+		}
+	}
+	
+	// The cube, or a mesh imported from -Dvulkantriangles.mesh scaled into the cube so the scene's bounds still hold
+	private static MeshData getTemplateMesh() throws VulkanException {
+		String path = System.getProperty("vulkantriangles.mesh");
+		if (path == null) {
+			return new MeshData(ResourceUtils.getCubeVertices(), ResourceUtils.getCubeIndices());
+		}
+		return MeshImporter.loadOptimised(path).fitTo(1f);
 	}
 	
-	public void bind(VkCommandBuffer commandBuffer, VulkanModel model, VulkanSwapchain swapchain, long renderPass, long frameBuffer) {
+	public void bind(VkCommandBuffer commandBuffer, VulkanModel model, VulkanRenderTarget target, long renderPass, long frameBuffer, int slot) {
 		// Render pass
 		renderPassBeginInfo
 				.renderPass(renderPass)
 				.pClearValues(clearValues)
 				.framebuffer(frameBuffer)
-				.renderArea(a -> a.extent().set(swapchain.getWidth(), swapchain.getHeight()));
+				.renderArea(a -> a.extent().set(target.getWidth(), target.getHeight()));
 		
 		vkCmdBeginRenderPass(commandBuffer, renderPassBeginInfo, VK_SUBPASS_CONTENTS_INLINE);
 		
 		// Viewport state
 		viewport
-				.width(swapchain.getWidth())
-				.height(swapchain.getHeight());
+				.width(target.getWidth())
+				.height(target.getHeight());
 		
 		vkCmdSetViewport(commandBuffer, 0, viewport);
 		
 		// Scissor state
-		scissor.extent().set(swapchain.getWidth(), swapchain.getHeight());
+		scissor.extent().set(target.getWidth(), target.getHeight());
 		scissor.offset().set(0, 0);
 		vkCmdSetScissor(commandBuffer, 0, scissor);
 		
-		// Bind
-		vkCmdBindPipeline(commandBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, meshPipeline.get());
+		// Bound by the first draw
+		boundPipeline = null;
+		boundVertexBuffer = VK_NULL_HANDLE;
+		boundIndexBuffer = VK_NULL_HANDLE;
+		boundInstances = null;
+		
+		// This frame's blocks, the camera is written now and again by latchCamera
+		uniformRing.begin(slot);
+		frameBlock = uniformRing.allocate(FRAME_BLOCK_SIZE);
+		frameTarget = target;
+		writeCamera();
+	}
+	
+	// Rewrites the camera block with the current view and flushes the frame's blocks, call right before submit
+	public void latchCamera() throws VulkanException {
+		writeCamera();
+		uniformRing.flush();
+	}
+	
+	private void writeCamera() {
+		float aspectRatio = (float)frameTarget.getWidth() / (float)frameTarget.getHeight();
+		uniformRing.put(frameBlock, getProjection(aspectRatio, projection));
+		uniformRing.put(frameBlock + 4*4*4, view);
+	}
+	
+	// A new draw block holding model and how to decode positions inside bounds, bound with the frame's camera block
+	private void bindDraw(VkCommandBuffer commandBuffer, Matrix4fc model, VertexBounds bounds) {
+		int drawBlock = uniformRing.allocate(DRAW_BLOCK_SIZE);
+		uniformRing.put(drawBlock, model);
+		uniformRing.put(drawBlock + 4*4*4, bounds.getExtentX(), bounds.getExtentY(), bounds.getExtentZ(), 0f);
+		uniformRing.put(drawBlock + 4*4*4 + 4*4, bounds.getCenterX(), bounds.getCenterY(), bounds.getCenterZ(), 0f);
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			vkCmdBindDescriptorSets(commandBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, boundPipeline.getLayout(), 0,
+					stack.longs(uniformRing.getDescriptorSet()), stack.ints(frameBlock, drawBlock));
+		}
+	}
+	
+	private VulkanMeshPipeline getMeshPipeline(VertexFormat format) {
+		return meshPipelines.get(format);
+	}
+	
+	// Pipelines share set 0, so switching keeps the frame's uniform blocks compatible
+	private void usePipeline(VkCommandBuffer commandBuffer, VulkanMeshPipeline pipeline) {
+		if (pipeline != boundPipeline) {
+			vkCmdBindPipeline(commandBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, pipeline.get());
+			boundPipeline = pipeline;
+		}
+	}
+	
+	// Used by every draw after this, and by latchCamera until submit
+	public void setView(Matrix4fc view) {
+		this.view.set(view);
 	}
 	
 	public void bindModel(VkCommandBuffer commandBuffer, VulkanModel model) {
-		vkCmdBindVertexBuffers(commandBuffer, 0, model.getVertexPointer(), model.getVertexOffsets());
-		vkCmdBindIndexBuffer(commandBuffer, model.getIndexBuffer(), 0, VK_INDEX_TYPE_UINT32);
+		bindVertices(commandBuffer, model);
+		bindIndices(commandBuffer, model.getIndexBuffer(), model.getIndexType());
+	}
+	
+	private void bindVertices(VkCommandBuffer commandBuffer, VulkanModel model) {
+		long vertexBuffer = model.getVertexPointer().get(0);
+		if (vertexBuffer != boundVertexBuffer) {
+			vkCmdBindVertexBuffers(commandBuffer, 0, model.getVertexPointer(), model.getVertexOffsets());
+			boundVertexBuffer = vertexBuffer;
+		}
+	}
+	
+	// The arena's buffer holds both index types, so the type is part of what's bound
+	private void bindIndices(VkCommandBuffer commandBuffer, long indexBuffer, int indexType) {
+		if (indexBuffer != boundIndexBuffer || indexType != boundIndexType) {
+			vkCmdBindIndexBuffer(commandBuffer, indexBuffer, 0, indexType);
+			boundIndexBuffer = indexBuffer;
+			boundIndexType = indexType;
+		}
+	}
+	
+	private void bindInstances(VkCommandBuffer commandBuffer, VulkanInstanceBuffer instances, int slot) {
+		long offset = instances.getOffset(slot);
+		if (instances != boundInstances || offset != boundInstanceOffset) {
+			try (MemoryStack stack = MemoryStack.stackPush()) {
+				vkCmdBindVertexBuffers(commandBuffer, 1, instances.getBufferPointer(), stack.longs(offset));
+			}
+			boundInstances = instances;
+			boundInstanceOffset = offset;
+		}
 	}
 	
 	public void free(VkDevice device) {
-		clearValues.free();
-		renderPassBeginInfo.free();
-		viewport.free();
-		scissor.free();
+		MemoryTracker.free("renderer", clearValues);
+		MemoryTracker.free("renderer", renderPassBeginInfo);
+		MemoryTracker.free("renderer", viewport);
+		MemoryTracker.free("renderer", scissor);
 		
-		meshPipeline.free(device);
+		uniformRing.free(device);
+		for (VulkanMeshPipeline meshPipeline : meshPipelines.values()) {
+			meshPipeline.free(device);
+		}
+		identityInstances.free(device);
 		model.free(device);
+		if (geometryArena != null) {
+			geometryArena.free();
+		}
 	}
 	
-	public VulkanModel getCubeModel() {
+	public VulkanSimpleModel getCubeModel() {
 		return model;
 	}
 	
-	public void drawRect(VkCommandBuffer commandBuffer, VulkanModel model, VulkanSwapchain swapchain, float x, float y, float z) {
-		// Push constants
-		Matrix4f projection_mat = new Matrix4f().identity();
-		float aspectRatio = (float)swapchain.getWidth() / (float)swapchain.getHeight();
-		projection_mat.setPerspective((float) Math.toRadians(70), aspectRatio, 0.01f, 1000.0f);
+	public VulkanGeometryArena getGeometryArena() {
+		return geometryArena;
+	}
+	
+	public void drawRect(VkCommandBuffer commandBuffer, VulkanModel model, float x, float y, float z) {
+		usePipeline(commandBuffer, getMeshPipeline(model.getVertexFormat()));
+		bindDraw(commandBuffer, new Matrix4f().translation(x, y, z), model.getBounds());
+		bindInstances(commandBuffer, identityInstances, 0);
+		
+		// Draw
+		vkCmdDrawIndexed(commandBuffer, model.getLength(), 1, model.getFirstIndex(), model.getBaseVertex(), 0);
+	}
+	
+	// Draws the visible scene objects with their matrices from slot, instance index is the object, returns the draw count
+	public int drawScene(VkCommandBuffer commandBuffer, VulkanModel model, VulkanInstanceBuffer instances, int slot, int[] visible, int visibleCount) {
+		// Instance matrices already have the scene's transform
+		usePipeline(commandBuffer, getMeshPipeline(model.getVertexFormat()));
+		bindDraw(commandBuffer, IDENTITY, model.getBounds());
+		
+		bindModel(commandBuffer, model);
+		bindInstances(commandBuffer, instances, slot);
+		
+		// Runs of consecutive objects are one instanced draw
+		int draws = 0;
+		for (int i = 0; i < visibleCount; ) {
+			int first = visible[i];
+			int run = 1;
+			while (i + run < visibleCount && visible[i + run] == first + run) {
+				run++;
+			}
+			
+			vkCmdDrawIndexed(commandBuffer, model.getLength(), run, model.getFirstIndex(), model.getBaseVertex(), first);
+			i += run;
+			draws++;
+		}
+		return draws;
+	}
+	
+	// Draws the model's vertices with the indices and command the culler wrote this frame
+	public void drawCulled(VkCommandBuffer commandBuffer, VulkanModel model, VulkanComputeCuller culler, Matrix4fc transform) {
+		usePipeline(commandBuffer, getMeshPipeline(model.getVertexFormat()));
+		bindDraw(commandBuffer, transform, model.getBounds());
+		
+		bindVertices(commandBuffer, model);
+		bindIndices(commandBuffer, culler.getIndexBuffer(), VK_INDEX_TYPE_UINT32);
+		bindInstances(commandBuffer, identityInstances, 0);
+		vkCmdDrawIndexedIndirect(commandBuffer, culler.getDrawBuffer(), 0, 1, VulkanComputeCuller.DRAW_COMMAND_SIZE);
+	}
+	
+	// A triangle per point straight from the point buffer, no vertex or index buffers and no compute pass
+	public void drawPulled(VkCommandBuffer commandBuffer, VulkanPointPuller puller, float x, float y, float z) {
+		usePipeline(commandBuffer, puller.getPipeline());
+		bindDraw(commandBuffer, new Matrix4f().translation(x, y, z), VertexBounds.IDENTITY);
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			vkCmdBindDescriptorSets(commandBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, puller.getPipeline().getLayout(), 1,
+					stack.longs(puller.getDescriptorSet()), null);
+		}
+		vkCmdDraw(commandBuffer, puller.getVertexCount(), 1, 0, 0);
+	}
+	
+	// The glyph's template at every point, in one instanced draw
+	public void drawGlyphs(VkCommandBuffer commandBuffer, VulkanPointGlyphs glyphs, float x, float y, float z) {
+		usePipeline(commandBuffer, glyphs.getPipeline());
+		bindDraw(commandBuffer, new Matrix4f().translation(x, y, z), glyphs.getTemplate().getBounds());
+		bindModel(commandBuffer, glyphs.getTemplate());
+		
+		// Points and styles in place of instance matrices
+		VulkanPointBuffer points = glyphs.getPoints();
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			vkCmdBindVertexBuffers(commandBuffer, 1, stack.longs(points.getBuffer(), points.getBuffer()), stack.longs(0, points.getStyleOffset()));
+		}
+		boundInstances = null;
+		
+		VulkanModel template = glyphs.getTemplate();
+		vkCmdDrawIndexed(commandBuffer, template.getLength(), points.getPointCount(), template.getFirstIndex(), template.getBaseVertex(), 0);
+	}
+	
+	// The projection every draw uses, objects are placed in view space by the camera
+	public static Matrix4f getProjection(float aspectRatio, Matrix4f dest) {
+		return dest.setPerspective((float) Math.toRadians(70), aspectRatio, 0.01f, 1000.0f);
+	}
+	
+	// Objects outside this can be dropped on the cpu before they are drawn, they are in the space model transforms from
+	public void updateFrustum(VulkanRenderTarget target, Matrix4fc model, Frustum frustum) {
+		float aspectRatio = (float)target.getWidth() / (float)target.getHeight();
+		frustum.set(getProjection(aspectRatio, new Matrix4f()).mul(view).mul(model));
+	}
+	
+	// Projection, the current view and translation, the same matrix the culler tests against
+	public float[] getTransform(VulkanRenderTarget target, float x, float y, float z) {
+		float aspectRatio = (float)target.getWidth() / (float)target.getHeight();
+		Matrix4f projection_mat = getProjection(aspectRatio, new Matrix4f());
 		
 		Matrix4f transformObject_mat = new Matrix4f().identity();
 		transformObject_mat.translate(x, y, z);
 		
 		Matrix4f finalmat = new Matrix4f().identity();
-		finalmat.mul(projection_mat).mul(transformObject_mat);
+		finalmat.mul(projection_mat).mul(view).mul(transformObject_mat);
 		
 		float[] finalf = new float[4*4];
 		finalmat.get(finalf);
-		vkCmdPushConstants(commandBuffer, meshPipeline.getLayout(), VK_SHADER_STAGE_VERTEX_BIT, 0, finalf);
-		
-		// Draw
-		vkCmdDrawIndexed(commandBuffer, model.getLength(), 1, 0, 0, 0);
+		return finalf;
 	}
 }
@@ -0,0 +1,124 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.graphics;
+
+import org.joml.Matrix4f;
+
+// Box positions of a quantised mesh are stored relative to, as -1 to 1 across each axis
+public class VertexBounds {
+	// Positions stored as they are
+	public static final VertexBounds IDENTITY = new VertexBounds(0f, 0f, 0f, 1f, 1f, 1f);
+	
+	private static final float[] NO_CORNERS = {0f, 0f, 0f};
+	
+	private final float centerX, centerY, centerZ;
+	private final float extentX, extentY, extentZ;
+	
+	public VertexBounds(float centerX, float centerY, float centerZ, float extentX, float extentY, float extentZ) {
+		this.centerX = centerX;
+		this.centerY = centerY;
+		this.centerZ = centerZ;
+		this.extentX = extentX;
+		this.extentY = extentY;
+		this.extentZ = extentZ;
+	}
+	
+	public static VertexBounds of(float[] positions) {
+		return of(positions, NO_CORNERS);
+	}
+	
+	// Bounds of every position offset by each corner, xyz triples, for geometry expanded from points
+	public static VertexBounds of(float[] positions, float[] corners) {
+		float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+		float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		
+		for (int i = 0; i < positions.length; i += 3) {
+			for (int axis = 0; axis < 3; axis++) {
+				min[axis] = Math.min(min[axis], positions[i + axis]);
+				max[axis] = Math.max(max[axis], positions[i + axis]);
+			}
+		}
+		if (positions.length == 0) {
+			return IDENTITY;
+		}
+		
+		// Corners move the whole box
+		float[] cornerMin = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+		float[] cornerMax = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		for (int i = 0; i < corners.length; i += 3) {
+			for (int axis = 0; axis < 3; axis++) {
+				cornerMin[axis] = Math.min(cornerMin[axis], corners[i + axis]);
+				cornerMax[axis] = Math.max(cornerMax[axis], corners[i + axis]);
+			}
+		}
+		
+		float[] center = new float[3];
+		float[] extent = new float[3];
+		for (int axis = 0; axis < 3; axis++) {
+			float low = min[axis] + cornerMin[axis];
+			float high = max[axis] + cornerMax[axis];
+			center[axis] = (low + high) * 0.5f;
+			// A flat axis still needs something to divide by
+			extent[axis] = high > low ? (high - low) * 0.5f : 1f;
+		}
+		return new VertexBounds(center[0], center[1], center[2], extent[0], extent[1], extent[2]);
+	}
+	
+	public float encodeX(float x) {
+		return (x - centerX) / extentX;
+	}
+	
+	public float encodeY(float y) {
+		return (y - centerY) / extentY;
+	}
+	
+	public float encodeZ(float z) {
+		return (z - centerZ) / extentZ;
+	}
+	
+	// From stored positions back to the mesh's space
+	public Matrix4f getDecode(Matrix4f dest) {
+		return dest.translation(centerX, centerY, centerZ).scale(extentX, extentY, extentZ);
+	}
+	
+	public float getCenterX() {
+		return centerX;
+	}
+	
+	public float getCenterY() {
+		return centerY;
+	}
+	
+	public float getCenterZ() {
+		return centerZ;
+	}
+	
+	public float getExtentX() {
+		return extentX;
+	}
+	
+	public float getExtentY() {
+		return extentY;
+	}
+	
+	public float getExtentZ() {
+		return extentZ;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("center (%.3f, %.3f, %.3f) extent (%.3f, %.3f, %.3f)", centerX, centerY, centerZ, extentX, extentY, extentZ);
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.graphics;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+// How positions are stored in vertex buffers. The 16 bit formats hold positions relative to the mesh's
+// bounds, in -1 to 1, and are decoded back in the vertex shader with the bounds in the draw block.
+// They take four components, three component 16 bit formats are rarely supported for vertex input.
+public enum VertexFormat {
+	FLOAT(0, VK_FORMAT_R32G32B32_SFLOAT, 3 * 4),
+	SNORM16(1, VK_FORMAT_R16G16B16A16_SNORM, 4 * 2),
+	HALF(2, VK_FORMAT_R16G16B16A16_SFLOAT, 4 * 2);
+	
+	// Used by models and compute output
+	public static final VertexFormat DEFAULT = parse(System.getProperty("vulkantriangles.vertex.format", "snorm16"));
+	
+	// Matches the FORMAT specialization constant in compute.glsl and cull.glsl
+	private final int id;
+	private final int vkFormat;
+	private final int stride;
+	
+	VertexFormat(int id, int vkFormat, int stride) {
+		this.id = id;
+		this.vkFormat = vkFormat;
+		this.stride = stride;
+	}
+	
+	public int getId() {
+		return id;
+	}
+	
+	public int getVkFormat() {
+		return vkFormat;
+	}
+	
+	public int getStride() {
+		return stride;
+	}
+	
+	// Quantised formats need bounds to decode, float positions are stored as they are
+	public boolean isQuantised() {
+		return this != FLOAT;
+	}
+	
+	// Bounds positions are stored relative to, a quantised format can't hold them as they are
+	public VertexBounds getBounds(float[] positions) {
+		return isQuantised() ? VertexBounds.of(positions) : VertexBounds.IDENTITY;
+	}
+	
+	// Writes positions at dest's position, stride bytes each
+	public void encode(float[] positions, VertexBounds bounds, ByteBuffer dest) {
+		int at = dest.position();
+		for (int i = 0; i < positions.length; i += 3) {
+			float x = bounds.encodeX(positions[i + 0]);
+			float y = bounds.encodeY(positions[i + 1]);
+			float z = bounds.encodeZ(positions[i + 2]);
+			
+			switch (this) {
+				case FLOAT:
+					dest.putFloat(at, x).putFloat(at + 4, y).putFloat(at + 8, z);
+					break;
+				case SNORM16:
+					dest.putShort(at, toSnorm16(x)).putShort(at + 2, toSnorm16(y)).putShort(at + 4, toSnorm16(z)).putShort(at + 6, (short) 0);
+					break;
+				case HALF:
+					dest.putShort(at, toHalf(x)).putShort(at + 2, toHalf(y)).putShort(at + 4, toHalf(z)).putShort(at + 6, (short) 0);
+					break;
+			}
+			at += stride;
+		}
+		dest.position(at);
+	}
+	
+	public static VertexFormat parse(String name) {
+		for (VertexFormat format : values()) {
+			if (format.name().equalsIgnoreCase(name)) {
+				return format;
+			}
+		}
+		throw new IllegalArgumentException("Unknown vertex format " + name + ", expected float, snorm16 or half");
+	}
+	
+	static short toSnorm16(float value) {
+		return (short) Math.round(Math.max(-1f, Math.min(1f, value)) * 32767f);
+	}
+	
+	// Round to nearest even, like the hardware conversion
+	static short toHalf(float value) {
+		int bits = Float.floatToRawIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+		int mantissa = bits & 0x7fffff;
+		
+		// Infinity and NaN, or too large
+		if (exponent >= 31) {
+			boolean nan = ((bits >>> 23) & 0xff) == 0xff && mantissa != 0;
+			return (short) (sign | 0x7c00 | (nan ? 0x200 : 0));
+		}
+		
+		// Subnormal or zero
+		if (exponent <= 0) {
+			if (exponent < -10) {
+				return (short) sign;
+			}
+			mantissa |= 0x800000;
+			int shift = 14 - exponent;
+			int half = mantissa >> shift;
+			int rest = mantissa & ((1 << shift) - 1);
+			int halfway = 1 << (shift - 1);
+			if (rest > halfway || (rest == halfway && (half & 1) != 0)) {
+				half++;
+			}
+			return (short) (sign | half);
+		}
+		
+		// A carry out of the mantissa rounds up into the exponent
+		int half = (exponent << 10) | (mantissa >> 13);
+		int rest = mantissa & 0x1fff;
+		if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) {
+			half++;
+		}
+		return (short) (sign | half);
+	}
+}
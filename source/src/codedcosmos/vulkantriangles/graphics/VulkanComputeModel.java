@@ -14,10 +14,13 @@
 
 package codedcosmos.vulkantriangles.graphics;
 
-import org.lwjgl.system.MemoryUtil;
+import codedcosmos.vulkantriangles.compute.VulkanComputeBuffer;
+import codedcosmos.vulkantriangles.memory.MemoryTracker;
 
 import java.nio.LongBuffer;
 
+import static org.lwjgl.vulkan.VK10.VK_INDEX_TYPE_UINT32;
+
 public class VulkanComputeModel implements VulkanModel {
 	
 	private int length;
@@ -26,25 +29,36 @@ public class VulkanComputeModel implements VulkanModel {
 	private LongBuffer pVertexBuffer;
 	private LongBuffer pVertexOffsets;
 	
+	// Handles are read from the buffer on use, they change when it is evicted and restored
+	private VulkanComputeBuffer computeBuffer;
+	
+	public VulkanComputeModel(int length, VulkanComputeBuffer computeBuffer) {
+		this(length, computeBuffer.getVertexBuffer(), computeBuffer.getIndexBuffer());
+		this.computeBuffer = computeBuffer;
+	}
+	
 	public VulkanComputeModel(int length, long vertexBuffer, long indexBuffer) {
 		this.length = length;
 		this.indexBuffer = indexBuffer;
 		
-		pVertexBuffer = MemoryUtil.memAllocLong(1);
+		pVertexBuffer = MemoryTracker.memAllocLong("model", 1);
 		pVertexBuffer.put(0, vertexBuffer);
 		
-		pVertexOffsets = MemoryUtil.memAllocLong(1);
+		pVertexOffsets = MemoryTracker.memAllocLong("model", 1);
 		pVertexOffsets.put(0, 0L);
 	}
 	
 	@Override
 	public LongBuffer getVertexPointer() {
+		if (computeBuffer != null) {
+			pVertexBuffer.put(0, computeBuffer.getVertexBuffer());
+		}
 		return pVertexBuffer;
 	}
 	
 	@Override
 	public long getIndexBuffer() {
-		return indexBuffer;
+		return computeBuffer != null ? computeBuffer.getIndexBuffer() : indexBuffer;
 	}
 	
 	@Override
@@ -57,8 +71,34 @@ public class VulkanComputeModel implements VulkanModel {
 		return length;
 	}
 	
+	@Override
+	public int getFirstIndex() {
+		return 0;
+	}
+	
+	@Override
+	public int getBaseVertex() {
+		return 0;
+	}
+	
+	@Override
+	public VertexFormat getVertexFormat() {
+		return computeBuffer != null ? computeBuffer.getVertexFormat() : VertexFormat.FLOAT;
+	}
+	
+	@Override
+	public VertexBounds getBounds() {
+		return computeBuffer != null ? computeBuffer.getBounds() : VertexBounds.IDENTITY;
+	}
+	
+	// Compute writes one index per vertex, there are usually too many for 16 bits
+	@Override
+	public int getIndexType() {
+		return VK_INDEX_TYPE_UINT32;
+	}
+	
 	public void free() {
-		MemoryUtil.memFree(pVertexBuffer);
-		MemoryUtil.memFree(pVertexOffsets);
+		MemoryTracker.memFree("model", pVertexBuffer);
+		MemoryTracker.memFree("model", pVertexOffsets);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,349 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.graphics;
+
+import codedcosmos.vulkantriangles.Log;
+import codedcosmos.vulkantriangles.VkUtils;
+import codedcosmos.vulkantriangles.VulkanDevice;
+import codedcosmos.vulkantriangles.VulkanException;
+import codedcosmos.vulkantriangles.compute.VulkanComputePipeline;
+import codedcosmos.vulkantriangles.memory.MemoryUsage;
+import codedcosmos.vulkantriangles.memory.VulkanMemory;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+// Hierarchical z, a mip chain of last frame's depth where every texel is the farthest depth beneath it.
+// Built in compute at the start of a frame, before the render pass clears depth, for the culler to test bounds against.
+// Level sizes round up, so base pixel p is covered by texel p >> level on every level.
+public class VulkanDepthPyramid {
+	private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("vulkantriangles.hiz", "true"));
+	private static final int LOCAL_SIZE = 8;
+	
+	private VkDevice device;
+	private long depthImage;
+	private boolean depthHasStencil;
+	
+	// Pyramid
+	private int width;
+	private int height;
+	private int levels;
+	private long image;
+	private long memory;
+	private long view;
+	private long[] levelViews;
+	private long sampler;
+	
+	// Build
+	private VulkanComputePipeline pipeline;
+	private long descriptorPool;
+	private long[] descriptorSets;
+	
+	// The image starts undefined, and depth only holds a frame once a render pass has stored one
+	private boolean enabled;
+	private boolean initialized;
+	private boolean hasDepth;
+	private boolean built;
+	
+	public VulkanDepthPyramid(VulkanDevice vulkanDevice, VulkanSwapchain swapchain, int depthFormat) throws VulkanException {
+		this.device = vulkanDevice.get();
+		this.depthImage = swapchain.getDepthImage();
+		this.depthHasStencil = depthFormat == VK_FORMAT_D32_SFLOAT_S8_UINT || depthFormat == VK_FORMAT_D24_UNORM_S8_UINT || depthFormat == VK_FORMAT_D16_UNORM_S8_UINT;
+		
+		width = swapchain.getWidth();
+		height = swapchain.getHeight();
+		levels = 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+		
+		// Without a sampleable depth format the pyramid exists so the culler has something bound, but is never built
+		enabled = ENABLED && swapchain.getDepthSampleView() != VK_NULL_HANDLE;
+		
+		int ret;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			// ------------------
+			// Image
+			VkImageCreateInfo imageCreateInfo = VkImageCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO)
+					.imageType(VK_IMAGE_TYPE_2D)
+					.format(VK_FORMAT_R32_SFLOAT)
+					.mipLevels(levels)
+					.arrayLayers(1)
+					.samples(VK_SAMPLE_COUNT_1_BIT)
+					.tiling(VK_IMAGE_TILING_OPTIMAL)
+					.usage(VK_IMAGE_USAGE_STORAGE_BIT | VK_IMAGE_USAGE_SAMPLED_BIT)
+					.sharingMode(VK_SHARING_MODE_EXCLUSIVE)
+					.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
+			imageCreateInfo.extent().width(width).height(height).depth(1);
+			
+			LongBuffer pHandle = stack.mallocLong(1);
+			ret = vkCreateImage(device, imageCreateInfo, null, pHandle);
+			VkUtils.check(ret, "Failed to create depth pyramid image");
+			image = pHandle.get(0);
+			
+			VkMemoryRequirements memoryRequirements = VkMemoryRequirements.callocStack(stack);
+			vkGetImageMemoryRequirements(device, image, memoryRequirements);
+			
+			vulkanDevice.getMemoryPolicy().allocate(device, memoryRequirements, MemoryUsage.GPU_ONLY, pHandle, "depth pyramid");
+			memory = pHandle.get(0);
+			
+			ret = vkBindImageMemory(device, image, memory, 0);
+			VkUtils.check(ret, "Failed to bind depth pyramid memory");
+			
+			// ------------------
+			// Views, all levels for culling and one per level for building
+			VkImageViewCreateInfo viewCreateInfo = VkImageViewCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_IMAGE_VIEW_CREATE_INFO)
+					.image(image)
+					.viewType(VK_IMAGE_VIEW_TYPE_2D)
+					.format(VK_FORMAT_R32_SFLOAT);
+			viewCreateInfo.subresourceRange()
+					.aspectMask(VK_IMAGE_ASPECT_COLOR_BIT)
+					.baseMipLevel(0)
+					.levelCount(levels)
+					.layerCount(1);
+			
+			ret = vkCreateImageView(device, viewCreateInfo, null, pHandle);
+			VkUtils.check(ret, "Failed to create depth pyramid view");
+			view = pHandle.get(0);
+			
+			levelViews = new long[levels];
+			for (int i = 0; i < levels; i++) {
+				viewCreateInfo.subresourceRange().baseMipLevel(i).levelCount(1);
+				ret = vkCreateImageView(device, viewCreateInfo, null, pHandle);
+				VkUtils.check(ret, "Failed to create depth pyramid level view");
+				levelViews[i] = pHandle.get(0);
+			}
+			
+			// ------------------
+			// Sampler, texels are always fetched by integer coordinate
+			VkSamplerCreateInfo samplerCreateInfo = VkSamplerCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_SAMPLER_CREATE_INFO)
+					.magFilter(VK_FILTER_NEAREST)
+					.minFilter(VK_FILTER_NEAREST)
+					.mipmapMode(VK_SAMPLER_MIPMAP_MODE_NEAREST)
+					.addressModeU(VK_SAMPLER_ADDRESS_MODE_CLAMP_TO_EDGE)
+					.addressModeV(VK_SAMPLER_ADDRESS_MODE_CLAMP_TO_EDGE)
+					.addressModeW(VK_SAMPLER_ADDRESS_MODE_CLAMP_TO_EDGE)
+					.minLod(0f)
+					.maxLod(levels);
+			
+			ret = vkCreateSampler(device, samplerCreateInfo, null, pHandle);
+			VkUtils.check(ret, "Failed to create depth pyramid sampler");
+			sampler = pHandle.get(0);
+		}
+		
+		if (enabled) {
+			createBuild(swapchain.getDepthSampleView());
+		}
+		
+		Log.print("Created depth pyramid of " + levels + " levels for " + width + "x" + height + (enabled ? "" : ", occlusion culling is off"));
+	}
+	
+	// One set per level, reading the level above (or depth) and writing its own
+	private void createBuild(long depthView) throws VulkanException {
+		pipeline = new VulkanComputePipeline(device, "shaders/hiz.glsl", new int[] {VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER, VK_DESCRIPTOR_TYPE_STORAGE_IMAGE, VK_DESCRIPTOR_TYPE_STORAGE_IMAGE}, 4 * 4);
+		
+		int ret;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			VkDescriptorPoolSize.Buffer typeCounts = VkDescriptorPoolSize.callocStack(2, stack);
+			typeCounts.get(0)
+					.type(VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER)
+					.descriptorCount(levels);
+			typeCounts.get(1)
+					.type(VK_DESCRIPTOR_TYPE_STORAGE_IMAGE)
+					.descriptorCount(levels * 2);
+			
+			VkDescriptorPoolCreateInfo descriptorPoolInfo = VkDescriptorPoolCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_POOL_CREATE_INFO)
+					.pPoolSizes(typeCounts)
+					.maxSets(levels);
+			
+			LongBuffer pDescriptorPool = stack.mallocLong(1);
+			ret = vkCreateDescriptorPool(device, descriptorPoolInfo, null, pDescriptorPool);
+			VkUtils.check(ret, "Failed to create depth pyramid descriptor pool");
+			descriptorPool = pDescriptorPool.get(0);
+			
+			LongBuffer pSetLayouts = stack.mallocLong(levels);
+			for (int i = 0; i < levels; i++) {
+				pSetLayouts.put(i, pipeline.getDescriptorSetLayout());
+			}
+			
+			VkDescriptorSetAllocateInfo allocateInfo = VkDescriptorSetAllocateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_ALLOCATE_INFO)
+					.descriptorPool(descriptorPool)
+					.pSetLayouts(pSetLayouts);
+			
+			LongBuffer pDescriptorSets = stack.mallocLong(levels);
+			ret = vkAllocateDescriptorSets(device, allocateInfo, pDescriptorSets);
+			VkUtils.check(ret, "Failed to allocate depth pyramid descriptor sets");
+			descriptorSets = new long[levels];
+			pDescriptorSets.get(descriptorSets);
+			
+			VkDescriptorImageInfo.Buffer imageInfos = VkDescriptorImageInfo.callocStack(3, stack);
+			VkWriteDescriptorSet.Buffer writes = VkWriteDescriptorSet.callocStack(3, stack);
+			for (int level = 0; level < levels; level++) {
+				imageInfos.get(0).sampler(sampler).imageView(depthView).imageLayout(VK_IMAGE_LAYOUT_DEPTH_STENCIL_READ_ONLY_OPTIMAL);
+				imageInfos.get(1).imageView(levelViews[Math.max(level - 1, 0)]).imageLayout(VK_IMAGE_LAYOUT_GENERAL);
+				imageInfos.get(2).imageView(levelViews[level]).imageLayout(VK_IMAGE_LAYOUT_GENERAL);
+				
+				for (int i = 0; i < 3; i++) {
+					writes.get(i)
+							.sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
+							.dstSet(descriptorSets[level])
+							.dstBinding(i)
+							.descriptorCount(1)
+							.descriptorType(i == 0 ? VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER : VK_DESCRIPTOR_TYPE_STORAGE_IMAGE)
+							.pImageInfo(VkDescriptorImageInfo.create(imageInfos.address(i), 1));
+				}
+				
+				vkUpdateDescriptorSets(device, writes, null);
+			}
+		}
+	}
+	
+	// Records the build from last frame's depth, call outside the render pass that writes this frame's
+	public void record(VkCommandBuffer commandBuffer) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			VkImageMemoryBarrier.Buffer pyramidBarrier = VkImageMemoryBarrier.callocStack(1, stack)
+					.sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER)
+					.srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+					.dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+					.image(image);
+			pyramidBarrier.subresourceRange()
+					.aspectMask(VK_IMAGE_ASPECT_COLOR_BIT)
+					.baseMipLevel(0)
+					.levelCount(levels)
+					.layerCount(1);
+			
+			// The pyramid stays in GENERAL from here on
+			if (!initialized) {
+				pyramidBarrier
+						.srcAccessMask(0)
+						.dstAccessMask(VK_ACCESS_SHADER_READ_BIT | VK_ACCESS_SHADER_WRITE_BIT)
+						.oldLayout(VK_IMAGE_LAYOUT_UNDEFINED)
+						.newLayout(VK_IMAGE_LAYOUT_GENERAL);
+				vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, 0, null, null, pyramidBarrier);
+				initialized = true;
+			}
+			
+			built = enabled && hasDepth;
+			
+			// This frame's render pass stores depth for the next
+			hasDepth = true;
+			
+			if (!built) return;
+			
+			// Last frame's depth writes, and last frame's culling reads of the pyramid, come before the build
+			VkImageMemoryBarrier.Buffer depthBarrier = VkImageMemoryBarrier.callocStack(1, stack)
+					.sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER)
+					.srcAccessMask(VK_ACCESS_DEPTH_STENCIL_ATTACHMENT_WRITE_BIT)
+					.dstAccessMask(VK_ACCESS_SHADER_READ_BIT)
+					.oldLayout(VK_IMAGE_LAYOUT_DEPTH_STENCIL_READ_ONLY_OPTIMAL)
+					.newLayout(VK_IMAGE_LAYOUT_DEPTH_STENCIL_READ_ONLY_OPTIMAL)
+					.srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+					.dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+					.image(depthImage);
+			depthBarrier.subresourceRange()
+					.aspectMask(depthHasStencil ? VK_IMAGE_ASPECT_DEPTH_BIT | VK_IMAGE_ASPECT_STENCIL_BIT : VK_IMAGE_ASPECT_DEPTH_BIT)
+					.levelCount(1)
+					.layerCount(1);
+			vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_LATE_FRAGMENT_TESTS_BIT | VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, 0, null, null, depthBarrier);
+			
+			// Levels, each waits for the one above
+			vkCmdBindPipeline(commandBuffer, VK_PIPELINE_BIND_POINT_COMPUTE, pipeline.get());
+			
+			ByteBuffer pushConstants = stack.malloc(4 * 4);
+			pyramidBarrier
+					.srcAccessMask(VK_ACCESS_SHADER_WRITE_BIT)
+					.dstAccessMask(VK_ACCESS_SHADER_READ_BIT)
+					.oldLayout(VK_IMAGE_LAYOUT_GENERAL)
+					.newLayout(VK_IMAGE_LAYOUT_GENERAL);
+			pyramidBarrier.subresourceRange().levelCount(1);
+			
+			for (int level = 0; level < levels; level++) {
+				int levelWidth = getLevelWidth(level);
+				int levelHeight = getLevelHeight(level);
+				
+				vkCmdBindDescriptorSets(commandBuffer, VK_PIPELINE_BIND_POINT_COMPUTE, pipeline.getLayout(), 0, stack.longs(descriptorSets[level]), null);
+				
+				pushConstants.putInt(0, level).putInt(8, levelWidth).putInt(12, levelHeight);
+				vkCmdPushConstants(commandBuffer, pipeline.getLayout(), VK_SHADER_STAGE_COMPUTE_BIT, 0, pushConstants);
+				
+				vkCmdDispatch(commandBuffer, (levelWidth + LOCAL_SIZE - 1) / LOCAL_SIZE, (levelHeight + LOCAL_SIZE - 1) / LOCAL_SIZE, 1);
+				
+				pyramidBarrier.subresourceRange().baseMipLevel(level);
+				vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, 0, null, null, pyramidBarrier);
+			}
+		}
+	}
+	
+	// Sizes round up, a level never has fewer texels than half the one above
+	public int getLevelWidth(int level) {
+		return Math.max(1, (width + (1 << level) - 1) >> level);
+	}
+	
+	public int getLevelHeight(int level) {
+		return Math.max(1, (height + (1 << level) - 1) >> level);
+	}
+	
+	// True when this frame's record built the pyramid, otherwise it holds nothing usable
+	public boolean isBuilt() {
+		return built;
+	}
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	public int getLevels() {
+		return levels;
+	}
+	
+	public long getView() {
+		return view;
+	}
+	
+	public long getSampler() {
+		return sampler;
+	}
+	
+	public void free() {
+		if (pipeline != null) {
+			vkDestroyDescriptorPool(device, descriptorPool, null);
+			pipeline.free(device);
+		}
+		
+		vkDestroySampler(device, sampler, null);
+		for (long levelView : levelViews) {
+			vkDestroyImageView(device, levelView, null);
+		}
+		vkDestroyImageView(device, view, null);
+		vkDestroyImage(device, image, null);
+		VulkanMemory.free(device, memory);
+	}
+}
@@ -16,6 +16,7 @@ package codedcosmos.vulkantriangles.graphics;
 
 import codedcosmos.vulkantriangles.VkUtils;
 import codedcosmos.vulkantriangles.VulkanException;
+import codedcosmos.vulkantriangles.profiling.FenceWaitEvent;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.VkDevice;
 import org.lwjgl.vulkan.VkFenceCreateInfo;
@@ -84,8 +85,16 @@ public class VulkanFrameDirector {
 	}
 	
 	public void waitForLastRender(VkDevice device, int idx) {
+		FenceWaitEvent event = new FenceWaitEvent();
+		event.begin();
+		
 		vkWaitForFences(device, renderFences[idx], true, Long.MAX_VALUE);
 		vkResetFences(device, renderFences[idx]);
+		
+		if (event.shouldCommit()) {
+			event.frameSlot = idx;
+			event.commit();
+		}
 	}
 	
 	public long getRenderFence(int idx) {
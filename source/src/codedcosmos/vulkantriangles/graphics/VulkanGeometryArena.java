@@ -0,0 +1,227 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.graphics;
+
+import codedcosmos.vulkantriangles.Log;
+import codedcosmos.vulkantriangles.VulkanDevice;
+import codedcosmos.vulkantriangles.VulkanException;
+import codedcosmos.vulkantriangles.memory.MemoryTracker;
+import codedcosmos.vulkantriangles.memory.MemoryUsage;
+import codedcosmos.vulkantriangles.memory.TlsfAllocator;
+import codedcosmos.vulkantriangles.memory.VulkanMemoryPool;
+import codedcosmos.vulkantriangles.memory.VulkanPooledBuffer;
+import codedcosmos.vulkantriangles.memory.VulkanUploadLane;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+// One device local vertex buffer and one index buffer shared by every streamed model.
+// Models get a range of each, drawn with a base vertex and first index, so a whole scene binds once.
+// The vertex allocator counts vertices, so its offsets are base vertices. The index allocator counts
+// 16 bit slots, 32 bit ranges take an extra slot to start on a 4 byte boundary and halve their offset.
+public class VulkanGeometryArena implements VulkanPooledBuffer.Owner {
+	public static final int INDEX_SLOT_SIZE = 2;
+	
+	private static final long VERTEX_CAPACITY = Long.getLong("vulkantriangles.geometry.vertices", 1L << 20);
+	private static final long INDEX_CAPACITY = Long.getLong("vulkantriangles.geometry.indices", 1L << 22);
+	
+	private VulkanMemoryPool memoryPool;
+	
+	// Every model in the arena shares the format, it's part of the pipeline
+	private VertexFormat format;
+	
+	// Buffers, storage usage lets compute read them as well
+	private VulkanPooledBuffer vertexBuffer;
+	private VulkanPooledBuffer indexBuffer;
+	private LongBuffer pVertexBuffer;
+	private LongBuffer pVertexOffsets;
+	
+	// Ranges
+	private TlsfAllocator vertexAllocator;
+	private TlsfAllocator indexAllocator;
+	
+	// Uploads not yet acquired, the buffers can't move under them
+	private List<VulkanUploadLane.Upload> pending;
+	
+	public class Range {
+		private final int vertexHandle;
+		private final int indexHandle;
+		private final int vertexCount;
+		private final int indexCount;
+		private final int indexType;
+		
+		private VulkanUploadLane.Upload vertexUpload;
+		private VulkanUploadLane.Upload indexUpload;
+		private boolean freed;
+		
+		private Range(int vertexHandle, int indexHandle, int vertexCount, int indexCount, int indexType) {
+			this.vertexHandle = vertexHandle;
+			this.indexHandle = indexHandle;
+			this.vertexCount = vertexCount;
+			this.indexCount = indexCount;
+			this.indexType = indexType;
+		}
+		
+		public int getBaseVertex() {
+			return (int) vertexAllocator.getOffset(vertexHandle);
+		}
+		
+		// In indices of the range's type, with the buffer bound at offset zero
+		public int getFirstIndex() {
+			long slot = indexAllocator.getOffset(indexHandle);
+			return (int) (indexType == VK_INDEX_TYPE_UINT16 ? slot : (slot + 1) / 2);
+		}
+		
+		public int getIndexType() {
+			return indexType;
+		}
+		
+		public int getVertexCount() {
+			return vertexCount;
+		}
+		
+		public int getIndexCount() {
+			return indexCount;
+		}
+		
+		// Can be drawn once both uploads are acquired
+		public boolean isReady() {
+			return vertexUpload.isAcquired() && indexUpload.isAcquired();
+		}
+	}
+	
+	public VulkanGeometryArena(VulkanDevice device) throws VulkanException {
+		this(device, VertexFormat.DEFAULT);
+	}
+	
+	public VulkanGeometryArena(VulkanDevice device, VertexFormat format) throws VulkanException {
+		memoryPool = device.getMemoryPool();
+		this.format = format;
+		
+		// The index capacity is in 32 bit indices, twice as many 16 bit ones fit
+		vertexBuffer = memoryPool.createBuffer(VERTEX_CAPACITY * format.getStride(), VK_BUFFER_USAGE_VERTEX_BUFFER_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT, MemoryUsage.GPU_ONLY, this);
+		indexBuffer = memoryPool.createBuffer(INDEX_CAPACITY * 4, VK_BUFFER_USAGE_INDEX_BUFFER_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT, MemoryUsage.GPU_ONLY, this);
+		
+		pVertexBuffer = MemoryTracker.memAllocLong("geometry", 1);
+		pVertexBuffer.put(0, vertexBuffer.getBuffer());
+		pVertexOffsets = MemoryTracker.memAllocLong("geometry", 1);
+		pVertexOffsets.put(0, 0L);
+		
+		vertexAllocator = new TlsfAllocator(VERTEX_CAPACITY);
+		indexAllocator = new TlsfAllocator(INDEX_CAPACITY * 4 / INDEX_SLOT_SIZE);
+		pending = new ArrayList<VulkanUploadLane.Upload>();
+		
+		Log.print("Created geometry arena for " + VERTEX_CAPACITY + " " + format + " vertices and " + INDEX_CAPACITY + " indices");
+	}
+	
+	// Reserves a range and streams the geometry into it, indices stay relative to the model's first vertex
+	public Range allocate(float[] vertices, VertexBounds bounds, int[] indices, int indexType, VulkanUploadLane uploadLane, int dstQueueFamily) throws VulkanException {
+		int vertexCount = vertices.length / 3;
+		int indexSize = IndexFormat.getIndexSize(indexType);
+		int indexSlots = indices.length * indexSize / INDEX_SLOT_SIZE + (indexType == VK_INDEX_TYPE_UINT16 ? 0 : 1);
+		
+		int vertexHandle = vertexAllocator.allocate(vertexCount);
+		if (vertexHandle < 0) {
+			throw new VulkanException("Geometry arena is out of room for " + vertexCount + " vertices, " + vertexAllocator);
+		}
+		
+		int indexHandle = indexAllocator.allocate(indexSlots);
+		if (indexHandle < 0) {
+			vertexAllocator.free(vertexHandle);
+			throw new VulkanException("Geometry arena is out of room for " + indices.length + " indices, " + indexAllocator);
+		}
+		
+		Range range = new Range(vertexHandle, indexHandle, vertexCount, indices.length, indexType);
+		
+		// Upload, staging copies the data so the buffers can be freed straight away
+		ByteBuffer vertexByteBuffer = MemoryTracker.memAlloc("geometry", vertexCount * format.getStride());
+		format.encode(vertices, bounds, vertexByteBuffer);
+		vertexByteBuffer.flip();
+		range.vertexUpload = uploadLane.upload(vertexByteBuffer, vertexBuffer.getBuffer(), (long) range.getBaseVertex() * format.getStride(), dstQueueFamily, VK_ACCESS_VERTEX_ATTRIBUTE_READ_BIT, VK_PIPELINE_STAGE_VERTEX_INPUT_BIT);
+		MemoryTracker.memFree("geometry", vertexByteBuffer);
+		
+		ByteBuffer indexByteBuffer = MemoryTracker.memAlloc("geometry", indices.length * indexSize);
+		IndexFormat.encode(indices, indexType, indexByteBuffer);
+		indexByteBuffer.flip();
+		range.indexUpload = uploadLane.upload(indexByteBuffer, indexBuffer.getBuffer(), (long) range.getFirstIndex() * indexSize, dstQueueFamily, VK_ACCESS_INDEX_READ_BIT, VK_PIPELINE_STAGE_VERTEX_INPUT_BIT);
+		MemoryTracker.memFree("geometry", indexByteBuffer);
+		
+		pending.add(range.vertexUpload);
+		pending.add(range.indexUpload);
+		return range;
+	}
+	
+	// Only call once no frame in flight draws the range
+	public void free(Range range) {
+		if (range.freed) return;
+		
+		vertexAllocator.free(range.vertexHandle);
+		indexAllocator.free(range.indexHandle);
+		range.freed = true;
+	}
+	
+	public VertexFormat getVertexFormat() {
+		return format;
+	}
+	
+	public LongBuffer getVertexPointer() {
+		return pVertexBuffer;
+	}
+	
+	public LongBuffer getVertexOffsets() {
+		return pVertexOffsets;
+	}
+	
+	public long getVertexBuffer() {
+		return vertexBuffer.getBuffer();
+	}
+	
+	public long getIndexBuffer() {
+		return indexBuffer.getBuffer();
+	}
+	
+	@Override
+	public boolean canMove() {
+		pending.removeIf(VulkanUploadLane.Upload::isAcquired);
+		return pending.isEmpty();
+	}
+	
+	// Draws recorded from now on use the new buffers
+	@Override
+	public void moved(VulkanPooledBuffer buffer) {
+		pVertexBuffer.put(0, vertexBuffer.getBuffer());
+	}
+	
+	public void logReport() {
+		Log.print("Geometry arena vertices: " + vertexAllocator);
+		Log.print("Geometry arena indices: " + indexAllocator);
+	}
+	
+	public void free() {
+		if (!vertexAllocator.isEmpty() || !indexAllocator.isEmpty()) {
+			Log.warn("Geometry arena still has " + indexAllocator.getAllocationCount() + " ranges");
+		}
+		
+		memoryPool.destroyBuffer(vertexBuffer);
+		memoryPool.destroyBuffer(indexBuffer);
+		
+		MemoryTracker.memFree("geometry", pVertexBuffer);
+		MemoryTracker.memFree("geometry", pVertexOffsets);
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.graphics;
+
+import codedcosmos.vulkantriangles.VkUtils;
+import codedcosmos.vulkantriangles.VulkanDevice;
+import codedcosmos.vulkantriangles.VulkanException;
+import codedcosmos.vulkantriangles.memory.MemoryTracker;
+import codedcosmos.vulkantriangles.memory.MemoryUsage;
+import codedcosmos.vulkantriangles.memory.VulkanMapping;
+import codedcosmos.vulkantriangles.memory.VulkanMemory;
+import codedcosmos.vulkantriangles.scene.BatchTransform;
+import codedcosmos.vulkantriangles.scene.BatchTransforms;
+import codedcosmos.vulkantriangles.scene.SceneStore;
+import org.joml.Matrix4fc;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkBufferCreateInfo;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkMemoryRequirements;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import static org.lwjgl.vulkan.VK10.*;
+
+// Per instance matrices in persistently mapped memory, one region per frame in flight, each the
+// frame's transform times the object's world matrix, made in one batch pass straight into the mapping.
+// A region is only written when its frame comes round again, with every matrix that changed since
+// it was last written, so a still scene costs nothing and a moving one costs what moved.
+// A new transform, like a resize changing the projection, rewrites the whole region.
+public class VulkanInstanceBuffer {
+	public static final int MATRIX_SIZE = 16 * 4;
+	
+	private int capacity;
+	
+	private long buffer;
+	private long memory;
+	private VulkanMapping mapping;
+	private ByteBuffer[] regions;
+	
+	// The transform each region was last written with
+	private float[][] transforms;
+	private BatchTransform batch;
+	private LongBuffer pBuffer;
+	private LongBuffer pOffsets;
+	
+	// Objects each region still needs, flagged so an object is only queued once
+	private int[][] pending;
+	private int[] pendingCounts;
+	private byte[][] queued;
+	
+	public VulkanInstanceBuffer(VulkanDevice device, int capacity, int framesInFlight) throws VulkanException {
+		this.capacity = capacity;
+		
+		int ret;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			VkBufferCreateInfo bufferCreateInfo = VkBufferCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
+					.size((long) capacity * MATRIX_SIZE * framesInFlight)
+					.usage(VK_BUFFER_USAGE_VERTEX_BUFFER_BIT)
+					.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+			
+			LongBuffer pHandle = stack.mallocLong(1);
+			ret = vkCreateBuffer(device.get(), bufferCreateInfo, null, pHandle);
+			VkUtils.check(ret, "Failed to create instance buffer");
+			buffer = pHandle.get(0);
+			
+			VkMemoryRequirements memoryRequirements = VkMemoryRequirements.callocStack(stack);
+			vkGetBufferMemoryRequirements(device.get(), buffer, memoryRequirements);
+			
+			// Read once per vertex, so device local when the host can see it
+			int memoryType = device.getMemoryPolicy().allocate(device.get(), memoryRequirements, MemoryUsage.DYNAMIC, pHandle, "instances");
+			memory = pHandle.get(0);
+			
+			ret = vkBindBufferMemory(device.get(), buffer, memory, 0);
+			VkUtils.check(ret, "Failed to bind instance memory");
+			
+			mapping = device.getMemoryPolicy().map(device.get(), memory, memoryType, memoryRequirements.size());
+		}
+		
+		pBuffer = MemoryTracker.memAllocLong("instances", 1);
+		pBuffer.put(0, buffer);
+		pOffsets = MemoryTracker.memAllocLong("instances", framesInFlight);
+		
+		// One spare so an object already queued can be written past the end and not counted
+		pending = new int[framesInFlight][capacity + 1];
+		pendingCounts = new int[framesInFlight];
+		queued = new byte[framesInFlight][capacity];
+		
+		regions = new ByteBuffer[framesInFlight];
+		transforms = new float[framesInFlight][];
+		for (int slot = 0; slot < framesInFlight; slot++) {
+			pOffsets.put(slot, (long) slot * capacity * MATRIX_SIZE);
+			regions[slot] = mapping.getBuffer(pOffsets.get(slot), capacity * MATRIX_SIZE);
+		}
+		batch = BatchTransforms.create();
+	}
+	
+	// Queues the scene's last changes for every region and writes out the ones for slot, call after its fence
+	public int write(int slot, SceneStore scene, float[] transform) throws VulkanException {
+		if (scene.getCount() > capacity) {
+			throw new IllegalArgumentException("Scene of " + scene.getCount() + " objects doesn't fit " + capacity + " instances");
+		}
+		
+		int[] changed = scene.getChanged();
+		for (int region = 0; region < pending.length; region++) {
+			int[] regionPending = pending[region];
+			byte[] regionQueued = queued[region];
+			int count = pendingCounts[region];
+			
+			for (int i = 0; i < scene.getChangedCount(); i++) {
+				int object = changed[i];
+				regionPending[count] = object;
+				count += 1 - regionQueued[object];
+				regionQueued[object] = 1;
+			}
+			pendingCounts[region] = count;
+		}
+		
+		int[] slotPending = pending[slot];
+		byte[] slotQueued = queued[slot];
+		int count = pendingCounts[slot];
+		long base = pOffsets.get(slot);
+		
+		// Everything again under a new transform
+		if (!Arrays.equals(transform, transforms[slot])) {
+			for (int i = 0; i < count; i++) {
+				slotQueued[slotPending[i]] = 0;
+			}
+			pendingCounts[slot] = 0;
+			
+			batch.multiply(transform, scene.getWorlds(), regions[slot], scene.getCount());
+			transforms[slot] = transform.clone();
+			mapping.flush(base, scene.getCount() * (long) MATRIX_SIZE);
+			return scene.getCount();
+		}
+		
+		if (count == 0) {
+			return 0;
+		}
+		
+		// Only the changed ones, flushing the span written
+		int first = Integer.MAX_VALUE;
+		int last = 0;
+		for (int i = 0; i < count; i++) {
+			int object = slotPending[i];
+			slotQueued[object] = 0;
+			first = Math.min(first, object);
+			last = Math.max(last, object);
+		}
+		pendingCounts[slot] = 0;
+		
+		batch.multiply(transform, scene.getWorlds(), regions[slot], slotPending, count);
+		mapping.flush(base + first * (long) MATRIX_SIZE, (last - first + 1) * (long) MATRIX_SIZE);
+		return count;
+	}
+	
+	// One matrix in every region, for instances that never change
+	public void set(int instance, Matrix4fc matrix) throws VulkanException {
+		for (int slot = 0; slot < pending.length; slot++) {
+			long offset = pOffsets.get(slot) + instance * (long) MATRIX_SIZE;
+			matrix.getToAddress(mapping.getAddress() + offset);
+			mapping.flush(offset, MATRIX_SIZE);
+		}
+	}
+	
+	public LongBuffer getBufferPointer() {
+		return pBuffer;
+	}
+	
+	public long getOffset(int slot) {
+		return pOffsets.get(slot);
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	public void free(VkDevice device) {
+		mapping.unmap();
+		vkDestroyBuffer(device, buffer, null);
+		VulkanMemory.free(device, memory);
+		
+		MemoryTracker.memFree("instances", pBuffer);
+		MemoryTracker.memFree("instances", pOffsets);
+	}
+}
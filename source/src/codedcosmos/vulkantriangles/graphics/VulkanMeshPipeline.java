@@ -17,6 +17,8 @@ package codedcosmos.vulkantriangles.graphics;
 import codedcosmos.vulkantriangles.Log;
 import codedcosmos.vulkantriangles.VkUtils;
 import codedcosmos.vulkantriangles.VulkanException;
+import codedcosmos.vulkantriangles.compute.VulkanPointBuffer;
+import codedcosmos.vulkantriangles.profiling.PipelineCreateEvent;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.*;
 
@@ -29,34 +31,34 @@ public class VulkanMeshPipeline {
 	
 	private long pipeline;
 	private long layout;
+	private long descriptorSetLayout;
 	
 	private VulkanShader vertexShader;
 	private VulkanShader fragmentShader;
 	
-	public VulkanMeshPipeline(VkDevice device, long renderPass) throws VulkanException {
+	// How vertices reach the vertex shader
+	public enum VertexInput {
+		// Positions per vertex and a world matrix per instance
+		MESH,
+		// Nothing bound, the shader reads its vertices from a storage buffer in set 1
+		PULLED,
+		// Template positions per vertex, a point per instance and one style shared by every instance
+		GLYPH,
+		// As GLYPH with a colour and scale per instance
+		GLYPH_STYLED
+	}
+	
+	public VulkanMeshPipeline(VkDevice device, long renderPass, VertexFormat vertexFormat) throws VulkanException {
+		this(device, renderPass, "shaders/mesh.vert", "shaders/mesh.frag", VertexInput.MESH, vertexFormat, VK_NULL_HANDLE);
+	}
+	
+	// Set 0 is always the frame and draw blocks, storageSetLayout is set 1 when it isn't VK_NULL_HANDLE.
+	// vertexFormat is the format of binding 0, unused when vertices are pulled
+	public VulkanMeshPipeline(VkDevice device, long renderPass, String vertexShaderPath, String fragmentShaderPath, VertexInput vertexInput, VertexFormat vertexFormat, long storageSetLayout) throws VulkanException {
 		int ret;
 		
 		try (MemoryStack stack = MemoryStack.stackPush()) {
-			// Vertex Input State
-			// Binding description
-			VkVertexInputBindingDescription.Buffer bindingDescriptor = VkVertexInputBindingDescription.callocStack(1, stack)
-					.binding(0)
-					.stride(3 * 4)
-					.inputRate(VK_VERTEX_INPUT_RATE_VERTEX);
-			
-			// Attribute descriptions
-			// Describes memory layout and shader attribute locations
-			VkVertexInputAttributeDescription.Buffer attributeDescriptions = VkVertexInputAttributeDescription.callocStack(1, stack);
-			attributeDescriptions.get(0)
-					.binding(0)
-					.location(0)
-					.format(VK_FORMAT_R32G32B32_SFLOAT)
-					.offset(0);
-			
-			VkPipelineVertexInputStateCreateInfo vertexInputState = VkPipelineVertexInputStateCreateInfo.callocStack(stack)
-					.sType(VK_STRUCTURE_TYPE_PIPELINE_VERTEX_INPUT_STATE_CREATE_INFO)
-					.pVertexBindingDescriptions(bindingDescriptor)
-					.pVertexAttributeDescriptions(attributeDescriptions);
+			VkPipelineVertexInputStateCreateInfo vertexInputState = createVertexInputState(vertexInput, vertexFormat, stack);
 			
 			// Vertex input state
 			// Describes the topology used with this pipeline
@@ -121,7 +123,7 @@ public class VulkanMeshPipeline {
 			VkPipelineShaderStageCreateInfo.Buffer shaderStages = VkPipelineShaderStageCreateInfo.callocStack(2, stack);
 			
 			// Vertex
-			vertexShader = new VulkanShader("shaders/mesh.vert", device, VK_SHADER_STAGE_VERTEX_BIT);
+			vertexShader = new VulkanShader(vertexShaderPath, device, VK_SHADER_STAGE_VERTEX_BIT);
 			shaderStages.get(0)
 					.sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO)
 					.stage(VK_SHADER_STAGE_VERTEX_BIT)
@@ -129,24 +131,39 @@ public class VulkanMeshPipeline {
 					.pName(stack.UTF8Safe("main"));
 			
 			// Fragment
-			fragmentShader = new VulkanShader("shaders/mesh.frag", device, VK_SHADER_STAGE_FRAGMENT_BIT);
+			fragmentShader = new VulkanShader(fragmentShaderPath, device, VK_SHADER_STAGE_FRAGMENT_BIT);
 			shaderStages.get(1)
 					.sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO)
 					.stage(VK_SHADER_STAGE_FRAGMENT_BIT)
 					.module(fragmentShader.getShaderModule())
 					.pName(stack.UTF8Safe("main"));
 			
-			// Push constants
-			VkPushConstantRange.Buffer pushConstantRanges = VkPushConstantRange.callocStack(1, stack)
-					.stageFlags(VK_SHADER_STAGE_VERTEX_BIT)
-					.offset(0)
-					.size(4*4*4);
+			// Descriptor set layout
+			// Frame and draw blocks, both dynamic uniform buffers in the renderer's uniform ring
+			VkDescriptorSetLayoutBinding.Buffer layoutBindings = VkDescriptorSetLayoutBinding.callocStack(2, stack);
+			for (int i = 0; i < 2; i++) {
+				layoutBindings.get(i)
+						.binding(i)
+						.descriptorType(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC)
+						.descriptorCount(1)
+						.stageFlags(VK_SHADER_STAGE_VERTEX_BIT);
+			}
+			
+			VkDescriptorSetLayoutCreateInfo descriptorLayout = VkDescriptorSetLayoutCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_LAYOUT_CREATE_INFO)
+					.pBindings(layoutBindings);
+			
+			LongBuffer pDescriptorSetLayout = stack.mallocLong(1);
+			ret = vkCreateDescriptorSetLayout(device, descriptorLayout, null, pDescriptorSetLayout);
+			VkUtils.check(ret, "Failed to create descriptor set layout for mesh pipeline");
+			descriptorSetLayout = pDescriptorSetLayout.get(0);
 			
 			// Create the pipeline layout that is used to generate the rendering pipelines that
 			// are based on this descriptor layout
+			LongBuffer pSetLayouts = storageSetLayout != VK_NULL_HANDLE ? stack.longs(descriptorSetLayout, storageSetLayout) : pDescriptorSetLayout;
 			VkPipelineLayoutCreateInfo pipelineLayoutCreateInfo = VkPipelineLayoutCreateInfo.callocStack(stack)
 					.sType(VK_STRUCTURE_TYPE_PIPELINE_LAYOUT_CREATE_INFO)
-					.pPushConstantRanges(pushConstantRanges);
+					.pSetLayouts(pSetLayouts);
 			
 			LongBuffer pPipelineLayout = stack.mallocLong(1);
 			ret = vkCreatePipelineLayout(device, pipelineLayoutCreateInfo, null, pPipelineLayout);
@@ -170,14 +187,106 @@ public class VulkanMeshPipeline {
 			
 			// Create Rendering pipeline
 			LongBuffer pPipeline = stack.mallocLong(1);
+			PipelineCreateEvent event = new PipelineCreateEvent();
+			event.begin();
 			ret = vkCreateGraphicsPipelines(device, VK_NULL_HANDLE, pipelineCreateInfo, null, pPipeline);
+			if (event.shouldCommit()) {
+				event.kind = "graphics";
+				event.result = VkUtils.formatRet(ret);
+				event.commit();
+			}
 			VkUtils.check(ret, "Failed to create vulkan mesh pipeline");
 			pipeline = pPipeline.get(0);
 			
-			Log.print("Created vulkan pipeline mesh");
+			Log.print("Created vulkan pipeline mesh for " + vertexShaderPath + " with " + vertexFormat + " vertices");
 		}
 	}
 	
+	private static VkPipelineVertexInputStateCreateInfo createVertexInputState(VertexInput vertexInput, VertexFormat vertexFormat, MemoryStack stack) {
+		if (vertexInput == VertexInput.PULLED) {
+			return VkPipelineVertexInputStateCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_PIPELINE_VERTEX_INPUT_STATE_CREATE_INFO);
+		}
+		if (vertexInput == VertexInput.GLYPH || vertexInput == VertexInput.GLYPH_STYLED) {
+			return createGlyphInputState(vertexInput == VertexInput.GLYPH_STYLED, vertexFormat, stack);
+		}
+		
+		// Vertex Input State
+		// Binding description
+		// Positions per vertex, world matrices per instance
+		VkVertexInputBindingDescription.Buffer bindingDescriptor = VkVertexInputBindingDescription.callocStack(2, stack);
+		bindingDescriptor.get(0)
+				.binding(0)
+				.stride(vertexFormat.getStride())
+				.inputRate(VK_VERTEX_INPUT_RATE_VERTEX);
+		bindingDescriptor.get(1)
+				.binding(1)
+				.stride(VulkanInstanceBuffer.MATRIX_SIZE)
+				.inputRate(VK_VERTEX_INPUT_RATE_INSTANCE);
+		
+		// Attribute descriptions
+		// Describes memory layout and shader attribute locations
+		VkVertexInputAttributeDescription.Buffer attributeDescriptions = VkVertexInputAttributeDescription.callocStack(5, stack);
+		attributeDescriptions.get(0)
+				.binding(0)
+				.location(0)
+				.format(vertexFormat.getVkFormat())
+				.offset(0);
+		
+		// A mat4 takes a location per column
+		for (int column = 0; column < 4; column++) {
+			attributeDescriptions.get(1 + column)
+					.binding(1)
+					.location(1 + column)
+					.format(VK_FORMAT_R32G32B32A32_SFLOAT)
+					.offset(column * 4 * 4);
+		}
+		
+		return VkPipelineVertexInputStateCreateInfo.callocStack(stack)
+				.sType(VK_STRUCTURE_TYPE_PIPELINE_VERTEX_INPUT_STATE_CREATE_INFO)
+				.pVertexBindingDescriptions(bindingDescriptor)
+				.pVertexAttributeDescriptions(attributeDescriptions);
+	}
+	
+	// Both instance bindings read the point buffer, a style stride of zero gives every instance the first style
+	private static VkPipelineVertexInputStateCreateInfo createGlyphInputState(boolean styled, VertexFormat vertexFormat, MemoryStack stack) {
+		VkVertexInputBindingDescription.Buffer bindingDescriptor = VkVertexInputBindingDescription.callocStack(3, stack);
+		bindingDescriptor.get(0)
+				.binding(0)
+				.stride(vertexFormat.getStride())
+				.inputRate(VK_VERTEX_INPUT_RATE_VERTEX);
+		bindingDescriptor.get(1)
+				.binding(1)
+				.stride(VulkanPointBuffer.POINT_SIZE)
+				.inputRate(VK_VERTEX_INPUT_RATE_INSTANCE);
+		bindingDescriptor.get(2)
+				.binding(2)
+				.stride(styled ? VulkanPointBuffer.STYLE_SIZE : 0)
+				.inputRate(VK_VERTEX_INPUT_RATE_INSTANCE);
+		
+		VkVertexInputAttributeDescription.Buffer attributeDescriptions = VkVertexInputAttributeDescription.callocStack(3, stack);
+		attributeDescriptions.get(0)
+				.binding(0)
+				.location(0)
+				.format(vertexFormat.getVkFormat())
+				.offset(0);
+		attributeDescriptions.get(1)
+				.binding(1)
+				.location(1)
+				.format(VK_FORMAT_R32G32B32_SFLOAT)
+				.offset(0);
+		attributeDescriptions.get(2)
+				.binding(2)
+				.location(2)
+				.format(VK_FORMAT_R32G32B32A32_SFLOAT)
+				.offset(0);
+		
+		return VkPipelineVertexInputStateCreateInfo.callocStack(stack)
+				.sType(VK_STRUCTURE_TYPE_PIPELINE_VERTEX_INPUT_STATE_CREATE_INFO)
+				.pVertexBindingDescriptions(bindingDescriptor)
+				.pVertexAttributeDescriptions(attributeDescriptions);
+	}
+	
 	public long get() {
 		return pipeline;
 	}
@@ -186,11 +295,16 @@ public class VulkanMeshPipeline {
 		return layout;
 	}
 	
+	public long getDescriptorSetLayout() {
+		return descriptorSetLayout;
+	}
+	
 	public void free(VkDevice device) {
 		vertexShader.free(device);
 		fragmentShader.free(device);
 		
 		vkDestroyPipelineLayout(device, layout, null);
+		vkDestroyDescriptorSetLayout(device, descriptorSetLayout, null);
 		vkDestroyPipeline(device, pipeline, null);
 	}
 }
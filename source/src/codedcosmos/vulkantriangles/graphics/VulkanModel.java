@@ -21,4 +21,13 @@ public interface VulkanModel {
 	public long getIndexBuffer();
 	public LongBuffer getVertexOffsets();
 	public int getLength();
+	
+	// Where the model sits in shared buffers, zero for models with buffers of their own
+	public int getFirstIndex();
+	public int getBaseVertex();
+	
+	// How the buffers are laid out, quantised positions are decoded with the bounds
+	public VertexFormat getVertexFormat();
+	public VertexBounds getBounds();
+	public int getIndexType();
 }
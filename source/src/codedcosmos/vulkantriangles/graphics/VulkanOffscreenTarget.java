@@ -0,0 +1,332 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.graphics;
+
+import codedcosmos.vulkantriangles.Log;
+import codedcosmos.vulkantriangles.VkUtils;
+import codedcosmos.vulkantriangles.VulkanDevice;
+import codedcosmos.vulkantriangles.VulkanException;
+import codedcosmos.vulkantriangles.memory.MemoryTracker;
+import codedcosmos.vulkantriangles.memory.MemoryUsage;
+import codedcosmos.vulkantriangles.memory.VulkanMapping;
+import codedcosmos.vulkantriangles.memory.VulkanMemory;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+public class VulkanOffscreenTarget implements VulkanRenderTarget {
+	
+	// Size
+	private int width;
+	private int height;
+	private int imageCount;
+	
+	// Color
+	private long[] colorImages;
+	private long[] colorMemory;
+	private long[] colorViews;
+	
+	// Depth stencil, one per image so frames in flight never share one
+	private long[] depthImages;
+	private long[] depthMemory;
+	private long[] depthViews;
+	
+	// Frame buffers
+	private long[] framebuffers;
+	
+	// Readback pool, persistently mapped
+	private int readbackSizeBytes;
+	private long[] readbackBuffers;
+	private long[] readbackMemory;
+	private VulkanMapping[] readbackMappings;
+	private ByteBuffer[] readbackData;
+	
+	// Rendering
+	private PointerBuffer pCommandbuffer;
+	private VkSubmitInfo submitInfo;
+	
+	private VkBufferImageCopy.Buffer copyRegion;
+	private VkImageMemoryBarrier.Buffer copyBarrier;
+	private VkBufferMemoryBarrier.Buffer hostBarrier;
+	
+	public VulkanOffscreenTarget(VulkanDevice vulkanDevice, VulkanRenderPass renderPass, int width, int height, int imageCount) throws VulkanException {
+		this.width = width;
+		this.height = height;
+		this.imageCount = imageCount;
+		
+		VkDevice device = vulkanDevice.get();
+		int colorFormat = renderPass.getColorFormat();
+		int depthFormat = renderPass.getDepthFormat();
+		
+		colorImages = new long[imageCount];
+		colorMemory = new long[imageCount];
+		colorViews = new long[imageCount];
+		
+		depthImages = new long[imageCount];
+		depthMemory = new long[imageCount];
+		depthViews = new long[imageCount];
+		
+		framebuffers = new long[imageCount];
+		
+		readbackSizeBytes = width * height * 4;
+		readbackBuffers = new long[imageCount];
+		readbackMemory = new long[imageCount];
+		readbackMappings = new VulkanMapping[imageCount];
+		readbackData = new ByteBuffer[imageCount];
+		
+		int ret;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			LongBuffer pHandle = stack.mallocLong(1);
+			
+			for (int i = 0; i < imageCount; i++) {
+				// --------------------------------------
+				// Color image
+				colorImages[i] = createImage(vulkanDevice, colorFormat, VK_IMAGE_USAGE_COLOR_ATTACHMENT_BIT | VK_IMAGE_USAGE_TRANSFER_SRC_BIT, pHandle);
+				colorMemory[i] = pHandle.get(0);
+				colorViews[i] = createImageView(device, colorImages[i], colorFormat, VK_IMAGE_ASPECT_COLOR_BIT);
+				
+				// --------------------------------------
+				// Depth stencil image
+				int depthAspect = VK_IMAGE_ASPECT_DEPTH_BIT;
+				if (depthFormat != VK_FORMAT_D32_SFLOAT && depthFormat != VK_FORMAT_D16_UNORM) {
+					depthAspect |= VK_IMAGE_ASPECT_STENCIL_BIT;
+				}
+				
+				depthImages[i] = createImage(vulkanDevice, depthFormat, VK_IMAGE_USAGE_DEPTH_STENCIL_ATTACHMENT_BIT, pHandle);
+				depthMemory[i] = pHandle.get(0);
+				depthViews[i] = createImageView(device, depthImages[i], depthFormat, depthAspect);
+				
+				// --------------------------------------
+				// Frame buffer
+				VkFramebufferCreateInfo frameBufferCreateInfo = VkFramebufferCreateInfo.callocStack(stack)
+						.sType(VK_STRUCTURE_TYPE_FRAMEBUFFER_CREATE_INFO)
+						.renderPass(renderPass.get())
+						.pAttachments(stack.longs(colorViews[i], depthViews[i]))
+						.width(width)
+						.height(height)
+						.layers(1);
+				
+				ret = vkCreateFramebuffer(device, frameBufferCreateInfo, null, pHandle);
+				VkUtils.check(ret, "Failed to create offscreen frame buffer " + i);
+				framebuffers[i] = pHandle.get(0);
+				
+				// --------------------------------------
+				// Readback buffer
+				VkBufferCreateInfo bufferCreateInfo = VkBufferCreateInfo.callocStack(stack)
+						.sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
+						.size(readbackSizeBytes)
+						.usage(VK_BUFFER_USAGE_TRANSFER_DST_BIT)
+						.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+				
+				ret = vkCreateBuffer(device, bufferCreateInfo, null, pHandle);
+				VkUtils.check(ret, "Failed to create offscreen readback buffer");
+				readbackBuffers[i] = pHandle.get(0);
+				
+				VkMemoryRequirements memoryRequirements = VkMemoryRequirements.callocStack(stack);
+				vkGetBufferMemoryRequirements(device, readbackBuffers[i], memoryRequirements);
+				
+				// Cached since the host reads it, invalidated before reading when it isn't coherent
+				int memoryType = vulkanDevice.getMemoryPolicy().allocate(device, memoryRequirements, MemoryUsage.READBACK, pHandle, "offscreen readback");
+				readbackMemory[i] = pHandle.get(0);
+				
+				ret = vkBindBufferMemory(device, readbackBuffers[i], readbackMemory[i], 0);
+				VkUtils.check(ret, "Failed to bind offscreen readback memory");
+				
+				readbackMappings[i] = vulkanDevice.getMemoryPolicy().map(device, readbackMemory[i], memoryType, memoryRequirements.size());
+				readbackData[i] = readbackMappings[i].getBuffer(0, readbackSizeBytes);
+			}
+		}
+		
+		// Allocate rendering structs
+		pCommandbuffer = MemoryTracker.memAllocPointer("offscreen", 1);
+		submitInfo = MemoryTracker.track("offscreen", VkSubmitInfo.calloc())
+				.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO);
+		
+		copyRegion = MemoryTracker.track("offscreen", VkBufferImageCopy.calloc(1))
+				.bufferOffset(0)
+				.bufferRowLength(0)
+				.bufferImageHeight(0);
+		copyRegion.imageSubresource()
+				.aspectMask(VK_IMAGE_ASPECT_COLOR_BIT)
+				.mipLevel(0)
+				.baseArrayLayer(0)
+				.layerCount(1);
+		copyRegion.imageExtent().set(width, height, 1);
+		
+		copyBarrier = MemoryTracker.track("offscreen", VkImageMemoryBarrier.calloc(1))
+				.sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER)
+				.srcAccessMask(VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT)
+				.dstAccessMask(VK_ACCESS_TRANSFER_READ_BIT)
+				.oldLayout(VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL)
+				.newLayout(VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL)
+				.srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+				.dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED);
+		copyBarrier.subresourceRange()
+				.aspectMask(VK_IMAGE_ASPECT_COLOR_BIT)
+				.levelCount(1)
+				.layerCount(1);
+		
+		hostBarrier = MemoryTracker.track("offscreen", VkBufferMemoryBarrier.calloc(1))
+				.sType(VK_STRUCTURE_TYPE_BUFFER_MEMORY_BARRIER)
+				.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+				.dstAccessMask(VK_ACCESS_HOST_READ_BIT)
+				.srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+				.dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+				.offset(0)
+				.size(VK_WHOLE_SIZE);
+		
+		Log.print("Created offscreen target with size of " + width + " " + height + " and " + imageCount + " images");
+	}
+	
+	private long createImage(VulkanDevice vulkanDevice, int format, int usage, LongBuffer pMemory) throws VulkanException {
+		int ret;
+		VkDevice device = vulkanDevice.get();
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			VkImageCreateInfo imageCreateInfo = VkImageCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO)
+					.imageType(VK_IMAGE_TYPE_2D)
+					.format(format)
+					.mipLevels(1)
+					.arrayLayers(1)
+					.samples(VK_SAMPLE_COUNT_1_BIT)
+					.tiling(VK_IMAGE_TILING_OPTIMAL)
+					.usage(usage)
+					.sharingMode(VK_SHARING_MODE_EXCLUSIVE)
+					.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
+			imageCreateInfo.extent().width(width).height(height).depth(1);
+			
+			LongBuffer pImage = stack.mallocLong(1);
+			ret = vkCreateImage(device, imageCreateInfo, null, pImage);
+			VkUtils.check(ret, "Failed to create offscreen image");
+			long image = pImage.get(0);
+			
+			VkMemoryRequirements memoryRequirements = VkMemoryRequirements.callocStack(stack);
+			vkGetImageMemoryRequirements(device, image, memoryRequirements);
+			vulkanDevice.getMemoryPolicy().allocate(device, memoryRequirements, MemoryUsage.GPU_ONLY, pMemory, "offscreen image");
+			
+			ret = vkBindImageMemory(device, image, pMemory.get(0), 0);
+			VkUtils.check(ret, "Failed to bind offscreen image memory");
+			
+			return image;
+		}
+	}
+	
+	private long createImageView(VkDevice device, long image, int format, int aspect) throws VulkanException {
+		int ret;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			VkImageViewCreateInfo viewCreateInfo = VkImageViewCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_IMAGE_VIEW_CREATE_INFO)
+					.image(image)
+					.viewType(VK_IMAGE_VIEW_TYPE_2D)
+					.format(format);
+			viewCreateInfo.subresourceRange()
+					.aspectMask(aspect)
+					.levelCount(1)
+					.layerCount(1);
+			
+			LongBuffer pView = stack.mallocLong(1);
+			ret = vkCreateImageView(device, viewCreateInfo, null, pView);
+			VkUtils.check(ret, "Failed to create offscreen image view");
+			return pView.get(0);
+		}
+	}
+	
+	public void recordReadback(VkCommandBuffer commandBuffer, int idx) {
+		// The render pass leaves the color image in TRANSFER_SRC_OPTIMAL, wait for its writes
+		copyBarrier.image(colorImages[idx]);
+		vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT, 0, null, null, copyBarrier);
+		
+		vkCmdCopyImageToBuffer(commandBuffer, colorImages[idx], VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL, readbackBuffers[idx], copyRegion);
+		
+		// Make the copy visible to the host once the frame's fence signals
+		hostBarrier.buffer(readbackBuffers[idx]);
+		vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_HOST_BIT, 0, null, hostBarrier, null);
+	}
+	
+	public void submit(VkQueue queue, long renderFence, VkCommandBuffer commandBuffer) throws VulkanException {
+		pCommandbuffer.put(0, commandBuffer);
+		submitInfo.pCommandBuffers(pCommandbuffer);
+		
+		int ret = vkQueueSubmit(queue, submitInfo, renderFence);
+		VkUtils.check(ret, "Failed to submit offscreen command");
+	}
+	
+	// Only valid once the render fence of idx has signalled, and until idx is submitted again
+	// Only valid once the render fence for idx has signalled
+	public ByteBuffer getReadback(int idx) throws VulkanException {
+		readbackMappings[idx].invalidate(0, readbackSizeBytes);
+		return readbackData[idx];
+	}
+	
+	public int getReadbackSize() {
+		return readbackSizeBytes;
+	}
+	
+	public long getImage(int idx) {
+		return colorImages[idx];
+	}
+	
+	@Override
+	public long getFramebuffer(int idx) {
+		return framebuffers[idx];
+	}
+	
+	@Override
+	public int getWidth() {
+		return width;
+	}
+	
+	@Override
+	public int getHeight() {
+		return height;
+	}
+	
+	@Override
+	public int getImageCount() {
+		return imageCount;
+	}
+	
+	public void free(VkDevice device) {
+		MemoryTracker.memFree("offscreen", pCommandbuffer);
+		MemoryTracker.free("offscreen", submitInfo);
+		MemoryTracker.free("offscreen", copyRegion);
+		MemoryTracker.free("offscreen", copyBarrier);
+		MemoryTracker.free("offscreen", hostBarrier);
+		
+		for (int i = 0; i < imageCount; i++) {
+			vkDestroyFramebuffer(device, framebuffers[i], null);
+			
+			vkDestroyImageView(device, colorViews[i], null);
+			vkDestroyImage(device, colorImages[i], null);
+			VulkanMemory.free(device, colorMemory[i]);
+			
+			vkDestroyImageView(device, depthViews[i], null);
+			vkDestroyImage(device, depthImages[i], null);
+			VulkanMemory.free(device, depthMemory[i]);
+			
+			readbackMappings[i].unmap();
+			vkDestroyBuffer(device, readbackBuffers[i], null);
+			VulkanMemory.free(device, readbackMemory[i]);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.graphics;
+
+import codedcosmos.vulkantriangles.VulkanException;
+import codedcosmos.vulkantriangles.compute.VulkanPointBuffer;
+import org.lwjgl.vulkan.VkDevice;
+
+import static org.lwjgl.vulkan.VK10.VK_NULL_HANDLE;
+
+// Draws a template model at every point with one instanced draw, the points and their styles are
+// bound straight from the point buffer so memory is the points plus one template, whatever its size
+public class VulkanPointGlyphs {
+	private VulkanMeshPipeline pipeline;
+	private VulkanModel template;
+	private VulkanPointBuffer points;
+	
+	public VulkanPointGlyphs(VkDevice device, long renderPass, VulkanModel template, VulkanPointBuffer points) throws VulkanException {
+		this.template = template;
+		this.points = points;
+		
+		VulkanMeshPipeline.VertexInput vertexInput = points.isStyled() ? VulkanMeshPipeline.VertexInput.GLYPH_STYLED : VulkanMeshPipeline.VertexInput.GLYPH;
+		pipeline = new VulkanMeshPipeline(device, renderPass, "shaders/glyph.vert", "shaders/glyph.frag", vertexInput, template.getVertexFormat(), VK_NULL_HANDLE);
+	}
+	
+	public VulkanMeshPipeline getPipeline() {
+		return pipeline;
+	}
+	
+	public VulkanModel getTemplate() {
+		return template;
+	}
+	
+	public VulkanPointBuffer getPoints() {
+		return points;
+	}
+	
+	public void free(VkDevice device) {
+		pipeline.free(device);
+	}
+}
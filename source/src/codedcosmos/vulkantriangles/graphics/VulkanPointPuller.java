@@ -0,0 +1,121 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.graphics;
+
+import codedcosmos.vulkantriangles.VkUtils;
+import codedcosmos.vulkantriangles.VulkanException;
+import codedcosmos.vulkantriangles.compute.VulkanPointBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.nio.LongBuffer;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+// Draws a triangle per point with no compute pass and no expanded buffers, the vertex shader
+// reads the point buffer and places each corner from gl_VertexIndex
+public class VulkanPointPuller {
+	public static final int VERTICES_PER_POINT = 3;
+	
+	private VulkanMeshPipeline pipeline;
+	private VulkanPointBuffer points;
+	
+	private long descriptorSetLayout;
+	private long descriptorPool;
+	private long descriptorSet;
+	
+	public VulkanPointPuller(VkDevice device, long renderPass, VulkanPointBuffer points) throws VulkanException {
+		this.points = points;
+		int ret;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			// ------------------
+			// Set 1, the points
+			VkDescriptorSetLayoutBinding.Buffer layoutBindings = VkDescriptorSetLayoutBinding.callocStack(1, stack)
+					.binding(0)
+					.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+					.descriptorCount(1)
+					.stageFlags(VK_SHADER_STAGE_VERTEX_BIT);
+			
+			VkDescriptorSetLayoutCreateInfo descriptorLayout = VkDescriptorSetLayoutCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_LAYOUT_CREATE_INFO)
+					.pBindings(layoutBindings);
+			
+			LongBuffer pHandle = stack.mallocLong(1);
+			ret = vkCreateDescriptorSetLayout(device, descriptorLayout, null, pHandle);
+			VkUtils.check(ret, "Failed to create descriptor set layout for point pulling");
+			descriptorSetLayout = pHandle.get(0);
+			
+			// ------------------
+			// Descriptor set, the points never move so it is written once
+			VkDescriptorPoolSize.Buffer typeCounts = VkDescriptorPoolSize.callocStack(1, stack)
+					.type(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+					.descriptorCount(1);
+			
+			VkDescriptorPoolCreateInfo descriptorPoolInfo = VkDescriptorPoolCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_POOL_CREATE_INFO)
+					.pPoolSizes(typeCounts)
+					.maxSets(1);
+			
+			ret = vkCreateDescriptorPool(device, descriptorPoolInfo, null, pHandle);
+			VkUtils.check(ret, "Failed to create descriptor pool for point pulling");
+			descriptorPool = pHandle.get(0);
+			
+			VkDescriptorSetAllocateInfo allocateInfo = VkDescriptorSetAllocateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_ALLOCATE_INFO)
+					.descriptorPool(descriptorPool)
+					.pSetLayouts(stack.longs(descriptorSetLayout));
+			
+			ret = vkAllocateDescriptorSets(device, allocateInfo, pHandle);
+			VkUtils.check(ret, "Failed to allocate descriptor set for point pulling");
+			descriptorSet = pHandle.get(0);
+			
+			VkDescriptorBufferInfo.Buffer bufferInfo = VkDescriptorBufferInfo.callocStack(1, stack)
+					.buffer(points.getBuffer())
+					.offset(0)
+					.range(points.getSize());
+			
+			VkWriteDescriptorSet.Buffer writes = VkWriteDescriptorSet.callocStack(1, stack)
+					.sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
+					.dstSet(descriptorSet)
+					.dstBinding(0)
+					.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+					.descriptorCount(1)
+					.pBufferInfo(bufferInfo);
+			vkUpdateDescriptorSets(device, writes, null);
+		}
+		
+		// Set 0 is the renderer's frame and draw blocks, like every mesh pipeline
+		pipeline = new VulkanMeshPipeline(device, renderPass, "shaders/pull.vert", "shaders/mesh.frag", VulkanMeshPipeline.VertexInput.PULLED, VertexFormat.FLOAT, descriptorSetLayout);
+	}
+	
+	public VulkanMeshPipeline getPipeline() {
+		return pipeline;
+	}
+	
+	public long getDescriptorSet() {
+		return descriptorSet;
+	}
+	
+	public int getVertexCount() {
+		return points.getPointCount() * VERTICES_PER_POINT;
+	}
+	
+	public void free(VkDevice device) {
+		pipeline.free(device);
+		vkDestroyDescriptorPool(device, descriptorPool, null);
+		vkDestroyDescriptorSetLayout(device, descriptorSetLayout, null);
+	}
+}
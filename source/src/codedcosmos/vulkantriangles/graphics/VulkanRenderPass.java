@@ -23,6 +23,7 @@ import org.lwjgl.vulkan.*;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
 
+import static org.lwjgl.vulkan.KHRSurface.VK_COLOR_SPACE_SRGB_NONLINEAR_KHR;
 import static org.lwjgl.vulkan.KHRSurface.vkGetPhysicalDeviceSurfaceFormatsKHR;
 import static org.lwjgl.vulkan.KHRSwapchain.VK_IMAGE_LAYOUT_PRESENT_SRC_KHR;
 import static org.lwjgl.vulkan.VK10.*;
@@ -40,7 +41,7 @@ public class VulkanRenderPass {
 		
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			// --------------------------------------
-			// Determine color and depth from surface
+			// Determine color from surface
 			// Determine color formats
 			IntBuffer colorCount = stack.mallocInt(1);
 			ret = vkGetPhysicalDeviceSurfaceFormatsKHR(device.getPhysicalDevice(), surface, colorCount, null);
@@ -56,7 +57,24 @@ public class VulkanRenderPass {
 				colorFormat = pSurfaceFormats.get(0).format();
 			}
 			colorSpace = pSurfaceFormats.get(0).colorSpace();
-			
+		}
+		
+		createRenderPass(device, VK_IMAGE_LAYOUT_PRESENT_SRC_KHR);
+	}
+	
+	public VulkanRenderPass(VkDevice device, int colorFormat) throws VulkanException {
+		// Offscreen targets are copied out after rendering rather than presented
+		this.colorFormat = colorFormat;
+		this.colorSpace = VK_COLOR_SPACE_SRGB_NONLINEAR_KHR;
+		
+		createRenderPass(device, VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL);
+	}
+	
+	private void createRenderPass(VkDevice device, int colorFinalLayout) throws VulkanException {
+		int ret;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			// --------------------------------------
 			// Determine depth format
 			int[] depthFormats = new int[] {
 					VK_FORMAT_D32_SFLOAT_S8_UINT,
@@ -94,7 +112,7 @@ public class VulkanRenderPass {
 					.stencilLoadOp(VK_ATTACHMENT_LOAD_OP_DONT_CARE)
 					.stencilStoreOp(VK_ATTACHMENT_STORE_OP_DONT_CARE)
 					.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED)
-					.finalLayout(VK_IMAGE_LAYOUT_PRESENT_SRC_KHR);
+					.finalLayout(colorFinalLayout);
 			
 			attachments.get(1) // <- depth-stencil attachment
 					.format(depthFormat)
@@ -104,7 +122,7 @@ public class VulkanRenderPass {
 					.stencilLoadOp(VK_ATTACHMENT_LOAD_OP_DONT_CARE)
 					.stencilStoreOp(VK_ATTACHMENT_STORE_OP_DONT_CARE)
 					.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED)
-					.finalLayout(VK_IMAGE_LAYOUT_PRESENT_SRC_KHR);
+					.finalLayout(VK_IMAGE_LAYOUT_DEPTH_STENCIL_READ_ONLY_OPTIMAL);
 			
 			VkAttachmentReference.Buffer colorReference = VkAttachmentReference.callocStack(1, stack)
 					.attachment(0)
@@ -120,12 +138,22 @@ public class VulkanRenderPass {
 					.pColorAttachments(colorReference)
 					.pDepthStencilAttachment(depthReference);
 			
+			// Waits for last frame's attachment writes, and for compute that reads last frame's depth before it is cleared
+			VkSubpassDependency.Buffer dependencies = VkSubpassDependency.callocStack(1, stack)
+					.srcSubpass(VK_SUBPASS_EXTERNAL)
+					.dstSubpass(0)
+					.srcStageMask(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT | VK_PIPELINE_STAGE_LATE_FRAGMENT_TESTS_BIT | VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT)
+					.srcAccessMask(VK_ACCESS_DEPTH_STENCIL_ATTACHMENT_WRITE_BIT)
+					.dstStageMask(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT | VK_PIPELINE_STAGE_EARLY_FRAGMENT_TESTS_BIT | VK_PIPELINE_STAGE_LATE_FRAGMENT_TESTS_BIT)
+					.dstAccessMask(VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT | VK_ACCESS_DEPTH_STENCIL_ATTACHMENT_READ_BIT | VK_ACCESS_DEPTH_STENCIL_ATTACHMENT_WRITE_BIT);
+			
 			// --------------------------------------
 			// Create render pass
 			VkRenderPassCreateInfo renderPassCreateInfo = VkRenderPassCreateInfo.callocStack(stack)
 					.sType(VK_STRUCTURE_TYPE_RENDER_PASS_CREATE_INFO)
 					.pAttachments(attachments)
-					.pSubpasses(subpass);
+					.pSubpasses(subpass)
+					.pDependencies(dependencies);
 			
 			LongBuffer pRenderPass = stack.mallocLong(1);
 			ret = vkCreateRenderPass(device, renderPassCreateInfo, null, pRenderPass);
@@ -65,7 +65,7 @@ public class VulkanReusableCommandBuffer {
 					.level(VK_COMMAND_BUFFER_LEVEL_PRIMARY)
 					.commandBufferCount(count);
 			
-			PointerBuffer pCommandBuffer = stack.mallocPointer(4);
+			PointerBuffer pCommandBuffer = stack.mallocPointer(count);
 			ret = vkAllocateCommandBuffers(device, allocateInfo, pCommandBuffer);
 			VkUtils.check(ret, "Failed to allocate render command buffers");
 			
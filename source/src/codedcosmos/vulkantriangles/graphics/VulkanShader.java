@@ -16,6 +16,7 @@ package codedcosmos.vulkantriangles.graphics;
 
 import codedcosmos.vulkantriangles.VkUtils;
 import codedcosmos.vulkantriangles.VulkanException;
+import codedcosmos.vulkantriangles.profiling.ShaderCompileEvent;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.VkDevice;
 import org.lwjgl.vulkan.VkShaderModuleCreateInfo;
@@ -37,9 +38,13 @@ public class VulkanShader {
 	private long shaderModule;
 	
 	public VulkanShader(String path, VkDevice device, int stage) throws VulkanException {
+		ShaderCompileEvent event = new ShaderCompileEvent();
+		event.begin();
+		
 		try {
 			// Load raw shader source
 			String shaderSrc = loadTextFile(path);
+			event.sourceSize = shaderSrc.length();
 			
 			// Get shaderc kind
 			int shadercStage = VkUtils.vulkanShaderStageToShadercKind(stage);
@@ -65,12 +70,20 @@ public class VulkanShader {
 			
 			// Create Shader module
 			ByteBuffer spirvCode = shaderc_result_get_bytes(result);
+			event.spirvSize = spirvCode.remaining();
 			shaderModule = createShaderModule(device, spirvCode);
+			event.success = true;
 			
 			// Make sure to free the shaderc result handle
 			shaderc_result_release(result);
 		} catch (IOException e) {
 			throw new VulkanException("Encountered IOException when trying to load shader: " + e.getMessage());
+		} finally {
+			if (event.shouldCommit()) {
+				event.path = path;
+				event.stage = stage;
+				event.commit();
+			}
 		}
 	}
 	
@@ -19,29 +19,36 @@ import codedcosmos.vulkantriangles.Log;
 import codedcosmos.vulkantriangles.VkUtils;
 import codedcosmos.vulkantriangles.VulkanDevice;
 import codedcosmos.vulkantriangles.VulkanException;
-import org.lwjgl.PointerBuffer;
+import codedcosmos.vulkantriangles.memory.MemoryTracker;
+import codedcosmos.vulkantriangles.memory.MemoryUsage;
+import codedcosmos.vulkantriangles.memory.VulkanMapping;
+import codedcosmos.vulkantriangles.memory.VulkanMemory;
+import codedcosmos.vulkantriangles.memory.VulkanResidencyManager;
+import codedcosmos.vulkantriangles.memory.VulkanResident;
+import codedcosmos.vulkantriangles.memory.VulkanUploadLane;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.VkBufferCreateInfo;
 import org.lwjgl.vulkan.VkDevice;
-import org.lwjgl.vulkan.VkMemoryAllocateInfo;
 import org.lwjgl.vulkan.VkMemoryRequirements;
 
 import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 import java.nio.LongBuffer;
 
 import static org.lwjgl.system.MemoryUtil.memAddress;
 import static org.lwjgl.system.MemoryUtil.memCopy;
 import static org.lwjgl.vulkan.VK10.*;
-import static org.lwjgl.vulkan.VK10.vkFreeMemory;
 
-public class VulkanSimpleModel implements VulkanModel {
+public class VulkanSimpleModel implements VulkanModel, VulkanResident {
 	
 	
 	private int length;
 	
+	// Layout of the buffers
+	private VertexFormat format;
+	private VertexBounds bounds;
+	private int indexType;
+	
 	// Vertex
 	private long vertexBuffer;
 	private LongBuffer pVertexBuffer;
@@ -54,22 +61,60 @@ public class VulkanSimpleModel implements VulkanModel {
 	
 	private long indexMemory;
 	
+	// Streamed models live in a range of the shared geometry arena instead of the buffers above
+	private VulkanGeometryArena arena;
+	private VulkanGeometryArena.Range range;
+	
+	// Host copy of a streamed model, so its device buffers can be dropped and streamed again
+	private float[] vertices;
+	private int[] indices;
+	private boolean resident;
+	
+	public VulkanSimpleModel(VulkanGeometryArena arena, VulkanUploadLane uploadLane, int dstQueueFamily, float[] vertices, int[] indices) throws VulkanException {
+		length = indices.length;
+		format = arena.getVertexFormat();
+		bounds = format.getBounds(vertices);
+		indexType = IndexFormat.getIndexType(vertices.length / 3);
+		this.arena = arena;
+		this.vertices = vertices;
+		this.indices = indices;
+		
+		stream(uploadLane, dstQueueFamily);
+		
+		Log.print("Streaming new vulkan model");
+	}
+	
+	private void stream(VulkanUploadLane uploadLane, int dstQueueFamily) throws VulkanException {
+		range = arena.allocate(vertices, bounds, indices, indexType, uploadLane, dstQueueFamily);
+		resident = true;
+	}
+	
 	public VulkanSimpleModel(VulkanDevice device, float[] vertices, int[] indices) throws VulkanException {
+		this(device, vertices, indices, VertexFormat.DEFAULT);
+	}
+	
+	public VulkanSimpleModel(VulkanDevice device, float[] vertices, int[] indices, VertexFormat format) throws VulkanException {
 		int ret;
 		
+		// Host copies of the data, freed once the buffers are filled or creation fails
+		ByteBuffer vertexByteBuffer = null;
+		ByteBuffer indexByteBuffer = null;
+		
 		try (MemoryStack stack = MemoryStack.stackPush()) {
 			length = indices.length;
+			this.format = format;
+			bounds = format.getBounds(vertices);
+			indexType = IndexFormat.getIndexType(vertices.length / 3);
 			
 			// ------------------
 			// Vertex buffer
 			
-			ByteBuffer vertexByteBuffer = stack.malloc(vertices.length * 4);
-			FloatBuffer vertexFb = vertexByteBuffer.asFloatBuffer();
+			// On the heap, imported meshes don't fit the stack
+			vertexByteBuffer = MemoryTracker.memAlloc("model", vertices.length / 3 * format.getStride());
 			
 			// Put data in buffer
-			for (int i = 0; i < vertices.length; i++) {
-				vertexFb.put(vertices[i]);
-			}
+			format.encode(vertices, bounds, vertexByteBuffer);
+			vertexByteBuffer.flip();
 			
 			// Allocate Buffer
 			VkMemoryRequirements vertexMemoryRequirements = VkMemoryRequirements.callocStack(stack);
@@ -79,58 +124,41 @@ public class VulkanSimpleModel implements VulkanModel {
 					.size(vertexByteBuffer.remaining())
 					.usage(VK_BUFFER_USAGE_VERTEX_BUFFER_BIT);
 			
-			pVertexBuffer = MemoryUtil.memAllocLong(1);
+			pVertexBuffer = MemoryTracker.memAllocLong("model", 1);
 			ret = vkCreateBuffer(device.get(), vertexBufferCreateInfo, null, pVertexBuffer);
 			VkUtils.check(ret, "Failed to create buffer for model");
 			vertexBuffer = pVertexBuffer.get(0);
 			
 			// Get memory requirements
 			vkGetBufferMemoryRequirements(device.get(), vertexBuffer, vertexMemoryRequirements);
-			IntBuffer vertexMemoryTypeIndex = stack.mallocInt(1);
-			device.getMemoryType(vertexMemoryRequirements.memoryTypeBits(), VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT, vertexMemoryTypeIndex);
-			
-			VkMemoryAllocateInfo vertexMemoryAllocateInfo = VkMemoryAllocateInfo.callocStack(stack)
-					.sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
-					.allocationSize(vertexMemoryRequirements.size())
-					.memoryTypeIndex(vertexMemoryTypeIndex.get(0));
 			
 			// Memory
 			LongBuffer pVertexMemory = stack.mallocLong(1);
-			ret = vkAllocateMemory(device.get(), vertexMemoryAllocateInfo, null, pVertexMemory);
-			VkUtils.check(ret, "Failed to allocate vertex model memory");
+			int vertexMemoryType = device.getMemoryPolicy().allocate(device.get(), vertexMemoryRequirements, MemoryUsage.DYNAMIC, pVertexMemory, "model vertices");
 			vertexMemory = pVertexMemory.get(0);
 			
-			// Map
-			PointerBuffer pVertexData = stack.mallocPointer(1);
-			ret = vkMapMemory(device.get(), vertexMemory, 0, vertexByteBuffer.remaining(), 0, pVertexData);
-			VkUtils.check(ret, "Failed to map vertex model memory");
-			long vertexData = pVertexData.get(0);
-			
-			// Copy
-			memCopy(memAddress(vertexByteBuffer), vertexData, vertexByteBuffer.remaining());
-			vkUnmapMemory(device.get(), vertexMemory);
+			// Map and copy
+			VulkanMapping vertexMapping = device.getMemoryPolicy().map(device.get(), vertexMemory, vertexMemoryType, vertexMemoryRequirements.size());
+			memCopy(memAddress(vertexByteBuffer), vertexMapping.getAddress(), vertexByteBuffer.remaining());
+			vertexMapping.flush(0, vertexByteBuffer.remaining());
+			vertexMapping.unmap();
 			ret = vkBindBufferMemory(device.get(), vertexBuffer, vertexMemory, 0);
 			VkUtils.check(ret, "Failed to copy memory to vertex buffer");
 			
 			// Create offsets
-			pVertexOffsets = MemoryUtil.memAllocLong(1);
+			pVertexOffsets = MemoryTracker.memAllocLong("model", 1);
 			pVertexOffsets.put(0, 0L);
 			
 			// ------------------
 			// Index buffer
 			
-			ByteBuffer indexByteBuffer = stack.malloc(indices.length * 4);
-			IntBuffer indexIb = indexByteBuffer.asIntBuffer();
+			indexByteBuffer = MemoryTracker.memAlloc("model", indices.length * IndexFormat.getIndexSize(indexType));
 			
 			// Put data in buffer
-			for (int i = 0; i < indices.length; i++) {
-				indexIb.put(indices[i]);
-			}
+			IndexFormat.encode(indices, indexType, indexByteBuffer);
+			indexByteBuffer.flip();
 			
 			// Allocate Buffer
-			VkMemoryAllocateInfo indexMemoryAllocateInfo = VkMemoryAllocateInfo.callocStack(stack)
-					.sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO);
-			
 			VkMemoryRequirements indexMemoryRequirements = VkMemoryRequirements.callocStack(stack);
 			
 			VkBufferCreateInfo bufferCreateInfo = VkBufferCreateInfo.callocStack(stack)
@@ -145,49 +173,49 @@ public class VulkanSimpleModel implements VulkanModel {
 			
 			//
 			vkGetBufferMemoryRequirements(device.get(), indexBuffer, indexMemoryRequirements);
-			IntBuffer memoryTypeIndex = stack.mallocInt(1);
-			device.getMemoryType(indexMemoryRequirements.memoryTypeBits(), VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT, memoryTypeIndex);
-			indexMemoryAllocateInfo
-					.allocationSize(indexMemoryRequirements.size())
-					.memoryTypeIndex(memoryTypeIndex.get(0));
 			
 			// Memory
 			LongBuffer pMemory = stack.mallocLong(1);
-			ret = vkAllocateMemory(device.get(), indexMemoryAllocateInfo, null, pMemory);
-			VkUtils.check(ret, "Failed to allocate model memory");
+			int indexMemoryType = device.getMemoryPolicy().allocate(device.get(), indexMemoryRequirements, MemoryUsage.DYNAMIC, pMemory, "model indices");
 			indexMemory = pMemory.get(0);
 			
-			// Map
-			PointerBuffer pData = stack.mallocPointer(1);
-			ret = vkMapMemory(device.get(), indexMemory, 0, indexByteBuffer.remaining(), 0, pData);
-			VkUtils.check(ret, "Failed to map model memory");
-			long data = pData.get(0);
-			
-			// Copy
-			memCopy(memAddress(indexByteBuffer), data, indexByteBuffer.remaining());
-			vkUnmapMemory(device.get(), indexMemory);
+			// Map and copy
+			VulkanMapping indexMapping = device.getMemoryPolicy().map(device.get(), indexMemory, indexMemoryType, indexMemoryRequirements.size());
+			memCopy(memAddress(indexByteBuffer), indexMapping.getAddress(), indexByteBuffer.remaining());
+			indexMapping.flush(0, indexByteBuffer.remaining());
+			indexMapping.unmap();
 			ret = vkBindBufferMemory(device.get(), indexBuffer, indexMemory, 0);
 			VkUtils.check(ret, "Failed to copy memory to vertex buffer");
 			
 			// ------------------
 			// Finish
-			Log.print("Created new vulkan model");
+			Log.print("Created new vulkan model, " + format + " vertices and " + IndexFormat.getIndexSize(indexType) * 8 + " bit indices");
+		} finally {
+			if (vertexByteBuffer != null) {
+				MemoryTracker.memFree("model", vertexByteBuffer);
+			}
+			if (indexByteBuffer != null) {
+				MemoryTracker.memFree("model", indexByteBuffer);
+			}
 		}
+		
+		// Host visible models are never evicted
+		resident = true;
 	}
 	
 	@Override
 	public LongBuffer getVertexPointer() {
-		return pVertexBuffer;
+		return arena != null ? arena.getVertexPointer() : pVertexBuffer;
 	}
 	
 	@Override
 	public long getIndexBuffer() {
-		return indexBuffer;
+		return arena != null ? arena.getIndexBuffer() : indexBuffer;
 	}
 	
 	@Override
 	public LongBuffer getVertexOffsets() {
-		return pVertexOffsets;
+		return arena != null ? arena.getVertexOffsets() : pVertexOffsets;
 	}
 	
 	@Override
@@ -195,14 +223,90 @@ public class VulkanSimpleModel implements VulkanModel {
 		return length;
 	}
 	
+	@Override
+	public int getFirstIndex() {
+		return range != null ? range.getFirstIndex() : 0;
+	}
+	
+	@Override
+	public int getBaseVertex() {
+		return range != null ? range.getBaseVertex() : 0;
+	}
+	
+	@Override
+	public VertexFormat getVertexFormat() {
+		return format;
+	}
+	
+	@Override
+	public VertexBounds getBounds() {
+		return bounds;
+	}
+	
+	@Override
+	public int getIndexType() {
+		return indexType;
+	}
+	
+	// Streamed models can only be drawn once both uploads are acquired
+	public boolean isReady() {
+		return range == null ? arena == null : range.isReady();
+	}
+	
+	@Override
+	public String getResidentName() {
+		return "model of " + length + " indices";
+	}
+	
+	@Override
+	public long getResidentBytes() {
+		return vertices == null ? 0 : vertices.length / 3 * (long) format.getStride() + indices.length * (long) IndexFormat.getIndexSize(indexType);
+	}
+	
+	@Override
+	public boolean isResident() {
+		return resident;
+	}
+	
+	// Only streamed models keep a host copy to come back from
+	@Override
+	public boolean canEvict() {
+		return vertices != null && isReady();
+	}
+	
+	// The range is handed back to the arena, eviction only happens to models unused for longer than frames in flight
+	@Override
+	public void evict(VulkanResidencyManager manager) {
+		freeBuffers(manager.getVulkanDevice().get());
+		resident = false;
+	}
+	
+	@Override
+	public void restore(VulkanResidencyManager manager) throws VulkanException {
+		stream(manager.getUploadLane(), manager.getQueueFamily());
+	}
+	
+	private void freeBuffers(VkDevice device) {
+		// Streamed models are in the arena, host visible ones have their own allocations
+		if (arena != null) {
+			arena.free(range);
+			range = null;
+		} else {
+			vkDestroyBuffer(device, vertexBuffer, null);
+			vkDestroyBuffer(device, indexBuffer, null);
+			VulkanMemory.free(device, vertexMemory);
+			VulkanMemory.free(device, indexMemory);
+		}
+	}
+	
 	public void free(VkDevice device) {
-		MemoryUtil.memFree(pVertexBuffer);
-		MemoryUtil.memFree(pVertexOffsets);
-		
-		vkDestroyBuffer(device, vertexBuffer, null);
-		vkFreeMemory(device, vertexMemory, null);
+		if (arena == null) {
+			MemoryTracker.memFree("model", pVertexBuffer);
+			MemoryTracker.memFree("model", pVertexOffsets);
+		}
 		
-		vkDestroyBuffer(device, indexBuffer, null);
-		vkFreeMemory(device, indexMemory, null);
+		if (resident) {
+			freeBuffers(device);
+		}
 	}
 }
@@ -18,9 +18,13 @@ import codedcosmos.vulkantriangles.Log;
 import codedcosmos.vulkantriangles.VkUtils;
 import codedcosmos.vulkantriangles.VulkanDevice;
 import codedcosmos.vulkantriangles.VulkanException;
+import codedcosmos.vulkantriangles.memory.MemoryTracker;
+import codedcosmos.vulkantriangles.memory.MemoryUsage;
+import codedcosmos.vulkantriangles.memory.VulkanMemory;
+import codedcosmos.vulkantriangles.profiling.FrameSubmitEvent;
+import codedcosmos.vulkantriangles.profiling.SwapchainRecreateEvent;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
-import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.*;
 
 import java.nio.IntBuffer;
@@ -30,7 +34,7 @@ import static org.lwjgl.vulkan.KHRSurface.*;
 import static org.lwjgl.vulkan.KHRSwapchain.*;
 import static org.lwjgl.vulkan.VK10.*;
 
-public class VulkanSwapchain {
+public class VulkanSwapchain implements VulkanRenderTarget {
 	
 	// Swapchain
 	private long swapchain;
@@ -45,6 +49,9 @@ public class VulkanSwapchain {
 	private long depthStencilImage;
 	private long depthStencilMemory;
 	
+	// Depth only view for compute to read last frame's depth, null when the format can't be sampled
+	private long depthSampleView;
+	
 	// Frame buffers
 	private long[] framebuffers;
 	
@@ -67,19 +74,19 @@ public class VulkanSwapchain {
 	
 	public VulkanSwapchain(VulkanDevice device, VulkanRenderPass renderPass, GameWindow window) throws VulkanException {
 		// Allocate buffers
-		pImageIndex = MemoryUtil.memAllocInt(1);
+		pImageIndex = MemoryTracker.memAllocInt("swapchain", 1);
 		
-		pCommandbuffer = MemoryUtil.memAllocPointer(1);
-		pImageAcquireSemaphore = MemoryUtil.memAllocLong(1);
-		pWaitDstStageMask = MemoryUtil.memAllocInt(1);
-		pRenderCompleteSemaphore = MemoryUtil.memAllocLong(1);
-		pSwapchain = MemoryUtil.memAllocLong(1);
+		pCommandbuffer = MemoryTracker.memAllocPointer("swapchain", 1);
+		pImageAcquireSemaphore = MemoryTracker.memAllocLong("swapchain", 1);
+		pWaitDstStageMask = MemoryTracker.memAllocInt("swapchain", 1);
+		pRenderCompleteSemaphore = MemoryTracker.memAllocLong("swapchain", 1);
+		pSwapchain = MemoryTracker.memAllocLong("swapchain", 1);
 		
 		// Allocate structs
-		submitInfo = VkSubmitInfo.calloc()
+		submitInfo = MemoryTracker.track("swapchain", VkSubmitInfo.calloc())
 				.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO);
 		
-		presentInfo = VkPresentInfoKHR.calloc()
+		presentInfo = MemoryTracker.track("swapchain", VkPresentInfoKHR.calloc())
 				.sType(VK_STRUCTURE_TYPE_PRESENT_INFO_KHR);
 		
 		// Put in dstStageMask since it never changes
@@ -95,6 +102,9 @@ public class VulkanSwapchain {
 	private void recreateSwapchain(VulkanDevice vulkanDevice, VulkanRenderPass vulkanRenderPass, GameWindow window, boolean built) throws VulkanException {
 		int ret;
 		
+		SwapchainRecreateEvent event = new SwapchainRecreateEvent();
+		event.begin();
+		
 		// Extract
 		VkDevice device = vulkanDevice.get();
 		long surface = window.getSurface();
@@ -166,8 +176,13 @@ public class VulkanSwapchain {
 			
 			imageCreateInfo.extent().width(width).height(height).depth(1);
 			
-			VkMemoryAllocateInfo depthImageAllocateInfo = VkMemoryAllocateInfo.callocStack(stack)
-					.sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO);
+			// Sampled as well when the format allows it, the depth pyramid is built from it
+			VkFormatProperties formatProperties = VkFormatProperties.callocStack(stack);
+			vkGetPhysicalDeviceFormatProperties(device.getPhysicalDevice(), depthFormat, formatProperties);
+			boolean sampleable = (formatProperties.optimalTilingFeatures() & VK_FORMAT_FEATURE_SAMPLED_IMAGE_BIT) != 0;
+			if (sampleable) {
+				imageCreateInfo.usage(imageCreateInfo.usage() | VK_IMAGE_USAGE_SAMPLED_BIT);
+			}
 			
 			VkImageViewCreateInfo depthStencilViewCreateInfo = VkImageViewCreateInfo.callocStack(stack)
 					.sType(VK_STRUCTURE_TYPE_IMAGE_VIEW_CREATE_INFO)
@@ -186,14 +201,9 @@ public class VulkanSwapchain {
 			depthStencilImage = pDepthStencilImage.get(0);
 			
 			vkGetImageMemoryRequirements(device, depthStencilImage, memoryRequirements);
-			depthImageAllocateInfo.allocationSize(memoryRequirements.size());
-			IntBuffer pMemoryTypeIndex = stack.mallocInt(1);
-			vulkanDevice.getMemoryType(memoryRequirements.memoryTypeBits(), VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, pMemoryTypeIndex);
-			depthImageAllocateInfo.memoryTypeIndex(pMemoryTypeIndex.get(0));
 			
 			LongBuffer pDepthStencilMemory = stack.mallocLong(1);
-			ret = vkAllocateMemory(device, depthImageAllocateInfo, null, pDepthStencilMemory);
-			VkUtils.check(ret, "Failed to create depth-stencil memory");
+			vulkanDevice.getMemoryPolicy().allocate(device, memoryRequirements, MemoryUsage.GPU_ONLY, pDepthStencilMemory, "depth image");
 			depthStencilMemory = pDepthStencilMemory.get(0);
 			
 			ret = vkBindImageMemory(device, depthStencilImage, depthStencilMemory, 0);
@@ -205,6 +215,14 @@ public class VulkanSwapchain {
 			VkUtils.check(ret, "Failed to create depth stencil image view");
 			depthStencilView = pDepthStencilView.get(0);
 			
+			depthSampleView = VK_NULL_HANDLE;
+			if (sampleable) {
+				depthStencilViewCreateInfo.subresourceRange().aspectMask(VK_IMAGE_ASPECT_DEPTH_BIT);
+				ret = vkCreateImageView(device, depthStencilViewCreateInfo, null, pDepthStencilView);
+				VkUtils.check(ret, "Failed to create depth sample view");
+				depthSampleView = pDepthStencilView.get(0);
+			}
+			
 			// --------------------------------------
 			// Create image and views
 			IntBuffer pImageCount = stack.mallocInt(1);
@@ -264,15 +282,41 @@ public class VulkanSwapchain {
 			// Final message
 			Log.print(built ? "Recreated swapchain with size of " + width + " " + height : "Created Swapchain with inital size of " + width + " " + height);
 		}
+		
+		if (event.shouldCommit()) {
+			event.width = width;
+			event.height = height;
+			event.imageCount = imageCount;
+			event.commit();
+		}
+	}
+	
+	// Runs between acquire and submit, the last moment host writes still reach the frame
+	public interface Latch {
+		void latch() throws VulkanException;
 	}
 	
 	public boolean submitAndPresent(VkDevice device, VkQueue queue, long renderFence, long imageAcquireSemaphore, long renderCompleteSemaphore, VkCommandBuffer commandBuffer) throws VulkanException {
+		return submitAndPresent(device, queue, renderFence, imageAcquireSemaphore, renderCompleteSemaphore, commandBuffer, null);
+	}
+	
+	public boolean submitAndPresent(VkDevice device, VkQueue queue, long renderFence, long imageAcquireSemaphore, long renderCompleteSemaphore, VkCommandBuffer commandBuffer, Latch latch) throws VulkanException {
 		int ret;
 		
+		FrameSubmitEvent event = new FrameSubmitEvent();
+		event.begin();
+		event.lap();
+		
 		// Acquire image
 		ret = vkAcquireNextImageKHR(device, swapchain, -1L,
 				imageAcquireSemaphore, VK_NULL_HANDLE, pImageIndex);
 		VkUtils.check(ret, "Failed to acquire image");
+		event.acquireTime = event.lap();
+		
+		// Acquire can wait on the display, so anything latched is written after it
+		if (latch != null) {
+			latch.latch();
+		}
 		
 		// Put
 		pCommandbuffer.put(0, commandBuffer);
@@ -289,8 +333,10 @@ public class VulkanSwapchain {
 		
 		ret = vkQueueSubmit(queue, submitInfo, renderFence);
 		VkUtils.check(ret, "Failed to submit command");
+		event.submitTime = event.lap();
 		
 		vkQueueWaitIdle(queue);
+		event.queueWaitTime = event.lap();
 		
 		// Present
 		presentInfo
@@ -302,6 +348,13 @@ public class VulkanSwapchain {
 		
 		ret = vkQueuePresentKHR(queue, presentInfo);
 		
+		if (event.shouldCommit()) {
+			event.presentTime = event.lap();
+			event.imageIndex = pImageIndex.get(0);
+			event.outOfDate = ret == VK_ERROR_OUT_OF_DATE_KHR;
+			event.commit();
+		}
+		
 		// If the window resizes, this will occur,
 		// return true to inform swapchain needs to be rebuilt
 		if (ret == VK_ERROR_OUT_OF_DATE_KHR) return true;
@@ -321,6 +374,7 @@ public class VulkanSwapchain {
 		return imageViews[idx];
 	}
 	
+	@Override
 	public long getFramebuffer(int idx) {
 		return framebuffers[idx];
 	}
@@ -329,6 +383,15 @@ public class VulkanSwapchain {
 		return swapchain;
 	}
 	
+	// Shared by every frame, holds the last frame's depth in DEPTH_STENCIL_READ_ONLY_OPTIMAL until the next render pass clears it
+	public long getDepthImage() {
+		return depthStencilImage;
+	}
+	
+	public long getDepthSampleView() {
+		return depthSampleView;
+	}
+	
 	private int getDimension(int val, int min, int max) {
 		if (min > val) {
 			return min;
@@ -339,29 +402,32 @@ public class VulkanSwapchain {
 		return val;
 	}
 	
+	@Override
 	public int getWidth() {
 		return width;
 	}
 	
+	@Override
 	public int getHeight() {
 		return height;
 	}
 	
+	@Override
 	public int getImageCount() {
 		return imageCount;
 	}
 	
 	public void free(VkDevice device) {
-		MemoryUtil.memFree(pImageIndex);
+		MemoryTracker.memFree("swapchain", pImageIndex);
 		
-		MemoryUtil.memFree(pCommandbuffer);
-		MemoryUtil.memFree(pImageAcquireSemaphore);
-		MemoryUtil.memFree(pWaitDstStageMask);
-		MemoryUtil.memFree(pRenderCompleteSemaphore);
-		MemoryUtil.memFree(pSwapchain);
+		MemoryTracker.memFree("swapchain", pCommandbuffer);
+		MemoryTracker.memFree("swapchain", pImageAcquireSemaphore);
+		MemoryTracker.memFree("swapchain", pWaitDstStageMask);
+		MemoryTracker.memFree("swapchain", pRenderCompleteSemaphore);
+		MemoryTracker.memFree("swapchain", pSwapchain);
 		
-		submitInfo.free();
-		presentInfo.free();
+		MemoryTracker.free("swapchain", submitInfo);
+		MemoryTracker.free("swapchain", presentInfo);
 		
 		vkDestroySwapchainKHR(device, swapchain, null);
 		for (long imageView : imageViews) {
@@ -371,8 +437,11 @@ public class VulkanSwapchain {
 			vkDestroyFramebuffer(device, framebuffer, null);
 		}
 		
-		vkFreeMemory(device, depthStencilMemory, null);
+		VulkanMemory.free(device, depthStencilMemory);
 		vkDestroyImageView(device, depthStencilView, null);
+		if (depthSampleView != VK_NULL_HANDLE) {
+			vkDestroyImageView(device, depthSampleView, null);
+		}
 		vkDestroyImage(device, depthStencilImage, null);
 	}
 }
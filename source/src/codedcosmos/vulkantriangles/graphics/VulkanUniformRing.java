@@ -0,0 +1,180 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.graphics;
+
+import codedcosmos.vulkantriangles.VkUtils;
+import codedcosmos.vulkantriangles.VulkanDevice;
+import codedcosmos.vulkantriangles.VulkanException;
+import codedcosmos.vulkantriangles.memory.MemoryUsage;
+import codedcosmos.vulkantriangles.memory.VulkanMapping;
+import codedcosmos.vulkantriangles.memory.VulkanMemory;
+import org.joml.Matrix4fc;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.nio.LongBuffer;
+
+import static org.lwjgl.system.MemoryUtil.memPutFloat;
+import static org.lwjgl.vulkan.VK10.*;
+
+// Persistently mapped uniform memory with a region per frame in flight, handed out by bumping a pointer.
+// One descriptor set covers the whole buffer, each binding is a dynamic uniform buffer of a fixed block
+// size, and draws pick their blocks with dynamic offsets, so nothing is allocated or written per draw
+// but the block itself. Blocks can be written any time before submit, which is what late latching needs.
+public class VulkanUniformRing {
+	
+	private int regionSize;
+	private int alignment;
+	
+	private long buffer;
+	private long memory;
+	private VulkanMapping mapping;
+	
+	private long descriptorPool;
+	private long descriptorSet;
+	
+	// The region being filled, from regionStart to head
+	private int regionStart;
+	private int head;
+	
+	public VulkanUniformRing(VulkanDevice device, long descriptorSetLayout, int[] blockSizes, int regionSize, int framesInFlight) throws VulkanException {
+		// Dynamic offsets have to be multiples of the device's alignment
+		alignment = (int) device.getProperties().limits().minUniformBufferOffsetAlignment();
+		this.regionSize = align(regionSize);
+		
+		int ret;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			// ------------------
+			// Buffer
+			VkBufferCreateInfo bufferCreateInfo = VkBufferCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
+					.size((long) this.regionSize * framesInFlight)
+					.usage(VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT)
+					.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+			
+			LongBuffer pHandle = stack.mallocLong(1);
+			ret = vkCreateBuffer(device.get(), bufferCreateInfo, null, pHandle);
+			VkUtils.check(ret, "Failed to create uniform ring buffer");
+			buffer = pHandle.get(0);
+			
+			VkMemoryRequirements memoryRequirements = VkMemoryRequirements.callocStack(stack);
+			vkGetBufferMemoryRequirements(device.get(), buffer, memoryRequirements);
+			
+			int memoryType = device.getMemoryPolicy().allocate(device.get(), memoryRequirements, MemoryUsage.DYNAMIC, pHandle, "uniform ring");
+			memory = pHandle.get(0);
+			
+			ret = vkBindBufferMemory(device.get(), buffer, memory, 0);
+			VkUtils.check(ret, "Failed to bind uniform ring memory");
+			
+			mapping = device.getMemoryPolicy().map(device.get(), memory, memoryType, memoryRequirements.size());
+			
+			// ------------------
+			// Descriptor set, one for every frame since offsets pick the region
+			VkDescriptorPoolSize.Buffer typeCounts = VkDescriptorPoolSize.callocStack(1, stack)
+					.type(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC)
+					.descriptorCount(blockSizes.length);
+			
+			VkDescriptorPoolCreateInfo descriptorPoolInfo = VkDescriptorPoolCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_POOL_CREATE_INFO)
+					.pPoolSizes(typeCounts)
+					.maxSets(1);
+			
+			ret = vkCreateDescriptorPool(device.get(), descriptorPoolInfo, null, pHandle);
+			VkUtils.check(ret, "Failed to create uniform ring descriptor pool");
+			descriptorPool = pHandle.get(0);
+			
+			VkDescriptorSetAllocateInfo allocateInfo = VkDescriptorSetAllocateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_ALLOCATE_INFO)
+					.descriptorPool(descriptorPool)
+					.pSetLayouts(stack.longs(descriptorSetLayout));
+			
+			ret = vkAllocateDescriptorSets(device.get(), allocateInfo, pHandle);
+			VkUtils.check(ret, "Failed to allocate uniform ring descriptor set");
+			descriptorSet = pHandle.get(0);
+			
+			// Each binding sees one block from wherever its dynamic offset points
+			VkWriteDescriptorSet.Buffer writes = VkWriteDescriptorSet.callocStack(blockSizes.length, stack);
+			for (int i = 0; i < blockSizes.length; i++) {
+				VkDescriptorBufferInfo.Buffer bufferInfo = VkDescriptorBufferInfo.callocStack(1, stack)
+						.buffer(buffer)
+						.offset(0)
+						.range(blockSizes[i]);
+				
+				writes.get(i)
+						.sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
+						.dstSet(descriptorSet)
+						.dstBinding(i)
+						.descriptorType(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC)
+						.descriptorCount(1)
+						.pBufferInfo(bufferInfo);
+			}
+			vkUpdateDescriptorSets(device.get(), writes, null);
+		}
+	}
+	
+	// Starts filling slot's region, call after its fence
+	public void begin(int slot) {
+		regionStart = slot * regionSize;
+		head = regionStart;
+	}
+	
+	// Offset of a new block in this frame's region, to use as its dynamic offset
+	public int allocate(int size) {
+		int offset = align(head);
+		if (offset + size > regionStart + regionSize) {
+			throw new IllegalStateException("Uniform ring region of " + regionSize + " bytes is full");
+		}
+		head = offset + size;
+		return offset;
+	}
+	
+	public void put(int offset, Matrix4fc matrix) {
+		matrix.getToAddress(mapping.getAddress() + offset);
+	}
+	
+	public void put(int offset, float x, float y, float z, float w) {
+		long address = mapping.getAddress() + offset;
+		memPutFloat(address, x);
+		memPutFloat(address + 4, y);
+		memPutFloat(address + 8, z);
+		memPutFloat(address + 12, w);
+	}
+	
+	// Everything written into this frame's region, call before submit
+	public void flush() throws VulkanException {
+		mapping.flush(regionStart, head - regionStart);
+	}
+	
+	private int align(int offset) {
+		return (offset + alignment - 1) / alignment * alignment;
+	}
+	
+	public long getDescriptorSet() {
+		return descriptorSet;
+	}
+	
+	public int getUsed() {
+		return head - regionStart;
+	}
+	
+	public void free(VkDevice device) {
+		vkDestroyDescriptorPool(device, descriptorPool, null);
+		
+		mapping.unmap();
+		vkDestroyBuffer(device, buffer, null);
+		VulkanMemory.free(device, memory);
+	}
+}
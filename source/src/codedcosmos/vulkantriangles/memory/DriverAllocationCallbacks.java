@@ -0,0 +1,142 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.memory;
+
+import codedcosmos.vulkantriangles.Log;
+import org.lwjgl.vulkan.VkAllocationCallbacks;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.system.Pointer.POINTER_SIZE;
+
+// VkAllocationCallbacks that count the driver's host allocations per scope.
+// Every driver allocation becomes an upcall into java, so this is opt in with -Dvulkantriangles.memory.driver=true
+public class DriverAllocationCallbacks {
+	private static final boolean ENABLED = Boolean.getBoolean("vulkantriangles.memory.driver");
+	private static final String[] SCOPES = { "command", "object", "cache", "device", "instance" };
+	
+	private static VkAllocationCallbacks callbacks;
+	
+	// Address to size and scope, frees don't pass a size
+	private static final Map<Long, long[]> live = new ConcurrentHashMap<Long, long[]>();
+	private static final AtomicLong[] scopeBytes = new AtomicLong[SCOPES.length];
+	private static final AtomicLong internalBytes = new AtomicLong();
+	
+	static {
+		for (int i = 0; i < scopeBytes.length; i++) {
+			scopeBytes[i] = new AtomicLong();
+		}
+	}
+	
+	// Null when disabled, which makes the driver use its own allocator
+	public static synchronized VkAllocationCallbacks get() {
+		if (!ENABLED) return null;
+		
+		if (callbacks == null) {
+			callbacks = VkAllocationCallbacks.calloc()
+					.pfnAllocation((pUserData, size, alignment, allocationScope) -> allocate(size, alignment, allocationScope))
+					.pfnReallocation(DriverAllocationCallbacks::reallocate)
+					.pfnFree((pUserData, pMemory) -> free(pMemory))
+					.pfnInternalAllocation((pUserData, size, allocationType, allocationScope) -> internalBytes.addAndGet(size))
+					.pfnInternalFree((pUserData, size, allocationType, allocationScope) -> internalBytes.addAndGet(-size));
+		}
+		return callbacks;
+	}
+	
+	private static long allocate(long size, long alignment, int scope) {
+		if (size == 0) return NULL;
+		
+		// posix_memalign needs at least pointer alignment
+		long address = nmemAlignedAlloc(Math.max(alignment, POINTER_SIZE), size);
+		if (address != NULL) {
+			live.put(address, new long[] { size, scope });
+			scopeBytes[scope].addAndGet(size);
+		}
+		return address;
+	}
+	
+	private static long reallocate(long pUserData, long pOriginal, long size, long alignment, int scope) {
+		if (pOriginal == NULL) return allocate(size, alignment, scope);
+		if (size == 0) {
+			free(pOriginal);
+			return NULL;
+		}
+		
+		// Without a tracked size there is no safe length to copy, failing leaves the original valid for the driver
+		long[] original = live.get(pOriginal);
+		if (original == null) {
+			Log.warn("Driver reallocated untracked host memory", pOriginal);
+			return NULL;
+		}
+		
+		// Aligned allocations can't be resized in place
+		long address = allocate(size, alignment, scope);
+		if (address != NULL) {
+			memCopy(pOriginal, address, Math.min(original[0], size));
+			free(pOriginal);
+		}
+		return address;
+	}
+	
+	private static void free(long address) {
+		if (address == NULL) return;
+		
+		long[] allocation = live.remove(address);
+		if (allocation != null) {
+			scopeBytes[(int) allocation[1]].addAndGet(-allocation[0]);
+		}
+		nmemAlignedFree(address);
+	}
+	
+	public static long getLiveBytes() {
+		long total = 0;
+		for (AtomicLong bytes : scopeBytes) {
+			total += bytes.get();
+		}
+		return total;
+	}
+	
+	static void appendSnapshot(StringBuilder builder) {
+		if (!ENABLED) return;
+		
+		for (int i = 0; i < SCOPES.length; i++) {
+			builder.append(String.format("  driver %-18s %10d bytes%n", SCOPES[i], scopeBytes[i].get()));
+		}
+		builder.append(String.format("  driver %-18s %10d bytes%n", "internal", internalBytes.get()));
+	}
+	
+	static int reportLeaks() {
+		if (!ENABLED || live.isEmpty()) return 0;
+		
+		Log.printErr("Leaked driver host memory", getLiveBytes(), "bytes in", live.size(), "allocations");
+		return 1;
+	}
+	
+	// Only after the instance has been destroyed
+	public static synchronized void free() {
+		if (callbacks == null) return;
+		
+		callbacks.pfnAllocation().free();
+		callbacks.pfnReallocation().free();
+		callbacks.pfnFree().free();
+		callbacks.pfnInternalAllocation().free();
+		callbacks.pfnInternalFree().free();
+		callbacks.free();
+		callbacks = null;
+	}
+}
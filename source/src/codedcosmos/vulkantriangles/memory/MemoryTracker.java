@@ -0,0 +1,193 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.memory;
+
+import codedcosmos.vulkantriangles.Log;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.*;
+import org.lwjgl.system.jemalloc.JEmalloc;
+
+import java.nio.*;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.lwjgl.system.Pointer.POINTER_SIZE;
+
+// Tagged counters for long lived host native memory, MemoryStack frames are scoped and not counted.
+// Combined with the driver callbacks and device heaps into snapshots and a leak report.
+public class MemoryTracker {
+	private static final Map<String, Counter> tags = new ConcurrentHashMap<String, Counter>();
+	private static boolean jemalloc;
+	
+	private static class Counter {
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong peak = new AtomicLong();
+		
+		private void add(long size) {
+			long now = bytes.addAndGet(size);
+			count.incrementAndGet();
+			peak.accumulateAndGet(now, Math::max);
+		}
+		
+		private void remove(long size) {
+			bytes.addAndGet(-size);
+			count.decrementAndGet();
+		}
+	}
+	
+	// Must run before anything touches MemoryUtil, LWJGL falls back to the system allocator if jemalloc can't load
+	public static void useJemalloc() {
+		if (!Boolean.parseBoolean(System.getProperty("vulkantriangles.memory.jemalloc", "true"))) return;
+		
+		Configuration.MEMORY_ALLOCATOR.set("jemalloc");
+		try {
+			jemalloc = MemoryUtil.getAllocator().getClass().getName().toLowerCase().contains("jemalloc");
+		} catch (Throwable e) {
+			jemalloc = false;
+		}
+	}
+	
+	// Host counters
+	public static void allocated(String tag, long size) {
+		tags.computeIfAbsent(tag, t -> new Counter()).add(size);
+	}
+	
+	public static void freed(String tag, long size) {
+		tags.computeIfAbsent(tag, t -> new Counter()).remove(size);
+	}
+	
+	public static <T extends Struct> T track(String tag, T struct) {
+		allocated(tag, struct.sizeof());
+		return struct;
+	}
+	
+	public static <T extends StructBuffer<?, ?>> T track(String tag, T buffer) {
+		allocated(tag, (long) buffer.capacity() * buffer.sizeof());
+		return buffer;
+	}
+	
+	public static void free(String tag, Struct struct) {
+		freed(tag, struct.sizeof());
+		struct.free();
+	}
+	
+	public static void free(String tag, StructBuffer<?, ?> buffer) {
+		freed(tag, (long) buffer.capacity() * buffer.sizeof());
+		buffer.free();
+	}
+	
+	public static ByteBuffer memAlloc(String tag, int size) {
+		allocated(tag, size);
+		return MemoryUtil.memAlloc(size);
+	}
+	
+	public static IntBuffer memAllocInt(String tag, int count) {
+		allocated(tag, count * 4L);
+		return MemoryUtil.memAllocInt(count);
+	}
+	
+	public static FloatBuffer memAllocFloat(String tag, int count) {
+		allocated(tag, count * 4L);
+		return MemoryUtil.memAllocFloat(count);
+	}
+	
+	public static LongBuffer memAllocLong(String tag, int count) {
+		allocated(tag, count * 8L);
+		return MemoryUtil.memAllocLong(count);
+	}
+	
+	public static PointerBuffer memAllocPointer(String tag, int count) {
+		allocated(tag, (long) count * POINTER_SIZE);
+		return MemoryUtil.memAllocPointer(count);
+	}
+	
+	public static void memFree(String tag, Buffer buffer) {
+		long elementSize = buffer instanceof ByteBuffer ? 1 : buffer instanceof LongBuffer || buffer instanceof DoubleBuffer ? 8 : buffer instanceof ShortBuffer || buffer instanceof CharBuffer ? 2 : 4;
+		freed(tag, buffer.capacity() * elementSize);
+		MemoryUtil.memFree(buffer);
+	}
+	
+	public static void memFree(String tag, PointerBuffer buffer) {
+		freed(tag, (long) buffer.capacity() * POINTER_SIZE);
+		MemoryUtil.memFree(buffer);
+	}
+	
+	public static long getHostBytes(String tag) {
+		Counter counter = tags.get(tag);
+		return counter == null ? 0 : counter.bytes.get();
+	}
+	
+	// Reads jemalloc's own totals, zero when it isn't the active allocator
+	public static long getJemallocStat(String name) {
+		if (!jemalloc) return 0;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			// Stats are cached until the epoch is advanced
+			ByteBuffer epoch = stack.malloc(8);
+			epoch.putLong(0, 1);
+			JEmalloc.je_mallctl("epoch", null, null, epoch);
+			
+			// size_t value
+			ByteBuffer value = stack.calloc(POINTER_SIZE);
+			PointerBuffer pSize = stack.pointers(POINTER_SIZE);
+			if (JEmalloc.je_mallctl(name, value, pSize, null) != 0) return 0;
+			
+			return MemoryUtil.memGetAddress(MemoryUtil.memAddress(value));
+		}
+	}
+	
+	// One line per tag, heap and source of native memory
+	public static String snapshot() {
+		StringBuilder builder = new StringBuilder("Native memory snapshot\n");
+		
+		for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(tags).entrySet()) {
+			Counter counter = entry.getValue();
+			builder.append(String.format("  host %-20s %10d bytes in %5d allocations, peak %d%n", entry.getKey(), counter.bytes.get(), counter.count.get(), counter.peak.get()));
+		}
+		
+		if (jemalloc) {
+			builder.append(String.format("  jemalloc allocated %d, active %d, resident %d, mapped %d%n",
+					getJemallocStat("stats.allocated"), getJemallocStat("stats.active"), getJemallocStat("stats.resident"), getJemallocStat("stats.mapped")));
+		}
+		
+		DriverAllocationCallbacks.appendSnapshot(builder);
+		VulkanMemory.appendSnapshot(builder);
+		
+		return builder.toString();
+	}
+	
+	// Call after everything has been freed
+	public static void reportLeaks() {
+		int leaks = 0;
+		
+		for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(tags).entrySet()) {
+			Counter counter = entry.getValue();
+			if (counter.bytes.get() != 0 || counter.count.get() != 0) {
+				Log.printErr("Leaked host memory", entry.getKey(), counter.bytes.get(), "bytes in", counter.count.get(), "allocations");
+				leaks++;
+			}
+		}
+		
+		leaks += VulkanMemory.reportLeaks();
+		leaks += DriverAllocationCallbacks.reportLeaks();
+		
+		if (leaks == 0) {
+			Log.print("No native memory leaks found");
+		}
+	}
+}
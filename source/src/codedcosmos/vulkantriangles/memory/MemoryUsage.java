@@ -0,0 +1,55 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.memory;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+// How memory is going to be accessed, picks the memory type instead of hand written property flags
+public enum MemoryUsage {
+	// Only the gpu touches it, models, compute outputs and attachments
+	GPU_ONLY(0, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, 0, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT),
+	
+	// Written once by the host and copied from, staging, keeps out of the small device local host visible heap
+	UPLOAD(VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT, 0, VK_MEMORY_PROPERTY_HOST_COHERENT_BIT, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT | VK_MEMORY_PROPERTY_HOST_CACHED_BIT),
+	
+	// Written by the gpu and read by the host, cached so reads aren't uncached bus transactions
+	READBACK(VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT, VK_MEMORY_PROPERTY_HOST_CACHED_BIT, VK_MEMORY_PROPERTY_HOST_COHERENT_BIT, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT),
+	
+	// Written by the host every frame and read directly by the gpu, device local when the bar allows it
+	DYNAMIC(VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, VK_MEMORY_PROPERTY_HOST_COHERENT_BIT, VK_MEMORY_PROPERTY_HOST_CACHED_BIT);
+	
+	private final int required;
+	private final int preferred;
+	private final int secondary;
+	private final int avoided;
+	
+	MemoryUsage(int required, int preferred, int secondary, int avoided) {
+		this.required = required;
+		this.preferred = preferred;
+		this.secondary = secondary;
+		this.avoided = avoided;
+	}
+	
+	public int getRequired() {
+		return required;
+	}
+	
+	// Higher is better, types missing required flags are filtered out before this
+	public int score(int propertyFlags) {
+		return 4 * Integer.bitCount(propertyFlags & preferred)
+				+ Integer.bitCount(propertyFlags & secondary)
+				- 2 * Integer.bitCount(propertyFlags & avoided);
+	}
+}
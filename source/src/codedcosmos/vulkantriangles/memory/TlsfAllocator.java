@@ -0,0 +1,387 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.memory;
+
+import java.util.Arrays;
+
+// Two level segregated fit allocator over a range of offsets, it never touches the memory itself.
+// Blocks are indices into primitive arrays, so allocating and freeing are O(1) and create no objects.
+// Free blocks sit in size classes, a power of two first level split into SL_COUNT linear second levels,
+// and a bitmap per level finds the smallest non empty class that fits with a couple of bit scans.
+public class TlsfAllocator {
+	private static final int SL_BITS = 5;
+	private static final int SL_COUNT = 1 << SL_BITS;
+	private static final int FL_COUNT = 64 - SL_BITS + 1;
+	
+	private static final int NONE = -1;
+	
+	private long capacity;
+	
+	// Blocks, physical neighbours are in offset order and free blocks are linked per size class
+	private long[] offsets;
+	private long[] sizes;
+	private boolean[] isFree;
+	private int[] prevPhysical;
+	private int[] nextPhysical;
+	private int[] prevFree;
+	private int[] nextFree;
+	
+	// Recycled block indices, a stack
+	private int[] unusedBlocks;
+	private int unusedCount;
+	private int blockCount;
+	
+	// Size classes
+	private long flBitmap;
+	private int[] slBitmaps;
+	private int[] heads;
+	
+	// Stats
+	private long usedBytes;
+	private int allocationCount;
+	private int freeBlockCount;
+	
+	public TlsfAllocator(long capacity) {
+		this(capacity, 64);
+	}
+	
+	// Block arrays start with room for initialBlocks and double when they run out
+	public TlsfAllocator(long capacity, int initialBlocks) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive, was " + capacity);
+		}
+		this.capacity = capacity;
+		
+		int blocks = Math.max(initialBlocks, 4);
+		offsets = new long[blocks];
+		sizes = new long[blocks];
+		isFree = new boolean[blocks];
+		prevPhysical = new int[blocks];
+		nextPhysical = new int[blocks];
+		prevFree = new int[blocks];
+		nextFree = new int[blocks];
+		unusedBlocks = new int[blocks];
+		
+		slBitmaps = new int[FL_COUNT];
+		heads = new int[FL_COUNT * SL_COUNT];
+		Arrays.fill(heads, NONE);
+		
+		// One free block spanning everything
+		int block = newBlock(0, capacity);
+		prevPhysical[block] = NONE;
+		nextPhysical[block] = NONE;
+		insertFree(block);
+	}
+	
+	// Returns a handle for a block of at least size bytes at an offset that is a multiple of alignment, or -1 when full
+	// Alignment must be a power of two
+	public int allocate(long size, long alignment) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("Size must be positive, was " + size);
+		}
+		if (alignment <= 0 || (alignment & (alignment - 1)) != 0) {
+			throw new IllegalArgumentException("Alignment must be a power of two, was " + alignment);
+		}
+		
+		if (size > capacity) return NONE;
+		
+		int block = findFree(size, alignment);
+		if (block == NONE) return NONE;
+		removeFree(block);
+		
+		// Padding in front stays free as its own block
+		long aligned = (offsets[block] + alignment - 1) & -alignment;
+		long padding = aligned - offsets[block];
+		if (padding > 0) {
+			int front = block;
+			block = splitAfter(front, padding);
+			insertFree(front);
+		}
+		
+		// Remainder behind goes back to the free lists
+		if (sizes[block] > size) {
+			int back = splitAfter(block, size);
+			insertFree(back);
+		}
+		
+		usedBytes += sizes[block];
+		allocationCount++;
+		return block;
+	}
+	
+	public int allocate(long size) {
+		return allocate(size, 1);
+	}
+	
+	public void free(int handle) {
+		if (handle < 0 || handle >= blockCount || isFree[handle] || sizes[handle] == 0) {
+			throw new IllegalArgumentException("Not an allocation " + handle);
+		}
+		
+		usedBytes -= sizes[handle];
+		allocationCount--;
+		
+		// Merge with free neighbours, so free blocks are never next to each other
+		int block = handle;
+		int next = nextPhysical[block];
+		if (next != NONE && isFree[next]) {
+			removeFree(next);
+			merge(block, next);
+		}
+		
+		int prev = prevPhysical[block];
+		if (prev != NONE && isFree[prev]) {
+			removeFree(prev);
+			merge(prev, block);
+			block = prev;
+		}
+		
+		insertFree(block);
+	}
+	
+	public long getOffset(int handle) {
+		return offsets[handle];
+	}
+	
+	public long getSize(int handle) {
+		return sizes[handle];
+	}
+	
+	// ------------------
+	// Blocks
+	
+	// Cuts block at size, the back part becomes a new block which is returned
+	private int splitAfter(int block, long size) {
+		int back = newBlock(offsets[block] + size, sizes[block] - size);
+		sizes[block] = size;
+		
+		int next = nextPhysical[block];
+		prevPhysical[back] = block;
+		nextPhysical[back] = next;
+		nextPhysical[block] = back;
+		if (next != NONE) {
+			prevPhysical[next] = back;
+		}
+		return back;
+	}
+	
+	// Absorbs back into block, back must be block's next physical neighbour
+	private void merge(int block, int back) {
+		sizes[block] += sizes[back];
+		
+		int next = nextPhysical[back];
+		nextPhysical[block] = next;
+		if (next != NONE) {
+			prevPhysical[next] = block;
+		}
+		releaseBlock(back);
+	}
+	
+	private int newBlock(long offset, long size) {
+		int block;
+		if (unusedCount > 0) {
+			block = unusedBlocks[--unusedCount];
+		} else {
+			if (blockCount == offsets.length) {
+				grow();
+			}
+			block = blockCount++;
+		}
+		
+		offsets[block] = offset;
+		sizes[block] = size;
+		isFree[block] = false;
+		return block;
+	}
+	
+	private void releaseBlock(int block) {
+		sizes[block] = 0;
+		isFree[block] = false;
+		unusedBlocks[unusedCount++] = block;
+	}
+	
+	private void grow() {
+		int length = offsets.length * 2;
+		offsets = Arrays.copyOf(offsets, length);
+		sizes = Arrays.copyOf(sizes, length);
+		isFree = Arrays.copyOf(isFree, length);
+		prevPhysical = Arrays.copyOf(prevPhysical, length);
+		nextPhysical = Arrays.copyOf(nextPhysical, length);
+		prevFree = Arrays.copyOf(prevFree, length);
+		nextFree = Arrays.copyOf(nextFree, length);
+		unusedBlocks = Arrays.copyOf(unusedBlocks, length);
+	}
+	
+	// ------------------
+	// Size classes
+	
+	// First level is the power of two, second level the next SL_BITS bits below it, small sizes are linear in level 0
+	private static int firstLevel(long size) {
+		if (size < SL_COUNT) return 0;
+		return 63 - Long.numberOfLeadingZeros(size) - SL_BITS + 1;
+	}
+	
+	private static int secondLevel(long size) {
+		if (size < SL_COUNT) return (int) size;
+		int log = 63 - Long.numberOfLeadingZeros(size);
+		return (int) (size >>> (log - SL_BITS)) ^ SL_COUNT;
+	}
+	
+	// Smallest free block whose class guarantees it fits, any block of size + alignment - 1 bytes can hold size bytes
+	// however its start is aligned, so that is rounded up to the next class first
+	private int findFree(long size, long alignment) {
+		long searchSize = size + alignment - 1;
+		if (searchSize < size) {
+			searchSize = Long.MAX_VALUE;
+		} else if (searchSize >= SL_COUNT) {
+			int log = 63 - Long.numberOfLeadingZeros(searchSize);
+			long rounded = searchSize + (1L << (log - SL_BITS)) - 1;
+			searchSize = rounded < searchSize ? Long.MAX_VALUE : rounded;
+		}
+		
+		int guaranteed = NONE;
+		if (searchSize <= capacity) {
+			int fl = firstLevel(searchSize);
+			int sl = secondLevel(searchSize);
+			guaranteed = fl * SL_COUNT + sl;
+			
+			int slMap = slBitmaps[fl] & (-1 << sl);
+			if (slMap == 0) {
+				long flMap = fl + 1 < 64 ? flBitmap & (-1L << (fl + 1)) : 0;
+				if (flMap != 0) {
+					fl = Long.numberOfTrailingZeros(flMap);
+					slMap = slBitmaps[fl];
+				}
+			}
+			if (slMap != 0) {
+				return heads[fl * SL_COUNT + Integer.numberOfTrailingZeros(slMap)];
+			}
+		}
+		
+		// Classes from size's own up to the guaranteed one can still hold a block that fits, checked block by block.
+		// This is what lets a request as big as the whole capacity be served
+		int last = guaranteed == NONE ? FL_COUNT * SL_COUNT : guaranteed;
+		for (int index = firstLevel(size) * SL_COUNT + secondLevel(size); index < last; index++) {
+			for (int block = heads[index]; block != NONE; block = nextFree[block]) {
+				long aligned = (offsets[block] + alignment - 1) & -alignment;
+				if (aligned + size <= offsets[block] + sizes[block]) {
+					return block;
+				}
+			}
+		}
+		return NONE;
+	}
+	
+	private void insertFree(int block) {
+		int fl = firstLevel(sizes[block]);
+		int sl = secondLevel(sizes[block]);
+		int index = fl * SL_COUNT + sl;
+		
+		int head = heads[index];
+		prevFree[block] = NONE;
+		nextFree[block] = head;
+		if (head != NONE) {
+			prevFree[head] = block;
+		}
+		heads[index] = block;
+		
+		slBitmaps[fl] |= 1 << sl;
+		flBitmap |= 1L << fl;
+		
+		isFree[block] = true;
+		freeBlockCount++;
+	}
+	
+	private void removeFree(int block) {
+		int fl = firstLevel(sizes[block]);
+		int sl = secondLevel(sizes[block]);
+		int index = fl * SL_COUNT + sl;
+		
+		int prev = prevFree[block];
+		int next = nextFree[block];
+		if (prev != NONE) {
+			nextFree[prev] = next;
+		} else {
+			heads[index] = next;
+		}
+		if (next != NONE) {
+			prevFree[next] = prev;
+		}
+		
+		if (heads[index] == NONE) {
+			slBitmaps[fl] &= ~(1 << sl);
+			if (slBitmaps[fl] == 0) {
+				flBitmap &= ~(1L << fl);
+			}
+		}
+		
+		isFree[block] = false;
+		freeBlockCount--;
+	}
+	
+	// ------------------
+	// Stats
+	
+	public long getCapacity() {
+		return capacity;
+	}
+	
+	public long getUsedBytes() {
+		return usedBytes;
+	}
+	
+	public long getFreeBytes() {
+		return capacity - usedBytes;
+	}
+	
+	public int getAllocationCount() {
+		return allocationCount;
+	}
+	
+	public int getFreeBlockCount() {
+		return freeBlockCount;
+	}
+	
+	public boolean isEmpty() {
+		return allocationCount == 0;
+	}
+	
+	// Only walks the highest non empty size class
+	public long getLargestFreeBlock() {
+		if (flBitmap == 0) return 0;
+		
+		int fl = 63 - Long.numberOfLeadingZeros(flBitmap);
+		int sl = 31 - Integer.numberOfLeadingZeros(slBitmaps[fl]);
+		
+		long largest = 0;
+		for (int block = heads[fl * SL_COUNT + sl]; block != NONE; block = nextFree[block]) {
+			largest = Math.max(largest, sizes[block]);
+		}
+		return largest;
+	}
+	
+	// 0 when all free space is one block, towards 1 as it is split into many small ones
+	public double getFragmentation() {
+		long freeBytes = getFreeBytes();
+		if (freeBytes == 0) return 0;
+		return 1.0 - (double) getLargestFreeBlock() / freeBytes;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%d of %d bytes used in %d allocations, %d free blocks, largest free %d, fragmentation %.2f",
+				usedBytes, capacity, allocationCount, freeBlockCount, getLargestFreeBlock(), getFragmentation());
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.memory;
+
+import codedcosmos.vulkantriangles.Log;
+import codedcosmos.vulkantriangles.VkUtils;
+import codedcosmos.vulkantriangles.VulkanDevice;
+import codedcosmos.vulkantriangles.VulkanException;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+// Empties sparse pool blocks a little every frame, so long sessions don't end up with many half used blocks.
+// Buffers are copied into other blocks on the gpu, swapped once the copy fence has signalled,
+// and the old buffers are destroyed frames in flight later, freeing their block once it is empty. Nothing waits.
+public class VulkanDefragmenter {
+	// Bytes copied per frame
+	private static final long FRAME_BUDGET = Long.getLong("vulkantriangles.memory.defragBudget", 8L << 20);
+	
+	// Blocks used less than this are emptied into the others
+	private static final double SPARSE = 0.25;
+	
+	private VulkanDevice vulkanDevice;
+	private VkDevice device;
+	private VulkanMemoryPool pool;
+	private int framesInFlight;
+	
+	// Copies go on the graphics queue, which owns the buffers being moved
+	private VkQueue queue;
+	private long commandPool;
+	private VkCommandBuffer commandBuffer;
+	private long fence;
+	
+	// The batch whose copy is in flight
+	private List<Move> moves;
+	private boolean copying;
+	
+	// Old buffers waiting for frames that may still use them
+	private List<Retired> retired;
+	private long frame;
+	
+	// Stats
+	private long movedBytes;
+	private long moveCount;
+	
+	private static class Move {
+		private final VulkanPooledBuffer target;
+		private final long buffer;
+		private final VulkanSuballocation allocation;
+		
+		private Move(VulkanPooledBuffer target, long buffer, VulkanSuballocation allocation) {
+			this.target = target;
+			this.buffer = buffer;
+			this.allocation = allocation;
+		}
+	}
+	
+	private static class Retired {
+		private final long buffer;
+		private final VulkanSuballocation allocation;
+		private final long frame;
+		
+		private Retired(long buffer, VulkanSuballocation allocation, long frame) {
+			this.buffer = buffer;
+			this.allocation = allocation;
+			this.frame = frame;
+		}
+	}
+	
+	public VulkanDefragmenter(VulkanDevice vulkanDevice, int framesInFlight) throws VulkanException {
+		this.vulkanDevice = vulkanDevice;
+		this.device = vulkanDevice.get();
+		this.pool = vulkanDevice.getMemoryPool();
+		this.framesInFlight = framesInFlight;
+		this.queue = vulkanDevice.getGraphicsQueue();
+		
+		moves = new ArrayList<Move>();
+		retired = new ArrayList<Retired>();
+		
+		int ret;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			// One command buffer, re-recorded for each batch
+			VkCommandPoolCreateInfo createInfo = VkCommandPoolCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO)
+					.queueFamilyIndex(vulkanDevice.getGraphicsQueueFamily())
+					.flags(VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT);
+			
+			LongBuffer pHandle = stack.mallocLong(1);
+			ret = vkCreateCommandPool(device, createInfo, null, pHandle);
+			VkUtils.check(ret, "Failed to create defragmenter command pool");
+			commandPool = pHandle.get(0);
+			
+			VkCommandBufferAllocateInfo allocateInfo = VkCommandBufferAllocateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO)
+					.commandPool(commandPool)
+					.level(VK_COMMAND_BUFFER_LEVEL_PRIMARY)
+					.commandBufferCount(1);
+			
+			PointerBuffer pCommandBuffer = stack.mallocPointer(1);
+			ret = vkAllocateCommandBuffers(device, allocateInfo, pCommandBuffer);
+			VkUtils.check(ret, "Failed to allocate defragmenter command buffer");
+			commandBuffer = new VkCommandBuffer(pCommandBuffer.get(0), device);
+			
+			VkFenceCreateInfo fenceCreateInfo = VkFenceCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
+			
+			ret = vkCreateFence(device, fenceCreateInfo, null, pHandle);
+			VkUtils.check(ret, "Failed to create defragmenter fence");
+			fence = pHandle.get(0);
+		}
+	}
+	
+	// Call once per frame after submitting, from the thread that records frames
+	public void update() throws VulkanException {
+		frame++;
+		destroyRetired(false);
+		
+		if (copying) {
+			// Poll, the copy finishes in a later frame if it isn't done yet
+			if (vkGetFenceStatus(device, fence) != VK_SUCCESS) return;
+			finishMoves();
+		}
+		
+		planMoves();
+	}
+	
+	// Copies as many buffers out of the sparsest block as fit in the frame budget
+	private void planMoves() throws VulkanException {
+		VulkanMemoryPool.Block block = pool.findSparseBlock(SPARSE);
+		if (block == null) return;
+		
+		long bytes = 0;
+		for (VulkanPooledBuffer buffer : pool.getBuffers(block)) {
+			if (bytes > 0 && bytes + buffer.getSize() > FRAME_BUDGET) break;
+			if (!buffer.getOwner().canMove()) continue;
+			
+			long newBuffer = pool.createBufferHandle(buffer.getSize(), buffer.getUsage());
+			VulkanSuballocation allocation;
+			
+			try (MemoryStack stack = MemoryStack.stackPush()) {
+				VkMemoryRequirements memoryRequirements = VkMemoryRequirements.callocStack(stack);
+				vkGetBufferMemoryRequirements(device, newBuffer, memoryRequirements);
+				allocation = pool.allocateOutside(memoryRequirements, block.type, block);
+			}
+			
+			// The other blocks are full after all
+			if (allocation == null) {
+				vkDestroyBuffer(device, newBuffer, null);
+				break;
+			}
+			
+			int ret = vkBindBufferMemory(device, newBuffer, allocation.getMemory(), allocation.getOffset());
+			VkUtils.check(ret, "Failed to bind defragmented buffer memory");
+			
+			// Marked under the pool's lock, so destroyBuffer either sees the move or ran before it
+			synchronized (pool) {
+				if (buffer.isDestroyed()) {
+					vkDestroyBuffer(device, newBuffer, null);
+					pool.free(allocation);
+					continue;
+				}
+				buffer.setMoving(true);
+			}
+			moves.add(new Move(buffer, newBuffer, allocation));
+			bytes += buffer.getSize();
+		}
+		
+		if (moves.isEmpty()) return;
+		submitCopies();
+	}
+	
+	private void submitCopies() throws VulkanException {
+		int ret;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
+					.flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+			
+			ret = vkBeginCommandBuffer(commandBuffer, beginInfo);
+			VkUtils.check(ret, "Failed to begin defragmenter command buffer");
+			
+			VkBufferCopy.Buffer region = VkBufferCopy.callocStack(1, stack);
+			for (Move move : moves) {
+				region.srcOffset(0).dstOffset(0).size(move.target.getSize());
+				vkCmdCopyBuffer(commandBuffer, move.target.getBuffer(), move.buffer, region);
+			}
+			
+			// Frames submitted after the swap read the copies
+			VkMemoryBarrier.Buffer barrier = VkMemoryBarrier.callocStack(1, stack)
+					.sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER)
+					.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+					.dstAccessMask(VK_ACCESS_MEMORY_READ_BIT);
+			vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_ALL_COMMANDS_BIT, 0, barrier, null, null);
+			
+			ret = vkEndCommandBuffer(commandBuffer);
+			VkUtils.check(ret, "Failed to end defragmenter command buffer");
+			
+			VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+					.pCommandBuffers(stack.pointers(commandBuffer));
+			
+			// The graphics queue can also be the upload lane's
+			synchronized (vulkanDevice.getQueueLock(queue)) {
+				ret = vkQueueSubmit(queue, submitInfo, fence);
+			}
+			VkUtils.check(ret, "Failed to submit defragmenter copies");
+		}
+		
+		copying = true;
+	}
+	
+	// Points the buffers at their copies, the old ones are only destroyed once no frame can use them
+	private void finishMoves() throws VulkanException {
+		for (Move move : moves) {
+			VulkanPooledBuffer target = move.target;
+			
+			// Swapped under the pool's lock, so destroyBuffer either sees the move or the new buffer
+			synchronized (pool) {
+				target.setMoving(false);
+				
+				// Destroyed by its owner while the copy was in flight, the pool left both ends of the copy to us
+				if (target.isDestroyed()) {
+					retired.add(new Retired(target.getBuffer(), target.getAllocation(), frame));
+					retired.add(new Retired(move.buffer, move.allocation, frame));
+					continue;
+				}
+				
+				retired.add(new Retired(target.getBuffer(), target.getAllocation(), frame));
+				target.swap(move.buffer, move.allocation);
+			}
+			target.getOwner().moved(target);
+			
+			movedBytes += target.getSize();
+			moveCount++;
+		}
+		
+		Log.debug(() -> "Defragmenter moved " + moves.size() + " buffers");
+		moves.clear();
+		
+		int ret = vkResetFences(device, fence);
+		VkUtils.check(ret, "Failed to reset defragmenter fence");
+		ret = vkResetCommandBuffer(commandBuffer, 0);
+		VkUtils.check(ret, "Failed to reset defragmenter command buffer");
+		copying = false;
+	}
+	
+	private void destroyRetired(boolean all) {
+		Iterator<Retired> iterator = retired.iterator();
+		while (iterator.hasNext()) {
+			Retired old = iterator.next();
+			if (!all && frame - old.frame <= framesInFlight) continue;
+			
+			vkDestroyBuffer(device, old.buffer, null);
+			pool.free(old.allocation);
+			iterator.remove();
+		}
+	}
+	
+	public long getMovedBytes() {
+		return movedBytes;
+	}
+	
+	public long getMoveCount() {
+		return moveCount;
+	}
+	
+	// Call with the device idle
+	public void free() throws VulkanException {
+		if (copying) {
+			vkWaitForFences(device, fence, true, Long.MAX_VALUE);
+			finishMoves();
+		}
+		destroyRetired(true);
+		
+		vkDestroyFence(device, fence, null);
+		vkDestroyCommandPool(device, commandPool, null);
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.memory;
+
+import codedcosmos.vulkantriangles.VkUtils;
+import codedcosmos.vulkantriangles.VulkanException;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkMappedMemoryRange;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+// A whole allocation mapped for as long as it lives, flushes and invalidates only when the memory isn't coherent
+public class VulkanMapping {
+	
+	private VkDevice device;
+	private long memory;
+	private long allocationSize;
+	
+	private boolean coherent;
+	private long atomSize;
+	
+	private long address;
+	
+	VulkanMapping(VkDevice device, long memory, long allocationSize, boolean coherent, long atomSize) throws VulkanException {
+		this.device = device;
+		this.memory = memory;
+		this.allocationSize = allocationSize;
+		this.coherent = coherent;
+		this.atomSize = atomSize;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			PointerBuffer pData = stack.mallocPointer(1);
+			int ret = vkMapMemory(device, memory, 0, VK_WHOLE_SIZE, 0, pData);
+			VkUtils.check(ret, "Failed to map memory");
+			address = pData.get(0);
+		}
+	}
+	
+	public long getAddress() {
+		return address;
+	}
+	
+	public ByteBuffer getBuffer(long offset, int size) {
+		return MemoryUtil.memByteBuffer(address + offset, size);
+	}
+	
+	// Makes host writes visible to the device, call before the submit that reads them
+	public void flush(long offset, long size) throws VulkanException {
+		if (coherent) return;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			int ret = vkFlushMappedMemoryRanges(device, range(stack, offset, size));
+			VkUtils.check(ret, "Failed to flush mapped memory");
+		}
+	}
+	
+	// Makes device writes visible to the host, call after the fence and before reading
+	public void invalidate(long offset, long size) throws VulkanException {
+		if (coherent) return;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			int ret = vkInvalidateMappedMemoryRanges(device, range(stack, offset, size));
+			VkUtils.check(ret, "Failed to invalidate mapped memory");
+		}
+	}
+	
+	// Ranges have to start and end on nonCoherentAtomSize, or end at the end of the allocation
+	private VkMappedMemoryRange range(MemoryStack stack, long offset, long size) {
+		long start = offset / atomSize * atomSize;
+		long end = size == VK_WHOLE_SIZE ? allocationSize : Math.min(allocationSize, (offset + size + atomSize - 1) / atomSize * atomSize);
+		
+		return VkMappedMemoryRange.callocStack(stack)
+				.sType(VK_STRUCTURE_TYPE_MAPPED_MEMORY_RANGE)
+				.memory(memory)
+				.offset(start)
+				.size(end - start);
+	}
+	
+	public boolean isCoherent() {
+		return coherent;
+	}
+	
+	public void unmap() {
+		vkUnmapMemory(device, memory);
+		address = 0;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.memory;
+
+import codedcosmos.vulkantriangles.Log;
+import codedcosmos.vulkantriangles.VkUtils;
+import codedcosmos.vulkantriangles.profiling.DeviceAllocationEvent;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkMemoryAllocateInfo;
+import org.lwjgl.vulkan.VkPhysicalDeviceMemoryProperties;
+
+import java.nio.LongBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+// Every device memory allocation goes through here, so they can be observed in one place
+public class VulkanMemory {
+	// Heaps of the device's memory types
+	private static int[] typeHeaps = new int[VK_MAX_MEMORY_TYPES];
+	private static long[] heapSizes = new long[0];
+	private static AtomicLong[] heapBytes = new AtomicLong[0];
+	private static AtomicLong[] heapCounts = new AtomicLong[0];
+	
+	// Live allocations, for the totals on free and the leak report
+	private static final Map<Long, Allocation> live = new ConcurrentHashMap<Long, Allocation>();
+	
+	private static class Allocation {
+		private final String tag;
+		private final long size;
+		private final int heap;
+		
+		private Allocation(String tag, long size, int heap) {
+			this.tag = tag;
+			this.size = size;
+			this.heap = heap;
+		}
+	}
+	
+	public static synchronized void setMemoryProperties(VkPhysicalDeviceMemoryProperties memoryProperties) {
+		for (int i = 0; i < memoryProperties.memoryTypeCount(); i++) {
+			typeHeaps[i] = memoryProperties.memoryTypes(i).heapIndex();
+		}
+		
+		int heapCount = memoryProperties.memoryHeapCount();
+		heapSizes = new long[heapCount];
+		heapBytes = new AtomicLong[heapCount];
+		heapCounts = new AtomicLong[heapCount];
+		for (int i = 0; i < heapCount; i++) {
+			heapSizes[i] = memoryProperties.memoryHeaps(i).size();
+			heapBytes[i] = new AtomicLong();
+			heapCounts[i] = new AtomicLong();
+		}
+	}
+	
+	public static int allocate(VkDevice device, VkMemoryAllocateInfo allocateInfo, LongBuffer pMemory, String tag) {
+		DeviceAllocationEvent event = new DeviceAllocationEvent();
+		event.begin();
+		
+		int ret = vkAllocateMemory(device, allocateInfo, DriverAllocationCallbacks.get(), pMemory);
+		
+		if (ret == VK_SUCCESS) {
+			int heap = typeHeaps[allocateInfo.memoryTypeIndex()];
+			live.put(pMemory.get(0), new Allocation(tag, allocateInfo.allocationSize(), heap));
+			
+			if (heap < heapBytes.length) {
+				heapBytes[heap].addAndGet(allocateInfo.allocationSize());
+				heapCounts[heap].incrementAndGet();
+			}
+		}
+		
+		if (event.shouldCommit()) {
+			event.tag = tag;
+			event.size = allocateInfo.allocationSize();
+			event.memoryTypeIndex = allocateInfo.memoryTypeIndex();
+			event.result = VkUtils.formatRet(ret);
+			event.commit();
+		}
+		
+		return ret;
+	}
+	
+	public static void free(VkDevice device, long memory) {
+		Allocation allocation = live.remove(memory);
+		if (allocation != null && allocation.heap < heapBytes.length) {
+			heapBytes[allocation.heap].addAndGet(-allocation.size);
+			heapCounts[allocation.heap].decrementAndGet();
+		}
+		
+		vkFreeMemory(device, memory, DriverAllocationCallbacks.get());
+	}
+	
+	public static long getHeapBytes(int heap) {
+		return heapBytes[heap].get();
+	}
+	
+	public static int getHeapCount() {
+		return heapBytes.length;
+	}
+	
+	static void appendSnapshot(StringBuilder builder) {
+		for (int i = 0; i < heapBytes.length; i++) {
+			builder.append(String.format("  device heap %-13d %10d bytes in %5d allocations of %d%n", i, heapBytes[i].get(), heapCounts[i].get(), heapSizes[i]));
+		}
+	}
+	
+	static int reportLeaks() {
+		for (Allocation allocation : live.values()) {
+			Log.printErr("Leaked device memory", allocation.tag, allocation.size, "bytes on heap", allocation.heap);
+		}
+		return live.size();
+	}
+}
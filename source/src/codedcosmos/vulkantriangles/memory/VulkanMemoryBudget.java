@@ -0,0 +1,119 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.memory;
+
+import codedcosmos.vulkantriangles.VulkanDevice;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkPhysicalDeviceMemoryBudgetPropertiesEXT;
+import org.lwjgl.vulkan.VkPhysicalDeviceMemoryProperties;
+import org.lwjgl.vulkan.VkPhysicalDeviceMemoryProperties2KHR;
+
+import static org.lwjgl.vulkan.EXTMemoryBudget.VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_MEMORY_BUDGET_PROPERTIES_EXT;
+import static org.lwjgl.vulkan.KHRGetPhysicalDeviceProperties2.VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_MEMORY_PROPERTIES_2_KHR;
+import static org.lwjgl.vulkan.KHRGetPhysicalDeviceProperties2.vkGetPhysicalDeviceMemoryProperties2KHR;
+import static org.lwjgl.vulkan.VK10.*;
+
+// Per heap budget and usage, from VK_EXT_memory_budget or estimated from our own allocations
+public class VulkanMemoryBudget {
+	// Without the extension assume the rest of the system leaves us this much of each heap
+	private static final double FALLBACK_BUDGET = 0.8;
+	
+	// Usage over this fraction of the budget is pressure
+	private static final double PRESSURE = 0.9;
+	
+	private VulkanDevice vulkanDevice;
+	private boolean extension;
+	
+	private long[] budgets;
+	private long[] usages;
+	
+	// Largest device local heap, where models and compute buffers live
+	private int deviceLocalHeap;
+	
+	public VulkanMemoryBudget(VulkanDevice vulkanDevice) {
+		this.vulkanDevice = vulkanDevice;
+		this.extension = vulkanDevice.supportsMemoryBudget();
+		
+		VkPhysicalDeviceMemoryProperties memoryProperties = vulkanDevice.getMemoryProperties();
+		int heapCount = memoryProperties.memoryHeapCount();
+		budgets = new long[heapCount];
+		usages = new long[heapCount];
+		
+		deviceLocalHeap = 0;
+		long largest = -1;
+		for (int i = 0; i < heapCount; i++) {
+			if ((memoryProperties.memoryHeaps(i).flags() & VK_MEMORY_HEAP_DEVICE_LOCAL_BIT) != 0 && memoryProperties.memoryHeaps(i).size() > largest) {
+				largest = memoryProperties.memoryHeaps(i).size();
+				deviceLocalHeap = i;
+			}
+		}
+		
+		update();
+	}
+	
+	// Cheap but not free, call every few frames rather than every frame
+	public void update() {
+		VkPhysicalDeviceMemoryProperties memoryProperties = vulkanDevice.getMemoryProperties();
+		
+		if (extension) {
+			try (MemoryStack stack = MemoryStack.stackPush()) {
+				VkPhysicalDeviceMemoryBudgetPropertiesEXT budgetProperties = VkPhysicalDeviceMemoryBudgetPropertiesEXT.callocStack(stack)
+						.sType(VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_MEMORY_BUDGET_PROPERTIES_EXT);
+				
+				VkPhysicalDeviceMemoryProperties2KHR properties2 = VkPhysicalDeviceMemoryProperties2KHR.callocStack(stack)
+						.sType(VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_MEMORY_PROPERTIES_2_KHR)
+						.pNext(budgetProperties.address());
+				
+				vkGetPhysicalDeviceMemoryProperties2KHR(vulkanDevice.get().getPhysicalDevice(), properties2);
+				
+				for (int i = 0; i < budgets.length; i++) {
+					budgets[i] = budgetProperties.heapBudget(i);
+					usages[i] = budgetProperties.heapUsage(i);
+				}
+			}
+		} else {
+			// Only sees our own allocations, other processes are covered by the margin
+			for (int i = 0; i < budgets.length; i++) {
+				budgets[i] = (long) (memoryProperties.memoryHeaps(i).size() * FALLBACK_BUDGET);
+				usages[i] = VulkanMemory.getHeapBytes(i);
+			}
+		}
+	}
+	
+	public long getBudget(int heap) {
+		return budgets[heap];
+	}
+	
+	public long getUsage(int heap) {
+		return usages[heap];
+	}
+	
+	// Bytes that need to be freed to be back under the pressure line
+	public long getOvershoot(int heap) {
+		return usages[heap] - (long) (budgets[heap] * PRESSURE);
+	}
+	
+	public boolean isUnderPressure(int heap) {
+		return getOvershoot(heap) > 0;
+	}
+	
+	public int getDeviceLocalHeap() {
+		return deviceLocalHeap;
+	}
+	
+	public boolean usesExtension() {
+		return extension;
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.memory;
+
+import codedcosmos.vulkantriangles.Log;
+import codedcosmos.vulkantriangles.VkUtils;
+import codedcosmos.vulkantriangles.VulkanException;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkMemoryAllocateInfo;
+import org.lwjgl.vulkan.VkMemoryRequirements;
+import org.lwjgl.vulkan.VkPhysicalDeviceMemoryProperties;
+
+import java.nio.LongBuffer;
+
+import static org.lwjgl.vulkan.VK10.*;
+import static org.lwjgl.vulkan.VK11.VK_MEMORY_PROPERTY_PROTECTED_BIT;
+
+// Picks memory types by usage, ranking every allowed type instead of taking the first that has the flags
+public class VulkanMemoryPolicy {
+	// Never picked, lazily allocated is for transient attachments and protected needs a protected queue
+	private static final int EXCLUDED = VK_MEMORY_PROPERTY_LAZILY_ALLOCATED_BIT | VK_MEMORY_PROPERTY_PROTECTED_BIT;
+	
+	private VkPhysicalDeviceMemoryProperties memoryProperties;
+	private long nonCoherentAtomSize;
+	
+	public VulkanMemoryPolicy(VkPhysicalDeviceMemoryProperties memoryProperties, long nonCoherentAtomSize) {
+		this.memoryProperties = memoryProperties;
+		this.nonCoherentAtomSize = Math.max(1, nonCoherentAtomSize);
+		
+		for (MemoryUsage usage : MemoryUsage.values()) {
+			int type = findMemoryType(-1, usage);
+			Log.print("Memory for " + usage + ": " + (type == -1 ? "none" : "type " + type + " " + describe(getFlags(type))));
+		}
+	}
+	
+	// Best type allowed by typeBits, -1 if none has the required flags
+	public int findMemoryType(int typeBits, MemoryUsage usage) {
+		int best = -1;
+		int bestScore = Integer.MIN_VALUE;
+		
+		for (int i = 0; i < memoryProperties.memoryTypeCount(); i++) {
+			if ((typeBits & (1 << i)) == 0) continue;
+			
+			int flags = getFlags(i);
+			if ((flags & usage.getRequired()) != usage.getRequired()) continue;
+			if ((flags & EXCLUDED) != 0) continue;
+			
+			// Ties keep the lower index, drivers list their favourite types first
+			int score = usage.score(flags);
+			if (score > bestScore) {
+				best = i;
+				bestScore = score;
+			}
+		}
+		
+		return best;
+	}
+	
+	// Allocates memory for requirements, returns the memory type index so it can be mapped
+	public int allocate(VkDevice device, VkMemoryRequirements requirements, MemoryUsage usage, LongBuffer pMemory, String tag) throws VulkanException {
+		int type = findMemoryType(requirements.memoryTypeBits(), usage);
+		if (type == -1) {
+			throw new VulkanException("Failed to find a memory type for " + usage + " " + tag);
+		}
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			VkMemoryAllocateInfo memoryAllocateInfo = VkMemoryAllocateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
+					.allocationSize(requirements.size())
+					.memoryTypeIndex(type);
+			
+			int ret = VulkanMemory.allocate(device, memoryAllocateInfo, pMemory, tag);
+			VkUtils.check(ret, "Failed to allocate " + tag + " memory");
+		}
+		
+		return type;
+	}
+	
+	public VulkanMapping map(VkDevice device, long memory, int type, long allocationSize) throws VulkanException {
+		return new VulkanMapping(device, memory, allocationSize, isCoherent(type), nonCoherentAtomSize);
+	}
+	
+	public int getFlags(int type) {
+		return memoryProperties.memoryTypes(type).propertyFlags();
+	}
+	
+	public boolean isCoherent(int type) {
+		return (getFlags(type) & VK_MEMORY_PROPERTY_HOST_COHERENT_BIT) != 0;
+	}
+	
+	public boolean isDeviceLocal(int type) {
+		return (getFlags(type) & VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT) != 0;
+	}
+	
+	public long getNonCoherentAtomSize() {
+		return nonCoherentAtomSize;
+	}
+	
+	private static String describe(int flags) {
+		StringBuilder builder = new StringBuilder();
+		if ((flags & VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT) != 0) builder.append("DEVICE_LOCAL ");
+		if ((flags & VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT) != 0) builder.append("HOST_VISIBLE ");
+		if ((flags & VK_MEMORY_PROPERTY_HOST_COHERENT_BIT) != 0) builder.append("HOST_COHERENT ");
+		if ((flags & VK_MEMORY_PROPERTY_HOST_CACHED_BIT) != 0) builder.append("HOST_CACHED ");
+		return builder.toString().trim();
+	}
+}
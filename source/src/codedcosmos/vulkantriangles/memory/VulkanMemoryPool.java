@@ -0,0 +1,256 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.memory;
+
+import codedcosmos.vulkantriangles.Log;
+import codedcosmos.vulkantriangles.VkUtils;
+import codedcosmos.vulkantriangles.VulkanException;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkBufferCreateInfo;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkMemoryAllocateInfo;
+import org.lwjgl.vulkan.VkMemoryRequirements;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+// Carves buffers out of large device memory blocks with a TlsfAllocator per block, instead of one allocation per buffer.
+// Only for buffers, images would need bufferImageGranularity between them and linear resources.
+public class VulkanMemoryPool {
+	// Size of each block, requests over half of it get a block of their own
+	private static final long BLOCK_SIZE = Long.getLong("vulkantriangles.memory.blockSize", 64L << 20);
+	
+	// Without pooling every request gets its own block, the old one allocation per buffer behaviour
+	private static final boolean POOLED = Boolean.parseBoolean(System.getProperty("vulkantriangles.memory.pool", "true"));
+	
+	private VkDevice device;
+	private VulkanMemoryPolicy policy;
+	
+	private List<Block> blocks;
+	
+	// Buffers created through the pool, so the defragmenter can find what lives in a block
+	private List<VulkanPooledBuffer> buffers;
+	
+	static class Block {
+		final long memory;
+		final int type;
+		final TlsfAllocator allocator;
+		
+		private Block(long memory, int type, long size) {
+			this.memory = memory;
+			this.type = type;
+			this.allocator = new TlsfAllocator(size);
+		}
+	}
+	
+	public VulkanMemoryPool(VkDevice device, VulkanMemoryPolicy policy) {
+		this.device = device;
+		this.policy = policy;
+		this.blocks = new ArrayList<Block>();
+		this.buffers = new ArrayList<VulkanPooledBuffer>();
+		
+		Log.print(POOLED ? "Pooling buffer memory in blocks of " + BLOCK_SIZE + " bytes" : "Buffer memory pooling disabled");
+	}
+	
+	public synchronized VulkanSuballocation allocate(VkMemoryRequirements requirements, MemoryUsage usage) throws VulkanException {
+		int type = policy.findMemoryType(requirements.memoryTypeBits(), usage);
+		if (type == -1) {
+			throw new VulkanException("Failed to find a memory type for pooled " + usage);
+		}
+		
+		long size = requirements.size();
+		long alignment = requirements.alignment();
+		boolean dedicated = !POOLED || size > BLOCK_SIZE / 2;
+		
+		// First block of the type with room
+		if (!dedicated) {
+			for (Block block : blocks) {
+				if (block.type != type || block.allocator.getCapacity() != BLOCK_SIZE) continue;
+				
+				int handle = block.allocator.allocate(size, alignment);
+				if (handle >= 0) {
+					return new VulkanSuballocation(block, handle);
+				}
+			}
+		}
+		
+		// New block, a dedicated one is exactly size bytes and its allocation sits at offset 0
+		Block block = createBlock(type, dedicated ? size : BLOCK_SIZE, usage);
+		int handle = block.allocator.allocate(size, alignment);
+		if (handle < 0) {
+			blocks.remove(block);
+			VulkanMemory.free(device, block.memory);
+			throw new VulkanException("Failed to allocate " + size + " bytes from a new pool block of " + block.allocator.getCapacity() + " bytes");
+		}
+		return new VulkanSuballocation(block, handle);
+	}
+	
+	// Creates, allocates and binds a buffer, transfer usage is always added so it can be moved
+	public synchronized VulkanPooledBuffer createBuffer(long size, int usage, MemoryUsage memoryUsage, VulkanPooledBuffer.Owner owner) throws VulkanException {
+		int ret;
+		
+		long buffer = createBufferHandle(size, usage);
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			VkMemoryRequirements memoryRequirements = VkMemoryRequirements.callocStack(stack);
+			vkGetBufferMemoryRequirements(device, buffer, memoryRequirements);
+			VulkanSuballocation allocation;
+			try {
+				allocation = allocate(memoryRequirements, memoryUsage);
+			} catch (VulkanException e) {
+				vkDestroyBuffer(device, buffer, null);
+				throw e;
+			}
+			
+			ret = vkBindBufferMemory(device, buffer, allocation.getMemory(), allocation.getOffset());
+			if (ret != VK_SUCCESS) {
+				vkDestroyBuffer(device, buffer, null);
+				free(allocation);
+				VkUtils.check(ret, "Failed to bind pooled buffer memory");
+			}
+			
+			VulkanPooledBuffer pooledBuffer = new VulkanPooledBuffer(buffer, allocation, size, usage, memoryUsage, owner);
+			buffers.add(pooledBuffer);
+			return pooledBuffer;
+		}
+	}
+	
+	// A buffer being copied by the defragmenter is only marked, the defragmenter destroys it once the copy is retired
+	public synchronized void destroyBuffer(VulkanPooledBuffer buffer) {
+		if (!buffer.isMoving()) {
+			vkDestroyBuffer(device, buffer.getBuffer(), null);
+			free(buffer.getAllocation());
+		}
+		
+		buffers.remove(buffer);
+		buffer.setDestroyed();
+	}
+	
+	long createBufferHandle(long size, int usage) throws VulkanException {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			VkBufferCreateInfo bufferCreateInfo = VkBufferCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
+					.size(size)
+					.usage(usage | VK_BUFFER_USAGE_TRANSFER_SRC_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT)
+					.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+			
+			LongBuffer pBuffer = stack.mallocLong(1);
+			int ret = vkCreateBuffer(device, bufferCreateInfo, null, pBuffer);
+			VkUtils.check(ret, "Failed to create pooled buffer");
+			return pBuffer.get(0);
+		}
+	}
+	
+	// Room in an existing shared block of type other than exclude, null when there is none
+	synchronized VulkanSuballocation allocateOutside(VkMemoryRequirements requirements, int type, Block exclude) {
+		for (Block block : blocks) {
+			if (block == exclude || block.type != type || block.allocator.getCapacity() != BLOCK_SIZE) continue;
+			
+			int handle = block.allocator.allocate(requirements.size(), requirements.alignment());
+			if (handle >= 0) {
+				return new VulkanSuballocation(block, handle);
+			}
+		}
+		return null;
+	}
+	
+	// Least used shared block under threshold whose contents would fit in the other blocks of its type
+	synchronized Block findSparseBlock(double threshold) {
+		Block sparsest = null;
+		double sparsestUse = threshold;
+		
+		for (Block block : blocks) {
+			if (block.allocator.getCapacity() != BLOCK_SIZE || block.allocator.isEmpty()) continue;
+			
+			double use = (double) block.allocator.getUsedBytes() / block.allocator.getCapacity();
+			if (use >= sparsestUse) continue;
+			
+			long room = 0;
+			for (Block other : blocks) {
+				if (other != block && other.type == block.type && other.allocator.getCapacity() == BLOCK_SIZE) {
+					room += other.allocator.getLargestFreeBlock();
+				}
+			}
+			
+			if (room >= block.allocator.getUsedBytes()) {
+				sparsest = block;
+				sparsestUse = use;
+			}
+		}
+		return sparsest;
+	}
+	
+	synchronized List<VulkanPooledBuffer> getBuffers(Block block) {
+		List<VulkanPooledBuffer> inBlock = new ArrayList<VulkanPooledBuffer>();
+		for (VulkanPooledBuffer buffer : buffers) {
+			if (buffer.getAllocation().block == block) {
+				inBlock.add(buffer);
+			}
+		}
+		return inBlock;
+	}
+	
+	VkDevice getDevice() {
+		return device;
+	}
+	
+	private Block createBlock(int type, long size, MemoryUsage usage) throws VulkanException {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			VkMemoryAllocateInfo memoryAllocateInfo = VkMemoryAllocateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
+					.allocationSize(size)
+					.memoryTypeIndex(type);
+			
+			LongBuffer pMemory = stack.mallocLong(1);
+			int ret = VulkanMemory.allocate(device, memoryAllocateInfo, pMemory, "pool " + usage.toString().toLowerCase());
+			VkUtils.check(ret, "Failed to allocate pool block of " + size + " bytes");
+			
+			Block block = new Block(pMemory.get(0), type, size);
+			blocks.add(block);
+			return block;
+		}
+	}
+	
+	// Empty blocks are given back straight away, so the memory budget sees evictions
+	public synchronized void free(VulkanSuballocation allocation) {
+		Block block = allocation.block;
+		block.allocator.free(allocation.handle);
+		
+		if (block.allocator.isEmpty()) {
+			blocks.remove(block);
+			VulkanMemory.free(device, block.memory);
+		}
+	}
+	
+	public synchronized void logReport() {
+		Log.print("Memory pool, " + blocks.size() + " blocks");
+		for (Block block : blocks) {
+			Log.print("  type " + block.type + ": " + block.allocator);
+		}
+	}
+	
+	public synchronized void free() {
+		for (Block block : blocks) {
+			if (!block.allocator.isEmpty()) {
+				Log.warn("Memory pool block still has " + block.allocator.getAllocationCount() + " allocations (" + block.allocator.getUsedBytes() + " bytes)");
+			}
+			VulkanMemory.free(device, block.memory);
+		}
+		blocks.clear();
+	}
+}
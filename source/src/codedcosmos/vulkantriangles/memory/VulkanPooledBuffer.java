@@ -0,0 +1,94 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.memory;
+
+// A buffer in pooled memory whose handle can change when the defragmenter moves it.
+// Owners read getBuffer whenever they bind or write descriptors instead of keeping the handle.
+public class VulkanPooledBuffer {
+	
+	public interface Owner {
+		// False while the contents are still being written, uploads for example
+		boolean canMove();
+		
+		// Called once the copy has finished, before the old buffer is destroyed frames in flight later
+		void moved(VulkanPooledBuffer buffer);
+	}
+	
+	private long buffer;
+	private VulkanSuballocation allocation;
+	
+	private final long size;
+	private final int usage;
+	private final MemoryUsage memoryUsage;
+	private final Owner owner;
+	
+	// Set by the defragmenter while a copy out of this buffer is in flight
+	private boolean moving;
+	private boolean destroyed;
+	
+	VulkanPooledBuffer(long buffer, VulkanSuballocation allocation, long size, int usage, MemoryUsage memoryUsage, Owner owner) {
+		this.buffer = buffer;
+		this.allocation = allocation;
+		this.size = size;
+		this.usage = usage;
+		this.memoryUsage = memoryUsage;
+		this.owner = owner;
+	}
+	
+	void swap(long buffer, VulkanSuballocation allocation) {
+		this.buffer = buffer;
+		this.allocation = allocation;
+	}
+	
+	void setMoving(boolean moving) {
+		this.moving = moving;
+	}
+	
+	void setDestroyed() {
+		this.destroyed = true;
+	}
+	
+	public long getBuffer() {
+		return buffer;
+	}
+	
+	public VulkanSuballocation getAllocation() {
+		return allocation;
+	}
+	
+	public long getSize() {
+		return size;
+	}
+	
+	public int getUsage() {
+		return usage;
+	}
+	
+	public MemoryUsage getMemoryUsage() {
+		return memoryUsage;
+	}
+	
+	public Owner getOwner() {
+		return owner;
+	}
+	
+	public boolean isMoving() {
+		return moving;
+	}
+	
+	public boolean isDestroyed() {
+		return destroyed;
+	}
+}
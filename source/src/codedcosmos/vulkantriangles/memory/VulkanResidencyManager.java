@@ -0,0 +1,296 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.memory;
+
+import codedcosmos.vulkantriangles.Log;
+import codedcosmos.vulkantriangles.VkUtils;
+import codedcosmos.vulkantriangles.VulkanDevice;
+import codedcosmos.vulkantriangles.VulkanException;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.system.MemoryUtil.memAddress;
+import static org.lwjgl.system.MemoryUtil.memCopy;
+import static org.lwjgl.vulkan.VK10.*;
+
+// Tracks when residents were last drawn, evicts the coldest under memory pressure and restores them when used again
+public class VulkanResidencyManager {
+	// Frames between budget queries
+	private static final int BUDGET_INTERVAL = 30;
+	
+	// Frames a resident has to go unused, on top of the frames in flight, before it can be evicted
+	private static final int COLD_FRAMES = 120;
+	
+	private VulkanDevice vulkanDevice;
+	private VkDevice device;
+	private VulkanMemoryBudget budget;
+	private VulkanUploadLane uploadLane;
+	
+	// Queue the residents are drawn on, readbacks are submitted here too
+	private VkQueue queue;
+	private int queueFamily;
+	private long commandPool;
+	private int framesInFlight;
+	
+	// Frame each resident was last used on
+	private List<VulkanResident> residents;
+	private Map<VulkanResident, Long> lastUsed;
+	private long frame;
+	
+	// Stats
+	private long evictions;
+	private long restores;
+	private long evictedBytes;
+	
+	public VulkanResidencyManager(VulkanDevice vulkanDevice, VulkanMemoryBudget budget, VulkanUploadLane uploadLane, int framesInFlight) throws VulkanException {
+		this.vulkanDevice = vulkanDevice;
+		this.device = vulkanDevice.get();
+		this.budget = budget;
+		this.uploadLane = uploadLane;
+		this.queue = vulkanDevice.getGraphicsQueue();
+		this.queueFamily = vulkanDevice.getGraphicsQueueFamily();
+		this.framesInFlight = framesInFlight;
+		
+		residents = new ArrayList<VulkanResident>();
+		lastUsed = new IdentityHashMap<VulkanResident, Long>();
+		
+		int ret;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			VkCommandPoolCreateInfo createInfo = VkCommandPoolCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO)
+					.queueFamilyIndex(queueFamily)
+					.flags(VK_COMMAND_POOL_CREATE_TRANSIENT_BIT);
+			
+			LongBuffer pCommandPool = stack.mallocLong(1);
+			ret = vkCreateCommandPool(device, createInfo, null, pCommandPool);
+			VkUtils.check(ret, "Failed to create residency command pool for queueFamily " + queueFamily);
+			commandPool = pCommandPool.get(0);
+		}
+		
+		Log.print("Created residency manager, " + (budget.usesExtension() ? "budget from VK_EXT_memory_budget" : "budget estimated from heap sizes"));
+	}
+	
+	public void register(VulkanResident resident) {
+		residents.add(resident);
+		lastUsed.put(resident, frame);
+	}
+	
+	public void unregister(VulkanResident resident) {
+		residents.remove(resident);
+		lastUsed.remove(resident);
+	}
+	
+	// Call before drawing a resident, restores it if it was evicted
+	// Returns false when it isn't resident yet, restores through the upload lane can take a few frames
+	public boolean use(VulkanResident resident) throws VulkanException {
+		lastUsed.put(resident, frame);
+		
+		if (!resident.isResident()) {
+			resident.restore(this);
+			restores++;
+			Log.debug(() -> "Restored " + resident.getResidentName() + " (" + resident.getResidentBytes() + " bytes)");
+		}
+		
+		return resident.isResident();
+	}
+	
+	// Call once per frame after submitting
+	public void endFrame() throws VulkanException {
+		frame++;
+		
+		if (frame % BUDGET_INTERVAL != 0) {
+			return;
+		}
+		
+		budget.update();
+		int heap = budget.getDeviceLocalHeap();
+		if (budget.isUnderPressure(heap)) {
+			evictCold(budget.getOvershoot(heap));
+			budget.update();
+		}
+	}
+	
+	// Evicts the least recently used cold residents until bytes have been freed, returns the bytes freed
+	public long evictCold(long bytes) throws VulkanException {
+		List<VulkanResident> candidates = new ArrayList<VulkanResident>();
+		for (VulkanResident resident : residents) {
+			if (resident.isResident() && resident.canEvict() && frame - lastUsed.get(resident) > framesInFlight + COLD_FRAMES) {
+				candidates.add(resident);
+			}
+		}
+		candidates.sort((a, b) -> Long.compare(lastUsed.get(a), lastUsed.get(b)));
+		
+		long freed = 0;
+		for (VulkanResident resident : candidates) {
+			if (freed >= bytes) break;
+			
+			long size = resident.getResidentBytes();
+			resident.evict(this);
+			freed += size;
+			
+			evictions++;
+			evictedBytes += size;
+			Log.debug(() -> "Evicted " + resident.getResidentName() + " (" + size + " bytes)");
+		}
+		
+		if (freed < bytes) {
+			Log.warn("Over device memory budget by " + (bytes - freed) + " bytes with nothing cold left to evict");
+		}
+		return freed;
+	}
+	
+	// Copies a device local buffer into host memory, blocking until the copy is done
+	// Evictions are rare and only of cold buffers, so this waits rather than tracking another fence
+	public void readback(long srcBuffer, int size, ByteBuffer dst) throws VulkanException {
+		int ret;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			// ------------------
+			// Host visible destination
+			VkBufferCreateInfo bufferCreateInfo = VkBufferCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
+					.size(size)
+					.usage(VK_BUFFER_USAGE_TRANSFER_DST_BIT)
+					.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+			
+			LongBuffer pBuffer = stack.mallocLong(1);
+			ret = vkCreateBuffer(device, bufferCreateInfo, null, pBuffer);
+			VkUtils.check(ret, "Failed to create readback buffer");
+			long buffer = pBuffer.get(0);
+			
+			VkMemoryRequirements memoryRequirements = VkMemoryRequirements.callocStack(stack);
+			vkGetBufferMemoryRequirements(device, buffer, memoryRequirements);
+			
+			LongBuffer pMemory = stack.mallocLong(1);
+			int memoryType = vulkanDevice.getMemoryPolicy().allocate(device, memoryRequirements, MemoryUsage.READBACK, pMemory, "readback");
+			long memory = pMemory.get(0);
+			
+			ret = vkBindBufferMemory(device, buffer, memory, 0);
+			VkUtils.check(ret, "Failed to bind readback memory");
+			
+			// ------------------
+			// Record copy
+			VkCommandBufferAllocateInfo allocateInfo = VkCommandBufferAllocateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO)
+					.commandPool(commandPool)
+					.level(VK_COMMAND_BUFFER_LEVEL_PRIMARY)
+					.commandBufferCount(1);
+			
+			PointerBuffer pCommandBuffer = stack.mallocPointer(1);
+			ret = vkAllocateCommandBuffers(device, allocateInfo, pCommandBuffer);
+			VkUtils.check(ret, "Failed to allocate readback command buffer");
+			VkCommandBuffer commandBuffer = new VkCommandBuffer(pCommandBuffer.get(0), device);
+			
+			VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
+					.flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+			
+			ret = vkBeginCommandBuffer(commandBuffer, beginInfo);
+			VkUtils.check(ret, "Failed to begin readback command buffer");
+			
+			VkBufferCopy.Buffer region = VkBufferCopy.callocStack(1, stack)
+					.srcOffset(0)
+					.dstOffset(0)
+					.size(size);
+			vkCmdCopyBuffer(commandBuffer, srcBuffer, buffer, region);
+			
+			// Make the copy visible to the host
+			VkMemoryBarrier.Buffer barrier = VkMemoryBarrier.callocStack(1, stack)
+					.sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER)
+					.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+					.dstAccessMask(VK_ACCESS_HOST_READ_BIT);
+			vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_HOST_BIT, 0, barrier, null, null);
+			
+			ret = vkEndCommandBuffer(commandBuffer);
+			VkUtils.check(ret, "Failed to end readback command buffer");
+			
+			// ------------------
+			// Submit and wait
+			VkFenceCreateInfo fenceCreateInfo = VkFenceCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
+			
+			LongBuffer pFence = stack.mallocLong(1);
+			ret = vkCreateFence(device, fenceCreateInfo, null, pFence);
+			VkUtils.check(ret, "Failed to create readback fence");
+			long fence = pFence.get(0);
+			
+			VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+					.pCommandBuffers(pCommandBuffer);
+			
+			ret = vkQueueSubmit(queue, submitInfo, fence);
+			VkUtils.check(ret, "Failed to submit readback");
+			
+			ret = vkWaitForFences(device, fence, true, Long.MAX_VALUE);
+			VkUtils.check(ret, "Failed to wait for readback");
+			
+			// Copy out
+			VulkanMapping mapping = vulkanDevice.getMemoryPolicy().map(device, memory, memoryType, memoryRequirements.size());
+			mapping.invalidate(0, size);
+			memCopy(mapping.getAddress(), memAddress(dst), size);
+			mapping.unmap();
+			
+			// Free
+			vkFreeCommandBuffers(device, commandPool, commandBuffer);
+			vkDestroyFence(device, fence, null);
+			vkDestroyBuffer(device, buffer, null);
+			VulkanMemory.free(device, memory);
+		}
+	}
+	
+	public VulkanDevice getVulkanDevice() {
+		return vulkanDevice;
+	}
+	
+	public VulkanUploadLane getUploadLane() {
+		return uploadLane;
+	}
+	
+	public int getQueueFamily() {
+		return queueFamily;
+	}
+	
+	public VulkanMemoryBudget getBudget() {
+		return budget;
+	}
+	
+	public long getEvictions() {
+		return evictions;
+	}
+	
+	public long getRestores() {
+		return restores;
+	}
+	
+	public long getEvictedBytes() {
+		return evictedBytes;
+	}
+	
+	public void free() {
+		residents.clear();
+		lastUsed.clear();
+		
+		vkDestroyCommandPool(device, commandPool, null);
+	}
+}
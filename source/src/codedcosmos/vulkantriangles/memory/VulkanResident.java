@@ -0,0 +1,36 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.memory;
+
+import codedcosmos.vulkantriangles.VulkanException;
+
+// Something holding device local memory that the residency manager may take away while it is cold
+public interface VulkanResident {
+	String getResidentName();
+	
+	// Device local bytes released by evicting
+	long getResidentBytes();
+	
+	boolean isResident();
+	
+	// False while gpu work other than drawing, like an upload, still references the memory
+	boolean canEvict();
+	
+	// Only called once the gpu is finished with the resource
+	void evict(VulkanResidencyManager manager) throws VulkanException;
+	
+	// Handles may change, so users have to read them again after a restore
+	void restore(VulkanResidencyManager manager) throws VulkanException;
+}
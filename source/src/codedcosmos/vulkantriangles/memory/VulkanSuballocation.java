@@ -0,0 +1,48 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.memory;
+
+// A range of a pool block, bind with getMemory and getOffset
+public class VulkanSuballocation {
+	
+	final VulkanMemoryPool.Block block;
+	final int handle;
+	
+	private long offset;
+	private long size;
+	
+	VulkanSuballocation(VulkanMemoryPool.Block block, int handle) {
+		this.block = block;
+		this.handle = handle;
+		this.offset = block.allocator.getOffset(handle);
+		this.size = block.allocator.getSize(handle);
+	}
+	
+	public long getMemory() {
+		return block.memory;
+	}
+	
+	public long getOffset() {
+		return offset;
+	}
+	
+	public long getSize() {
+		return size;
+	}
+	
+	public int getMemoryType() {
+		return block.type;
+	}
+}
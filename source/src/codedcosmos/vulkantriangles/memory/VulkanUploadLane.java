@@ -0,0 +1,282 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.memory;
+
+import codedcosmos.vulkantriangles.Log;
+import codedcosmos.vulkantriangles.VkUtils;
+import codedcosmos.vulkantriangles.VulkanDevice;
+import codedcosmos.vulkantriangles.VulkanException;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.lwjgl.system.MemoryUtil.memAddress;
+import static org.lwjgl.system.MemoryUtil.memCopy;
+import static org.lwjgl.vulkan.VK10.*;
+
+public class VulkanUploadLane {
+	
+	private VulkanDevice vulkanDevice;
+	private VkDevice device;
+	
+	// Transfer queue, a dedicated dma queue when the device has one
+	private VkQueue queue;
+	private int queueFamily;
+	private long commandPool;
+	
+	// Uploads that have been submitted but not yet acquired by their destination family
+	private List<Upload> inFlight;
+	
+	// Stats
+	private long uploadedBytes;
+	
+	public VulkanUploadLane(VulkanDevice vulkanDevice) throws VulkanException {
+		this.vulkanDevice = vulkanDevice;
+		this.device = vulkanDevice.get();
+		this.queue = vulkanDevice.getTransferQueue();
+		this.queueFamily = vulkanDevice.getTransferQueueFamily();
+		
+		inFlight = new ArrayList<Upload>();
+		
+		int ret;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			// Command buffers are short lived, one per upload
+			VkCommandPoolCreateInfo createInfo = VkCommandPoolCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO)
+					.queueFamilyIndex(queueFamily)
+					.flags(VK_COMMAND_POOL_CREATE_TRANSIENT_BIT);
+			
+			LongBuffer pCommandPool = stack.mallocLong(1);
+			ret = vkCreateCommandPool(device, createInfo, null, pCommandPool);
+			VkUtils.check(ret, "Failed to create upload command pool for queueFamily " + queueFamily);
+			commandPool = pCommandPool.get(0);
+		}
+		
+		Log.print(vulkanDevice.hasDedicatedTransfer() ? "Created upload lane on dedicated transfer queue" : "Created upload lane sharing queue family " + queueFamily);
+	}
+	
+	// Copies data into a staging buffer now and onto dstBuffer asynchronously
+	// dstBuffer must be created with TRANSFER_DST and exclusive sharing
+	public Upload upload(ByteBuffer data, long dstBuffer, long dstOffset, int dstQueueFamily, int dstAccessMask, int dstStageMask) throws VulkanException {
+		int ret;
+		
+		Upload upload = new Upload(dstBuffer, dstOffset, data.remaining(), dstQueueFamily, dstAccessMask, dstStageMask);
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			// ------------------
+			// Staging buffer
+			VkBufferCreateInfo bufferCreateInfo = VkBufferCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
+					.size(upload.size)
+					.usage(VK_BUFFER_USAGE_TRANSFER_SRC_BIT)
+					.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+			
+			LongBuffer pBuffer = stack.mallocLong(1);
+			ret = vkCreateBuffer(device, bufferCreateInfo, null, pBuffer);
+			VkUtils.check(ret, "Failed to create upload staging buffer");
+			upload.stagingBuffer = pBuffer.get(0);
+			
+			VkMemoryRequirements memoryRequirements = VkMemoryRequirements.callocStack(stack);
+			vkGetBufferMemoryRequirements(device, upload.stagingBuffer, memoryRequirements);
+			
+			LongBuffer pMemory = stack.mallocLong(1);
+			int memoryType = vulkanDevice.getMemoryPolicy().allocate(device, memoryRequirements, MemoryUsage.UPLOAD, pMemory, "staging");
+			upload.stagingMemory = pMemory.get(0);
+			
+			ret = vkBindBufferMemory(device, upload.stagingBuffer, upload.stagingMemory, 0);
+			VkUtils.check(ret, "Failed to bind upload staging memory");
+			
+			// Copy, flushed before the submit when the staging isn't coherent
+			VulkanMapping mapping = vulkanDevice.getMemoryPolicy().map(device, upload.stagingMemory, memoryType, memoryRequirements.size());
+			memCopy(memAddress(data), mapping.getAddress(), upload.size);
+			mapping.flush(0, upload.size);
+			mapping.unmap();
+			
+			// ------------------
+			// Record copy and release to the destination family
+			VkCommandBufferAllocateInfo allocateInfo = VkCommandBufferAllocateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO)
+					.commandPool(commandPool)
+					.level(VK_COMMAND_BUFFER_LEVEL_PRIMARY)
+					.commandBufferCount(1);
+			
+			PointerBuffer pCommandBuffer = stack.mallocPointer(1);
+			ret = vkAllocateCommandBuffers(device, allocateInfo, pCommandBuffer);
+			VkUtils.check(ret, "Failed to allocate upload command buffer");
+			upload.commandBuffer = new VkCommandBuffer(pCommandBuffer.get(0), device);
+			
+			VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
+					.flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+			
+			ret = vkBeginCommandBuffer(upload.commandBuffer, beginInfo);
+			VkUtils.check(ret, "Failed to begin upload command buffer");
+			
+			VkBufferCopy.Buffer region = VkBufferCopy.callocStack(1, stack)
+					.srcOffset(0)
+					.dstOffset(dstOffset)
+					.size(upload.size);
+			vkCmdCopyBuffer(upload.commandBuffer, upload.stagingBuffer, dstBuffer, region);
+			
+			if (upload.needsOwnershipTransfer()) {
+				// Release half of the queue family ownership transfer
+				VkBufferMemoryBarrier.Buffer release = VkBufferMemoryBarrier.callocStack(1, stack)
+						.sType(VK_STRUCTURE_TYPE_BUFFER_MEMORY_BARRIER)
+						.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+						.dstAccessMask(0)
+						.srcQueueFamilyIndex(queueFamily)
+						.dstQueueFamilyIndex(dstQueueFamily)
+						.buffer(dstBuffer)
+						.offset(dstOffset)
+						.size(upload.size);
+				vkCmdPipelineBarrier(upload.commandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, 0, null, release, null);
+			}
+			
+			ret = vkEndCommandBuffer(upload.commandBuffer);
+			VkUtils.check(ret, "Failed to end upload command buffer");
+			
+			// ------------------
+			// Submit, the fence lets the destination poll without waiting
+			VkFenceCreateInfo fenceCreateInfo = VkFenceCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
+			
+			LongBuffer pFence = stack.mallocLong(1);
+			ret = vkCreateFence(device, fenceCreateInfo, null, pFence);
+			VkUtils.check(ret, "Failed to create upload fence");
+			upload.fence = pFence.get(0);
+			
+			VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+					.pCommandBuffers(pCommandBuffer);
+			
+			// Headless, the queue can be a compute queue that dispatch workers submit to as well
+			synchronized (vulkanDevice.getQueueLock(queue)) {
+				ret = vkQueueSubmit(queue, submitInfo, upload.fence);
+			}
+			VkUtils.check(ret, "Failed to submit upload");
+		}
+		
+		uploadedBytes += upload.size;
+		inFlight.add(upload);
+		return upload;
+	}
+	
+	// Records the acquire half for every finished upload to queueFamily, call outside of a render pass
+	public void recordAcquires(VkCommandBuffer commandBuffer, int dstQueueFamily) {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			Iterator<Upload> iterator = inFlight.iterator();
+			while (iterator.hasNext()) {
+				Upload upload = iterator.next();
+				if (upload.dstQueueFamily != dstQueueFamily) {
+					continue;
+				}
+				
+				// Still copying, try again next frame
+				if (vkGetFenceStatus(device, upload.fence) != VK_SUCCESS) {
+					continue;
+				}
+				
+				VkBufferMemoryBarrier.Buffer acquire = VkBufferMemoryBarrier.callocStack(1, stack)
+						.sType(VK_STRUCTURE_TYPE_BUFFER_MEMORY_BARRIER)
+						.srcAccessMask(upload.needsOwnershipTransfer() ? 0 : VK_ACCESS_TRANSFER_WRITE_BIT)
+						.dstAccessMask(upload.dstAccessMask)
+						.srcQueueFamilyIndex(upload.needsOwnershipTransfer() ? queueFamily : VK_QUEUE_FAMILY_IGNORED)
+						.dstQueueFamilyIndex(upload.needsOwnershipTransfer() ? upload.dstQueueFamily : VK_QUEUE_FAMILY_IGNORED)
+						.buffer(upload.dstBuffer)
+						.offset(upload.dstOffset)
+						.size(upload.size);
+				vkCmdPipelineBarrier(commandBuffer, upload.needsOwnershipTransfer() ? VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT : VK_PIPELINE_STAGE_TRANSFER_BIT, upload.dstStageMask, 0, null, acquire, null);
+				
+				// The copy is done so staging can go now
+				freeStaging(upload);
+				upload.acquired = true;
+				iterator.remove();
+			}
+		}
+	}
+	
+	private void freeStaging(Upload upload) {
+		vkFreeCommandBuffers(device, commandPool, upload.commandBuffer);
+		vkDestroyFence(device, upload.fence, null);
+		vkDestroyBuffer(device, upload.stagingBuffer, null);
+		VulkanMemory.free(device, upload.stagingMemory);
+	}
+	
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+	
+	public long getUploadedBytes() {
+		return uploadedBytes;
+	}
+	
+	public void free() {
+		// Anything still in flight has to finish before its staging can go
+		for (Upload upload : inFlight) {
+			vkWaitForFences(device, upload.fence, true, Long.MAX_VALUE);
+			freeStaging(upload);
+		}
+		inFlight.clear();
+		
+		vkDestroyCommandPool(device, commandPool, null);
+	}
+	
+	public class Upload {
+		// Destination
+		private long dstBuffer;
+		private long dstOffset;
+		private int size;
+		private int dstQueueFamily;
+		private int dstAccessMask;
+		private int dstStageMask;
+		
+		// Transfer
+		private long stagingBuffer;
+		private long stagingMemory;
+		private VkCommandBuffer commandBuffer;
+		private long fence;
+		
+		private boolean acquired;
+		
+		private Upload(long dstBuffer, long dstOffset, int size, int dstQueueFamily, int dstAccessMask, int dstStageMask) {
+			this.dstBuffer = dstBuffer;
+			this.dstOffset = dstOffset;
+			this.size = size;
+			this.dstQueueFamily = dstQueueFamily;
+			this.dstAccessMask = dstAccessMask;
+			this.dstStageMask = dstStageMask;
+		}
+		
+		private boolean needsOwnershipTransfer() {
+			return dstQueueFamily != queueFamily;
+		}
+		
+		// True once the destination family has recorded its acquire, later work in that command buffer may use it
+		public boolean isAcquired() {
+			return acquired;
+		}
+		
+		public int getSize() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.mesh;
+
+// Indexed triangles with xyz positions
+public class MeshData {
+	private final float[] positions;
+	private final int[] indices;
+	
+	public MeshData(float[] positions, int[] indices) {
+		this.positions = positions;
+		this.indices = indices;
+	}
+	
+	public float[] getPositions() {
+		return positions;
+	}
+	
+	public int[] getIndices() {
+		return indices;
+	}
+	
+	public int getVertexCount() {
+		return positions.length / 3;
+	}
+	
+	public int getTriangleCount() {
+		return indices.length / 3;
+	}
+	
+	// Centred and uniformly scaled so the largest axis spans -halfSize to halfSize
+	public MeshData fitTo(float halfSize) {
+		float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+		float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		for (int i = 0; i < positions.length; i += 3) {
+			for (int axis = 0; axis < 3; axis++) {
+				min[axis] = Math.min(min[axis], positions[i + axis]);
+				max[axis] = Math.max(max[axis], positions[i + axis]);
+			}
+		}
+		
+		float extent = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2])) * 0.5f;
+		float scale = extent > 0f ? halfSize / extent : 1f;
+		
+		float[] fitted = new float[positions.length];
+		for (int i = 0; i < positions.length; i += 3) {
+			for (int axis = 0; axis < 3; axis++) {
+				fitted[i + axis] = (positions[i + axis] - (min[axis] + max[axis]) * 0.5f) * scale;
+			}
+		}
+		return new MeshData(fitted, indices);
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.mesh;
+
+import codedcosmos.vulkantriangles.Log;
+import codedcosmos.vulkantriangles.VulkanException;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.assimp.AIFace;
+import org.lwjgl.assimp.AIMesh;
+import org.lwjgl.assimp.AIScene;
+import org.lwjgl.assimp.AIVector3D;
+
+import java.nio.IntBuffer;
+
+import static org.lwjgl.assimp.Assimp.*;
+
+// Loads every triangle of a file through Assimp into one mesh, then optimises it for drawing
+public class MeshImporter {
+	// Node transforms are baked in and polygons triangulated, points and lines are split off and skipped.
+	// Vertices aren't joined here, MeshOptimizer does that on positions alone.
+	private static final int IMPORT_FLAGS = aiProcess_Triangulate | aiProcess_PreTransformVertices | aiProcess_SortByPType;
+	
+	public static MeshData load(String path) throws VulkanException {
+		AIScene scene = aiImportFile(path, IMPORT_FLAGS);
+		if (scene == null) {
+			throw new VulkanException("Failed to import mesh " + path + ": " + aiGetErrorString());
+		}
+		
+		try {
+			PointerBuffer meshes = scene.mMeshes();
+			
+			// Sizes first, so the arrays are allocated once
+			int vertexCount = 0;
+			int indexCount = 0;
+			for (int i = 0; i < scene.mNumMeshes(); i++) {
+				AIMesh mesh = AIMesh.create(meshes.get(i));
+				if ((mesh.mPrimitiveTypes() & aiPrimitiveType_TRIANGLE) == 0) continue;
+				vertexCount += mesh.mNumVertices();
+				indexCount += mesh.mNumFaces() * 3;
+			}
+			
+			// Points and lines only would make a zero sized buffer
+			if (indexCount == 0) {
+				throw new VulkanException("Mesh " + path + " contains no triangles");
+			}
+			
+			float[] positions = new float[vertexCount * 3];
+			int[] indices = new int[indexCount];
+			int baseVertex = 0;
+			int index = 0;
+			
+			for (int i = 0; i < scene.mNumMeshes(); i++) {
+				AIMesh mesh = AIMesh.create(meshes.get(i));
+				if ((mesh.mPrimitiveTypes() & aiPrimitiveType_TRIANGLE) == 0) continue;
+				
+				AIVector3D.Buffer vertices = mesh.mVertices();
+				for (int v = 0; v < mesh.mNumVertices(); v++) {
+					AIVector3D vertex = vertices.get(v);
+					positions[(baseVertex + v) * 3 + 0] = vertex.x();
+					positions[(baseVertex + v) * 3 + 1] = vertex.y();
+					positions[(baseVertex + v) * 3 + 2] = vertex.z();
+				}
+				
+				// Sorted by type, so every face is a triangle
+				AIFace.Buffer faces = mesh.mFaces();
+				for (int f = 0; f < mesh.mNumFaces(); f++) {
+					IntBuffer faceIndices = faces.get(f).mIndices();
+					for (int corner = 0; corner < 3; corner++) {
+						indices[index++] = baseVertex + faceIndices.get(corner);
+					}
+				}
+				baseVertex += mesh.mNumVertices();
+			}
+			
+			Log.print("Imported " + path + ", " + scene.mNumMeshes() + " meshes, " + vertexCount + " vertices and " + indexCount / 3 + " triangles");
+			return new MeshData(positions, indices);
+		} finally {
+			aiReleaseImport(scene);
+		}
+	}
+	
+	// Loaded, deduplicated and reordered for the vertex cache and vertex fetch, logging the cache miss ratios
+	public static MeshData loadOptimised(String path) throws VulkanException {
+		return MeshOptimiser.optimise(load(path));
+	}
+}
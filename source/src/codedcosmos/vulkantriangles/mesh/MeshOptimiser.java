@@ -0,0 +1,363 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.mesh;
+
+import codedcosmos.vulkantriangles.Log;
+
+import java.util.Arrays;
+
+// Deduplicates vertices, orders triangles for the post transform vertex cache with Tipsify
+// (Sander, Nehab and Barczak 2007), sorts Tipsify's clusters to cut overdraw, then renumbers
+// vertices in first use order so vertex fetch walks memory forwards.
+public class MeshOptimiser {
+	// Vertices the post transform cache is modelled as holding, first in first out
+	public static final int CACHE_SIZE = Integer.getInteger("vulkantriangles.mesh.cacheSize", 16);
+	
+	public static MeshData optimise(MeshData mesh) {
+		long start = System.nanoTime();
+		
+		MeshData unique = deduplicate(mesh);
+		int[] clusterStarts = new int[unique.getTriangleCount() + 1];
+		int[] cacheOrdered = new int[unique.getIndices().length];
+		int clusters = tipsify(unique.getIndices(), unique.getVertexCount(), CACHE_SIZE, cacheOrdered, clusterStarts);
+		int[] overdrawOrdered = sortClusters(unique.getPositions(), cacheOrdered, clusterStarts, clusters);
+		MeshData optimised = optimiseVertexFetch(new MeshData(unique.getPositions(), overdrawOrdered));
+		
+		double milliseconds = (System.nanoTime() - start) / 1_000_000.0;
+		Log.print(String.format("Optimised mesh in %.1fms, %d of %d vertices unique, %d clusters", milliseconds, optimised.getVertexCount(), mesh.getVertexCount(), clusters));
+		// Deduplicating alone changes the ratios of a triangle soup, so both steps are shown
+		Log.print(String.format("ACMR %.3f imported, %.3f deduplicated, %.3f optimised, %d vertex FIFO cache",
+				getAcmr(mesh.getIndices(), mesh.getVertexCount(), CACHE_SIZE), getAcmr(unique.getIndices(), unique.getVertexCount(), CACHE_SIZE),
+				getAcmr(optimised.getIndices(), optimised.getVertexCount(), CACHE_SIZE), CACHE_SIZE));
+		Log.print(String.format("ATVR %.3f deduplicated, %.3f optimised",
+				getAtvr(unique.getIndices(), unique.getVertexCount(), CACHE_SIZE), getAtvr(optimised.getIndices(), optimised.getVertexCount(), CACHE_SIZE)));
+		return optimised;
+	}
+	
+	// Vertices with bit identical positions become one, -0 and 0 are the same. Open addressing keyed on the
+	// position bits, so there is no boxing and no per vertex allocation.
+	public static MeshData deduplicate(MeshData mesh) {
+		float[] positions = mesh.getPositions();
+		int vertexCount = mesh.getVertexCount();
+		
+		int capacity = Integer.highestOneBit(Math.max(1, vertexCount * 2 - 1)) << 1;
+		int[] table = new int[capacity];
+		Arrays.fill(table, -1);
+		int mask = capacity - 1;
+		
+		int[] remap = new int[vertexCount];
+		float[] unique = new float[positions.length];
+		int uniqueCount = 0;
+		
+		for (int vertex = 0; vertex < vertexCount; vertex++) {
+			int x = positionBits(positions[vertex * 3 + 0]);
+			int y = positionBits(positions[vertex * 3 + 1]);
+			int z = positionBits(positions[vertex * 3 + 2]);
+			
+			int slot = hash(x, y, z) & mask;
+			while (true) {
+				int candidate = table[slot];
+				if (candidate < 0) {
+					// New position
+					table[slot] = uniqueCount;
+					unique[uniqueCount * 3 + 0] = positions[vertex * 3 + 0];
+					unique[uniqueCount * 3 + 1] = positions[vertex * 3 + 1];
+					unique[uniqueCount * 3 + 2] = positions[vertex * 3 + 2];
+					remap[vertex] = uniqueCount++;
+					break;
+				}
+				if (positionBits(unique[candidate * 3 + 0]) == x && positionBits(unique[candidate * 3 + 1]) == y && positionBits(unique[candidate * 3 + 2]) == z) {
+					remap[vertex] = candidate;
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+		
+		int[] indices = mesh.getIndices();
+		int[] remapped = new int[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			remapped[i] = remap[indices[i]];
+		}
+		return new MeshData(Arrays.copyOf(unique, uniqueCount * 3), remapped);
+	}
+	
+	private static int positionBits(float value) {
+		return value == 0f ? 0 : Float.floatToIntBits(value);
+	}
+	
+	private static int hash(int x, int y, int z) {
+		int h = x * 0x9E3779B1 ^ y * 0x85EBCA77 ^ z * 0xC2B2AE3D;
+		h ^= h >>> 16;
+		h *= 0x7FEB352D;
+		h ^= h >>> 15;
+		return h;
+	}
+	
+	// Tipsify, fans around a vertex and moves next to a vertex of the fan that is still in the cache and will stay there
+	// while its remaining triangles are drawn. Where nothing qualifies it restarts from a dead end, each restart begins
+	// a cluster. Writes the reordered indices to output and the first triangle of each cluster, returns the cluster count.
+	public static int tipsify(int[] indices, int vertexCount, int cacheSize, int[] output, int[] clusterStarts) {
+		int triangleCount = indices.length / 3;
+		
+		// Triangles around each vertex
+		int[] adjacencyOffsets = new int[vertexCount + 1];
+		for (int index : indices) {
+			adjacencyOffsets[index + 1]++;
+		}
+		for (int vertex = 0; vertex < vertexCount; vertex++) {
+			adjacencyOffsets[vertex + 1] += adjacencyOffsets[vertex];
+		}
+		int[] adjacency = new int[indices.length];
+		int[] fill = Arrays.copyOf(adjacencyOffsets, vertexCount);
+		for (int i = 0; i < indices.length; i++) {
+			adjacency[fill[indices[i]]++] = i / 3;
+		}
+		
+		// Live triangles per vertex, when each entered the cache, and which triangles are out
+		int[] live = new int[vertexCount];
+		for (int vertex = 0; vertex < vertexCount; vertex++) {
+			live[vertex] = adjacencyOffsets[vertex + 1] - adjacencyOffsets[vertex];
+		}
+		int[] cacheTime = new int[vertexCount];
+		boolean[] emitted = new boolean[triangleCount];
+		
+		// Vertices of emitted triangles, a stack of dead ends and the candidates of the current fan
+		int[] deadEnds = new int[indices.length];
+		int deadEndCount = 0;
+		int[] candidates = new int[indices.length];
+		
+		int time = cacheSize + 1;
+		int cursor = 0;
+		int written = 0;
+		int clusters = 0;
+		
+		int fanning = vertexCount > 0 ? 0 : -1;
+		boolean restarted = true;
+		while (fanning >= 0) {
+			if (restarted) {
+				clusterStarts[clusters++] = written / 3;
+				restarted = false;
+			}
+			
+			int candidateCount = 0;
+			for (int a = adjacencyOffsets[fanning]; a < adjacencyOffsets[fanning + 1]; a++) {
+				int triangle = adjacency[a];
+				if (emitted[triangle]) continue;
+				
+				for (int corner = 0; corner < 3; corner++) {
+					int vertex = indices[triangle * 3 + corner];
+					output[written++] = vertex;
+					deadEnds[deadEndCount++] = vertex;
+					candidates[candidateCount++] = vertex;
+					live[vertex]--;
+					
+					// Misses push it in at the current time
+					if (time - cacheTime[vertex] > cacheSize) {
+						cacheTime[vertex] = time;
+						time++;
+					}
+				}
+				emitted[triangle] = true;
+			}
+			
+			// The candidate that will still be cached after fanning its remaining triangles, oldest first
+			int next = -1;
+			int best = -1;
+			for (int c = 0; c < candidateCount; c++) {
+				int vertex = candidates[c];
+				if (live[vertex] <= 0) continue;
+				
+				int priority = 0;
+				if (time - cacheTime[vertex] + 2 * live[vertex] <= cacheSize) {
+					priority = time - cacheTime[vertex];
+				}
+				if (priority > best) {
+					best = priority;
+					next = vertex;
+				}
+			}
+			
+			if (next < 0) {
+				// Dead end, the most recent vertex with triangles left, else the next one in input order
+				while (deadEndCount > 0 && next < 0) {
+					int vertex = deadEnds[--deadEndCount];
+					if (live[vertex] > 0) {
+						next = vertex;
+					}
+				}
+				while (next < 0 && cursor < vertexCount) {
+					if (live[cursor] > 0) {
+						next = cursor;
+					}
+					cursor++;
+				}
+				restarted = true;
+			}
+			fanning = next;
+		}
+		
+		clusterStarts[clusters] = triangleCount;
+		return clusters;
+	}
+	
+	// Clusters facing out from the mesh's centre are drawn first, they are the most likely to hide the others.
+	// Triangles keep their order within a cluster, so only the cache misses at cluster edges are added.
+	public static int[] sortClusters(float[] positions, int[] indices, int[] clusterStarts, int clusterCount) {
+		int triangleCount = indices.length / 3;
+		
+		// Centre of the mesh, by area
+		float[] normal = new float[3];
+		float[] centroid = new float[3];
+		double meshX = 0, meshY = 0, meshZ = 0, meshArea = 0;
+		for (int triangle = 0; triangle < triangleCount; triangle++) {
+			float area = triangleGeometry(positions, indices, triangle, normal, centroid);
+			meshX += centroid[0] * area;
+			meshY += centroid[1] * area;
+			meshZ += centroid[2] * area;
+			meshArea += area;
+		}
+		if (meshArea > 0) {
+			meshX /= meshArea;
+			meshY /= meshArea;
+			meshZ /= meshArea;
+		}
+		
+		// How far out each cluster faces
+		double[] facing = new double[clusterCount];
+		for (int cluster = 0; cluster < clusterCount; cluster++) {
+			double normalX = 0, normalY = 0, normalZ = 0;
+			double centerX = 0, centerY = 0, centerZ = 0, area = 0;
+			for (int triangle = clusterStarts[cluster]; triangle < clusterStarts[cluster + 1]; triangle++) {
+				float triangleArea = triangleGeometry(positions, indices, triangle, normal, centroid);
+				normalX += normal[0] * triangleArea;
+				normalY += normal[1] * triangleArea;
+				normalZ += normal[2] * triangleArea;
+				centerX += centroid[0] * triangleArea;
+				centerY += centroid[1] * triangleArea;
+				centerZ += centroid[2] * triangleArea;
+				area += triangleArea;
+			}
+			
+			double normalLength = Math.sqrt(normalX * normalX + normalY * normalY + normalZ * normalZ);
+			if (area > 0 && normalLength > 0) {
+				facing[cluster] = ((centerX / area - meshX) * normalX + (centerY / area - meshY) * normalY + (centerZ / area - meshZ) * normalZ) / normalLength;
+			}
+		}
+		
+		Integer[] order = new Integer[clusterCount];
+		for (int cluster = 0; cluster < clusterCount; cluster++) {
+			order[cluster] = cluster;
+		}
+		Arrays.sort(order, (a, b) -> Double.compare(facing[b], facing[a]));
+		
+		int[] sorted = new int[indices.length];
+		int written = 0;
+		for (int cluster : order) {
+			int from = clusterStarts[cluster] * 3;
+			int to = clusterStarts[cluster + 1] * 3;
+			System.arraycopy(indices, from, sorted, written, to - from);
+			written += to - from;
+		}
+		return sorted;
+	}
+	
+	// Unit normal and centroid of a triangle, returns its area
+	private static float triangleGeometry(float[] positions, int[] indices, int triangle, float[] normal, float[] centroid) {
+		int a = indices[triangle * 3 + 0] * 3;
+		int b = indices[triangle * 3 + 1] * 3;
+		int c = indices[triangle * 3 + 2] * 3;
+		
+		float abX = positions[b + 0] - positions[a + 0];
+		float abY = positions[b + 1] - positions[a + 1];
+		float abZ = positions[b + 2] - positions[a + 2];
+		float acX = positions[c + 0] - positions[a + 0];
+		float acY = positions[c + 1] - positions[a + 1];
+		float acZ = positions[c + 2] - positions[a + 2];
+		
+		float crossX = abY * acZ - abZ * acY;
+		float crossY = abZ * acX - abX * acZ;
+		float crossZ = abX * acY - abY * acX;
+		float length = (float) Math.sqrt(crossX * crossX + crossY * crossY + crossZ * crossZ);
+		
+		if (length > 0f) {
+			normal[0] = crossX / length;
+			normal[1] = crossY / length;
+			normal[2] = crossZ / length;
+		} else {
+			normal[0] = normal[1] = normal[2] = 0f;
+		}
+		for (int axis = 0; axis < 3; axis++) {
+			centroid[axis] = (positions[a + axis] + positions[b + axis] + positions[c + axis]) / 3f;
+		}
+		return length * 0.5f;
+	}
+	
+	// Vertices renumbered in the order the indices first use them, unused ones are dropped
+	public static MeshData optimiseVertexFetch(MeshData mesh) {
+		float[] positions = mesh.getPositions();
+		int[] indices = mesh.getIndices();
+		
+		int[] remap = new int[mesh.getVertexCount()];
+		Arrays.fill(remap, -1);
+		float[] ordered = new float[positions.length];
+		int next = 0;
+		
+		int[] remapped = new int[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			int vertex = indices[i];
+			if (remap[vertex] < 0) {
+				remap[vertex] = next;
+				System.arraycopy(positions, vertex * 3, ordered, next * 3, 3);
+				next++;
+			}
+			remapped[i] = remap[vertex];
+		}
+		return new MeshData(Arrays.copyOf(ordered, next * 3), remapped);
+	}
+	
+	// Average cache miss ratio, vertices transformed per triangle, from 3 with no reuse down to about 0.5
+	public static double getAcmr(int[] indices, int vertexCount, int cacheSize) {
+		return indices.length == 0 ? 0 : (double) countMisses(indices, vertexCount, cacheSize) / (indices.length / 3);
+	}
+	
+	// Average transformed vertex ratio, vertices transformed per vertex, 1 is ideal
+	public static double getAtvr(int[] indices, int vertexCount, int cacheSize) {
+		boolean[] used = new boolean[vertexCount];
+		int usedCount = 0;
+		for (int index : indices) {
+			if (!used[index]) {
+				used[index] = true;
+				usedCount++;
+			}
+		}
+		return usedCount == 0 ? 0 : (double) countMisses(indices, vertexCount, cacheSize) / usedCount;
+	}
+	
+	// A vertex is cached while fewer than cacheSize misses have happened since it went in
+	private static int countMisses(int[] indices, int vertexCount, int cacheSize) {
+		int[] insertedAt = new int[vertexCount];
+		Arrays.fill(insertedAt, Integer.MIN_VALUE / 2);
+		
+		int misses = 0;
+		for (int index : indices) {
+			if (misses - insertedAt[index] >= cacheSize) {
+				insertedAt[index] = misses;
+				misses++;
+			}
+		}
+		return misses;
+	}
+}
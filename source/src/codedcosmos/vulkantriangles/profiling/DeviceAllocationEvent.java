@@ -0,0 +1,36 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.profiling;
+
+import jdk.jfr.*;
+
+@Name("codedcosmos.vulkantriangles.DeviceAllocation")
+@Label("Device Memory Allocation")
+@Category({"VulkanTriangles", "Memory"})
+@Description("A single vkAllocateMemory call")
+public class DeviceAllocationEvent extends Event {
+	@Label("Tag")
+	public String tag;
+	
+	@Label("Size")
+	@DataAmount
+	public long size;
+	
+	@Label("Memory Type")
+	public int memoryTypeIndex;
+	
+	@Label("Result")
+	public String result;
+}
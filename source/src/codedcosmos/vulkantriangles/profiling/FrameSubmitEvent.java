@@ -0,0 +1,57 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.profiling;
+
+import jdk.jfr.*;
+
+@Name("codedcosmos.vulkantriangles.FrameSubmit")
+@Label("Frame Submit And Present")
+@Category({"VulkanTriangles", "Frame"})
+@Description("Acquire, submit, queue wait and present of one swapchain frame")
+public class FrameSubmitEvent extends Event {
+	@Label("Image Index")
+	public int imageIndex;
+	
+	@Label("Acquire")
+	@Timespan(Timespan.NANOSECONDS)
+	public long acquireTime;
+	
+	@Label("Submit")
+	@Timespan(Timespan.NANOSECONDS)
+	public long submitTime;
+	
+	@Label("Queue Wait")
+	@Timespan(Timespan.NANOSECONDS)
+	public long queueWaitTime;
+	
+	@Label("Present")
+	@Timespan(Timespan.NANOSECONDS)
+	public long presentTime;
+	
+	@Label("Out Of Date")
+	public boolean outOfDate;
+	
+	private transient long lastLap;
+	
+	// Nanoseconds since the previous lap, only measured while the event is enabled
+	public long lap() {
+		if (!isEnabled()) return 0;
+		
+		long now = System.nanoTime();
+		long elapsed = lastLap == 0 ? 0 : now - lastLap;
+		lastLap = now;
+		return elapsed;
+	}
+}
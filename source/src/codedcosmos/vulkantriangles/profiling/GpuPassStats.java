@@ -0,0 +1,84 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.profiling;
+
+import java.util.Arrays;
+
+public class GpuPassStats {
+	// Samples kept for the rolling percentiles
+	public static final int WINDOW = 256;
+	
+	private String name;
+	
+	// Rolling window of gpu times in milliseconds
+	private double[] samples;
+	private int next;
+	private int filled;
+	private long totalSamples;
+	
+	// Last pipeline statistics, null until the pass was queried with statistics
+	private long[] statistics;
+	
+	public GpuPassStats(String name) {
+		this.name = name;
+		this.samples = new double[WINDOW];
+	}
+	
+	public void addSample(double milliseconds) {
+		samples[next] = milliseconds;
+		next = (next + 1) % WINDOW;
+		filled = Math.min(filled + 1, WINDOW);
+		totalSamples++;
+	}
+	
+	public void setStatistics(long[] statistics) {
+		this.statistics = statistics;
+	}
+	
+	// Nearest rank percentile over the window, p is between 0 and 100
+	public double getPercentile(double p) {
+		if (filled == 0) return 0;
+		
+		double[] sorted = Arrays.copyOf(samples, filled);
+		Arrays.sort(sorted);
+		
+		int rank = (int) Math.ceil(p / 100.0 * filled) - 1;
+		return sorted[Math.max(0, Math.min(filled - 1, rank))];
+	}
+	
+	public double getP50() {
+		return getPercentile(50);
+	}
+	
+	public double getP95() {
+		return getPercentile(95);
+	}
+	
+	public double getP99() {
+		return getPercentile(99);
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public long getTotalSamples() {
+		return totalSamples;
+	}
+	
+	public long[] getStatistics() {
+		return statistics;
+	}
+}
@@ -0,0 +1,28 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.profiling;
+
+import jdk.jfr.*;
+
+@Name("codedcosmos.vulkantriangles.PipelineCreate")
+@Label("Pipeline Create")
+@Category({"VulkanTriangles", "Pipeline"})
+public class PipelineCreateEvent extends Event {
+	@Label("Kind")
+	public String kind;
+	
+	@Label("Result")
+	public String result;
+}
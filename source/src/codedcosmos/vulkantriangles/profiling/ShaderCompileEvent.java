@@ -0,0 +1,40 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.profiling;
+
+import jdk.jfr.*;
+
+@Name("codedcosmos.vulkantriangles.ShaderCompile")
+@Label("Shader Compile")
+@Category({"VulkanTriangles", "Pipeline"})
+@Description("Compiling glsl into SPIR-V and creating the shader module")
+public class ShaderCompileEvent extends Event {
+	@Label("Path")
+	public String path;
+	
+	@Label("Stage Flags")
+	public int stage;
+	
+	@Label("Source Size")
+	@DataAmount
+	public long sourceSize;
+	
+	@Label("SPIR-V Size")
+	@DataAmount
+	public long spirvSize;
+	
+	@Label("Success")
+	public boolean success;
+}
@@ -0,0 +1,158 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.profiling;
+
+import codedcosmos.vulkantriangles.Log;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Records cpu and gpu spans in System.nanoTime into a fixed ring, and writes them out as Chrome trace json.
+// Writers claim a slot with a single atomic increment and publish it with its sequence number, so recording never locks.
+public class TraceRecorder {
+	private int mask;
+	
+	// Ring
+	private AtomicLong cursor;
+	private AtomicLongArray published;
+	private String[] names;
+	private int[] tracks;
+	private long[] frames;
+	private long[] starts;
+	private long[] ends;
+	
+	// Tracks are threads for cpu spans and queues for gpu spans
+	private List<String> trackNames;
+	private ThreadLocal<Integer> threadTrack;
+	
+	private volatile long frame;
+	
+	public TraceRecorder(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mask = size - 1;
+		
+		cursor = new AtomicLong();
+		published = new AtomicLongArray(size);
+		names = new String[size];
+		tracks = new int[size];
+		frames = new long[size];
+		starts = new long[size];
+		ends = new long[size];
+		
+		for (int i = 0; i < size; i++) {
+			published.set(i, -1);
+		}
+		
+		trackNames = new CopyOnWriteArrayList<String>();
+		threadTrack = ThreadLocal.withInitial(() -> registerTrack("cpu " + Thread.currentThread().getName()));
+	}
+	
+	public synchronized int registerTrack(String name) {
+		trackNames.add(name);
+		return trackNames.size() - 1;
+	}
+	
+	public void nextFrame() {
+		frame++;
+	}
+	
+	public long getFrame() {
+		return frame;
+	}
+	
+	// Span on the calling thread's track, started at a System.nanoTime value
+	public void cpuSpan(String name, long start) {
+		record(name, threadTrack.get(), frame, start, System.nanoTime());
+	}
+	
+	public void record(String name, int track, long spanFrame, long start, long end) {
+		long claim = cursor.getAndIncrement();
+		int i = (int) (claim & mask);
+		
+		// Unpublish while the slot is rewritten
+		published.set(i, -1);
+		VarHandle.storeStoreFence();
+		names[i] = name;
+		tracks[i] = track;
+		frames[i] = spanFrame;
+		starts[i] = start;
+		ends[i] = end;
+		published.set(i, claim);
+	}
+	
+	// Writes the spans of the last frameWindow frames, gpu spans of the newest frames may still be in flight
+	public void dump(Path file, int frameWindow) throws IOException {
+		long firstFrame = frame - frameWindow;
+		long last = cursor.get();
+		long first = Math.max(0, last - mask - 1);
+		
+		List<long[]> spans = new ArrayList<long[]>();
+		List<String> spanNames = new ArrayList<String>();
+		long origin = Long.MAX_VALUE;
+		
+		for (long claim = first; claim < last; claim++) {
+			int i = (int) (claim & mask);
+			if (published.get(i) != claim) continue;
+			
+			String name = names[i];
+			long[] span = { tracks[i], frames[i], starts[i], ends[i] };
+			
+			// Skip slots that were overwritten while being read
+			VarHandle.loadLoadFence();
+			if (published.get(i) != claim) continue;
+			if (span[1] < firstFrame) continue;
+			
+			spans.add(span);
+			spanNames.add(name);
+			origin = Math.min(origin, span[2]);
+		}
+		
+		List<String> events = new ArrayList<String>();
+		
+		// Track names
+		for (int track = 0; track < trackNames.size(); track++) {
+			events.add("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + track + ",\"args\":{\"name\":\"" + escape(trackNames.get(track)) + "\"}}");
+		}
+		
+		// Complete events in microseconds
+		for (int i = 0; i < spans.size(); i++) {
+			long[] span = spans.get(i);
+			events.add(String.format(Locale.ROOT, "{\"name\":\"%s\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,\"ts\":%.3f,\"dur\":%.3f,\"args\":{\"frame\":%d}}",
+					escape(spanNames.get(i)), span[0], (span[2] - origin) / 1000.0, (span[3] - span[2]) / 1000.0, span[1]));
+		}
+		
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+			writer.write(String.join(",\n", events));
+			writer.write("\n]}\n");
+		}
+		
+		Log.print("Wrote " + spans.size() + " trace spans from the last " + frameWindow + " frames to " + file);
+	}
+	
+	private static String escape(String text) {
+		return text.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.profiling;
+
+import codedcosmos.vulkantriangles.Log;
+import codedcosmos.vulkantriangles.VkUtils;
+import codedcosmos.vulkantriangles.VulkanDevice;
+import codedcosmos.vulkantriangles.VulkanException;
+import codedcosmos.vulkantriangles.graphics.VulkanReusableCommandBuffer;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+import static org.lwjgl.vulkan.EXTCalibratedTimestamps.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+// Maps gpu timestamp ticks onto System.nanoTime.
+// VK_EXT_calibrated_timestamps samples both clocks at once, otherwise a timestamp is bracketed by a submit and a fence wait.
+public class VulkanClockCalibration {
+	// Fallback attempts, the tightest bracket is kept
+	private static final int FALLBACK_SAMPLES = 8;
+	
+	// Frames between recalibrations, the two clocks drift apart over a long capture
+	private static final int RECALIBRATE_FRAMES = Integer.getInteger("vulkantriangles.clock.recalibrateFrames", 600);
+	
+	private VulkanDevice vulkanDevice;
+	private VkQueue queue;
+	private int queueFamily;
+	
+	// Conversion
+	private double timestampPeriod;
+	private long timestampMask;
+	private boolean extension;
+	
+	// Anchor
+	private long gpuAnchor;
+	private long hostAnchor;
+	private long maxDeviation;
+	private int framesSinceCalibration;
+	
+	// Latest extension sample, only becomes the anchor when it is needed
+	private long sampleGpu;
+	private long sampleHost;
+	private long sampleDeviation;
+	
+	public VulkanClockCalibration(VulkanDevice vulkanDevice, int queueFamily, VkQueue queue) throws VulkanException {
+		this.vulkanDevice = vulkanDevice;
+		this.queue = queue;
+		this.queueFamily = queueFamily;
+		
+		int validBits = vulkanDevice.getTimestampValidBits(queueFamily);
+		if (validBits == 0) {
+			throw new VulkanException("Queue family " + queueFamily + " does not support timestamps");
+		}
+		
+		timestampPeriod = vulkanDevice.getProperties().limits().timestampPeriod();
+		timestampMask = validBits >= 64 ? -1L : (1L << validBits) - 1;
+		extension = vulkanDevice.supportsCalibratedTimestamps() && supportsMonotonicDomain();
+		
+		calibrate();
+		Log.print("Calibrated gpu clock " + (extension ? "with VK_EXT_calibrated_timestamps" : "by fence bracketing") + ", max deviation " + maxDeviation + "ns");
+	}
+	
+	// System.nanoTime reads CLOCK_MONOTONIC on linux, other platforms use the fallback
+	private boolean supportsMonotonicDomain() {
+		if (!System.getProperty("os.name").toLowerCase().contains("linux")) return false;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			VkPhysicalDevice physicalDevice = vulkanDevice.get().getPhysicalDevice();
+			
+			IntBuffer pDomainCount = stack.mallocInt(1);
+			vkGetPhysicalDeviceCalibrateableTimeDomainsEXT(physicalDevice, pDomainCount, null);
+			
+			IntBuffer pDomains = stack.mallocInt(pDomainCount.get(0));
+			vkGetPhysicalDeviceCalibrateableTimeDomainsEXT(physicalDevice, pDomainCount, pDomains);
+			
+			boolean device = false;
+			boolean monotonic = false;
+			for (int i = 0; i < pDomainCount.get(0); i++) {
+				device |= pDomains.get(i) == VK_TIME_DOMAIN_DEVICE_EXT;
+				monotonic |= pDomains.get(i) == VK_TIME_DOMAIN_CLOCK_MONOTONIC_EXT;
+			}
+			return device && monotonic;
+		}
+	}
+	
+	// Call once a frame. Re-anchors every RECALIBRATE_FRAMES frames, and with the extension also as soon as
+	// a fresh sample disagrees with the anchor by more than both deviations allow.
+	// The fallback waits on the queue, so its recalibration frames stall for a moment
+	public void onFrame() throws VulkanException {
+		framesSinceCalibration++;
+		
+		long previousGpuAnchor = gpuAnchor;
+		long previousHostAnchor = hostAnchor;
+		long previousDeviation = maxDeviation;
+		
+		if (extension) {
+			// A sample is a single call, cheap enough to check the drift every frame
+			sampleWithExtension();
+			long drift = sampleHost - toHostNanos(sampleGpu);
+			if (framesSinceCalibration < RECALIBRATE_FRAMES && Math.abs(drift) <= previousDeviation + sampleDeviation) return;
+			
+			gpuAnchor = sampleGpu;
+			hostAnchor = sampleHost;
+			maxDeviation = sampleDeviation;
+		} else {
+			if (framesSinceCalibration < RECALIBRATE_FRAMES) return;
+			calibrateWithFence();
+		}
+		framesSinceCalibration = 0;
+		
+		// How far the old anchor had drifted by the new one
+		long drift = hostAnchor - toHostNanos(gpuAnchor, previousGpuAnchor, previousHostAnchor);
+		Log.debug("Recalibrated gpu clock, drifted " + drift + "ns, max deviation " + previousDeviation + "ns to " + maxDeviation + "ns");
+	}
+	
+	// Cheap with the extension, the fallback waits on the queue
+	public void calibrate() throws VulkanException {
+		if (extension) {
+			sampleWithExtension();
+			gpuAnchor = sampleGpu;
+			hostAnchor = sampleHost;
+			maxDeviation = sampleDeviation;
+		} else {
+			calibrateWithFence();
+		}
+		framesSinceCalibration = 0;
+	}
+	
+	// Both clocks at once into the sample fields
+	private void sampleWithExtension() throws VulkanException {
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			VkCalibratedTimestampInfoEXT.Buffer timestampInfos = VkCalibratedTimestampInfoEXT.callocStack(2, stack);
+			timestampInfos.get(0)
+					.sType(VK_STRUCTURE_TYPE_CALIBRATED_TIMESTAMP_INFO_EXT)
+					.timeDomain(VK_TIME_DOMAIN_DEVICE_EXT);
+			timestampInfos.get(1)
+					.sType(VK_STRUCTURE_TYPE_CALIBRATED_TIMESTAMP_INFO_EXT)
+					.timeDomain(VK_TIME_DOMAIN_CLOCK_MONOTONIC_EXT);
+			
+			LongBuffer pTimestamps = stack.mallocLong(2);
+			LongBuffer pMaxDeviation = stack.mallocLong(1);
+			int ret = vkGetCalibratedTimestampsEXT(vulkanDevice.get(), timestampInfos, pTimestamps, pMaxDeviation);
+			VkUtils.check(ret, "Failed to get calibrated timestamps");
+			
+			sampleGpu = pTimestamps.get(0) & timestampMask;
+			sampleHost = pTimestamps.get(1);
+			sampleDeviation = pMaxDeviation.get(0);
+		}
+	}
+	
+	private void calibrateWithFence() throws VulkanException {
+		VkDevice device = vulkanDevice.get();
+		VulkanReusableCommandBuffer commandBuffer = new VulkanReusableCommandBuffer(device, queueFamily, 1);
+		
+		int ret;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			// Query pool
+			VkQueryPoolCreateInfo queryPoolInfo = VkQueryPoolCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_QUERY_POOL_CREATE_INFO)
+					.queryType(VK_QUERY_TYPE_TIMESTAMP)
+					.queryCount(1);
+			
+			LongBuffer pQueryPool = stack.mallocLong(1);
+			ret = vkCreateQueryPool(device, queryPoolInfo, null, pQueryPool);
+			VkUtils.check(ret, "Failed to create calibration query pool");
+			long queryPool = pQueryPool.get(0);
+			
+			// Fence
+			VkFenceCreateInfo fenceInfo = VkFenceCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
+			
+			LongBuffer pFence = stack.mallocLong(1);
+			ret = vkCreateFence(device, fenceInfo, null, pFence);
+			VkUtils.check(ret, "Failed to create calibration fence");
+			long fence = pFence.get(0);
+			
+			// Record a single timestamp
+			commandBuffer.begin(0);
+			vkCmdResetQueryPool(commandBuffer.get(0), queryPool, 0, 1);
+			vkCmdWriteTimestamp(commandBuffer.get(0), VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, queryPool, 0);
+			commandBuffer.end(0);
+			
+			PointerBuffer pCommandBuffer = stack.pointers(commandBuffer.get(0));
+			VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+					.pCommandBuffers(pCommandBuffer);
+			
+			LongBuffer pTimestamp = stack.mallocLong(1);
+			long bestBracket = Long.MAX_VALUE;
+			
+			for (int i = 0; i < FALLBACK_SAMPLES; i++) {
+				long before = System.nanoTime();
+				synchronized (vulkanDevice.getQueueLock(queue)) {
+					ret = vkQueueSubmit(queue, submitInfo, fence);
+				}
+				VkUtils.check(ret, "Failed to submit calibration timestamp");
+				vkWaitForFences(device, fence, true, Long.MAX_VALUE);
+				long after = System.nanoTime();
+				
+				vkResetFences(device, fence);
+				
+				ret = vkGetQueryPoolResults(device, queryPool, 0, 1, pTimestamp, 8, VK_QUERY_RESULT_64_BIT | VK_QUERY_RESULT_WAIT_BIT);
+				VkUtils.check(ret, "Failed to read calibration timestamp");
+				
+				// The timestamp was written somewhere between the submit and the fence
+				if (after - before < bestBracket) {
+					bestBracket = after - before;
+					gpuAnchor = pTimestamp.get(0) & timestampMask;
+					hostAnchor = before + (after - before) / 2;
+				}
+			}
+			maxDeviation = bestBracket / 2;
+			
+			vkDestroyFence(device, fence, null);
+			vkDestroyQueryPool(device, queryPool, null);
+		} finally {
+			commandBuffer.free(device);
+		}
+	}
+	
+	public long toHostNanos(long ticks) {
+		return toHostNanos(ticks, gpuAnchor, hostAnchor);
+	}
+	
+	private long toHostNanos(long ticks, long gpuAnchor, long hostAnchor) {
+		long delta = (ticks - gpuAnchor) & timestampMask;
+		
+		// Ticks from before the anchor wrap around the valid bits
+		if (timestampMask != -1L && delta > timestampMask >>> 1) {
+			delta -= timestampMask + 1;
+		}
+		
+		return hostAnchor + (long) (delta * timestampPeriod);
+	}
+	
+	public boolean usesCalibratedTimestamps() {
+		return extension;
+	}
+	
+	public long getMaxDeviation() {
+		return maxDeviation;
+	}
+}
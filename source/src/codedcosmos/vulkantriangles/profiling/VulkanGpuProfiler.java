@@ -0,0 +1,309 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.profiling;
+
+import codedcosmos.vulkantriangles.Log;
+import codedcosmos.vulkantriangles.VkUtils;
+import codedcosmos.vulkantriangles.VulkanDevice;
+import codedcosmos.vulkantriangles.VulkanException;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkQueryPoolCreateInfo;
+
+import java.nio.LongBuffer;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+// Times gpu passes with timestamp queries, one range of queries per frame slot.
+// A slot is only read back after its fence was waited on, so results lag by the slot count and never stall.
+public class VulkanGpuProfiler {
+	// Scopes that can be written per frame slot
+	public static final int MAX_SCOPES = 32;
+	
+	private static final String[] GRAPHICS_STATISTICS = { "primitives", "vertex invocations", "clipped primitives", "fragment invocations", "compute invocations" };
+	private static final String[] COMPUTE_STATISTICS = { "compute invocations" };
+	
+	private VkDevice device;
+	private boolean enabled;
+	
+	// Conversion
+	private double timestampPeriod;
+	private long timestampMask;
+	
+	// Pools
+	private long timestampPool;
+	private long statisticsPool;
+	private String[] statisticNames;
+	
+	// Per slot scopes
+	private int slots;
+	private GpuPassStats[][] slotPasses;
+	private int[][] slotStatistics;
+	private int[] slotScopeCount;
+	private int[] slotStatisticsCount;
+	private boolean[] slotWritten;
+	
+	// Recording state
+	private int currentSlot;
+	private boolean statisticsActive;
+	
+	// Results
+	private Map<String, GpuPassStats> passes;
+	private long droppedFrames;
+	
+	// Optional timeline output
+	private TraceRecorder trace;
+	private VulkanClockCalibration calibration;
+	private int traceTrack;
+	private long[] slotFrame;
+	
+	public VulkanGpuProfiler(VulkanDevice vulkanDevice, int queueFamily, int slots, boolean pipelineStatistics) throws VulkanException {
+		this.device = vulkanDevice.get();
+		this.slots = slots;
+		this.passes = new LinkedHashMap<String, GpuPassStats>();
+		
+		int ret;
+		
+		// Some queue families, usually transfer only ones, can't write timestamps
+		int validBits = vulkanDevice.getTimestampValidBits(queueFamily);
+		enabled = validBits > 0;
+		if (!enabled) {
+			Log.print("Queue family " + queueFamily + " does not support timestamps, gpu profiling is disabled");
+			return;
+		}
+		
+		timestampPeriod = vulkanDevice.getProperties().limits().timestampPeriod();
+		timestampMask = validBits >= 64 ? -1L : (1L << validBits) - 1;
+		
+		slotPasses = new GpuPassStats[slots][MAX_SCOPES];
+		slotStatistics = new int[slots][MAX_SCOPES];
+		slotScopeCount = new int[slots];
+		slotStatisticsCount = new int[slots];
+		slotWritten = new boolean[slots];
+		slotFrame = new long[slots];
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			LongBuffer pQueryPool = stack.mallocLong(1);
+			
+			// --------------------------------------
+			// Timestamps, a begin and end per scope
+			VkQueryPoolCreateInfo timestampInfo = VkQueryPoolCreateInfo.callocStack(stack)
+					.sType(VK_STRUCTURE_TYPE_QUERY_POOL_CREATE_INFO)
+					.queryType(VK_QUERY_TYPE_TIMESTAMP)
+					.queryCount(slots * MAX_SCOPES * 2);
+			
+			ret = vkCreateQueryPool(device, timestampInfo, null, pQueryPool);
+			VkUtils.check(ret, "Failed to create timestamp query pool");
+			timestampPool = pQueryPool.get(0);
+			
+			// --------------------------------------
+			// Pipeline statistics, graphics counters need a graphics capable queue
+			if (pipelineStatistics && vulkanDevice.supportsPipelineStatistics()) {
+				boolean graphics = vulkanDevice.hasGraphics() && queueFamily == vulkanDevice.getGraphicsQueueFamily();
+				
+				int flags = VK_QUERY_PIPELINE_STATISTIC_COMPUTE_SHADER_INVOCATIONS_BIT;
+				if (graphics) {
+					flags |= VK_QUERY_PIPELINE_STATISTIC_INPUT_ASSEMBLY_PRIMITIVES_BIT
+							| VK_QUERY_PIPELINE_STATISTIC_VERTEX_SHADER_INVOCATIONS_BIT
+							| VK_QUERY_PIPELINE_STATISTIC_CLIPPING_PRIMITIVES_BIT
+							| VK_QUERY_PIPELINE_STATISTIC_FRAGMENT_SHADER_INVOCATIONS_BIT;
+				}
+				statisticNames = graphics ? GRAPHICS_STATISTICS : COMPUTE_STATISTICS;
+				
+				VkQueryPoolCreateInfo statisticsInfo = VkQueryPoolCreateInfo.callocStack(stack)
+						.sType(VK_STRUCTURE_TYPE_QUERY_POOL_CREATE_INFO)
+						.queryType(VK_QUERY_TYPE_PIPELINE_STATISTICS)
+						.queryCount(slots * MAX_SCOPES)
+						.pipelineStatistics(flags);
+				
+				ret = vkCreateQueryPool(device, statisticsInfo, null, pQueryPool);
+				VkUtils.check(ret, "Failed to create pipeline statistics query pool");
+				statisticsPool = pQueryPool.get(0);
+			} else {
+				statisticsPool = VK_NULL_HANDLE;
+			}
+		}
+	}
+	
+	// Also record every gpu scope as a span on the trace, converted to host time by the calibration
+	public void setTrace(TraceRecorder trace, VulkanClockCalibration calibration, String trackName) {
+		if (!enabled) return;
+		
+		this.trace = trace;
+		this.calibration = calibration;
+		this.traceTrack = trace.registerTrack(trackName);
+	}
+	
+	// Call once the slot's fence has been waited on, outside of a render pass
+	public void beginFrame(VkCommandBuffer commandBuffer, int slot) {
+		if (!enabled) return;
+		
+		collect(slot);
+		
+		// A failed recalibration keeps the old anchor, the spans drift a little further
+		if (calibration != null) {
+			try {
+				calibration.onFrame();
+			} catch (VulkanException e) {
+				Log.warn("Gpu clock recalibration failed: " + e.getMessage());
+			}
+		}
+		
+		vkCmdResetQueryPool(commandBuffer, timestampPool, slot * MAX_SCOPES * 2, MAX_SCOPES * 2);
+		if (statisticsPool != VK_NULL_HANDLE) {
+			vkCmdResetQueryPool(commandBuffer, statisticsPool, slot * MAX_SCOPES, MAX_SCOPES);
+		}
+		
+		currentSlot = slot;
+		slotScopeCount[slot] = 0;
+		slotStatisticsCount[slot] = 0;
+		slotWritten[slot] = true;
+		slotFrame[slot] = trace != null ? trace.getFrame() : 0;
+		statisticsActive = false;
+	}
+	
+	// Returns the scope to end, statistics are skipped while another scope already collects them
+	public int begin(VkCommandBuffer commandBuffer, String pass, boolean statistics) {
+		if (!enabled) return -1;
+		
+		int slot = currentSlot;
+		int scope = slotScopeCount[slot];
+		if (scope >= MAX_SCOPES) return -1;
+		slotScopeCount[slot]++;
+		
+		slotPasses[slot][scope] = passes.computeIfAbsent(pass, GpuPassStats::new);
+		slotStatistics[slot][scope] = -1;
+		
+		vkCmdWriteTimestamp(commandBuffer, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, timestampPool, (slot * MAX_SCOPES + scope) * 2);
+		
+		if (statistics && statisticsPool != VK_NULL_HANDLE && !statisticsActive) {
+			int query = slot * MAX_SCOPES + slotStatisticsCount[slot]++;
+			slotStatistics[slot][scope] = query;
+			statisticsActive = true;
+			
+			vkCmdBeginQuery(commandBuffer, statisticsPool, query, 0);
+		}
+		
+		return scope;
+	}
+	
+	public void end(VkCommandBuffer commandBuffer, int scope) {
+		if (scope < 0) return;
+		
+		int slot = currentSlot;
+		
+		if (slotStatistics[slot][scope] != -1) {
+			vkCmdEndQuery(commandBuffer, statisticsPool, slotStatistics[slot][scope]);
+			statisticsActive = false;
+		}
+		
+		vkCmdWriteTimestamp(commandBuffer, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, timestampPool, (slot * MAX_SCOPES + scope) * 2 + 1);
+	}
+	
+	// Reads the slot's results if the gpu has finished with them, without waiting
+	public void collect(int slot) {
+		if (!enabled || !slotWritten[slot]) return;
+		slotWritten[slot] = false;
+		
+		int scopes = slotScopeCount[slot];
+		if (scopes == 0) return;
+		
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			// Timestamps
+			LongBuffer timestamps = stack.mallocLong(scopes * 2);
+			int ret = vkGetQueryPoolResults(device, timestampPool, slot * MAX_SCOPES * 2, scopes * 2, timestamps, 8, VK_QUERY_RESULT_64_BIT);
+			if (ret != VK_SUCCESS) {
+				droppedFrames++;
+				return;
+			}
+			
+			// Statistics
+			LongBuffer statistics = null;
+			int statisticsCount = slotStatisticsCount[slot];
+			if (statisticsCount > 0) {
+				statistics = stack.mallocLong(statisticsCount * statisticNames.length);
+				ret = vkGetQueryPoolResults(device, statisticsPool, slot * MAX_SCOPES, statisticsCount, statistics, 8 * statisticNames.length, VK_QUERY_RESULT_64_BIT);
+				if (ret != VK_SUCCESS) statistics = null;
+			}
+			
+			for (int scope = 0; scope < scopes; scope++) {
+				long ticks = (timestamps.get(scope * 2 + 1) - timestamps.get(scope * 2)) & timestampMask;
+				slotPasses[slot][scope].addSample(ticks * timestampPeriod / 1e6);
+				
+				if (trace != null) {
+					long start = calibration.toHostNanos(timestamps.get(scope * 2) & timestampMask);
+					trace.record(slotPasses[slot][scope].getName(), traceTrack, slotFrame[slot], start, start + (long) (ticks * timestampPeriod));
+				}
+				
+				int query = slotStatistics[slot][scope];
+				if (statistics != null && query != -1) {
+					int offset = (query - slot * MAX_SCOPES) * statisticNames.length;
+					
+					long[] values = new long[statisticNames.length];
+					for (int i = 0; i < values.length; i++) {
+						values[i] = statistics.get(offset + i);
+					}
+					slotPasses[slot][scope].setStatistics(values);
+				}
+			}
+		}
+	}
+	
+	public GpuPassStats getPass(String pass) {
+		return passes.get(pass);
+	}
+	
+	public Collection<GpuPassStats> getPasses() {
+		return passes.values();
+	}
+	
+	public String[] getStatisticNames() {
+		return statisticNames;
+	}
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	public void logReport(String title) {
+		if (!enabled) return;
+		
+		Log.print(title + " gpu timings (ms, last " + GpuPassStats.WINDOW + " samples)" + (droppedFrames > 0 ? ", " + droppedFrames + " frames not ready" : ""));
+		for (GpuPassStats pass : passes.values()) {
+			String line = String.format("  %-16s p50 %.3f  p95 %.3f  p99 %.3f  (%d samples)", pass.getName(), pass.getP50(), pass.getP95(), pass.getP99(), pass.getTotalSamples());
+			
+			long[] statistics = pass.getStatistics();
+			if (statistics != null) {
+				for (int i = 0; i < statistics.length; i++) {
+					line += ", " + statisticNames[i] + " " + statistics[i];
+				}
+			}
+			Log.print(line);
+		}
+	}
+	
+	public void free() {
+		if (!enabled) return;
+		
+		vkDestroyQueryPool(device, timestampPool, null);
+		if (statisticsPool != VK_NULL_HANDLE) {
+			vkDestroyQueryPool(device, statisticsPool, null);
+		}
+	}
+}
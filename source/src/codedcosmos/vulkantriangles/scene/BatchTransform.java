@@ -0,0 +1,31 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.scene;
+
+import java.nio.ByteBuffer;
+
+// Multiplies packed matrices by one transform in a single pass, dest = transform * source for each.
+// Matrices are column major, 64 bytes each in native order, so source and dest can be off heap or mapped.
+public interface BatchTransform {
+	int MATRIX_SIZE = 16 * 4;
+	
+	// The first count matrices
+	void multiply(float[] transform, ByteBuffer source, ByteBuffer dest, int count);
+	
+	// Only the listed matrices, each at the same index in source and dest
+	void multiply(float[] transform, ByteBuffer source, ByteBuffer dest, int[] indices, int count);
+	
+	String getName();
+}
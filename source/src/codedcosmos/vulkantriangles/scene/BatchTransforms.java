@@ -0,0 +1,42 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.scene;
+
+import codedcosmos.vulkantriangles.Log;
+
+// Picks the vector api kernel when it was built in and its module is present, -Dvulkantriangles.vector=false forces scalar
+public class BatchTransforms {
+	private static final String VECTOR_KERNEL = "codedcosmos.vulkantriangles.scene.VectorBatchTransform";
+	
+	public static BatchTransform create() {
+		if (Boolean.parseBoolean(System.getProperty("vulkantriangles.vector", "true"))) {
+			BatchTransform vector = createVector();
+			if (vector != null) {
+				return vector;
+			}
+		}
+		return new ScalarBatchTransform();
+	}
+	
+	// Null when the build left it out (no -PvectorApi) or the jvm wasn't started with --add-modules jdk.incubator.vector
+	public static BatchTransform createVector() {
+		try {
+			return (BatchTransform) Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			Log.debug(() -> "Vector transforms unavailable, " + e);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.scene;
+
+import org.joml.Matrix4f;
+import org.joml.Vector4f;
+
+// Six planes pointing inwards, packed as nx, ny, nz, d so a point is inside a plane when n.p + d >= 0
+public class Frustum {
+	public static final int PLANES = 6;
+	
+	private final float[] planes = new float[PLANES * 4];
+	private final Vector4f plane = new Vector4f();
+	
+	// From a clip transform, the culled objects are in the space it transforms from
+	public Frustum set(Matrix4f transform) {
+		for (int i = 0; i < PLANES; i++) {
+			transform.frustumPlane(i, plane);
+			
+			float length = (float) Math.sqrt(plane.x * plane.x + plane.y * plane.y + plane.z * plane.z);
+			planes[i * 4 + 0] = plane.x / length;
+			planes[i * 4 + 1] = plane.y / length;
+			planes[i * 4 + 2] = plane.z / length;
+			planes[i * 4 + 3] = plane.w / length;
+		}
+		return this;
+	}
+	
+	public float[] getPlanes() {
+		return planes;
+	}
+}
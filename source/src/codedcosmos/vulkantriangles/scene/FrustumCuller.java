@@ -0,0 +1,153 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.scene;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Culls scene bounds against a frustum on the cpu, in chunks spread over the common ForkJoin pool.
+// Each chunk runs one loop per plane over the component arrays, plain float maths with no branches
+// so the JIT can vectorise it, keeping the nearest plane distance per object in a scratch array.
+public class FrustumCuller {
+	// Objects per task, the scratch distances of a chunk stay in cache
+	public static final int CHUNK = Integer.getInteger("vulkantriangles.cull.chunk", 4096);
+	
+	private static final ThreadLocal<float[]> SCRATCH = ThreadLocal.withInitial(() -> new float[CHUNK]);
+	
+	private final ForkJoinPool pool;
+	
+	public FrustumCuller() {
+		this(ForkJoinPool.commonPool());
+	}
+	
+	public FrustumCuller(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+	
+	// Boxes are tighter, spheres are a little cheaper, returns the number visible
+	public int cull(SceneBounds bounds, Frustum frustum, boolean boxes) {
+		if (bounds.getCount() <= CHUNK) {
+			return cullSerial(bounds, frustum, boxes);
+		}
+		return pool.invoke(new CullTask(bounds, frustum.getPlanes(), boxes, 0, bounds.getCount()));
+	}
+	
+	// On the calling thread, for small scenes and for comparison
+	public int cullSerial(SceneBounds bounds, Frustum frustum, boolean boxes) {
+		int visible = 0;
+		for (int from = 0; from < bounds.getCount(); from += CHUNK) {
+			visible += cullChunk(bounds, frustum.getPlanes(), boxes, from, Math.min(from + CHUNK, bounds.getCount()));
+		}
+		return visible;
+	}
+	
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+	
+	private static int cullChunk(SceneBounds bounds, float[] planes, boolean boxes, int from, int to) {
+		float[] distance = SCRATCH.get();
+		int length = to - from;
+		
+		float[] centerX = bounds.centerX;
+		float[] centerY = bounds.centerY;
+		float[] centerZ = bounds.centerZ;
+		
+		for (int plane = 0; plane < Frustum.PLANES; plane++) {
+			float nx = planes[plane * 4 + 0];
+			float ny = planes[plane * 4 + 1];
+			float nz = planes[plane * 4 + 2];
+			float d = planes[plane * 4 + 3];
+			
+			// Signed distance of the centre, pushed out by the sphere's radius or the box's projected extent
+			if (boxes) {
+				float ax = Math.abs(nx);
+				float ay = Math.abs(ny);
+				float az = Math.abs(nz);
+				float[] extentX = bounds.extentX;
+				float[] extentY = bounds.extentY;
+				float[] extentZ = bounds.extentZ;
+				
+				if (plane == 0) {
+					for (int i = 0; i < length; i++) {
+						int object = from + i;
+						distance[i] = nx * centerX[object] + ny * centerY[object] + nz * centerZ[object] + d + ax * extentX[object] + ay * extentY[object] + az * extentZ[object];
+					}
+				} else {
+					for (int i = 0; i < length; i++) {
+						int object = from + i;
+						distance[i] = Math.min(distance[i], nx * centerX[object] + ny * centerY[object] + nz * centerZ[object] + d + ax * extentX[object] + ay * extentY[object] + az * extentZ[object]);
+					}
+				}
+			} else {
+				float[] radius = bounds.radius;
+				
+				if (plane == 0) {
+					for (int i = 0; i < length; i++) {
+						int object = from + i;
+						distance[i] = nx * centerX[object] + ny * centerY[object] + nz * centerZ[object] + d + radius[object];
+					}
+				} else {
+					for (int i = 0; i < length; i++) {
+						int object = from + i;
+						distance[i] = Math.min(distance[i], nx * centerX[object] + ny * centerY[object] + nz * centerZ[object] + d + radius[object]);
+					}
+				}
+			}
+		}
+		
+		// Inside every plane
+		byte[] visible = bounds.visible;
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			byte inside = (byte) (distance[i] >= 0f ? 1 : 0);
+			visible[from + i] = inside;
+			count += inside;
+		}
+		return count;
+	}
+	
+	private static class CullTask extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+		
+		private final SceneBounds bounds;
+		private final float[] planes;
+		private final boolean boxes;
+		private final int from;
+		private final int to;
+		
+		private CullTask(SceneBounds bounds, float[] planes, boolean boxes, int from, int to) {
+			this.bounds = bounds;
+			this.planes = planes;
+			this.boxes = boxes;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected Integer compute() {
+			if (to - from <= CHUNK) {
+				return cullChunk(bounds, planes, boxes, from, to);
+			}
+			
+			// Split on a chunk boundary
+			int middle = from + Math.max(1, (to - from) / CHUNK / 2) * CHUNK;
+			CullTask left = new CullTask(bounds, planes, boxes, from, middle);
+			left.fork();
+			int right = new CullTask(bounds, planes, boxes, middle, to).compute();
+			return left.join() + right;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.scene;
+
+import org.joml.Matrix4f;
+
+import java.nio.ByteBuffer;
+
+// One matrix at a time through joml, whose buffer access skips the bounds checks, for runtimes without the vector api
+public class ScalarBatchTransform implements BatchTransform {
+	
+	@Override
+	public void multiply(float[] transform, ByteBuffer source, ByteBuffer dest, int count) {
+		Matrix4f left = new Matrix4f().set(transform);
+		Matrix4f matrix = new Matrix4f();
+		for (int i = 0; i < count; i++) {
+			multiplyAt(left, source, dest, i * MATRIX_SIZE, matrix);
+		}
+		source.position(0);
+	}
+	
+	@Override
+	public void multiply(float[] transform, ByteBuffer source, ByteBuffer dest, int[] indices, int count) {
+		Matrix4f left = new Matrix4f().set(transform);
+		Matrix4f matrix = new Matrix4f();
+		for (int i = 0; i < count; i++) {
+			multiplyAt(left, source, dest, indices[i] * MATRIX_SIZE, matrix);
+		}
+		source.position(0);
+	}
+	
+	private static void multiplyAt(Matrix4f left, ByteBuffer source, ByteBuffer dest, int offset, Matrix4f matrix) {
+		source.position(offset);
+		left.mul(matrix.set(source), matrix).get(offset, dest);
+	}
+	
+	@Override
+	public String getName() {
+		return "scalar";
+	}
+}
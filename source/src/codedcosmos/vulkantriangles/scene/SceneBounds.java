@@ -0,0 +1,118 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.scene;
+
+import java.util.Arrays;
+
+// Bounding volumes of every scene object as structure of arrays, one primitive array per component.
+// Objects are indices, and each volume is a sphere plus the half extents of its axis aligned box.
+public class SceneBounds {
+	// Volumes
+	float[] centerX;
+	float[] centerY;
+	float[] centerZ;
+	float[] radius;
+	float[] extentX;
+	float[] extentY;
+	float[] extentZ;
+	
+	// Written by the culler, 1 when the object was visible
+	byte[] visible;
+	
+	private int count;
+	
+	public SceneBounds(int capacity) {
+		capacity = Math.max(capacity, 16);
+		centerX = new float[capacity];
+		centerY = new float[capacity];
+		centerZ = new float[capacity];
+		radius = new float[capacity];
+		extentX = new float[capacity];
+		extentY = new float[capacity];
+		extentZ = new float[capacity];
+		visible = new byte[capacity];
+	}
+	
+	// A sphere, its box is the cube around it
+	public int addSphere(float x, float y, float z, float radius) {
+		return addBox(x, y, z, radius, radius, radius, radius);
+	}
+	
+	// A box, its sphere is the one through the corners
+	public int addBox(float x, float y, float z, float extentX, float extentY, float extentZ) {
+		float radius = (float) Math.sqrt(extentX * extentX + extentY * extentY + extentZ * extentZ);
+		return addBox(x, y, z, extentX, extentY, extentZ, radius);
+	}
+	
+	private int addBox(float x, float y, float z, float extentX, float extentY, float extentZ, float radius) {
+		if (count == centerX.length) {
+			grow(count * 2);
+		}
+		
+		int object = count++;
+		setCenter(object, x, y, z);
+		this.extentX[object] = extentX;
+		this.extentY[object] = extentY;
+		this.extentZ[object] = extentZ;
+		this.radius[object] = radius;
+		return object;
+	}
+	
+	public void setCenter(int object, float x, float y, float z) {
+		centerX[object] = x;
+		centerY[object] = y;
+		centerZ[object] = z;
+	}
+	
+	void setExtent(int object, float extentX, float extentY, float extentZ, float radius) {
+		this.extentX[object] = extentX;
+		this.extentY[object] = extentY;
+		this.extentZ[object] = extentZ;
+		this.radius[object] = radius;
+	}
+	
+	private void grow(int capacity) {
+		centerX = Arrays.copyOf(centerX, capacity);
+		centerY = Arrays.copyOf(centerY, capacity);
+		centerZ = Arrays.copyOf(centerZ, capacity);
+		radius = Arrays.copyOf(radius, capacity);
+		extentX = Arrays.copyOf(extentX, capacity);
+		extentY = Arrays.copyOf(extentY, capacity);
+		extentZ = Arrays.copyOf(extentZ, capacity);
+		visible = Arrays.copyOf(visible, capacity);
+	}
+	
+	public boolean isVisible(int object) {
+		return visible[object] != 0;
+	}
+	
+	// Writes the visible objects in order, returns how many there were, objects needs room for every object
+	public int getVisible(int[] objects) {
+		int written = 0;
+		for (int i = 0; i < count; i++) {
+			objects[written] = i;
+			written += visible[i];
+		}
+		return written;
+	}
+	
+	public int getCount() {
+		return count;
+	}
+	
+	public void clear() {
+		count = 0;
+	}
+}
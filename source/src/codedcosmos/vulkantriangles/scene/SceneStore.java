@@ -0,0 +1,347 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.scene;
+
+import codedcosmos.vulkantriangles.memory.MemoryTracker;
+import org.joml.Matrix4f;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static org.lwjgl.system.MemoryUtil.memAddress;
+
+// Local transforms, parents and world matrices of every scene object as off heap structure of arrays.
+// Setting a local transform marks the object dirty, and update only recomputes the subtrees under
+// dirty objects, so the cost of a frame follows what moved rather than the size of the scene.
+public class SceneStore {
+	public static final int NONE = -1;
+	
+	// Dirty subtrees per task when updating in parallel
+	public static final int ROOT_CHUNK = Integer.getInteger("vulkantriangles.scene.rootChunk", 64);
+	
+	private final int capacity;
+	private int count;
+	
+	// Local transforms, position xyz, rotation quaternion xyzw and scale xyz
+	private FloatBuffer positions;
+	private FloatBuffer rotations;
+	private FloatBuffer scales;
+	
+	// Hierarchy, parents are added before their children
+	private IntBuffer parents;
+	private IntBuffer firstChilds;
+	private IntBuffer nextSiblings;
+	
+	// Column major world matrices, read straight into the instance buffer
+	private ByteBuffer worlds;
+	private long worldAddress;
+	
+	// Local half extents, the world ones are kept in the bounds for culling
+	private float[] localExtents;
+	private SceneBounds bounds;
+	
+	// Objects set since the last update
+	private byte[] dirty;
+	private int[] dirtyObjects;
+	private int dirtyCount;
+	private int[] dirtyRoots;
+	
+	// Objects whose world matrix changed in the last update
+	private int[] changed;
+	private int changedCount;
+	
+	private final ForkJoinPool pool;
+	
+	public SceneStore(int capacity) {
+		this(capacity, ForkJoinPool.commonPool());
+	}
+	
+	public SceneStore(int capacity, ForkJoinPool pool) {
+		this.capacity = capacity;
+		this.pool = pool;
+		
+		positions = MemoryTracker.memAllocFloat("scene", capacity * 3);
+		rotations = MemoryTracker.memAllocFloat("scene", capacity * 4);
+		scales = MemoryTracker.memAllocFloat("scene", capacity * 3);
+		parents = MemoryTracker.memAllocInt("scene", capacity);
+		firstChilds = MemoryTracker.memAllocInt("scene", capacity);
+		nextSiblings = MemoryTracker.memAllocInt("scene", capacity);
+		worlds = MemoryTracker.memAlloc("scene", capacity * 64);
+		worldAddress = memAddress(worlds);
+		
+		localExtents = new float[capacity * 3];
+		bounds = new SceneBounds(capacity);
+		
+		dirty = new byte[capacity];
+		dirtyObjects = new int[capacity];
+		dirtyRoots = new int[capacity];
+		changed = new int[capacity];
+	}
+	
+	// An identity transform under parent, or a root when parent is NONE
+	public int add(int parent, float extentX, float extentY, float extentZ) {
+		if (count == capacity) {
+			throw new IllegalStateException("Scene is full at " + capacity + " objects");
+		}
+		if (parent != NONE && (parent < 0 || parent >= count)) {
+			throw new IllegalArgumentException("Not an object " + parent);
+		}
+		
+		int object = count++;
+		bounds.addBox(0f, 0f, 0f, extentX, extentY, extentZ);
+		localExtents[object * 3 + 0] = extentX;
+		localExtents[object * 3 + 1] = extentY;
+		localExtents[object * 3 + 2] = extentZ;
+		
+		// Linked in front of its siblings
+		parents.put(object, parent);
+		firstChilds.put(object, NONE);
+		nextSiblings.put(object, NONE);
+		if (parent != NONE) {
+			nextSiblings.put(object, firstChilds.get(parent));
+			firstChilds.put(parent, object);
+		}
+		
+		setPosition(object, 0f, 0f, 0f);
+		setRotation(object, 0f, 0f, 0f, 1f);
+		setScale(object, 1f, 1f, 1f);
+		return object;
+	}
+	
+	public void setPosition(int object, float x, float y, float z) {
+		positions.put(object * 3 + 0, x);
+		positions.put(object * 3 + 1, y);
+		positions.put(object * 3 + 2, z);
+		markDirty(object);
+	}
+	
+	// A unit quaternion
+	public void setRotation(int object, float x, float y, float z, float w) {
+		rotations.put(object * 4 + 0, x);
+		rotations.put(object * 4 + 1, y);
+		rotations.put(object * 4 + 2, z);
+		rotations.put(object * 4 + 3, w);
+		markDirty(object);
+	}
+	
+	public void setScale(int object, float x, float y, float z) {
+		scales.put(object * 3 + 0, x);
+		scales.put(object * 3 + 1, y);
+		scales.put(object * 3 + 2, z);
+		markDirty(object);
+	}
+	
+	private void markDirty(int object) {
+		if (dirty[object] == 0) {
+			dirty[object] = 1;
+			dirtyObjects[dirtyCount++] = object;
+		}
+	}
+	
+	// Recomputes world matrices and bounds under every dirty object, returns how many changed
+	public int update() {
+		// Only the top most dirty objects, the rest are updated with their ancestor's subtree
+		int roots = 0;
+		for (int i = 0; i < dirtyCount; i++) {
+			int object = dirtyObjects[i];
+			if (!hasDirtyAncestor(object)) {
+				dirtyRoots[roots++] = object;
+			}
+		}
+		
+		changedCount = 0;
+		if (roots <= ROOT_CHUNK) {
+			Changes changes = new Changes(changed);
+			updateSubtrees(0, roots, changes);
+			changed = changes.objects;
+			changedCount = changes.count;
+		} else {
+			int chunks = (roots + ROOT_CHUNK - 1) / ROOT_CHUNK;
+			Changes[] results = new Changes[chunks];
+			pool.invoke(new UpdateTask(results, 0, roots));
+			
+			// Subtrees don't overlap, so neither do the chunks
+			for (Changes changes : results) {
+				System.arraycopy(changes.objects, 0, changed, changedCount, changes.count);
+				changedCount += changes.count;
+			}
+		}
+		
+		// Every object set is in some updated subtree
+		for (int i = 0; i < dirtyCount; i++) {
+			dirty[dirtyObjects[i]] = 0;
+		}
+		dirtyCount = 0;
+		
+		return changedCount;
+	}
+	
+	private boolean hasDirtyAncestor(int object) {
+		for (int parent = parents.get(object); parent != NONE; parent = parents.get(parent)) {
+			if (dirty[parent] != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	// Depth first through the subtrees of roots from to, parents are written before their children read them
+	private void updateSubtrees(int from, int to, Changes changes) {
+		Matrix4f local = new Matrix4f();
+		Matrix4f parentWorld = new Matrix4f();
+		int[] stack = new int[64];
+		
+		for (int i = from; i < to; i++) {
+			int top = 0;
+			stack[top++] = dirtyRoots[i];
+			
+			while (top > 0) {
+				int object = stack[--top];
+				updateObject(object, local, parentWorld);
+				changes.add(object);
+				
+				for (int child = firstChilds.get(object); child != NONE; child = nextSiblings.get(child)) {
+					if (top == stack.length) {
+						stack = Arrays.copyOf(stack, top * 2);
+					}
+					stack[top++] = child;
+				}
+			}
+		}
+	}
+	
+	private void updateObject(int object, Matrix4f local, Matrix4f parentWorld) {
+		int p = object * 3;
+		int r = object * 4;
+		local.translationRotateScale(
+				positions.get(p), positions.get(p + 1), positions.get(p + 2),
+				rotations.get(r), rotations.get(r + 1), rotations.get(r + 2), rotations.get(r + 3),
+				scales.get(p), scales.get(p + 1), scales.get(p + 2));
+		
+		int parent = parents.get(object);
+		if (parent != NONE) {
+			parentWorld.setFromAddress(worldAddress + parent * 64L);
+			parentWorld.mulAffine(local, local);
+		}
+		local.getToAddress(worldAddress + object * 64L);
+		
+		// World box around the transformed local box, and the sphere scaled by the largest axis
+		float ex = localExtents[p];
+		float ey = localExtents[p + 1];
+		float ez = localExtents[p + 2];
+		bounds.setCenter(object, local.m30(), local.m31(), local.m32());
+		bounds.setExtent(object,
+				Math.abs(local.m00()) * ex + Math.abs(local.m10()) * ey + Math.abs(local.m20()) * ez,
+				Math.abs(local.m01()) * ex + Math.abs(local.m11()) * ey + Math.abs(local.m21()) * ez,
+				Math.abs(local.m02()) * ex + Math.abs(local.m12()) * ey + Math.abs(local.m22()) * ez,
+				(float) Math.sqrt((ex * ex + ey * ey + ez * ez) * maxAxisLengthSquared(local)));
+	}
+	
+	private static float maxAxisLengthSquared(Matrix4f m) {
+		float x = m.m00() * m.m00() + m.m01() * m.m01() + m.m02() * m.m02();
+		float y = m.m10() * m.m10() + m.m11() * m.m11() + m.m12() * m.m12();
+		float z = m.m20() * m.m20() + m.m21() * m.m21() + m.m22() * m.m22();
+		return Math.max(x, Math.max(y, z));
+	}
+	
+	// Objects whose world matrices were written by the last update
+	public int[] getChanged() {
+		return changed;
+	}
+	
+	public int getChangedCount() {
+		return changedCount;
+	}
+	
+	// Address of object 0's world matrix, each is 64 bytes
+	public long getWorldAddress() {
+		return worldAddress;
+	}
+	
+	public ByteBuffer getWorlds() {
+		return worlds;
+	}
+	
+	public SceneBounds getBounds() {
+		return bounds;
+	}
+	
+	public int getCount() {
+		return count;
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	public void free() {
+		MemoryTracker.memFree("scene", positions);
+		MemoryTracker.memFree("scene", rotations);
+		MemoryTracker.memFree("scene", scales);
+		MemoryTracker.memFree("scene", parents);
+		MemoryTracker.memFree("scene", firstChilds);
+		MemoryTracker.memFree("scene", nextSiblings);
+		MemoryTracker.memFree("scene", worlds);
+	}
+	
+	// Changed objects of one task
+	private static class Changes {
+		private int[] objects;
+		private int count;
+		
+		private Changes(int[] objects) {
+			this.objects = objects;
+		}
+		
+		private void add(int object) {
+			if (count == objects.length) {
+				objects = Arrays.copyOf(objects, count * 2);
+			}
+			objects[count++] = object;
+		}
+	}
+	
+	private class UpdateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final Changes[] results;
+		private final int from;
+		private final int to;
+		
+		private UpdateTask(Changes[] results, int from, int to) {
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= ROOT_CHUNK) {
+				Changes changes = new Changes(new int[Math.max(16, to - from)]);
+				updateSubtrees(from, to, changes);
+				results[from / ROOT_CHUNK] = changes;
+				return;
+			}
+			
+			// Split on a chunk boundary
+			int middle = from + Math.max(1, (to - from) / ROOT_CHUNK / 2) * ROOT_CHUNK;
+			invokeAll(new UpdateTask(results, from, middle), new UpdateTask(results, middle, to));
+		}
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package codedcosmos.vulkantriangles.memory;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TlsfAllocatorTest {
+	private static final long CAPACITY = 64L << 20;
+	
+	@Test
+	public void allocatesAtStartAndSplitsTheRest() {
+		TlsfAllocator allocator = new TlsfAllocator(4096);
+		
+		int a = allocator.allocate(100);
+		int b = allocator.allocate(200);
+		
+		assertEquals(0, allocator.getOffset(a));
+		assertEquals(100, allocator.getSize(a));
+		assertEquals(100, allocator.getOffset(b));
+		assertEquals(300, allocator.getUsedBytes());
+		assertEquals(2, allocator.getAllocationCount());
+		assertEquals(1, allocator.getFreeBlockCount());
+	}
+	
+	@Test
+	public void respectsAlignment() {
+		TlsfAllocator allocator = new TlsfAllocator(1 << 20);
+		allocator.allocate(3);
+		
+		for (long alignment = 1; alignment <= 4096; alignment <<= 1) {
+			int handle = allocator.allocate(7, alignment);
+			assertTrue(handle >= 0);
+			assertEquals("offset aligned to " + alignment, 0, allocator.getOffset(handle) % alignment);
+		}
+	}
+	
+	@Test
+	public void mergesNeighboursWhenFreed() {
+		TlsfAllocator allocator = new TlsfAllocator(4096);
+		int[] quarters = new int[4];
+		for (int i = 0; i < 4; i++) {
+			quarters[i] = allocator.allocate(1024);
+		}
+		
+		// First and third freed leave two free quarters apart
+		allocator.free(quarters[0]);
+		allocator.free(quarters[2]);
+		assertEquals(2, allocator.getFreeBlockCount());
+		assertEquals(1024, allocator.getLargestFreeBlock());
+		assertEquals(0.5, allocator.getFragmentation(), 1e-9);
+		
+		// The second joins them into one
+		allocator.free(quarters[1]);
+		assertEquals(1, allocator.getFreeBlockCount());
+		assertEquals(3072, allocator.getLargestFreeBlock());
+		assertEquals(0, allocator.getFragmentation(), 0);
+		
+		allocator.free(quarters[3]);
+		assertEmpty(allocator);
+	}
+	
+	@Test
+	public void allocatesTheWholeCapacity() {
+		for (long capacity : new long[] {1, 4096, CAPACITY, CAPACITY + 12345}) {
+			for (long alignment = 1; alignment <= 4096; alignment <<= 3) {
+				TlsfAllocator allocator = new TlsfAllocator(capacity);
+				
+				int handle = allocator.allocate(capacity, alignment);
+				assertTrue("whole capacity " + capacity + " aligned to " + alignment, handle >= 0);
+				assertEquals(0, allocator.getOffset(handle));
+				assertEquals(-1, allocator.allocate(1));
+				
+				allocator.free(handle);
+				assertEmpty(allocator);
+			}
+		}
+	}
+	
+	@Test
+	public void failsWhenNothingFits() {
+		TlsfAllocator allocator = new TlsfAllocator(4096);
+		
+		assertEquals(-1, allocator.allocate(4097));
+		
+		allocator.allocate(4000);
+		assertEquals(-1, allocator.allocate(200));
+		assertEquals(1, allocator.getAllocationCount());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsDoubleFree() {
+		TlsfAllocator allocator = new TlsfAllocator(4096);
+		int handle = allocator.allocate(100);
+		allocator.free(handle);
+		allocator.free(handle);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAlignmentThatIsNotAPowerOfTwo() {
+		new TlsfAllocator(4096).allocate(100, 12);
+	}
+	
+	// Random allocate and free sequences never overlap, stay aligned and account every byte
+	@Test
+	public void survivesRandomWorkloads() {
+		for (int seed = 0; seed < 8; seed++) {
+			TlsfAllocator allocator = new TlsfAllocator(CAPACITY, 4);
+			Random random = new Random(seed);
+			
+			int[] live = new int[1024];
+			int count = 0;
+			
+			for (int i = 0; i < 200_000; i++) {
+				if (count > 0 && (count == live.length || random.nextInt(3) == 0)) {
+					int index = random.nextInt(count);
+					allocator.free(live[index]);
+					live[index] = live[--count];
+				} else {
+					// Mostly small, sometimes a good part of the capacity
+					long size = random.nextInt(8) == 0 ? 1 + (long) (random.nextDouble() * CAPACITY / 4) : 1 + random.nextInt(1 << 14);
+					long alignment = 1L << random.nextInt(12);
+					
+					int handle = allocator.allocate(size, alignment);
+					if (handle < 0) continue;
+					
+					assertEquals(0, allocator.getOffset(handle) % alignment);
+					assertTrue(allocator.getSize(handle) >= size);
+					live[count++] = handle;
+				}
+				
+				if (i % 1024 == 0) {
+					assertLive(allocator, live, count);
+				}
+			}
+			assertLive(allocator, live, count);
+			
+			while (count > 0) {
+				allocator.free(live[--count]);
+			}
+			assertEmpty(allocator);
+		}
+	}
+	
+	// Live ranges are inside the capacity, do not overlap and add up to the used bytes
+	private static void assertLive(TlsfAllocator allocator, int[] live, int count) {
+		long[][] ranges = new long[count][];
+		long used = 0;
+		for (int i = 0; i < count; i++) {
+			ranges[i] = new long[] {allocator.getOffset(live[i]), allocator.getSize(live[i])};
+			used += ranges[i][1];
+		}
+		Arrays.sort(ranges, (a, b) -> Long.compare(a[0], b[0]));
+		
+		long end = 0;
+		for (long[] range : ranges) {
+			assertTrue("allocation at " + range[0] + " overlaps the one ending at " + end, range[0] >= end);
+			end = range[0] + range[1];
+		}
+		assertTrue(end <= allocator.getCapacity());
+		assertEquals(used, allocator.getUsedBytes());
+		assertEquals(count, allocator.getAllocationCount());
+		assertTrue(allocator.getLargestFreeBlock() <= allocator.getFreeBytes());
+	}
+	
+	// Everything freed coalesces back into one block spanning the capacity
+	private static void assertEmpty(TlsfAllocator allocator) {
+		assertTrue(allocator.isEmpty());
+		assertEquals(0, allocator.getUsedBytes());
+		assertEquals(1, allocator.getFreeBlockCount());
+		assertEquals(allocator.getCapacity(), allocator.getLargestFreeBlock());
+		assertEquals(0, allocator.getFragmentation(), 0);
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package codedcosmos.vulkantriangles.scene;
+
+import org.joml.Matrix4f;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrustumCullerTest {
+	// A box frustum so every plane is known, x and y in -10..10, looking down -z from 1 to 100
+	private static final Frustum BOX = new Frustum().set(new Matrix4f().setOrtho(-10, 10, -10, 10, 1, 100));
+	
+	// A point on each of the six planes and the outward direction through it
+	private static final float[][] PLANES = {
+			{-10, 0, -50, -1, 0, 0},
+			{10, 0, -50, 1, 0, 0},
+			{0, -10, -50, 0, -1, 0},
+			{0, 10, -50, 0, 1, 0},
+			{0, 0, -1, 0, 0, 1},
+			{0, 0, -100, 0, 0, -1},
+	};
+	
+	@Test
+	public void planesAreNormalised() {
+		Frustum frustum = new Frustum().set(new Matrix4f().setPerspective((float) Math.toRadians(70), 16f / 9f, 0.01f, 1000f));
+		float[] planes = frustum.getPlanes();
+		for (int i = 0; i < Frustum.PLANES; i++) {
+			float length = planes[i * 4 + 0] * planes[i * 4 + 0] + planes[i * 4 + 1] * planes[i * 4 + 1] + planes[i * 4 + 2] * planes[i * 4 + 2];
+			assertEquals("plane " + i, 1f, length, 1e-5f);
+		}
+	}
+	
+	@Test
+	public void keepsSphereInside() {
+		assertSpheres(true, 0, 0, -50, 1);
+		assertSpheres(true, 9, -9, -2, 0.5f);
+	}
+	
+	@Test
+	public void cullsSphereOutsideEachPlane() {
+		for (float[] plane : PLANES) {
+			assertSpheres(false, plane[0] + plane[3] * 2, plane[1] + plane[4] * 2, plane[2] + plane[5] * 2, 1);
+		}
+	}
+	
+	@Test
+	public void keepsSphereStraddlingEachPlane() {
+		for (float[] plane : PLANES) {
+			// Centre outside but the surface inside, and the other way around
+			assertSpheres(true, plane[0] + plane[3] * 0.5f, plane[1] + plane[4] * 0.5f, plane[2] + plane[5] * 0.5f, 1);
+			assertSpheres(true, plane[0] - plane[3] * 0.5f, plane[1] - plane[4] * 0.5f, plane[2] - plane[5] * 0.5f, 1);
+		}
+	}
+	
+	@Test
+	public void boxesAreTighterThanTheirSpheres() {
+		for (float[] plane : PLANES) {
+			// Thin along the plane normal, long across it, the sphere through its corners reaches inside
+			float ex = plane[3] != 0 ? 0.5f : 5f;
+			float ey = plane[4] != 0 ? 0.5f : 5f;
+			float ez = plane[5] != 0 ? 0.5f : 5f;
+			
+			SceneBounds bounds = new SceneBounds(1);
+			bounds.addBox(plane[0] + plane[3] * 1.5f, plane[1] + plane[4] * 1.5f, plane[2] + plane[5] * 1.5f, ex, ey, ez);
+			
+			FrustumCuller culler = new FrustumCuller();
+			assertEquals(1, culler.cullSerial(bounds, BOX, false));
+			assertEquals(0, culler.cullSerial(bounds, BOX, true));
+			assertFalse(bounds.isVisible(0));
+		}
+	}
+	
+	// Parallel chunks write the same visibility as one serial pass, including a partial last chunk
+	@Test
+	public void parallelMatchesSerial() {
+		Random random = new Random(1);
+		int objects = FrustumCuller.CHUNK * 3 + 17;
+		SceneBounds bounds = new SceneBounds(objects);
+		for (int i = 0; i < objects; i++) {
+			float x = random.nextFloat() * 30f - 15f;
+			float y = random.nextFloat() * 30f - 15f;
+			float z = random.nextFloat() * -110f + 5f;
+			if (i % 2 == 0) {
+				bounds.addSphere(x, y, z, random.nextFloat() * 3f);
+			} else {
+				bounds.addBox(x, y, z, random.nextFloat() * 3f, random.nextFloat() * 3f, random.nextFloat() * 3f);
+			}
+		}
+		
+		FrustumCuller culler = new FrustumCuller();
+		for (boolean boxes : new boolean[] {false, true}) {
+			int serial = culler.cullSerial(bounds, BOX, boxes);
+			boolean[] expected = new boolean[objects];
+			for (int i = 0; i < objects; i++) {
+				expected[i] = bounds.isVisible(i);
+			}
+			
+			assertEquals(serial, culler.cull(bounds, BOX, boxes));
+			assertTrue(serial > 0 && serial < objects);
+			for (int i = 0; i < objects; i++) {
+				assertEquals("object " + i, expected[i], bounds.isVisible(i));
+			}
+			
+			int[] visible = new int[objects];
+			assertEquals(serial, bounds.getVisible(visible));
+		}
+	}
+	
+	// A sphere culled as itself and as its cube, serial and parallel
+	private static void assertSpheres(boolean visible, float x, float y, float z, float radius) {
+		SceneBounds bounds = new SceneBounds(1);
+		bounds.addSphere(x, y, z, radius);
+		
+		FrustumCuller culler = new FrustumCuller();
+		String at = "sphere at " + x + ", " + y + ", " + z;
+		assertEquals(at, visible ? 1 : 0, culler.cullSerial(bounds, BOX, false));
+		assertEquals(at, visible, bounds.isVisible(0));
+		assertEquals(at, visible ? 1 : 0, culler.cull(bounds, BOX, false));
+		assertEquals(at, visible ? 1 : 0, culler.cullSerial(bounds, BOX, true));
+	}
+}
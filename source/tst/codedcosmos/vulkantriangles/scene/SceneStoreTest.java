@@ -0,0 +1,201 @@
+/*
+ *     VulkanTriangles by codedcosmos
+ *
+ *     VulkanTriangles is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License 3 as published by
+ *     the Free Software Foundation.
+ *     VulkanTriangles is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License 3 for more details.
+ *     You should have received a copy of the GNU General Public License 3
+ *     along with VulkanTriangles.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package codedcosmos.vulkantriangles.scene;
+
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.lwjgl.system.MemoryUtil.memAddress;
+
+// World matrices from the structure of arrays store and the batch kernels against one joml Matrix4f per node
+public class SceneStoreTest {
+	private static final float EPSILON = 1e-4f;
+	
+	private SceneStore store;
+	
+	// The same locals kept per node, the way a scene graph of Matrix4f nodes would
+	private final List<Integer> parents = new ArrayList<>();
+	private final List<Matrix4f> locals = new ArrayList<>();
+	
+	@Before
+	public void create() {
+		store = new SceneStore(1024);
+	}
+	
+	@After
+	public void free() {
+		store.free();
+	}
+	
+	@Test
+	public void worldMatricesMatchPerNodeJoml() {
+		buildSmallTree();
+		
+		assertEquals(6, store.update());
+		assertWorlds();
+	}
+	
+	@Test
+	public void movingAParentUpdatesOnlyItsSubtree() {
+		buildSmallTree();
+		store.update();
+		
+		set(1, new Vector3f(0f, -2f, 4f), new Quaternionf().rotateZ(1.2f), new Vector3f(1f, 3f, 1f));
+		
+		assertEquals(2, store.update());
+		int[] changed = store.getChanged();
+		assertTrue(contains(changed, store.getChangedCount(), 1));
+		assertTrue(contains(changed, store.getChangedCount(), 2));
+		assertWorlds();
+		
+		// Nothing set, nothing changed
+		assertEquals(0, store.update());
+	}
+	
+	// Enough dirty roots to split the update over the pool
+	@Test
+	public void parallelUpdateMatchesPerNodeJoml() {
+		Random random = new Random(1);
+		int roots = SceneStore.ROOT_CHUNK * 3 + 5;
+		for (int i = 0; i < roots; i++) {
+			int root = add(SceneStore.NONE, random);
+			int child = add(root, random);
+			add(child, random);
+		}
+		
+		assertEquals(roots * 3, store.update());
+		assertWorlds();
+	}
+	
+	@Test
+	public void batchKernelsMatchPerNodeJoml() {
+		buildSmallTree();
+		store.update();
+		
+		Matrix4f transform = new Matrix4f().setPerspective((float) Math.toRadians(70), 16f / 9f, 0.01f, 1000f).lookAt(0f, 2f, 10f, 0f, 0f, 0f, 0f, 1f, 0f);
+		float[] packed = transform.get(new float[16]);
+		
+		List<BatchTransform> kernels = new ArrayList<>();
+		kernels.add(new ScalarBatchTransform());
+		BatchTransform vector = BatchTransforms.createVector();
+		if (vector != null) {
+			kernels.add(vector);
+		}
+		
+		Matrix4f[] worlds = expectedWorlds();
+		for (BatchTransform kernel : kernels) {
+			ByteBuffer dest = ByteBuffer.allocateDirect(store.getCount() * BatchTransform.MATRIX_SIZE).order(ByteOrder.nativeOrder());
+			kernel.multiply(packed, store.getWorlds(), dest, store.getCount());
+			for (int i = 0; i < store.getCount(); i++) {
+				assertMatrix(kernel.getName() + " object " + i, new Matrix4f(transform).mul(worlds[i]), dest, i);
+			}
+			
+			// Only the listed ones are written
+			ByteBuffer indexed = ByteBuffer.allocateDirect(store.getCount() * BatchTransform.MATRIX_SIZE).order(ByteOrder.nativeOrder());
+			kernel.multiply(packed, store.getWorlds(), indexed, new int[] {4, 2}, 2);
+			for (int i = 0; i < store.getCount(); i++) {
+				Matrix4f expected = i == 4 || i == 2 ? new Matrix4f(transform).mul(worlds[i]) : new Matrix4f().zero();
+				assertMatrix(kernel.getName() + " indexed object " + i, expected, indexed, i);
+			}
+		}
+	}
+	
+	// Two roots, one with a child and grandchild under a rotated and scaled parent, one with a single child
+	private void buildSmallTree() {
+		int root = add(SceneStore.NONE, new Vector3f(1f, 2f, 3f), new Quaternionf().rotateY(0.5f), new Vector3f(2f, 2f, 2f));
+		int child = add(root, new Vector3f(0f, 1f, 0f), new Quaternionf().rotateX((float) Math.toRadians(45)), new Vector3f(1f, 1f, 1f));
+		add(child, new Vector3f(3f, 0f, -1f), new Quaternionf().rotateZ(-0.3f), new Vector3f(0.5f, 1f, 2f));
+		add(root, new Vector3f(-2f, 0f, 0f), new Quaternionf(), new Vector3f(1f, 1f, 1f));
+		int other = add(SceneStore.NONE, new Vector3f(10f, 0f, 0f), new Quaternionf().rotateXYZ(0.1f, 0.2f, 0.3f), new Vector3f(1f, 0.5f, 1f));
+		add(other, new Vector3f(0f, 0f, 5f), new Quaternionf(), new Vector3f(3f, 3f, 3f));
+	}
+	
+	private int add(int parent, Random random) {
+		Quaternionf rotation = new Quaternionf().rotateXYZ(random.nextFloat() * 6f, random.nextFloat() * 6f, random.nextFloat() * 6f);
+		return add(parent,
+				new Vector3f(random.nextFloat() * 20f - 10f, random.nextFloat() * 20f - 10f, random.nextFloat() * 20f - 10f),
+				rotation,
+				new Vector3f(0.5f + random.nextFloat(), 0.5f + random.nextFloat(), 0.5f + random.nextFloat()));
+	}
+	
+	private int add(int parent, Vector3f position, Quaternionf rotation, Vector3f scale) {
+		int object = store.add(parent, 1f, 1f, 1f);
+		parents.add(parent);
+		locals.add(new Matrix4f());
+		set(object, position, rotation, scale);
+		return object;
+	}
+	
+	private void set(int object, Vector3f position, Quaternionf rotation, Vector3f scale) {
+		store.setPosition(object, position.x, position.y, position.z);
+		store.setRotation(object, rotation.x, rotation.y, rotation.z, rotation.w);
+		store.setScale(object, scale.x, scale.y, scale.z);
+		locals.get(object).translationRotateScale(position.x, position.y, position.z, rotation.x, rotation.y, rotation.z, rotation.w, scale.x, scale.y, scale.z);
+	}
+	
+	// Parent world times local, parents are added before their children
+	private Matrix4f[] expectedWorlds() {
+		Matrix4f[] worlds = new Matrix4f[locals.size()];
+		for (int i = 0; i < worlds.length; i++) {
+			int parent = parents.get(i);
+			worlds[i] = parent == SceneStore.NONE ? new Matrix4f(locals.get(i)) : new Matrix4f(worlds[parent]).mul(locals.get(i));
+		}
+		return worlds;
+	}
+	
+	private void assertWorlds() {
+		Matrix4f[] worlds = expectedWorlds();
+		SceneBounds bounds = store.getBounds();
+		for (int i = 0; i < worlds.length; i++) {
+			assertMatrix("object " + i, worlds[i], store.getWorlds(), i);
+			
+			// The bounds follow the world translation
+			assertEquals(worlds[i].m30(), bounds.centerX[i], EPSILON);
+			assertEquals(worlds[i].m31(), bounds.centerY[i], EPSILON);
+			assertEquals(worlds[i].m32(), bounds.centerZ[i], EPSILON);
+		}
+	}
+	
+	private static void assertMatrix(String message, Matrix4f expected, ByteBuffer matrices, int object) {
+		Matrix4f actual = new Matrix4f().setFromAddress(memAddress(matrices) + (long) object * BatchTransform.MATRIX_SIZE);
+		float[] a = expected.get(new float[16]);
+		float[] b = actual.get(new float[16]);
+		for (int i = 0; i < 16; i++) {
+			// Relative for the larger projected values
+			assertEquals(message + " element " + i + "\nexpected " + expected + "\nactual " + actual, a[i], b[i], EPSILON * Math.max(1f, Math.abs(a[i])));
+		}
+	}
+	
+	private static boolean contains(int[] objects, int count, int object) {
+		for (int i = 0; i < count; i++) {
+			if (objects[i] == object) {
+				return true;
+			}
+		}
+		return false;
+	}
+}